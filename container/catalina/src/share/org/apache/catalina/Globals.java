@@ -317,6 +317,17 @@ public final class Globals {
         "org.apache.catalina.WELCOME_FILES";
 
 
+    /**
+     * The servlet context attribute under which we record the taglib URIs
+     * declared by the TLDs of the scanned JAR files (as an object of type
+     * Map, keyed by the canonical path of the JAR, with String[] values
+     * holding pairs of taglib URI and JAR entry name).  Must be kept in
+     * sync with jasper/src/share/org/apache/jasper/Constants.java.
+     */
+    public static final String TLD_LOCATIONS_ATTR =
+        "org.apache.catalina.deploy.tld_locations";
+
+
     /**
      * The servlet context attribute under which we store a temporary
      * working directory (as an object of type File) for use by servlets
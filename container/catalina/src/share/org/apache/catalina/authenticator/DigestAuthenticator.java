@@ -38,6 +38,7 @@ import org.apache.catalina.Realm;
 import org.apache.catalina.connector.Request;
 import org.apache.catalina.connector.Response;
 import org.apache.catalina.deploy.LoginConfig;
+import org.apache.catalina.util.ConcurrentMessageDigest;
 import org.apache.catalina.util.MD5Encoder;
 
 
@@ -96,7 +97,10 @@ public class DigestAuthenticator extends AuthenticatorBase {
 
 
     /**
-     * MD5 message digest provider.
+     * MD5 message digest provider.  It is still initialized as before, but
+     * is no longer used by this class.
+     * @deprecated MD5 digests are computed with
+     *  <code>ConcurrentMessageDigest</code>
      */
     protected static MessageDigest md5Helper;
 
@@ -373,10 +377,7 @@ public class DigestAuthenticator extends AuthenticatorBase {
         String ipTimeKey =
             request.getRemoteAddr() + ":" + currentTime + ":" + getKey();
 
-        byte[] buffer;
-        synchronized (md5Helper) {
-            buffer = md5Helper.digest(ipTimeKey.getBytes());
-        }
+        byte[] buffer = ConcurrentMessageDigest.digestMD5(ipTimeKey.getBytes());
 
         String nonce = currentTime + ":" + md5Encoder.encode(buffer);
 
@@ -643,10 +644,8 @@ public class DigestAuthenticator extends AuthenticatorBase {
             }
             String serverIpTimeKey =
                 request.getRemoteAddr() + ":" + nonceTime + ":" + key;
-            byte[] buffer = null;
-            synchronized (md5Helper) {
-                buffer = md5Helper.digest(serverIpTimeKey.getBytes());
-            }
+            byte[] buffer =
+                ConcurrentMessageDigest.digestMD5(serverIpTimeKey.getBytes());
             String md5ServerIpTimeKey = md5Encoder.encode(buffer);
             if (!md5ServerIpTimeKey.equals(md5clientIpTimeKey)) {
                 return false;
@@ -704,10 +703,7 @@ public class DigestAuthenticator extends AuthenticatorBase {
             // MD5(Method + ":" + uri)
             String a2 = method + ":" + uri;
 
-            byte[] buffer;
-            synchronized (md5Helper) {
-                buffer = md5Helper.digest(a2.getBytes());
-            }
+            byte[] buffer = ConcurrentMessageDigest.digestMD5(a2.getBytes());
             String md5a2 = md5Encoder.encode(buffer);
 
             return realm.authenticate(userName, response, nonce, nc, cnonce,
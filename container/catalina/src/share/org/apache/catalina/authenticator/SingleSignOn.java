@@ -21,7 +21,7 @@ package org.apache.catalina.authenticator;
 
 import java.io.IOException;
 import java.security.Principal;
-import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
 
 import javax.servlet.ServletException;
@@ -38,6 +38,7 @@ import org.apache.catalina.connector.Request;
 import org.apache.catalina.connector.Response;
 import org.apache.catalina.util.LifecycleSupport;
 import org.apache.catalina.util.StringManager;
+import org.apache.catalina.util.StripedHashMap;
 import org.apache.catalina.valves.ValveBase;
 
 
@@ -57,6 +58,13 @@ import org.apache.catalina.valves.ValveBase;
  *     Authenticators found in the
  *     <code>org.apache.catalina.authenticator</code> package.</li>
  * </ul>
+ * <p>
+ * The single sign on entries and the sessions associated with them are held
+ * in striped maps, so that looking up the entry of a request does not
+ * contend with the registration of other users or the destruction of their
+ * sessions.  Changes to the sessions of an entry are made while holding the
+ * lock of the entry.  Entries which are left without any valid session are
+ * removed by the background processing of the container.
  *
  * @author Craig R. McClanahan
  * @version $Id$
@@ -74,7 +82,7 @@ public class SingleSignOn
      * The cache of SingleSignOnEntry instances for authenticated Principals,
      * keyed by the cookie value that is used to select them.
      */
-    protected Map cache = new HashMap();
+    protected StripedHashMap cache = new StripedHashMap();
 
 
     /**
@@ -100,7 +108,7 @@ public class SingleSignOn
      * The cache of single sign on identifiers, keyed by the Session that is
      * associated with them.
      */
-    protected Map reverse = new HashMap();
+    protected StripedHashMap reverse = new StripedHashMap();
 
 
     /**
@@ -212,6 +220,16 @@ public class SingleSignOn
     }
 
 
+    /**
+     * Return the number of single sign on identifiers currently registered.
+     */
+    public int getEntryCount() {
+
+        return (cache.size());
+
+    }
+
+
     // ------------------------------------------------------ Lifecycle Methods
 
 
@@ -310,10 +328,7 @@ public class SingleSignOn
         if (containerLog.isDebugEnabled())
             containerLog.debug("Process session destroyed on " + session);
 
-        String ssoId = null;
-        synchronized (reverse) {
-            ssoId = (String) reverse.get(session);
-        }
+        String ssoId = (String) reverse.get(session);
         if (ssoId == null)
             return;
 
@@ -349,6 +364,52 @@ public class SingleSignOn
     }
 
 
+    /**
+     * Remove the sessions which are no longer valid from the single sign on
+     * entries, in case their destruction was not notified, and remove the
+     * entries which have been left without any session since the previous
+     * run, such as entries registered for a session that was never
+     * created.
+     */
+    public void backgroundProcess() {
+
+        if (!started)
+            return;
+
+        Iterator entries = cache.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry mapEntry = (Map.Entry) entries.next();
+            String ssoId = (String) mapEntry.getKey();
+            SingleSignOnEntry sso = (SingleSignOnEntry) mapEntry.getValue();
+
+            // Remove the invalid sessions
+            Session sessions[] = sso.findSessions();
+            for (int i = 0; i < sessions.length; i++) {
+                if (!sessions[i].isValid())
+                    removeSession(ssoId, sessions[i]);
+            }
+
+            // Remove the entry if it was already found without sessions
+            boolean orphan = false;
+            synchronized (sso) {
+                if (sso.findSessions().length > 0) {
+                    sso.orphan = false;
+                } else if (!sso.orphan) {
+                    sso.orphan = true;
+                } else {
+                    orphan = (lookup(ssoId) == sso);
+                }
+            }
+            if (orphan) {
+                if (containerLog.isDebugEnabled())
+                    containerLog.debug("Removing orphan sso id '" + ssoId + "'");
+                deregister(ssoId);
+            }
+        }
+
+    }
+
+
     /**
      * Perform single-sign-on support processing for this request.
      *
@@ -457,11 +518,15 @@ public class SingleSignOn
             containerLog.debug("Associate sso id " + ssoId + " with session " + session);
 
         SingleSignOnEntry sso = lookup(ssoId);
-        if (sso != null)
-            sso.addSession(this, session);
-        synchronized (reverse) {
-            reverse.put(session, ssoId);
+        if (sso != null) {
+            synchronized (sso) {
+                // Check the entry has not been removed in the meantime
+                if (lookup(ssoId) != sso)
+                    return;
+                sso.addSession(this, session);
+            }
         }
+        reverse.put(session, ssoId);
 
     }
 
@@ -474,21 +539,19 @@ public class SingleSignOn
      */
     protected void deregister(String ssoId, Session session) {
 
-        synchronized (reverse) {
-            reverse.remove(session);
-        }
+        reverse.remove(session);
 
         SingleSignOnEntry sso = lookup(ssoId);
         if ( sso == null )
             return;
 
-        sso.removeSession( session );
+        synchronized (sso) {
+            sso.removeSession( session );
 
-        // see if we are the last session, if so blow away ssoId
-        Session sessions[] = sso.findSessions();
-        if ( sessions == null || sessions.length == 0 ) {
-            synchronized (cache) {
-                sso = (SingleSignOnEntry) cache.remove(ssoId);
+            // see if we are the last session, if so blow away ssoId
+            Session sessions[] = sso.findSessions();
+            if ( sessions == null || sessions.length == 0 ) {
+                cache.remove(ssoId, sso);
             }
         }
 
@@ -507,23 +570,21 @@ public class SingleSignOn
             containerLog.debug("Deregistering sso id '" + ssoId + "'");
 
         // Look up and remove the corresponding SingleSignOnEntry
-        SingleSignOnEntry sso = null;
-        synchronized (cache) {
-            sso = (SingleSignOnEntry) cache.remove(ssoId);
-        }
+        SingleSignOnEntry sso = (SingleSignOnEntry) cache.remove(ssoId);
 
         if (sso == null)
             return;
 
         // Expire any associated sessions
-        Session sessions[] = sso.findSessions();
+        Session sessions[] = null;
+        synchronized (sso) {
+            sessions = sso.findSessions();
+        }
         for (int i = 0; i < sessions.length; i++) {
             if (containerLog.isTraceEnabled())
                 containerLog.trace(" Invalidating session " + sessions[i]);
             // Remove from reverse cache first to avoid recursion
-            synchronized (reverse) {
-                reverse.remove(sessions[i]);
-            }
+            reverse.remove(sessions[i]);
             // Invalidate this session
             sessions[i].expire();
         }
@@ -602,10 +663,8 @@ public class SingleSignOn
             containerLog.debug("Registering sso id '" + ssoId + "' for user '" +
                 principal.getName() + "' with auth type '" + authType + "'");
 
-        synchronized (cache) {
-            cache.put(ssoId, new SingleSignOnEntry(principal, authType,
-                                                   username, password));
-        }
+        cache.put(ssoId, new SingleSignOnEntry(principal, authType,
+                                               username, password));
 
     }
 
@@ -659,9 +718,7 @@ public class SingleSignOn
      */
     protected SingleSignOnEntry lookup(String ssoId) {
 
-        synchronized (cache) {
-            return ((SingleSignOnEntry) cache.get(ssoId));
-        }
+        return ((SingleSignOnEntry) cache.get(ssoId));
 
     }
 
@@ -685,16 +742,18 @@ public class SingleSignOn
             return;
 
         // Remove the inactive session from SingleSignOnEntry
-        entry.removeSession(session);
+        boolean empty = false;
+        synchronized (entry) {
+            entry.removeSession(session);
+            empty = (entry.findSessions().length == 0);
+        }
 
         // Remove the inactive session from the 'reverse' Map.
-        synchronized(reverse) {
-            reverse.remove(session);
-        }
+        reverse.remove(session);
 
         // If there are not sessions left in the SingleSignOnEntry,
         // deregister the entry.
-        if (entry.findSessions().length == 0) {
+        if (empty) {
             deregister(ssoId);
         }
     }
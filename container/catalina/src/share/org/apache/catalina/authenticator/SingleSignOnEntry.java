@@ -43,12 +43,23 @@ public class SingleSignOnEntry
 
     protected Principal principal = null;
 
-    protected Session sessions[] = new Session[0];
+    /**
+     * The sessions associated with this SSO.  The array is replaced rather
+     * than modified, so that it can be read without locking.
+     */
+    protected volatile Session sessions[] = new Session[0];
 
     protected String username = null;
 
     protected boolean canReauthenticate = false;
 
+    /**
+     * Set when the background processing of the <code>SingleSignOn</code>
+     * valve finds this entry without any session.  If the entry still has
+     * no session on the next run, it is removed.
+     */
+    protected boolean orphan = false;
+
     // ---------------------------------------------------------  Constructors
 
     /**
@@ -89,6 +100,7 @@ public class SingleSignOnEntry
         System.arraycopy(sessions, 0, results, 0, sessions.length);
         results[sessions.length] = session;
         sessions = results;
+        orphan = false;
         session.addSessionListener(sso);
     }
 
@@ -99,6 +111,8 @@ public class SingleSignOnEntry
      * @param session  the <code>Session</code> to remove.
      */
     public synchronized void removeSession(Session session) {
+        if (!sessionExists(session))
+            return;
         Session[] nsessions = new Session[sessions.length - 1];
         for (int i = 0, j = 0; i < sessions.length; i++) {
             if (session == sessions[i])
@@ -109,9 +123,10 @@ public class SingleSignOnEntry
     }
 
     /**
-     * Returns the <code>Session</code>s associated with this SSO.
+     * Returns the <code>Session</code>s associated with this SSO.  The
+     * returned array must not be modified.
      */
-    public synchronized Session[] findSessions() {
+    public Session[] findSessions() {
         return (this.sessions);
     }
 
@@ -121,7 +136,8 @@ public class SingleSignOnEntry
      * @param session The session.
      * @return session exists
      */
-    public synchronized boolean sessionExists(Session session) {
+    public boolean sessionExists(Session session) {
+        Session[] sessions = this.sessions;
         for (int i = 0; i < sessions.length; i++) {
             if (session == sessions[i])
                 return true;
@@ -0,0 +1,319 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apache.catalina.core;
+
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import org.apache.catalina.deploy.FilterMap;
+
+
+/**
+ * Cache of the filters resolved for the filter chains of a Context.  The
+ * filters of a chain only depend on the servlet name, the dispatcher type
+ * and the set of filter URL patterns matched by the request path, so the
+ * resolved <code>ApplicationFilterConfig</code> arrays are cached using
+ * these as the key.  A cache is only valid for the filter mappings and
+ * filter configurations it was built for, and is replaced by the Context
+ * whenever they change.
+ * <p>
+ * The URL patterns are indexed by kind, so that the patterns matched by a
+ * request path are found with a few lookups rather than by testing every
+ * pattern.  The cached chains are held in a map which is copied when a
+ * chain is added, so that requests read it without locking.
+ *
+ * @version $Id$
+ */
+
+final class ApplicationFilterCache {
+
+
+    // ----------------------------------------------------------- Constructors
+
+
+    /**
+     * Construct a new cache for the specified filter mappings.
+     *
+     * @param filterMaps The filter mappings of the Context
+     * @param generation The generation of the filter configurations of
+     *  the Context
+     */
+    ApplicationFilterCache(FilterMap[] filterMaps, int generation) {
+
+        this.filterMaps = filterMaps;
+        this.generation = generation;
+
+        ArrayList patterns = new ArrayList();
+        for (int i = 0; i < filterMaps.length; i++) {
+            String pattern = filterMaps[i].getURLPattern();
+            if ((pattern != null) && !patterns.contains(pattern))
+                patterns.add(pattern);
+        }
+        this.urlPatterns =
+            (String[]) patterns.toArray(new String[patterns.size()]);
+
+        // Index the patterns by kind, as ApplicationFilterFactory matches
+        // them: any pattern matches a path equal to it, "/*" matches every
+        // path, "/prefix/*" matches the prefix and the paths below it, and
+        // "*.ext" matches the paths whose last segment has this extension
+        ArrayList universal = new ArrayList();
+        for (int i = 0; i < urlPatterns.length; i++) {
+            String pattern = urlPatterns[i];
+            Integer index = new Integer(i);
+            exactPatterns.put(pattern, index);
+            if (pattern.equals("/*")) {
+                universal.add(index);
+            } else if (pattern.endsWith("/*")) {
+                prefixPatterns.put
+                    (pattern.substring(0, pattern.length() - 2), index);
+            } else if (pattern.startsWith("*.")) {
+                extensionPatterns.put(pattern.substring(2), index);
+            }
+        }
+        this.universalPatterns = new int[universal.size()];
+        for (int i = 0; i < universalPatterns.length; i++)
+            universalPatterns[i] = ((Integer) universal.get(i)).intValue();
+
+    }
+
+
+    // ----------------------------------------------------- Instance Variables
+
+
+    /**
+     * The resolved filters, keyed by chain key.  This map is never
+     * modified once published: adding a chain replaces it with a copy.
+     */
+    private volatile HashMap chains = new HashMap();
+
+
+    /**
+     * The filter mappings this cache was built for.
+     */
+    private FilterMap[] filterMaps = null;
+
+
+    /**
+     * The generation of the filter configurations this cache was built for.
+     */
+    private int generation = 0;
+
+
+    /**
+     * The distinct URL patterns of the filter mappings.
+     */
+    private String[] urlPatterns = null;
+
+
+    /**
+     * The indexes of all the URL patterns, keyed by pattern.
+     */
+    private HashMap exactPatterns = new HashMap();
+
+
+    /**
+     * The indexes of the "/prefix/*" URL patterns, keyed by prefix.
+     */
+    private HashMap prefixPatterns = new HashMap();
+
+
+    /**
+     * The indexes of the "*.ext" URL patterns, keyed by extension.
+     */
+    private HashMap extensionPatterns = new HashMap();
+
+
+    /**
+     * The indexes of the "/*" URL patterns.
+     */
+    private int[] universalPatterns = null;
+
+
+    // ------------------------------------------------------------- Properties
+
+
+    /**
+     * Return the filter mappings this cache was built for.
+     */
+    FilterMap[] getFilterMaps() {
+
+        return (this.filterMaps);
+
+    }
+
+
+    /**
+     * Return the key identifying the filters of a chain.  The key is made
+     * of the dispatcher type, the set of URL patterns matched by the
+     * request path and the servlet name.
+     *
+     * @param servletName Servlet name of the request
+     * @param dispatcher Dispatcher type of the request
+     * @param requestPath Context-relative request path of the request
+     */
+    Object getChainKey(String servletName, int dispatcher,
+                       String requestPath) {
+
+        long[] matched = new long[(urlPatterns.length + 63) >> 6];
+        if ((requestPath != null) && (urlPatterns.length > 0)) {
+
+            // Case 1 - Exact Match
+            mark(matched, exactPatterns.get(requestPath));
+
+            // Case 2 - Path Match ("/.../*")
+            for (int i = 0; i < universalPatterns.length; i++)
+                matched[universalPatterns[i] >> 6] |=
+                    1L << universalPatterns[i];
+            if (!prefixPatterns.isEmpty()) {
+                mark(matched, prefixPatterns.get(requestPath));
+                int slash = requestPath.indexOf('/');
+                while (slash >= 0) {
+                    mark(matched, prefixPatterns.get
+                         (requestPath.substring(0, slash)));
+                    slash = requestPath.indexOf('/', slash + 1);
+                }
+            }
+
+            // Case 3 - Extension Match
+            if (!extensionPatterns.isEmpty()) {
+                int slash = requestPath.lastIndexOf('/');
+                int period = requestPath.lastIndexOf('.');
+                if ((slash >= 0) && (period > slash)
+                    && (period != requestPath.length() - 1))
+                    mark(matched, extensionPatterns.get
+                         (requestPath.substring(period + 1)));
+            }
+
+        }
+        return (new ChainKey(servletName, dispatcher, matched));
+
+    }
+
+
+    // --------------------------------------------------------- Public Methods
+
+
+    /**
+     * Return <code>true</code> if this cache is valid for the specified
+     * filter mappings and filter configuration generation.
+     *
+     * @param filterMaps The current filter mappings of the Context
+     * @param generation The current generation of the filter configurations
+     */
+    boolean isValid(FilterMap[] filterMaps, int generation) {
+
+        return ((this.filterMaps == filterMaps)
+                && (this.generation == generation));
+
+    }
+
+
+    /**
+     * Return the filters cached for the specified chain key, if any;
+     * otherwise return <code>null</code>.
+     *
+     * @param key The chain key
+     */
+    ApplicationFilterConfig[] get(Object key) {
+
+        return ((ApplicationFilterConfig[]) chains.get(key));
+
+    }
+
+
+    /**
+     * Cache the filters resolved for the specified chain key.
+     *
+     * @param key The chain key
+     * @param filters The resolved filters
+     */
+    synchronized void put(Object key, ApplicationFilterConfig[] filters) {
+
+        HashMap results = new HashMap(chains);
+        results.put(key, filters);
+        chains = results;
+
+    }
+
+
+    // -------------------------------------------------------- Private Methods
+
+
+    /**
+     * Mark the specified URL pattern index as matched, if any.
+     *
+     * @param matched The set of matched URL pattern indexes
+     * @param index The index of the URL pattern, or <code>null</code>
+     */
+    private void mark(long[] matched, Object index) {
+
+        if (index != null) {
+            int i = ((Integer) index).intValue();
+            matched[i >> 6] |= 1L << i;
+        }
+
+    }
+
+
+    // ------------------------------------------------------- ChainKey Class
+
+
+    /**
+     * The key of the filters of a chain.
+     */
+    private static final class ChainKey {
+
+        private String servletName;
+        private int dispatcher;
+        private long[] matched;
+        private int hashCode;
+
+        ChainKey(String servletName, int dispatcher, long[] matched) {
+            this.servletName = servletName;
+            this.dispatcher = dispatcher;
+            this.matched = matched;
+            int hash = dispatcher;
+            for (int i = 0; i < matched.length; i++)
+                hash = 31 * hash + (int) (matched[i] ^ (matched[i] >>> 32));
+            if (servletName != null)
+                hash = 31 * hash + servletName.hashCode();
+            this.hashCode = hash;
+        }
+
+        public int hashCode() {
+            return (hashCode);
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof ChainKey))
+                return (false);
+            ChainKey other = (ChainKey) o;
+            return ((hashCode == other.hashCode)
+                    && (dispatcher == other.dispatcher)
+                    && Arrays.equals(matched, other.matched)
+                    && ((servletName == null) ? (other.servletName == null)
+                        : servletName.equals(other.servletName)));
+        }
+
+    }
+
+
+}
@@ -19,6 +19,8 @@
 package org.apache.catalina.core;
 
 
+import java.util.ArrayList;
+
 import javax.servlet.Servlet;
 import javax.servlet.ServletRequest;
 
@@ -145,7 +147,43 @@ public final class ApplicationFilterFactory {
         // Acquire the information we will need to match filter mappings
         String servletName = wrapper.getName();
 
-        int n = 0;
+        // Use the filters previously resolved for the same servlet,
+        // dispatcher type and set of matching URL patterns, if any
+        ApplicationFilterCache cache = context.getFilterCache();
+        Object key = cache.getChainKey(servletName, dispatcher, requestPath);
+        ApplicationFilterConfig[] filters = cache.get(key);
+        if (filters == null) {
+            filters = resolveFilters(context, cache.getFilterMaps(),
+                                     servletName, dispatcher, requestPath);
+            cache.put(key, filters);
+        }
+        for (int i = 0; i < filters.length; i++)
+            filterChain.addFilter(filters[i]);
+
+        // Return the completed filter chain
+        return (filterChain);
+
+    }
+
+
+    // -------------------------------------------------------- Private Methods
+
+
+    /**
+     * Return the filters which apply to a request, path-mapped filters
+     * first, followed by the filters matching on servlet name.
+     *
+     * @param context Context processing this request
+     * @param filterMaps Filter mappings of the Context
+     * @param servletName Servlet name of this request
+     * @param dispatcher Dispatcher type of this request
+     * @param requestPath Context-relative request path of this request
+     */
+    private ApplicationFilterConfig[] resolveFilters
+        (StandardContext context, FilterMap filterMaps[], String servletName,
+         int dispatcher, String requestPath) {
+
+        ArrayList filters = new ArrayList();
 
         // Add the relevant path-mapped filters to this filter chain
         for (int i = 0; i < filterMaps.length; i++) {
@@ -160,8 +198,7 @@ public final class ApplicationFilterFactory {
                 ;       // FIXME - log configuration problem
                 continue;
             }
-            filterChain.addFilter(filterConfig);
-            n++;
+            filters.add(filterConfig);
         }
 
         // Add filters that match on servlet name second
@@ -177,18 +214,15 @@ public final class ApplicationFilterFactory {
                 ;       // FIXME - log configuration problem
                 continue;
             }
-            filterChain.addFilter(filterConfig);
-            n++;
+            filters.add(filterConfig);
         }
 
-        // Return the completed filter chain
-        return (filterChain);
+        return ((ApplicationFilterConfig[])
+                filters.toArray(new ApplicationFilterConfig[filters.size()]));
 
     }
 
 
-    // -------------------------------------------------------- Private Methods
-
 
     /**
      * Return <code>true</code> if the context-relative request path
@@ -200,11 +234,25 @@ public final class ApplicationFilterFactory {
      */
     private boolean matchFiltersURL(FilterMap filterMap, String requestPath) {
 
+        return (matchFiltersURL(filterMap.getURLPattern(), requestPath));
+
+    }
+
+
+    /**
+     * Return <code>true</code> if the context-relative request path
+     * matches the specified filter URL pattern; otherwise, return
+     * <code>false</code>.
+     *
+     * @param testPath URL pattern being checked
+     * @param requestPath Context-relative request path of this request
+     */
+    private boolean matchFiltersURL(String testPath, String requestPath) {
+
         if (requestPath == null)
             return (false);
 
         // Match on context relative request path
-        String testPath = filterMap.getURLPattern();
         if (testPath == null)
             return (false);
 
@@ -0,0 +1,398 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apache.catalina.core;
+
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+import org.apache.catalina.Container;
+import org.apache.catalina.Wrapper;
+import org.apache.catalina.util.StringManager;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+
+/**
+ * Scheduler running the background processing of a container hierarchy
+ * on a set of worker threads.  Each Engine, Host and Context of the
+ * hierarchy (and any container with its own positive background processor
+ * delay) is an independent task, which is run periodically using the
+ * delay of its container, or the delay of the owning container if it does
+ * not have its own.  Wrappers are processed as part of the task of their
+ * Context.  A task is not scheduled again before its previous run has
+ * completed, so that a slow task only delays itself.
+ *
+ * @version $Id$
+ */
+
+final class ContainerBackgroundScheduler {
+
+
+    private static Log log =
+        LogFactory.getLog(ContainerBackgroundScheduler.class);
+
+
+    /**
+     * The string manager for this package.
+     */
+    private static final StringManager sm =
+        StringManager.getManager(Constants.Package);
+
+
+    // ----------------------------------------------------------- Constructors
+
+
+    /**
+     * Construct a scheduler for the specified container and its children.
+     *
+     * @param owner The container owning the scheduler
+     * @param threads The number of worker threads
+     */
+    ContainerBackgroundScheduler(ContainerBase owner, int threads) {
+
+        this.owner = owner;
+        this.workers = new Thread[threads];
+
+    }
+
+
+    // ----------------------------------------------------- Instance Variables
+
+
+    /**
+     * The container owning this scheduler.
+     */
+    private ContainerBase owner = null;
+
+
+    /**
+     * The tasks, keyed by container.
+     */
+    private HashMap tasks = new HashMap();
+
+
+    /**
+     * The tasks waiting for a worker thread.
+     */
+    private LinkedList queue = new LinkedList();
+
+
+    /**
+     * The dispatcher thread.
+     */
+    private Thread dispatcher = null;
+
+
+    /**
+     * The worker threads.
+     */
+    private Thread[] workers = null;
+
+
+    /**
+     * Has the scheduler been stopped?
+     */
+    private boolean done = false;
+
+
+    // -------------------------------------------------------- Package Methods
+
+
+    /**
+     * Start the dispatcher and worker threads.
+     */
+    void start() {
+
+        String threadName = "ContainerBackgroundProcessor[" + owner + "]";
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Thread(new Worker(), threadName + "-" + (i + 1));
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+        dispatcher = new Thread(new Dispatcher(), threadName);
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+
+    }
+
+
+    /**
+     * Stop the dispatcher and wait for the worker threads to complete
+     * their current task.
+     */
+    void stop() {
+
+        synchronized (this) {
+            done = true;
+            notifyAll();
+        }
+        synchronized (queue) {
+            queue.clear();
+            queue.notifyAll();
+        }
+        join(dispatcher);
+        for (int i = 0; i < workers.length; i++) {
+            join(workers[i]);
+        }
+
+    }
+
+
+    // -------------------------------------------------------- Private Methods
+
+
+    /**
+     * Wait for the specified thread to terminate, restoring the interrupt
+     * status of the calling thread if it is interrupted meanwhile.
+     */
+    private void join(Thread thread) {
+
+        if (thread == null)
+            return;
+        boolean interrupted = false;
+        while (thread.isAlive()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+
+    }
+
+
+    /**
+     * Collect the containers which are scheduled as independent tasks.
+     */
+    private void collect(Container container, ArrayList results) {
+
+        if (isTask(container))
+            results.add(container);
+        Container[] children = container.findChildren();
+        for (int i = 0; i < children.length; i++) {
+            collect(children[i], results);
+        }
+
+    }
+
+
+    /**
+     * Is the specified container scheduled as an independent task?
+     */
+    private boolean isTask(Container container) {
+
+        return ((container == owner) || !(container instanceof Wrapper)
+                || (container.getBackgroundProcessorDelay() > 0));
+
+    }
+
+
+    /**
+     * Return the period in milliseconds of the task of the specified
+     * container.
+     */
+    private long getPeriod(Container container) {
+
+        int delay = container.getBackgroundProcessorDelay();
+        if (delay <= 0)
+            delay = owner.getBackgroundProcessorDelay();
+        if (delay <= 0)
+            delay = 1;
+        return (delay * 1000L);
+
+    }
+
+
+    /**
+     * Invoke the background processing of the specified container, and of
+     * its children which are not scheduled as independent tasks.
+     */
+    private void process(Container container, ClassLoader cl) {
+
+        try {
+            if (container.getLoader() != null) {
+                Thread.currentThread().setContextClassLoader
+                    (container.getLoader().getClassLoader());
+            }
+            long t1 = System.currentTimeMillis();
+            try {
+                container.backgroundProcess();
+            } finally {
+                if (container instanceof ContainerBase) {
+                    ((ContainerBase) container).backgroundProcessed
+                        (System.currentTimeMillis() - t1);
+                }
+            }
+        } catch (Throwable t) {
+            log.error(sm.getString("containerBase.backgroundProcess",
+                                   container), t);
+        } finally {
+            Thread.currentThread().setContextClassLoader(cl);
+        }
+        Container[] children = container.findChildren();
+        for (int i = 0; i < children.length; i++) {
+            if (!isTask(children[i])) {
+                process(children[i], cl);
+            }
+        }
+
+    }
+
+
+    // --------------------------------------------------------- Task Inner Class
+
+
+    /**
+     * The scheduling state of the background processing of a container.
+     */
+    private static final class Task {
+
+        Task(Container container, long nextRun) {
+            this.container = container;
+            this.nextRun = nextRun;
+        }
+
+        Container container = null;
+        long nextRun = 0L;
+        boolean running = false;
+
+    }
+
+
+    // --------------------------------------------------- Dispatcher Inner Class
+
+
+    /**
+     * Thread class queueing the tasks which are due for execution.  The
+     * container hierarchy is walked again once per period of the owning
+     * container, and not each time a worker completes a task.
+     */
+    private final class Dispatcher implements Runnable {
+
+        public void run() {
+            long nextCollect = 0L;
+            while (true) {
+                ArrayList containers = null;
+                if (System.currentTimeMillis() >= nextCollect) {
+                    containers = new ArrayList();
+                    try {
+                        collect(owner, containers);
+                    } catch (Throwable t) {
+                        log.error(sm.getString
+                                  ("containerBase.backgroundProcess", owner),
+                                  t);
+                    }
+                }
+                synchronized (ContainerBackgroundScheduler.this) {
+                    if (done)
+                        break;
+                    long now = System.currentTimeMillis();
+
+                    // Synchronize the tasks with the container hierarchy
+                    if (containers != null) {
+                        nextCollect = now + getPeriod(owner);
+                        HashMap current = new HashMap();
+                        for (int i = 0; i < containers.size(); i++) {
+                            Container container =
+                                (Container) containers.get(i);
+                            Task task = (Task) tasks.get(container);
+                            if (task == null)
+                                task = new Task(container,
+                                                now + getPeriod(container));
+                            current.put(container, task);
+                        }
+                        tasks = current;
+                    }
+                    long next = nextCollect;
+
+                    // Queue the tasks which are due
+                    Iterator iterator = tasks.values().iterator();
+                    while (iterator.hasNext()) {
+                        Task task = (Task) iterator.next();
+                        if (task.running)
+                            continue;
+                        if (task.nextRun <= now) {
+                            task.running = true;
+                            synchronized (queue) {
+                                queue.addLast(task);
+                                queue.notify();
+                            }
+                        } else if (task.nextRun < next) {
+                            next = task.nextRun;
+                        }
+                    }
+
+                    try {
+                        ContainerBackgroundScheduler.this.wait
+                            (Math.max(next - now, 1L));
+                    } catch (InterruptedException e) {
+                        ;
+                    }
+                    if (done)
+                        break;
+                }
+            }
+        }
+
+    }
+
+
+    // ------------------------------------------------------- Worker Inner Class
+
+
+    /**
+     * Thread class running the queued tasks.
+     */
+    private final class Worker implements Runnable {
+
+        public void run() {
+            ClassLoader cl = Thread.currentThread().getContextClassLoader();
+            while (true) {
+                Task task = null;
+                synchronized (queue) {
+                    while (queue.isEmpty() && !done) {
+                        try {
+                            queue.wait();
+                        } catch (InterruptedException e) {
+                            ;
+                        }
+                    }
+                    if (queue.isEmpty())
+                        break;
+                    task = (Task) queue.removeFirst();
+                }
+                process(task.container, cl);
+                synchronized (ContainerBackgroundScheduler.this) {
+                    task.running = false;
+                    task.nextRun = System.currentTimeMillis()
+                        + getPeriod(task.container);
+                    ContainerBackgroundScheduler.this.notifyAll();
+                }
+            }
+        }
+
+    }
+
+
+}
@@ -28,7 +28,6 @@ import java.security.PrivilegedAction;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Hashtable;
-import java.util.Iterator;
 
 import javax.management.MBeanRegistration;
 import javax.management.MBeanServer;
@@ -157,12 +156,57 @@ public abstract class ContainerBase
     protected HashMap children = new HashMap();
 
 
+    /**
+     * The child Containers added while this Container is started and which
+     * are still starting, keyed by name. They are only moved to
+     * <code>children</code> once their start completes, and are guarded by
+     * the lock on <code>children</code>.
+     */
+    protected HashMap startingChildren = new HashMap();
+
+
     /**
      * The processor delay for this component.
      */
     protected int backgroundProcessorDelay = -1;
 
 
+    /**
+     * The number of threads used to run the background processing of this
+     * container and its children. When greater than 1, each child container
+     * is processed as an independent task.
+     */
+    protected int backgroundProcessorThreads = 1;
+
+
+    /**
+     * The number of invocations of the background processing of this
+     * container.
+     */
+    protected volatile long backgroundProcessCount = 0L;
+
+
+    /**
+     * The total time in milliseconds spent in the background processing of
+     * this container.
+     */
+    protected volatile long backgroundProcessTime = 0L;
+
+
+    /**
+     * The maximum time in milliseconds spent in a single invocation of the
+     * background processing of this container.
+     */
+    protected volatile long maxBackgroundProcessTime = 0L;
+
+
+    /**
+     * The time in milliseconds spent in the last invocation of the
+     * background processing of this container.
+     */
+    protected volatile long lastBackgroundProcessTime = 0L;
+
+
     /**
      * The lifecycle event support for this component.
      */
@@ -273,6 +317,13 @@ public abstract class ContainerBase
     private boolean threadDone = false;
 
 
+    /**
+     * The background scheduler, used instead of the background thread when
+     * more than one background processor thread is configured.
+     */
+    private ContainerBackgroundScheduler scheduler = null;
+
+
     // ------------------------------------------------------------- Properties
 
 
@@ -302,6 +353,67 @@ public abstract class ContainerBase
     }
 
 
+    /**
+     * Return the number of threads used to run the background processing of
+     * this container and its children.
+     */
+    public int getBackgroundProcessorThreads() {
+        return backgroundProcessorThreads;
+    }
+
+
+    /**
+     * Set the number of threads used to run the background processing of
+     * this container and its children. When greater than 1, the background
+     * processing of each child Host and Context is scheduled as an
+     * independent task, using the delay of the child if it is positive, or
+     * the delay of this container otherwise, and is run by a pool of the
+     * specified size. The new value will be used the next time this
+     * container is started.
+     * 
+     * @param threads The number of background processor threads
+     */
+    public void setBackgroundProcessorThreads(int threads) {
+        backgroundProcessorThreads = threads;
+    }
+
+
+    /**
+     * Return the number of invocations of the background processing of this
+     * container.
+     */
+    public long getBackgroundProcessCount() {
+        return backgroundProcessCount;
+    }
+
+
+    /**
+     * Return the total time in milliseconds spent in the background
+     * processing of this container.
+     */
+    public long getBackgroundProcessTime() {
+        return backgroundProcessTime;
+    }
+
+
+    /**
+     * Return the maximum time in milliseconds spent in a single invocation
+     * of the background processing of this container.
+     */
+    public long getMaxBackgroundProcessTime() {
+        return maxBackgroundProcessTime;
+    }
+
+
+    /**
+     * Return the time in milliseconds spent in the last invocation of the
+     * background processing of this container.
+     */
+    public long getLastBackgroundProcessTime() {
+        return lastBackgroundProcessTime;
+    }
+
+
     /**
      * Return descriptive information about this Container implementation and
      * the corresponding version number, in the format
@@ -745,34 +857,45 @@ public abstract class ContainerBase
 
         if( log.isDebugEnabled() )
             log.debug("Add child " + child + " " + this);
+        boolean start = started && (child instanceof Lifecycle);
         synchronized(children) {
-            if (children.get(child.getName()) != null)
+            if (children.get(child.getName()) != null
+                || startingChildren.get(child.getName()) != null)
                 throw new IllegalArgumentException("addChild:  Child name '" +
                                                    child.getName() +
                                                    "' is not unique");
             child.setParent(this);  // May throw IAE
-            children.put(child.getName(), child);
+            if (start) {
+                startingChildren.put(child.getName(), child);
+            } else {
+                children.put(child.getName(), child);
+            }
+        }
 
-            // Start child
-            if (started && (child instanceof Lifecycle)) {
-                boolean success = false;
-                try {
-                    ((Lifecycle) child).start();
-                    success = true;
-                } catch (LifecycleException e) {
-                    log.error("ContainerBase.addChild: start: ", e);
-                    throw new IllegalStateException
-                        ("ContainerBase.addChild: start: " + e);
-                } finally {
-                    if (!success) {
-                        children.remove(child.getName());
+        // Start child, outside of the lock on the children as starting a
+        // child may be slow, and several children may be started in parallel.
+        // The child is only returned by findChildren() once started
+        if (start) {
+            boolean success = false;
+            try {
+                ((Lifecycle) child).start();
+                success = true;
+            } catch (LifecycleException e) {
+                log.error("ContainerBase.addChild: start: ", e);
+                throw new IllegalStateException
+                    ("ContainerBase.addChild: start: " + e);
+            } finally {
+                synchronized(children) {
+                    startingChildren.remove(child.getName());
+                    if (success) {
+                        children.put(child.getName(), child);
                     }
                 }
             }
-
-            fireContainerEvent(ADD_CHILD_EVENT, child);
         }
 
+        fireContainerEvent(ADD_CHILD_EVENT, child);
+
     }
 
 
@@ -804,7 +927,9 @@ public abstract class ContainerBase
 
     /**
      * Return the child Container, associated with this Container, with
-     * the specified name (if any); otherwise, return <code>null</code>
+     * the specified name (if any); otherwise, return <code>null</code>.
+     * A child which is still being started by <code>addChild()</code>
+     * is returned as well.
      *
      * @param name Name of the child Container to be retrieved
      */
@@ -813,7 +938,10 @@ public abstract class ContainerBase
         if (name == null)
             return (null);
         synchronized (children) {       // Required by post-start changes
-            return ((Container) children.get(name));
+            Container child = (Container) children.get(name);
+            if (child == null)
+                child = (Container) startingChildren.get(name);
+            return (child);
         }
 
     }
@@ -822,6 +950,8 @@ public abstract class ContainerBase
     /**
      * Return the set of children Containers associated with this Container.
      * If this Container has no children, a zero-length array is returned.
+     * Children which are still being started by <code>addChild()</code>
+     * are not included.
      */
     public Container[] findChildren() {
 
@@ -1294,6 +1424,13 @@ public abstract class ContainerBase
                 log.warn(sm.getString("containerBase.backgroundProcess.realm", realm), e);                
             }
         }
+        if (resources instanceof ProxyDirContext) {
+            try {
+                ((ProxyDirContext) resources).backgroundProcess();
+            } catch (Exception e) {
+                log.warn(sm.getString("containerBase.backgroundProcess.resources", resources), e);                
+            }
+        }
         Valve current = pipeline.getFirst();
         while (current != null) {
             try {
@@ -1358,6 +1495,45 @@ public abstract class ContainerBase
     }
 
     
+    /**
+     * Record the time spent in an invocation of the background processing
+     * of this container.  It is only called by the thread which has just
+     * run this processing, which is never run by two threads at once, and
+     * the fields are volatile so that they can be read through JMX.
+     *
+     * @param time The time in milliseconds
+     */
+    void backgroundProcessed(long time) {
+
+        backgroundProcessCount++;
+        backgroundProcessTime += time;
+        if (time > maxBackgroundProcessTime)
+            maxBackgroundProcessTime = time;
+        lastBackgroundProcessTime = time;
+
+    }
+
+
+    /**
+     * Is the background processing of this container run by the scheduler
+     * of one of its parents?
+     */
+    protected boolean isBackgroundProcessorScheduled() {
+
+        Container current = getParent();
+        while (current != null) {
+            if ((current instanceof ContainerBase)
+                && (current.getBackgroundProcessorDelay() > 0)
+                && (((ContainerBase) current).getBackgroundProcessorThreads()
+                    > 1))
+                return (true);
+            current = current.getParent();
+        }
+        return (false);
+
+    }
+
+
     // -------------------- JMX and Registration  --------------------
     protected String type;
     protected String domain;
@@ -1439,13 +1615,12 @@ public abstract class ContainerBase
     }
 
     public ObjectName[] getChildren() {
-        ObjectName result[]=new ObjectName[children.size()];
-        Iterator it=children.values().iterator();
+        Container children[] = findChildren();
+        ObjectName result[]=new ObjectName[children.length];
         int i=0;
-        while( it.hasNext() ) {
-            Object next=it.next();
-            if( next instanceof ContainerBase ) {
-                result[i++]=((ContainerBase)next).getJmxName();
+        for (int j = 0; j < children.length; j++) {
+            if( children[j] instanceof ContainerBase ) {
+                result[i++]=((ContainerBase)children[j]).getJmxName();
             }
         }
         return result;
@@ -1497,10 +1672,19 @@ public abstract class ContainerBase
      */
     protected void threadStart() {
 
-        if (thread != null)
+        if ((thread != null) || (scheduler != null))
             return;
         if (backgroundProcessorDelay <= 0)
             return;
+        if (isBackgroundProcessorScheduled())
+            return;
+
+        if (backgroundProcessorThreads > 1) {
+            scheduler = new ContainerBackgroundScheduler
+                (this, backgroundProcessorThreads);
+            scheduler.start();
+            return;
+        }
 
         threadDone = false;
         String threadName = "ContainerBackgroundProcessor[" + toString() + "]";
@@ -1517,6 +1701,10 @@ public abstract class ContainerBase
      */
     protected void threadStop() {
 
+        if (scheduler != null) {
+            scheduler.stop();
+            scheduler = null;
+        }
         if (thread == null)
             return;
 
@@ -1567,7 +1755,15 @@ public abstract class ContainerBase
                     Thread.currentThread().setContextClassLoader
                         (container.getLoader().getClassLoader());
                 }
-                container.backgroundProcess();
+                long t1 = System.currentTimeMillis();
+                try {
+                    container.backgroundProcess();
+                } finally {
+                    if (container instanceof ContainerBase) {
+                        ((ContainerBase) container).backgroundProcessed
+                            (System.currentTimeMillis() - t1);
+                    }
+                }
             } catch (Throwable t) {
                 log.error("Exception invoking periodic operation: ", t);
             } finally {
@@ -0,0 +1,129 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apache.catalina.core;
+
+
+import javax.servlet.Servlet;
+import javax.servlet.ServletException;
+
+
+/**
+ * Pool of the instances of a servlet managed by a
+ * <code>StandardWrapper</code>.  Instances are only pooled for servlets
+ * implementing <code>SingleThreadModel</code>, but the pool also keeps
+ * track of the allocations of non-STM servlets.
+ * <p>
+ * <code>InstancePool15Impl</code> is used when running on a 1.5 or later
+ * JVM, and <code>InstancePool14Impl</code> otherwise.
+ *
+ * @version $Id$
+ */
+
+interface InstancePool {
+
+
+    /**
+     * Set the maximum number of instances of a STM servlet.
+     *
+     * @param maxInstances The new maximum number of instances
+     */
+    public void setMaxInstances(int maxInstances);
+
+
+    /**
+     * Return the number of active allocations.
+     */
+    public int getCountAllocated();
+
+
+    /**
+     * Return the number of STM instances currently loaded.
+     */
+    public int getInstances();
+
+
+    /**
+     * Return the number of STM allocations which had to wait for an
+     * instance to be deallocated.
+     */
+    public long getWaitCount();
+
+
+    /**
+     * Return the total time spent waiting for STM instances, in ms.
+     */
+    public long getWaitTime();
+
+
+    /**
+     * Return the longest time spent waiting for a STM instance, in ms.
+     */
+    public long getMaxWaitTime();
+
+
+    /**
+     * Record the allocation of the instance of a non-STM servlet.
+     */
+    public void allocated();
+
+
+    /**
+     * Record the deallocation of the instance of a non-STM servlet.
+     */
+    public void deallocated();
+
+
+    /**
+     * Allocate an instance of a STM servlet.  An idle instance is returned
+     * if available, otherwise a new instance is loaded from the wrapper if
+     * the maximum number of instances has not been reached.  Otherwise,
+     * wait for an instance to be deallocated.
+     *
+     * @param wrapper The wrapper used to load new instances
+     * @param timeout Maximum time to wait for an instance in ms, or zero
+     *  to wait indefinitely
+     * @return the allocated instance, or <code>null</code> if the timeout
+     *  expired
+     *
+     * @exception ServletException if a new instance cannot be loaded, or
+     *  if the thread is interrupted while waiting (its interrupt status is
+     *  then set again)
+     */
+    public Servlet allocate(StandardWrapper wrapper, long timeout)
+        throws ServletException;
+
+
+    /**
+     * Return a previously allocated instance of a STM servlet to the pool.
+     *
+     * @param servlet The instance to return
+     */
+    public void deallocate(Servlet servlet);
+
+
+    /**
+     * Remove all the idle instances from the pool, and reset the number of
+     * loaded instances.
+     *
+     * @return the removed instances
+     */
+    public Servlet[] clear();
+
+
+}
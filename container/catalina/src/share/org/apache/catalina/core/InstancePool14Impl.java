@@ -0,0 +1,212 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apache.catalina.core;
+
+
+import java.util.Stack;
+
+import javax.servlet.Servlet;
+import javax.servlet.ServletException;
+
+import org.apache.catalina.util.StringManager;
+
+
+/**
+ * Implementation of <b>InstancePool</b> for 1.4 JVMs, using a
+ * <code>Stack</code> guarded by its monitor.
+ *
+ * @version $Id$
+ */
+
+final class InstancePool14Impl
+    implements InstancePool {
+
+
+    // ----------------------------------------------------- Instance Variables
+
+
+    /**
+     * The string manager for this package.
+     */
+    private static final StringManager sm =
+        StringManager.getManager(Constants.Package);
+
+
+    /**
+     * The count of allocations that are currently active.
+     */
+    private int countAllocated = 0;
+
+
+    /**
+     * Maximum number of STM instances.
+     */
+    private int maxInstances = 20;
+
+
+    /**
+     * Number of instances currently loaded for a STM servlet.
+     */
+    private int nInstances = 0;
+
+
+    /**
+     * Stack containing the idle STM instances.
+     */
+    private Stack pool = new Stack();
+
+
+    /**
+     * Allocation wait statistics.
+     */
+    private long waitCount = 0;
+    private long waitTime = 0;
+    private long maxWaitTime = 0;
+
+
+    // ------------------------------------------------------------- Properties
+
+
+    public void setMaxInstances(int maxInstances) {
+        synchronized (pool) {
+            this.maxInstances = maxInstances;
+            pool.notifyAll();
+        }
+    }
+
+
+    public int getCountAllocated() {
+        return (countAllocated);
+    }
+
+
+    public int getInstances() {
+        return (nInstances);
+    }
+
+
+    public long getWaitCount() {
+        return (waitCount);
+    }
+
+
+    public long getWaitTime() {
+        return (waitTime);
+    }
+
+
+    public long getMaxWaitTime() {
+        return (maxWaitTime);
+    }
+
+
+    // --------------------------------------------------------- Public Methods
+
+
+    public void allocated() {
+        countAllocated++;
+    }
+
+
+    public void deallocated() {
+        countAllocated--;
+    }
+
+
+    public Servlet allocate(StandardWrapper wrapper, long timeout)
+        throws ServletException {
+
+        synchronized (pool) {
+            long start = 0L;
+            while (countAllocated >= nInstances) {
+                // Allocate a new instance if possible, or else wait
+                if (nInstances < maxInstances) {
+                    pool.push(wrapper.loadServlet());
+                    nInstances++;
+                } else {
+                    long now = System.currentTimeMillis();
+                    if (start == 0L)
+                        start = now;
+                    long wait = 0L;
+                    if (timeout > 0) {
+                        wait = timeout - (now - start);
+                        if (wait <= 0) {
+                            recordWait(now - start);
+                            return (null);
+                        }
+                    }
+                    try {
+                        pool.wait(wait);
+                    } catch (InterruptedException e) {
+                        recordWait(System.currentTimeMillis() - start);
+                        Thread.currentThread().interrupt();
+                        throw new ServletException
+                            (sm.getString("standardWrapper.allocateInterrupted",
+                                          wrapper.getName()));
+                    }
+                }
+            }
+            if (start != 0L)
+                recordWait(System.currentTimeMillis() - start);
+            countAllocated++;
+            return ((Servlet) pool.pop());
+        }
+
+    }
+
+
+    public void deallocate(Servlet servlet) {
+
+        synchronized (pool) {
+            countAllocated--;
+            pool.push(servlet);
+            pool.notify();
+        }
+
+    }
+
+
+    public Servlet[] clear() {
+
+        synchronized (pool) {
+            Servlet[] servlets = (Servlet[]) pool.toArray(new Servlet[0]);
+            pool.clear();
+            nInstances = 0;
+            return (servlets);
+        }
+
+    }
+
+
+    // -------------------------------------------------------- Private Methods
+
+
+    /**
+     * Record the time spent waiting for an instance.  Must be called while
+     * holding the pool monitor.
+     */
+    private void recordWait(long time) {
+        waitCount++;
+        waitTime += time;
+        if (time > maxWaitTime)
+            maxWaitTime = time;
+    }
+
+
+}
@@ -0,0 +1,257 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apache.catalina.core;
+
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.Servlet;
+import javax.servlet.ServletException;
+
+import org.apache.catalina.util.StringManager;
+
+
+/**
+ * Implementation of <b>InstancePool</b> for 1.5 and later JVMs.  Idle
+ * instances are kept in a non-blocking queue, and the number of concurrent
+ * STM allocations is bounded by a semaphore, so that allocations only block
+ * when all instances are in use.  Counters are atomic.
+ *
+ * @version $Id$
+ */
+
+final class InstancePool15Impl
+    implements InstancePool {
+
+
+    // ----------------------------------------------------- Instance Variables
+
+
+    /**
+     * The string manager for this package.
+     */
+    private static final StringManager sm =
+        StringManager.getManager(Constants.Package);
+
+
+    /**
+     * The count of allocations that are currently active.
+     */
+    private AtomicInteger countAllocated = new AtomicInteger();
+
+
+    /**
+     * Maximum number of STM instances.
+     */
+    private int maxInstances = 20;
+
+
+    /**
+     * Number of instances currently loaded for a STM servlet.
+     */
+    private AtomicInteger nInstances = new AtomicInteger();
+
+
+    /**
+     * Queue containing the idle STM instances.
+     */
+    private ConcurrentLinkedQueue pool = new ConcurrentLinkedQueue();
+
+
+    /**
+     * Permits for the STM allocations, one per instance.
+     */
+    private ResizableSemaphore permits = new ResizableSemaphore(maxInstances);
+
+
+    /**
+     * Allocation wait statistics.
+     */
+    private AtomicLong waitCount = new AtomicLong();
+    private AtomicLong waitTime = new AtomicLong();
+    private AtomicLong maxWaitTime = new AtomicLong();
+
+
+    // ------------------------------------------------------------- Properties
+
+
+    public synchronized void setMaxInstances(int maxInstances) {
+        int delta = maxInstances - this.maxInstances;
+        this.maxInstances = maxInstances;
+        if (delta > 0)
+            permits.release(delta);
+        else if (delta < 0)
+            permits.reducePermits(-delta);
+    }
+
+
+    public int getCountAllocated() {
+        return (countAllocated.get());
+    }
+
+
+    public int getInstances() {
+        return (nInstances.get());
+    }
+
+
+    public long getWaitCount() {
+        return (waitCount.get());
+    }
+
+
+    public long getWaitTime() {
+        return (waitTime.get());
+    }
+
+
+    public long getMaxWaitTime() {
+        return (maxWaitTime.get());
+    }
+
+
+    // --------------------------------------------------------- Public Methods
+
+
+    public void allocated() {
+        countAllocated.incrementAndGet();
+    }
+
+
+    public void deallocated() {
+        countAllocated.decrementAndGet();
+    }
+
+
+    public Servlet allocate(StandardWrapper wrapper, long timeout)
+        throws ServletException {
+
+        // Acquire an allocation permit, waiting if all instances are in use
+        if (!permits.tryAcquire()) {
+            long start = System.currentTimeMillis();
+            boolean acquired = false;
+            try {
+                if (timeout > 0) {
+                    acquired = permits.tryAcquire(timeout,
+                                                  TimeUnit.MILLISECONDS);
+                } else {
+                    permits.acquire();
+                    acquired = true;
+                }
+            } catch (InterruptedException e) {
+                recordWait(System.currentTimeMillis() - start);
+                Thread.currentThread().interrupt();
+                throw new ServletException
+                    (sm.getString("standardWrapper.allocateInterrupted",
+                                  wrapper.getName()));
+            }
+            recordWait(System.currentTimeMillis() - start);
+            if (!acquired)
+                return (null);
+        }
+
+        // Holding a permit guarantees that the number of loaded instances
+        // stays below the maximum if no idle instance is available
+        Servlet servlet = (Servlet) pool.poll();
+        if (servlet == null) {
+            try {
+                servlet = wrapper.loadServlet();
+            } catch (ServletException e) {
+                permits.release();
+                throw e;
+            } catch (RuntimeException e) {
+                permits.release();
+                throw e;
+            } catch (Error e) {
+                permits.release();
+                throw e;
+            }
+            nInstances.incrementAndGet();
+        }
+        countAllocated.incrementAndGet();
+        return (servlet);
+
+    }
+
+
+    public void deallocate(Servlet servlet) {
+
+        countAllocated.decrementAndGet();
+        pool.offer(servlet);
+        permits.release();
+
+    }
+
+
+    public Servlet[] clear() {
+
+        ArrayList servlets = new ArrayList();
+        Servlet servlet = (Servlet) pool.poll();
+        while (servlet != null) {
+            servlets.add(servlet);
+            servlet = (Servlet) pool.poll();
+        }
+        nInstances.set(0);
+        return ((Servlet[]) servlets.toArray(new Servlet[servlets.size()]));
+
+    }
+
+
+    // -------------------------------------------------------- Private Methods
+
+
+    /**
+     * Record the time spent waiting for an instance.
+     */
+    private void recordWait(long time) {
+        waitCount.incrementAndGet();
+        waitTime.addAndGet(time);
+        long max = maxWaitTime.get();
+        while ((time > max) && !maxWaitTime.compareAndSet(max, time))
+            max = maxWaitTime.get();
+    }
+
+
+    // ----------------------------------------------- ResizableSemaphore Class
+
+
+    /**
+     * Semaphore whose number of permits can be reduced when the maximum
+     * number of instances is lowered.
+     */
+    private static final class ResizableSemaphore
+        extends Semaphore {
+
+        ResizableSemaphore(int permits) {
+            super(permits);
+        }
+
+        protected void reducePermits(int reduction) {
+            super.reducePermits(reduction);
+        }
+
+    }
+
+
+}
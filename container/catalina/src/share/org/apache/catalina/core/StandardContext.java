@@ -84,6 +84,7 @@ import org.apache.catalina.startup.ContextConfig;
 import org.apache.catalina.startup.TldConfig;
 import org.apache.catalina.util.CharsetMapper;
 import org.apache.catalina.util.ExtensionValidator;
+import org.apache.catalina.util.JarIndexCache;
 import org.apache.catalina.util.RequestUtil;
 import org.apache.catalina.util.URLEncoder;
 import org.apache.commons.logging.Log;
@@ -341,6 +342,20 @@ public class StandardContext
     private HashMap filterConfigs = new HashMap();
 
 
+    /**
+     * The generation of the filter configurations, incremented each time
+     * the filters are started or stopped.
+     */
+    private volatile int filterGeneration = 0;
+
+
+    /**
+     * The cache of the filters resolved for the filter chains of this
+     * application.
+     */
+    private volatile ApplicationFilterCache filterCache = null;
+
+
     /**
      * The set of filter definitions for this application, keyed by
      * filter name.
@@ -352,7 +367,7 @@ public class StandardContext
      * The set of filter mappings for this application, in the order
      * they were defined in the deployment descriptor.
      */
-    private FilterMap filterMaps[] = new FilterMap[0];
+    private volatile FilterMap filterMaps[] = new FilterMap[0];
 
 
     /**
@@ -598,6 +613,20 @@ public class StandardContext
     protected int cacheMaxSize = 10240; // 10 MB
 
 
+    /**
+     * Minimum size in KB of the resources which will have their content
+     * cached as a memory mapped view of their file, rather than on the
+     * heap. A negative value disables memory mapping.
+     */
+    protected int cacheMappedMinSize = -1;
+
+
+    /**
+     * Revalidate the cache entries in the background.
+     */
+    protected boolean cacheBackgroundRevalidation = false;
+
+
     /**
      * Cache TTL in ms.
      */
@@ -639,6 +668,13 @@ public class StandardContext
      */
     private boolean processTlds = true;
 
+
+    /**
+     * The persistent cache of the information extracted from the JARs of
+     * this web application, stored in the work directory.
+     */
+    private JarIndexCache jarIndexCache = null;
+
     /**
      * Attribute value used to turn on/off XML validation
      */
@@ -651,6 +687,13 @@ public class StandardContext
      private boolean tldNamespaceAware = false;
 
 
+    /**
+     * The number of threads used to scan the JARs and TLD files of this
+     * web application for TLDs.
+     */
+    private int tldScanThreads = 1;
+
+
     /**
      * Should we save the configuration.
      */
@@ -755,6 +798,43 @@ public class StandardContext
     }
 
 
+    /**
+     * Return the minimum size in KB of the resources which will have their
+     * content cached as a memory mapped view of their file.
+     */
+    public int getCacheMappedMinSize() {
+        return cacheMappedMinSize;
+    }
+
+
+    /**
+     * Set the minimum size in KB of the resources which will have their
+     * content cached as a memory mapped view of their file. A negative
+     * value disables memory mapping.
+     */
+    public void setCacheMappedMinSize(int cacheMappedMinSize) {
+        this.cacheMappedMinSize = cacheMappedMinSize;
+    }
+
+
+    /**
+     * Are the cache entries revalidated in the background?
+     */
+    public boolean isCacheBackgroundRevalidation() {
+        return cacheBackgroundRevalidation;
+    }
+
+
+    /**
+     * Set if the cache entries are revalidated in the background, rather
+     * than when they are accessed after their TTL has expired.
+     */
+    public void setCacheBackgroundRevalidation
+        (boolean cacheBackgroundRevalidation) {
+        this.cacheBackgroundRevalidation = cacheBackgroundRevalidation;
+    }
+
+
     /**
      * Return the "follow standard delegation model" flag used to configure
      * our ClassLoader.
@@ -1802,6 +1882,10 @@ public class StandardContext
             ((BaseDirContext) resources).setCached(isCachingAllowed());
             ((BaseDirContext) resources).setCacheTTL(getCacheTTL());
             ((BaseDirContext) resources).setCacheMaxSize(getCacheMaxSize());
+            ((BaseDirContext) resources).setCacheMappedMinSize
+                (getCacheMappedMinSize());
+            ((BaseDirContext) resources).setCacheBackgroundRevalidation
+                (isCacheBackgroundRevalidation());
         }
         if (resources instanceof FileDirContext) {
             filesystemBased = true;
@@ -3672,6 +3756,7 @@ public class StandardContext
                     ok = false;
                 }
             }
+            filterGeneration++;
         }
 
         return (ok);
@@ -3701,6 +3786,7 @@ public class StandardContext
                 filterConfig.release();
             }
             filterConfigs.clear();
+            filterGeneration++;
         }
         return (true);
 
@@ -3720,6 +3806,25 @@ public class StandardContext
     }
 
 
+    /**
+     * Return the cache of the filters resolved for the filter chains of
+     * this application, building a new one if the filter mappings or the
+     * filter configurations have changed.
+     */
+    ApplicationFilterCache getFilterCache() {
+
+        ApplicationFilterCache cache = filterCache;
+        FilterMap results[] = filterMaps;
+        int generation = filterGeneration;
+        if ((cache == null) || !cache.isValid(results, generation)) {
+            cache = new ApplicationFilterCache(results, generation);
+            filterCache = cache;
+        }
+        return (cache);
+
+    }
+
+
     /**
      * Configure the set of instantiated application event listeners
      * for this Context.  Return <code>true</code> if all listeners wre
@@ -3898,6 +4003,11 @@ public class StandardContext
                 ((BaseDirContext) webappResources).setCacheTTL(getCacheTTL());
                 ((BaseDirContext) webappResources).setCacheMaxSize
                     (getCacheMaxSize());
+                ((BaseDirContext) webappResources).setCacheMappedMinSize
+                    (getCacheMappedMinSize());
+                ((BaseDirContext) webappResources)
+                    .setCacheBackgroundRevalidation
+                        (isCacheBackgroundRevalidation());
                 ((BaseDirContext) webappResources).allocate();
             }
             // Register the cache in JMX
@@ -4097,6 +4207,7 @@ public class StandardContext
 
         // Post work directory
         postWorkDirectory();
+        jarIndexCache = new JarIndexCache(new File(getWorkPath(), "jarIndex.ser"));
 
         // Validate required extensions
         boolean dependencyCheck = true;
@@ -4276,6 +4387,7 @@ public class StandardContext
             if (log.isDebugEnabled())
                 log.debug("Starting completed");
             setAvailable(true);
+            jarIndexCache.save();
         } else {
             log.error(sm.getString("standardContext.startFailed", getName()));
             try {
@@ -4417,6 +4529,7 @@ public class StandardContext
         
         // Reset application context
         context = null;
+        jarIndexCache = null;
 
         // This object will no longer be visible or used. 
         try {
@@ -5330,6 +5443,15 @@ public class StandardContext
 	return processTlds;
     }
 
+    /**
+     * Return the persistent cache of the information extracted from the
+     * JARs of this web application, or <code>null</code> if the context is
+     * not started.
+     */
+    public JarIndexCache getJarIndexCache() {
+        return jarIndexCache;
+    }
+
     /**
      * Get the server.xml &lt;host&gt; attribute's xmlNamespaceAware.
      * @return true if namespace awarenes is enabled.
@@ -5349,6 +5471,26 @@ public class StandardContext
     }    
 
 
+    /**
+     * Return the number of threads used to scan for TLDs.
+     */
+    public int getTldScanThreads() {
+        return tldScanThreads;
+    }
+
+
+    /**
+     * Set the number of threads used to scan the JARs and TLD files of
+     * this web application for TLDs. A value of 1 or less scans them
+     * sequentially on the thread starting the context.
+     *
+     * @param tldScanThreads The new number of threads
+     */
+    public void setTldScanThreads(int tldScanThreads) {
+        this.tldScanThreads = tldScanThreads;
+    }
+
+
     /** 
      * Support for "stateManageable" JSR77 
      */
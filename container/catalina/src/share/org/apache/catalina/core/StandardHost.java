@@ -114,6 +114,13 @@ public class StandardHost
     private boolean deployOnStartup = true;
 
 
+    /**
+     * The context paths of the web applications which are deployed first,
+     * in the given order, separated by commas.
+     */
+    private String deployOrder = null;
+
+
     /**
      * deploy Context XML config files property.
      */
@@ -134,6 +141,13 @@ public class StandardHost
         "org.apache.catalina.core.StandardHost/1.0";
 
 
+    /**
+     * The number of threads used to deploy and start, and to stop and
+     * undeploy, the web applications of this Host.
+     */
+    private int startStopThreads = 1;
+
+
     /**
      * Unpack WARs property.
      */
@@ -318,6 +332,32 @@ public class StandardHost
     }
 
 
+    /**
+     * Return the context paths of the web applications which are deployed
+     * first, in the given order.
+     */
+    public String getDeployOrder() {
+
+        return (this.deployOrder);
+
+    }
+
+
+    /**
+     * Set the context paths of the web applications which are deployed
+     * first, one after the other and in the given order, before the other
+     * web applications of this Host are deployed.  This is used to deploy
+     * the web applications other web applications depend on first.
+     *
+     * @param deployOrder Comma separated list of context paths
+     */
+    public void setDeployOrder(String deployOrder) {
+
+        this.deployOrder = deployOrder;
+
+    }
+
+
     /**
      * Deploy XML Context config files flag accessor.
      */
@@ -422,6 +462,31 @@ public class StandardHost
     }
 
 
+    /**
+     * Return the number of threads used to start and stop the web
+     * applications of this Host.
+     */
+    public int getStartStopThreads() {
+
+        return (this.startStopThreads);
+
+    }
+
+
+    /**
+     * Set the number of threads used to start and stop the web
+     * applications of this Host.  A value of 1 or less starts and stops
+     * them one after the other.
+     *
+     * @param startStopThreads The new number of threads
+     */
+    public void setStartStopThreads(int startStopThreads) {
+
+        this.startStopThreads = startStopThreads;
+
+    }
+
+
     /**
      * Unpack WARs flag accessor.
      */
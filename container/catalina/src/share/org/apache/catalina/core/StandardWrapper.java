@@ -24,7 +24,6 @@ import java.util.ArrayList;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Stack;
 import java.security.AccessController;
 import java.security.PrivilegedActionException;
 import java.security.PrivilegedExceptionAction;
@@ -113,13 +112,6 @@ public class StandardWrapper
      */
     private NotificationBroadcasterSupport broadcaster = null;
     
-    /**
-     * The count of allocations that are currently active (even if they
-     * are for the same instance, as will be true on a non-STM servlet).
-     */
-    private int countAllocated = 0;
-
-
     /**
      * The facade associated with this wrapper.
      */
@@ -215,15 +207,25 @@ public class StandardWrapper
 
 
     /**
-     * Number of instances currently loaded for a STM servlet.
+     * Maximum time to wait for a STM instance to be deallocated, in ms,
+     * or zero to wait indefinitely.
+     */
+    private long allocateTimeout = 0L;
+
+
+    /**
+     * The implementation class of the instance pools, selected according
+     * to the JVM version.
      */
-    private int nInstances = 0;
+    private static Class instancePoolClass = null;
 
 
     /**
-     * Stack containing the STM instances.
+     * Pool of the STM instances, which also keeps the count of allocations
+     * that are currently active (even if they are for the same instance, as
+     * will be true on a non-STM servlet).
      */
-    private Stack instancePool = null;
+    private InstancePool instancePool = createInstancePool(maxInstances);
 
     
     /**
@@ -328,7 +330,76 @@ public class StandardWrapper
      */
     public int getCountAllocated() {
 
-        return (this.countAllocated);
+        return (instancePool.getCountAllocated());
+
+    }
+
+
+    /**
+     * Return the maximum time to wait for a STM instance to be deallocated,
+     * in ms, or zero to wait indefinitely.
+     */
+    public long getAllocateTimeout() {
+
+        return (this.allocateTimeout);
+
+    }
+
+
+    /**
+     * Set the maximum time to wait for a STM instance to be deallocated,
+     * in ms, or zero to wait indefinitely.
+     *
+     * @param allocateTimeout The new allocation timeout
+     */
+    public void setAllocateTimeout(long allocateTimeout) {
+
+        long oldAllocateTimeout = this.allocateTimeout;
+        this.allocateTimeout = allocateTimeout;
+        support.firePropertyChange("allocateTimeout",
+                                   new Long(oldAllocateTimeout),
+                                   new Long(this.allocateTimeout));
+
+    }
+
+
+    /**
+     * Return the number of STM allocations which had to wait for an
+     * instance to be deallocated.
+     */
+    public long getAllocateWaitCount() {
+
+        return (instancePool.getWaitCount());
+
+    }
+
+
+    /**
+     * Return the total time spent waiting for STM instances, in ms.
+     */
+    public long getAllocateWaitTime() {
+
+        return (instancePool.getWaitTime());
+
+    }
+
+
+    /**
+     * Return the longest time spent waiting for a STM instance, in ms.
+     */
+    public long getMaxAllocateWaitTime() {
+
+        return (instancePool.getMaxWaitTime());
+
+    }
+
+
+    /**
+     * Return the number of STM instances currently loaded.
+     */
+    public int getInstanceCount() {
+
+        return (instancePool.getInstances());
 
     }
 
@@ -469,6 +540,7 @@ public class StandardWrapper
 
         int oldMaxInstances = this.maxInstances;
         this.maxInstances = maxInstances;
+        instancePool.setMaxInstances(maxInstances);
         support.firePropertyChange("maxInstances", oldMaxInstances,
                                    this.maxInstances);
 
@@ -802,40 +874,28 @@ public class StandardWrapper
             if (!singleThreadModel) {
                 if (log.isTraceEnabled())
                     log.trace("  Returning non-STM instance");
-                countAllocated++;
+                instancePool.allocated();
                 return (instance);
             }
 
         }
 
-        synchronized (instancePool) {
-
-            while (countAllocated >= nInstances) {
-                // Allocate a new instance if possible, or else wait
-                if (nInstances < maxInstances) {
-                    try {
-                        instancePool.push(loadServlet());
-                        nInstances++;
-                    } catch (ServletException e) {
-                        throw e;
-                    } catch (Throwable e) {
-                        throw new ServletException
-                            (sm.getString("standardWrapper.allocate"), e);
-                    }
-                } else {
-                    try {
-                        instancePool.wait();
-                    } catch (InterruptedException e) {
-                        ;
-                    }
-                }
-            }
-            if (log.isTraceEnabled())
-                log.trace("  Returning allocated STM instance");
-            countAllocated++;
-            return (Servlet) instancePool.pop();
-
+        Servlet servlet = null;
+        try {
+            servlet = instancePool.allocate(this, allocateTimeout);
+        } catch (ServletException e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new ServletException
+                (sm.getString("standardWrapper.allocate"), e);
         }
+        if (servlet == null)
+            throw new ServletException
+                (sm.getString("standardWrapper.allocateTimeout", getName(),
+                              new Long(allocateTimeout)));
+        if (log.isTraceEnabled())
+            log.trace("  Returning allocated STM instance");
+        return (servlet);
 
     }
 
@@ -853,16 +913,12 @@ public class StandardWrapper
 
         // If not SingleThreadModel, no action is required
         if (!singleThreadModel) {
-            countAllocated--;
+            instancePool.deallocated();
             return;
         }
 
         // Unlock and free this instance
-        synchronized (instancePool) {
-            countAllocated--;
-            instancePool.push(servlet);
-            instancePool.notify();
-        }
+        instancePool.deallocate(servlet);
 
     }
 
@@ -1183,10 +1239,6 @@ public class StandardWrapper
 
             // Register our newly initialized instance
             singleThreadModel = servlet instanceof SingleThreadModel;
-            if (singleThreadModel) {
-                if (instancePool == null)
-                    instancePool = new Stack();
-            }
             fireContainerEvent("load", this);
 
             loadTime=System.currentTimeMillis() -t1;
@@ -1325,13 +1377,13 @@ public class StandardWrapper
 
         // Loaf a while if the current instance is allocated
         // (possibly more than once if non-STM)
-        if (countAllocated > 0) {
+        if (instancePool.getCountAllocated() > 0) {
             int nRetries = 0;
             long delay = unloadDelay / 20;
-            while ((nRetries < 21) && (countAllocated > 0)) {
+            while ((nRetries < 21) && (instancePool.getCountAllocated() > 0)) {
                 if ((nRetries % 10) == 0) {
                     log.info(sm.getString("standardWrapper.waiting",
-                                          new Integer(countAllocated)));
+                                          new Integer(instancePool.getCountAllocated())));
                 }
                 try {
                     Thread.sleep(delay);
@@ -1366,8 +1418,7 @@ public class StandardWrapper
             instanceSupport.fireInstanceEvent
               (InstanceEvent.AFTER_DESTROY_EVENT, instance, t);
             instance = null;
-            instancePool = null;
-            nInstances = 0;
+            instancePool.clear();
             fireContainerEvent("unload", this);
             unloading = false;
             throw new ServletException
@@ -1390,28 +1441,24 @@ public class StandardWrapper
         // Deregister the destroyed instance
         instance = null;
 
-        if (singleThreadModel && (instancePool != null)) {
+        if (singleThreadModel) {
+            Servlet[] servlets = instancePool.clear();
             try {
-                while (!instancePool.isEmpty()) {
+                for (int i = 0; i < servlets.length; i++) {
                     if( System.getSecurityManager() != null) {
-                        SecurityUtil.doAsPrivilege("destroy",
-                                                   ((Servlet) instancePool.pop()));
+                        SecurityUtil.doAsPrivilege("destroy", servlets[i]);
                         SecurityUtil.remove(instance);                           
                     } else {
-                        ((Servlet) instancePool.pop()).destroy();
+                        servlets[i].destroy();
                     }
                 }
             } catch (Throwable t) {
-                instancePool = null;
-                nInstances = 0;
                 unloading = false;
                 fireContainerEvent("unload", this);
                 throw new ServletException
                     (sm.getString("standardWrapper.destroyException",
                                   getName()), t);
             }
-            instancePool = null;
-            nInstances = 0;
         }
 
         singleThreadModel = false;
@@ -1540,6 +1587,34 @@ public class StandardWrapper
     // -------------------------------------------------------- Private Methods
 
 
+    /**
+     * Create the pool of instances of a wrapper, using the concurrent
+     * implementation if the JVM supports it.
+     *
+     * @param maxInstances Maximum number of STM instances
+     */
+    private static InstancePool createInstancePool(int maxInstances) {
+
+        InstancePool pool = null;
+        try {
+            if (instancePoolClass == null) {
+                try {
+                    instancePoolClass = Class.forName
+                        ("org.apache.catalina.core.InstancePool15Impl");
+                } catch (Throwable t) {
+                    instancePoolClass = InstancePool14Impl.class;
+                }
+            }
+            pool = (InstancePool) instancePoolClass.newInstance();
+        } catch (Throwable t) {
+            pool = new InstancePool14Impl();
+        }
+        pool.setMaxInstances(maxInstances);
+        return (pool);
+
+    }
+
+
     /**
      * Add a default Mapper implementation if none have been configured
      * explicitly.
@@ -25,6 +25,7 @@ import java.io.FilePermission;
 import java.io.IOException;
 import java.io.InputStream;
 import java.lang.reflect.Field;
+import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.net.MalformedURLException;
 import java.net.URL;
@@ -40,6 +41,8 @@ import java.sql.Driver;
 import java.sql.DriverManager;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -62,6 +65,7 @@ import javax.naming.directory.DirContext;
 import org.apache.catalina.Lifecycle;
 import org.apache.catalina.LifecycleException;
 import org.apache.catalina.LifecycleListener;
+import org.apache.catalina.util.JarIndexCache;
 import org.apache.catalina.util.StringManager;
 import org.apache.naming.JndiPermission;
 import org.apache.naming.resources.Resource;
@@ -115,6 +119,31 @@ public class WebappClassLoader
     public static final boolean ENABLE_CLEAR_REFERENCES = 
         Boolean.valueOf(System.getProperty("org.apache.catalina.loader.WebappClassLoader.ENABLE_CLEAR_REFERENCES", "true")).booleanValue();
 
+    /**
+     * <code>true</code> if the JVM loads classes in parallel with this class
+     * loader (Java 7 and later).  Otherwise, the JVM holds the monitor of
+     * the class loader while it loads classes implicitly, so classes are
+     * loaded while holding this monitor as well, to keep a consistent lock
+     * order.
+     */
+    protected static final boolean PARALLEL_CAPABLE;
+
+    static {
+        // Allow the JVM to load classes in parallel, when it supports it
+        // (Java 7 and later), as loadClass only locks the loaded class name
+        boolean parallelCapable = false;
+        try {
+            Method method = ClassLoader.class.getDeclaredMethod
+                ("registerAsParallelCapable", new Class[0]);
+            method.setAccessible(true);
+            parallelCapable = Boolean.TRUE.equals
+                (method.invoke(null, new Object[0]));
+        } catch (Throwable t) {
+            // Ignore: not available
+        }
+        PARALLEL_CAPABLE = parallelCapable;
+    }
+
     /**
      * @deprecated Not used
      */
@@ -209,6 +238,12 @@ public class WebappClassLoader
     boolean antiJARLocking = false; 
     
 
+    /**
+     * The persistent cache of the information extracted from the JARs.
+     */
+    protected JarIndexCache jarIndexCache = null;
+
+
     // ----------------------------------------------------------- Constructors
 
 
@@ -280,6 +315,30 @@ public class WebappClassLoader
     };
 
 
+    /**
+     * The index of the JARs containing the entries of each directory, keyed
+     * by directory path (ending with '/', or empty for the root directory).
+     * The values are the positions of the JARs in <code>jarFiles</code>, in
+     * increasing order.
+     */
+    protected HashMap jarIndex = new HashMap();
+
+
+    /**
+     * The positions in <code>jarFiles</code> of the JARs whose entries were
+     * indexed from the JAR index cache.  They are still probed for the
+     * entries which cannot be found in any JAR, in case the cache is stale.
+     */
+    protected BitSet cachedJarIndexes = new BitSet();
+
+
+    /**
+     * The locks used to load classes, keyed by class name.  A lock is only
+     * held in this map while a thread loads the class.
+     */
+    protected HashMap classLoadingLocks = new HashMap();
+
+
     /**
      * Should this class loader delegate to the parent class loader
      * <strong>before</strong> searching its own repositories (i.e. the
@@ -480,6 +539,17 @@ public class WebappClassLoader
         this.antiJARLocking = antiJARLocking;
     }
 
+
+    /**
+     * Set the persistent cache of the information extracted from the JARs,
+     * used to avoid scanning unchanged JARs.
+     * 
+     * @param jarIndexCache The cache
+     */
+    public void setJarIndexCache(JarIndexCache jarIndexCache) {
+        this.jarIndexCache = jarIndexCache;
+    }
+
     
     /**
      * If there is a Java SecurityManager create a read FilePermission
@@ -732,6 +802,9 @@ public class WebappClassLoader
         result2[jarFiles.length] = jarFile;
         jarFiles = result2;
 
+        // Index the entries of the JAR
+        indexJar(jarFile, jarFiles.length - 1, file);
+
         // Add the file to the list
         File[] result4 = new File[jarRealFiles.length + 1];
         for (i = 0; i < jarRealFiles.length; i++) {
@@ -1001,7 +1074,7 @@ public class WebappClassLoader
 
         URL url = null;
 
-        ResourceEntry entry = (ResourceEntry) resourceEntries.get(name);
+        ResourceEntry entry = getResourceEntry(name);
         if (entry == null) {
             if (securityManager != null) {
                 PrivilegedAction dp =
@@ -1045,7 +1118,6 @@ public class WebappClassLoader
 
         Vector result = new Vector();
 
-        int jarFilesLength = jarFiles.length;
         int repositoriesLength = repositories.length;
 
         int i;
@@ -1069,9 +1141,13 @@ public class WebappClassLoader
         // Looking at the JAR files
         synchronized (jarFiles) {
             if (openJARs()) {
-                for (i = 0; i < jarFilesLength; i++) {
+                int[] jars = findJars(name);
+                boolean found = false;
+                for (int j = 0; j < jars.length; j++) {
+                    i = jars[j];
                     JarEntry jarEntry = jarFiles[i].getJarEntry(name);
                     if (jarEntry != null) {
+                        found = true;
                         try {
                             String jarFakeUrl = getURI(jarRealFiles[i]).toString();
                             jarFakeUrl = "jar:" + jarFakeUrl + "!/" + name;
@@ -1081,6 +1157,19 @@ public class WebappClassLoader
                         }
                     }
                 }
+                if (!found) {
+                    jars = probeJars(name);
+                    for (int j = 0; j < jars.length; j++) {
+                        try {
+                            String jarFakeUrl =
+                                getURI(jarRealFiles[jars[j]]).toString();
+                            jarFakeUrl = "jar:" + jarFakeUrl + "!/" + name;
+                            result.addElement(new URL(jarFakeUrl));
+                        } catch (MalformedURLException e) {
+                            // Ignore
+                        }
+                    }
+                }
             }
         }
 
@@ -1149,7 +1238,7 @@ public class WebappClassLoader
             // Locating the repository for special handling in the case 
             // of a JAR
             if (antiJARLocking) {
-                ResourceEntry entry = (ResourceEntry) resourceEntries.get(name);
+                ResourceEntry entry = getResourceEntry(name);
                 try {
                     String repository = entry.codeBase.toString();
                     if ((repository.endsWith(".jar")) 
@@ -1311,7 +1400,7 @@ public class WebappClassLoader
      *
      * @exception ClassNotFoundException if the class was not found
      */
-    public synchronized Class loadClass(String name, boolean resolve)
+    public Class loadClass(String name, boolean resolve)
         throws ClassNotFoundException {
 
         if (log.isDebugEnabled())
@@ -1327,7 +1416,7 @@ public class WebappClassLoader
             }
         }
 
-        // (0) Check our previously loaded local class cache
+        // (0) Check our previously loaded local class cache, without locking
         clazz = findLoadedClass0(name);
         if (clazz != null) {
             if (log.isDebugEnabled())
@@ -1337,105 +1426,114 @@ public class WebappClassLoader
             return (clazz);
         }
 
-        // (0.1) Check our previously loaded class cache
-        clazz = findLoadedClass(name);
-        if (clazz != null) {
-            if (log.isDebugEnabled())
-                log.debug("  Returning class from cache");
-            if (resolve)
-                resolveClass(clazz);
-            return (clazz);
-        }
-
-        // (0.2) Try loading the class with the system class loader, to prevent
-        //       the webapp from overriding J2SE classes
+        Object lock = acquireClassLoadingLock(name);
         try {
-            clazz = system.loadClass(name);
-            if (clazz != null) {
-                if (resolve)
-                    resolveClass(clazz);
-                return (clazz);
-            }
-        } catch (ClassNotFoundException e) {
-            // Ignore
-        }
+            synchronized (lock) {
 
-        // (0.5) Permission to access this class when using a SecurityManager
-        if (securityManager != null) {
-            int i = name.lastIndexOf('.');
-            if (i >= 0) {
-                try {
-                    securityManager.checkPackageAccess(name.substring(0,i));
-                } catch (SecurityException se) {
-                    String error = "Security Violation, attempt to use " +
-                        "Restricted Class: " + name;
-                    log.info(error, se);
-                    throw new ClassNotFoundException(error, se);
-                }
-            }
-        }
-
-        boolean delegateLoad = delegate || filter(name);
-
-        // (1) Delegate to our parent if requested
-        if (delegateLoad) {
-            if (log.isDebugEnabled())
-                log.debug("  Delegating to parent classloader1 " + parent);
-            ClassLoader loader = parent;
-            if (loader == null)
-                loader = system;
-            try {
-                clazz = loader.loadClass(name);
+                // (0.1) Check our previously loaded class cache
+                clazz = findLoadedClass(name);
                 if (clazz != null) {
                     if (log.isDebugEnabled())
-                        log.debug("  Loading class from parent");
+                        log.debug("  Returning class from cache");
                     if (resolve)
                         resolveClass(clazz);
                     return (clazz);
                 }
-            } catch (ClassNotFoundException e) {
-                ;
-            }
-        }
 
-        // (2) Search local repositories
-        if (log.isDebugEnabled())
-            log.debug("  Searching local repositories");
-        try {
-            clazz = findClass(name);
-            if (clazz != null) {
+                // (0.2) Try loading the class with the system class loader, to prevent
+                //       the webapp from overriding J2SE classes
+                try {
+                    clazz = system.loadClass(name);
+                    if (clazz != null) {
+                        if (resolve)
+                            resolveClass(clazz);
+                        return (clazz);
+                    }
+                } catch (ClassNotFoundException e) {
+                    // Ignore
+                }
+
+                // (0.5) Permission to access this class when using a SecurityManager
+                if (securityManager != null) {
+                    int i = name.lastIndexOf('.');
+                    if (i >= 0) {
+                        try {
+                            securityManager.checkPackageAccess(name.substring(0,i));
+                        } catch (SecurityException se) {
+                            String error = "Security Violation, attempt to use " +
+                                "Restricted Class: " + name;
+                            log.info(error, se);
+                            throw new ClassNotFoundException(error, se);
+                        }
+                    }
+                }
+
+                boolean delegateLoad = delegate || filter(name);
+
+                // (1) Delegate to our parent if requested
+                if (delegateLoad) {
+                    if (log.isDebugEnabled())
+                        log.debug("  Delegating to parent classloader1 " + parent);
+                    ClassLoader loader = parent;
+                    if (loader == null)
+                        loader = system;
+                    try {
+                        clazz = loader.loadClass(name);
+                        if (clazz != null) {
+                            if (log.isDebugEnabled())
+                                log.debug("  Loading class from parent");
+                            if (resolve)
+                                resolveClass(clazz);
+                            return (clazz);
+                        }
+                    } catch (ClassNotFoundException e) {
+                        ;
+                    }
+                }
+
+                // (2) Search local repositories
                 if (log.isDebugEnabled())
-                    log.debug("  Loading class from local repository");
-                if (resolve)
-                    resolveClass(clazz);
-                return (clazz);
-            }
-        } catch (ClassNotFoundException e) {
-            ;
-        }
+                    log.debug("  Searching local repositories");
+                try {
+                    clazz = findClass(name);
+                    if (clazz != null) {
+                        if (log.isDebugEnabled())
+                            log.debug("  Loading class from local repository");
+                        if (resolve)
+                            resolveClass(clazz);
+                        return (clazz);
+                    }
+                } catch (ClassNotFoundException e) {
+                    ;
+                }
 
-        // (3) Delegate to parent unconditionally
-        if (!delegateLoad) {
-            if (log.isDebugEnabled())
-                log.debug("  Delegating to parent classloader at end: " + parent);
-            ClassLoader loader = parent;
-            if (loader == null)
-                loader = system;
-            try {
-                clazz = loader.loadClass(name);
-                if (clazz != null) {
+                // (3) Delegate to parent unconditionally
+                if (!delegateLoad) {
                     if (log.isDebugEnabled())
-                        log.debug("  Loading class from parent");
-                    if (resolve)
-                        resolveClass(clazz);
-                    return (clazz);
+                        log.debug("  Delegating to parent classloader at end: " + parent);
+                    ClassLoader loader = parent;
+                    if (loader == null)
+                        loader = system;
+                    try {
+                        clazz = loader.loadClass(name);
+                        if (clazz != null) {
+                            if (log.isDebugEnabled())
+                                log.debug("  Loading class from parent");
+                            if (resolve)
+                                resolveClass(clazz);
+                            return (clazz);
+                        }
+                    } catch (ClassNotFoundException e) {
+                        ;
+                    }
                 }
-            } catch (ClassNotFoundException e) {
-                ;
+
+                throw new ClassNotFoundException(name);
             }
+        } finally {
+            releaseClassLoadingLock(name, lock);
         }
 
-        throw new ClassNotFoundException(name);
     }
 
 
@@ -1595,6 +1693,11 @@ public class WebappClassLoader
 
         notFoundResources.clear();
         resourceEntries.clear();
+        jarIndex.clear();
+        cachedJarIndexes.clear();
+        synchronized (classLoadingLocks) {
+            classLoadingLocks.clear();
+        }
         resources = null;
         repositories = null;
         repositoryURLs = null;
@@ -1907,71 +2010,81 @@ public class WebappClassLoader
         if (clazz != null)
             return clazz;
 
-        synchronized (this) {
-            clazz = entry.loadedClass;
-            if (clazz != null)
-                return clazz;
-
-            if (entry.binaryContent == null)
-                throw new ClassNotFoundException(name);
-
-            // Looking up the package
-            String packageName = null;
-            int pos = name.lastIndexOf('.');
-            if (pos != -1)
-                packageName = name.substring(0, pos);
+        Object lock = acquireClassLoadingLock(name);
+        try {
+            synchronized (lock) {
+                clazz = entry.loadedClass;
+                if (clazz != null)
+                    return clazz;
+
+                if (entry.binaryContent == null)
+                    throw new ClassNotFoundException(name);
+
+                // Looking up the package
+                String packageName = null;
+                int pos = name.lastIndexOf('.');
+                if (pos != -1)
+                    packageName = name.substring(0, pos);
         
-            Package pkg = null;
+                Package pkg = null;
         
-            if (packageName != null) {
-                pkg = getPackage(packageName);
-                // Define the package (if null)
-                if (pkg == null) {
-                    if (entry.manifest == null) {
-                        definePackage(packageName, null, null, null, null,
-                                null, null, null);
-                    } else {
-                        definePackage(packageName, entry.manifest,
-                                entry.codeBase);
+                if (packageName != null) {
+                    pkg = getPackage(packageName);
+                    // Define the package (if null)
+                    if (pkg == null) {
+                        try {
+                            if (entry.manifest == null) {
+                                pkg = definePackage(packageName, null, null, null,
+                                        null, null, null, null);
+                            } else {
+                                pkg = definePackage(packageName, entry.manifest,
+                                        entry.codeBase);
+                            }
+                        } catch (IllegalArgumentException e) {
+                            // Defined in the meantime by another thread
+                            pkg = getPackage(packageName);
+                        }
                     }
                 }
-            }
     
-            if (securityManager != null) {
+                if (securityManager != null) {
 
-                // Checking sealing
-                if (pkg != null) {
-                    boolean sealCheck = true;
-                    if (pkg.isSealed()) {
-                        sealCheck = pkg.isSealed(entry.codeBase);
-                    } else {
-                        sealCheck = (entry.manifest == null)
-                            || !isPackageSealed(packageName, entry.manifest);
+                    // Checking sealing
+                    if (pkg != null) {
+                        boolean sealCheck = true;
+                        if (pkg.isSealed()) {
+                            sealCheck = pkg.isSealed(entry.codeBase);
+                        } else {
+                            sealCheck = (entry.manifest == null)
+                                || !isPackageSealed(packageName, entry.manifest);
+                        }
+                        if (!sealCheck)
+                            throw new SecurityException
+                                ("Sealing violation loading " + name + " : Package "
+                                 + packageName + " is sealed.");
                     }
-                    if (!sealCheck)
-                        throw new SecurityException
-                            ("Sealing violation loading " + name + " : Package "
-                             + packageName + " is sealed.");
-                }
     
-            }
+                }
 
-            try {
-                clazz = defineClass(name, entry.binaryContent, 0,
-                        entry.binaryContent.length, 
-                        new CodeSource(entry.codeBase, entry.certificates));
-            } catch (UnsupportedClassVersionError ucve) {
-                throw new UnsupportedClassVersionError(
-                        ucve.getLocalizedMessage() + " " +
-                        sm.getString("webappClassLoader.wrongVersion",
-                                name));
+                try {
+                    clazz = defineClass(name, entry.binaryContent, 0,
+                            entry.binaryContent.length, 
+                            new CodeSource(entry.codeBase, entry.certificates));
+                } catch (UnsupportedClassVersionError ucve) {
+                    throw new UnsupportedClassVersionError(
+                            ucve.getLocalizedMessage() + " " +
+                            sm.getString("webappClassLoader.wrongVersion",
+                                    name));
+                }
+                entry.loadedClass = clazz;
+                entry.binaryContent = null;
+                entry.source = null;
+                entry.codeBase = null;
+                entry.manifest = null;
+                entry.certificates = null;
             }
-            entry.loadedClass = clazz;
-            entry.binaryContent = null;
-            entry.source = null;
-            entry.codeBase = null;
-            entry.manifest = null;
-            entry.certificates = null;
+        } finally {
+            releaseClassLoadingLock(name, lock);
         }
         
         return clazz;
@@ -2010,14 +2123,13 @@ public class WebappClassLoader
         if ((name == null) || (path == null))
             return null;
 
-        ResourceEntry entry = (ResourceEntry) resourceEntries.get(name);
+        ResourceEntry entry = getResourceEntry(name);
         if (entry != null)
             return entry;
 
         int contentLength = -1;
         InputStream binaryStream = null;
 
-        int jarFilesLength = jarFiles.length;
         int repositoriesLength = repositories.length;
 
         int i;
@@ -2089,8 +2201,12 @@ public class WebappClassLoader
             }
         }
 
-        if ((entry == null) && (notFoundResources.containsKey(name)))
-            return null;
+        if (entry == null) {
+            synchronized (notFoundResources) {
+                if (notFoundResources.containsKey(name))
+                    return null;
+            }
+        }
 
         JarEntry jarEntry = null;
 
@@ -2100,8 +2216,22 @@ public class WebappClassLoader
                 if (!openJARs()) {
                     return null;
                 }
-                for (i = 0; (entry == null) && (i < jarFilesLength); i++) {
+                int[] jars = findJars(path);
+                boolean probed = false;
+                for (int j = 0; entry == null; j++) {
+
+                    // None of the indexed JARs contains the entry: probe
+                    // those whose index comes from the cache
+                    if (j == jars.length) {
+                        if (probed)
+                            break;
+                        probed = true;
+                        jars = probeJars(path);
+                        j = -1;
+                        continue;
+                    }
     
+                    i = jars[j];
                     jarEntry = jarFiles[i].getJarEntry(path);
     
                     if (jarEntry != null) {
@@ -2285,6 +2415,235 @@ public class WebappClassLoader
     }
 
 
+    /**
+     * Acquire the lock used to load the class with the specified name, so
+     * that different classes may be loaded in parallel.  If the JVM does
+     * not load classes in parallel, this class loader is returned.  The
+     * lock must be released with <code>releaseClassLoadingLock</code>.
+     *
+     * @param name Name of the class
+     */
+    protected Object acquireClassLoadingLock(String name) {
+
+        if (!PARALLEL_CAPABLE)
+            return (this);
+
+        synchronized (classLoadingLocks) {
+            ClassLoadingLock lock =
+                (ClassLoadingLock) classLoadingLocks.get(name);
+            if (lock == null) {
+                lock = new ClassLoadingLock();
+                classLoadingLocks.put(name, lock);
+            }
+            lock.users++;
+            return (lock);
+        }
+
+    }
+
+
+    /**
+     * Release a lock returned by <code>acquireClassLoadingLock</code>, and
+     * remove it when no other thread is loading the class.
+     *
+     * @param name Name of the class
+     * @param lock The lock
+     */
+    protected void releaseClassLoadingLock(String name, Object lock) {
+
+        if (!(lock instanceof ClassLoadingLock))
+            return;
+
+        synchronized (classLoadingLocks) {
+            if ((--((ClassLoadingLock) lock).users == 0)
+                && (classLoadingLocks.get(name) == lock))
+                classLoadingLocks.remove(name);
+        }
+
+    }
+
+
+    /**
+     * Return the cached resource entry with the given name, or
+     * <code>null</code> if it has not been loaded yet.
+     *
+     * @param name Name of the resource
+     */
+    protected ResourceEntry getResourceEntry(String name) {
+
+        synchronized (resourceEntries) {
+            return (ResourceEntry) resourceEntries.get(name);
+        }
+
+    }
+
+
+    /**
+     * Return the key of the specified entry path in the JAR index, which is
+     * the path of its parent directory.
+     */
+    protected static String getJarIndexKey(String path) {
+
+        int end = path.length();
+        if (path.endsWith("/"))
+            end--;
+        int pos = path.lastIndexOf('/', end - 1);
+        return (pos < 0) ? "" : path.substring(0, pos + 1);
+
+    }
+
+
+    /**
+     * Return the sorted paths of the directories containing entries of the
+     * specified JAR, using the JAR index cache if possible.
+     *
+     * @param jarFile The JAR file
+     * @param file The file of the JAR
+     */
+    protected String[] getJarDirectories(JarFile jarFile, File file) {
+
+        JarIndexCache.Entry cacheEntry = null;
+        if (jarIndexCache != null) {
+            cacheEntry = jarIndexCache.get(file);
+            if ((cacheEntry != null) && (cacheEntry.directories != null))
+                return (cacheEntry.directories);
+        }
+
+        String[] directories = scanJarDirectories(jarFile);
+
+        if (jarIndexCache != null) {
+            if (cacheEntry == null)
+                cacheEntry = new JarIndexCache.Entry();
+            cacheEntry.directories = directories;
+            jarIndexCache.put(file, cacheEntry);
+        }
+        return (directories);
+
+    }
+
+
+    /**
+     * Return the sorted paths of the directories containing entries of the
+     * specified JAR, read from the JAR itself.
+     *
+     * @param jarFile The JAR file
+     */
+    protected String[] scanJarDirectories(JarFile jarFile) {
+
+        HashSet keys = new HashSet();
+        Enumeration entries = jarFile.entries();
+        while (entries.hasMoreElements()) {
+            keys.add(getJarIndexKey
+                     (((JarEntry) entries.nextElement()).getName()));
+        }
+        String[] directories = (String[]) keys.toArray(new String[keys.size()]);
+        Arrays.sort(directories);
+        return (directories);
+
+    }
+
+
+    /**
+     * Add the entries of the specified JAR to the JAR index.
+     *
+     * @param jarFile The JAR file
+     * @param position The position of the JAR in <code>jarFiles</code>
+     * @param file The file of the JAR
+     */
+    protected void indexJar(JarFile jarFile, int position, File file) {
+
+        boolean cached = false;
+        if (jarIndexCache != null) {
+            JarIndexCache.Entry cacheEntry = jarIndexCache.get(file);
+            cached = (cacheEntry != null) && (cacheEntry.directories != null);
+        }
+        indexJar(getJarDirectories(jarFile, file), position);
+        if (cached)
+            cachedJarIndexes.set(position);
+
+    }
+
+
+    /**
+     * Add the specified directories of a JAR to the JAR index.
+     *
+     * @param directories The directories containing entries of the JAR
+     * @param position The position of the JAR in <code>jarFiles</code>
+     */
+    protected void indexJar(String[] directories, int position) {
+
+        for (int i = 0; i < directories.length; i++) {
+            String key = directories[i];
+            int[] jars = (int[]) jarIndex.get(key);
+            if (jars == null) {
+                jarIndex.put(key, new int[] { position });
+            } else if (Arrays.binarySearch(jars, position) < 0) {
+                // Keep the positions in increasing order
+                int insert = -(Arrays.binarySearch(jars, position) + 1);
+                int[] result = new int[jars.length + 1];
+                System.arraycopy(jars, 0, result, 0, insert);
+                result[insert] = position;
+                System.arraycopy(jars, insert, result, insert + 1,
+                                 jars.length - insert);
+                jarIndex.put(key, result);
+            }
+        }
+
+    }
+
+
+    /**
+     * Return the positions in <code>jarFiles</code> of the JARs whose index
+     * comes from the JAR index cache, and which contain the specified entry
+     * path although their index says they cannot.  Such JARs have a stale
+     * cached index, and are indexed again from their contents.  The caller
+     * must hold the lock on <code>jarFiles</code>, which must be open.
+     *
+     * @param path The entry path
+     */
+    protected int[] probeJars(String path) {
+
+        int[] result = new int[0];
+        for (int i = cachedJarIndexes.nextSetBit(0);
+             (i >= 0) && (i < jarFiles.length);
+             i = cachedJarIndexes.nextSetBit(i + 1)) {
+            if (jarFiles[i].getJarEntry(path) == null)
+                continue;
+            log.warn(sm.getString("webappClassLoader.staleJarIndex",
+                                  jarRealFiles[i]));
+            cachedJarIndexes.clear(i);
+            String[] directories = scanJarDirectories(jarFiles[i]);
+            indexJar(directories, i);
+            if (jarIndexCache != null) {
+                JarIndexCache.Entry cacheEntry =
+                    jarIndexCache.get(jarRealFiles[i]);
+                if (cacheEntry == null)
+                    cacheEntry = new JarIndexCache.Entry();
+                cacheEntry.directories = directories;
+                jarIndexCache.put(jarRealFiles[i], cacheEntry);
+            }
+            int[] jars = new int[result.length + 1];
+            System.arraycopy(result, 0, jars, 0, result.length);
+            jars[result.length] = i;
+            result = jars;
+        }
+        return (result);
+
+    }
+
+
+    /**
+     * Return the positions in <code>jarFiles</code> of the JARs which may
+     * contain the specified entry path.
+     */
+    protected int[] findJars(String path) {
+
+        int[] jars = (int[]) jarIndex.get(getJarIndexKey(path));
+        return (jars == null) ? new int[0] : jars;
+
+    }
+
+
     /**
      * Finds the resource with the given name if it has previously been
      * loaded and cached by this class loader, and return an input stream
@@ -2295,7 +2654,7 @@ public class WebappClassLoader
      */
     protected InputStream findLoadedResource(String name) {
 
-        ResourceEntry entry = (ResourceEntry) resourceEntries.get(name);
+        ResourceEntry entry = getResourceEntry(name);
         if (entry != null) {
             if (entry.binaryContent != null)
                 return new ByteArrayInputStream(entry.binaryContent);
@@ -2314,7 +2673,7 @@ public class WebappClassLoader
      */
     protected Class findLoadedClass0(String name) {
 
-        ResourceEntry entry = (ResourceEntry) resourceEntries.get(name);
+        ResourceEntry entry = getResourceEntry(name);
         if (entry != null) {
             return entry.loadedClass;
         }
@@ -2406,6 +2765,25 @@ public class WebappClassLoader
 
         if (triggers == null)
             return (true);
+
+        // Use the cached directories of the JAR to avoid opening it
+        String[] directories = null;
+        if (jarIndexCache != null) {
+            JarIndexCache.Entry cacheEntry = jarIndexCache.get(jarfile);
+            if (cacheEntry != null)
+                directories = cacheEntry.directories;
+        }
+        if (directories != null) {
+            boolean found = false;
+            for (int i = 0; (i < triggers.length) && !found; i++) {
+                String name = triggers[i].replace('.', '/') + ".class";
+                found = (Arrays.binarySearch
+                         (directories, getJarIndexKey(name)) >= 0);
+            }
+            if (!found)
+                return (true);
+        }
+
         JarFile jarFile = new JarFile(jarfile);
         for (int i = 0; i < triggers.length; i++) {
             Class clazz = null;
@@ -2495,5 +2873,16 @@ public class WebappClassLoader
     }
 
 
-}
 
+    // --------------------------------------------- ClassLoadingLock Class
+
+
+    /**
+     * Lock used to load a class, counting the threads using it.
+     */
+    protected static final class ClassLoadingLock {
+        int users = 0;
+    }
+
+
+}
@@ -667,8 +667,10 @@ public class WebappLoader
             classLoader = createClassLoader();
             classLoader.setResources(container.getResources());
             classLoader.setDelegate(this.delegate);
-            if (container instanceof StandardContext)
+            if (container instanceof StandardContext) {
                 classLoader.setAntiJARLocking(((StandardContext) container).getAntiJARLocking());
+                classLoader.setJarIndexCache(((StandardContext) container).getJarIndexCache());
+            }
 
             for (int i = 0; i < repositories.length; i++) {
                 classLoader.addRepository(repositories[i]);
@@ -276,6 +276,11 @@ public class DataSourceRealm
     		return null;
     	}
         
+        // Check the cache of authenticated users
+        Principal principal = getCachedPrincipal(username, credentials);
+        if (principal != null)
+            return (principal);
+
     	Connection dbConnection = null;
 
         try {
@@ -288,7 +293,9 @@ public class DataSourceRealm
             }
             
             // Acquire a Principal object for this user
-            return authenticate(dbConnection, username, credentials);
+            principal = authenticate(dbConnection, username, credentials);
+            cachePrincipal(username, credentials, principal);
+            return (principal);
             
         } catch (SQLException e) {
             // Log the problem for posterity
@@ -329,7 +329,34 @@ public class JDBCRealm
      * @param credentials Password or other credentials to use in
      *  authenticating this username
      */
-    public synchronized Principal authenticate(String username, String credentials) {
+    public Principal authenticate(String username, String credentials) {
+
+        // Check the cache of authenticated users, without locking the
+        // database connection
+        Principal principal = getCachedPrincipal(username, credentials);
+        if (principal != null)
+            return (principal);
+
+        synchronized (this) {
+            principal = authenticateUncached(username, credentials);
+        }
+        cachePrincipal(username, credentials, principal);
+        return (principal);
+
+    }
+
+
+    /**
+     * Return the Principal associated with the specified username and
+     * credentials from the database, if there is one; otherwise return
+     * <code>null</code>.  The caller must hold the lock of this Realm.
+     *
+     * @param username Username of the Principal to look up
+     * @param credentials Password or other credentials to use in
+     *  authenticating this username
+     */
+    protected Principal authenticateUncached(String username,
+                                             String credentials) {
 
         // Number of tries is the numebr of attempts to connect to the database
         // during this login attempt (if we need to open the database)
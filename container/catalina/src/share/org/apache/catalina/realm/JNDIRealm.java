@@ -25,7 +25,11 @@ import java.text.MessageFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 
 import javax.naming.Context;
 import javax.naming.CommunicationException;
@@ -140,9 +144,13 @@ import org.apache.tomcat.util.buf.CharChunk;
  *     directory server itself.</li>
  * </ul>
  *
- * <p><strong>TODO</strong> - Support connection pooling (including message
- * format objects) so that <code>authenticate()</code> does not have to be
- * synchronized.</p>
+ * <p>Connections to the directory server are kept in a pool of at most
+ * <code>connectionPoolSize</code> connections, so that several users can be
+ * authenticated at the same time.  A connection which has been idle for
+ * more than <code>connectionValidationInterval</code> seconds is checked
+ * before being reused.  When the cache of authenticated users is enabled,
+ * the results of role searches are also cached per user distinguished
+ * name.</p>
  *
  * <p><strong>WARNING</strong> - There is a reported bug against the Netscape
  * provider code (com.netscape.jndi.ldap.LdapContextFactory) with respect to
@@ -186,10 +194,48 @@ public class JNDIRealm extends RealmBase {
 
     /**
      * The directory context linking us to our directory server.
+     *
+     * @deprecated Connections are taken from a pool with
+     *  <code>open()</code>, and this field is no longer set
      */
     protected DirContext context = null;
 
 
+    /**
+     * The idle connections to our directory server, most recently released
+     * first.  This list is also the lock protecting the pool.
+     */
+    protected LinkedList connections = new LinkedList();
+
+
+    /**
+     * The number of open connections to our directory server, either idle
+     * or in use.
+     */
+    protected int connectionCount = 0;
+
+
+    /**
+     * The maximum number of open connections to our directory server.
+     */
+    protected int connectionPoolSize = 1;
+
+
+    /**
+     * Time in seconds after which an idle connection is checked before
+     * being reused, or a negative value to never check connections.
+     */
+    protected int connectionValidationInterval = 30;
+
+
+    /**
+     * Time in milliseconds to wait for a connection when
+     * <code>connectionPoolSize</code> connections are in use, or
+     * <code>0</code> to wait without limit.
+     */
+    protected long connectionPoolTimeout = 10000L;
+
+
     /**
      * The JNDI context factory used to acquire our InitialContext.  By
      * default, assumes use of an LDAP server using the standard JNDI LDAP
@@ -346,9 +392,19 @@ public class JNDIRealm extends RealmBase {
 
     /**
      * The current user pattern to be used for lookup and binding of a user.
+     *
+     * @deprecated The user pattern is passed to <code>getUser()</code> and
+     *  <code>getUserByPattern()</code>, and this field is only used by the
+     *  deprecated signature of <code>getUserByPattern()</code>
      */
     protected int curUserPattern = 0;
 
+    /**
+     * The cached results of role searches, keyed by user distinguished
+     * name, or <code>null</code> if the cache is disabled.
+     */
+    protected RoleCache roleCache = null;
+
     // ------------------------------------------------------------- Properties
 
     /**
@@ -778,6 +834,106 @@ public class JNDIRealm extends RealmBase {
     }
 
 
+    /**
+     * Return the maximum number of open connections to the directory
+     * server.
+     */
+    public int getConnectionPoolSize() {
+
+        return (this.connectionPoolSize);
+
+    }
+
+
+    /**
+     * Set the maximum number of open connections to the directory server.
+     *
+     * @param connectionPoolSize The new maximum number of connections
+     */
+    public void setConnectionPoolSize(int connectionPoolSize) {
+
+        this.connectionPoolSize = Math.max(connectionPoolSize, 1);
+        synchronized (connections) {
+            connections.notifyAll();
+        }
+
+    }
+
+
+    /**
+     * Return the time in milliseconds to wait for a connection when all the
+     * connections are in use.
+     */
+    public long getConnectionPoolTimeout() {
+
+        return (this.connectionPoolTimeout);
+
+    }
+
+
+    /**
+     * Set the time in milliseconds to wait for a connection when all the
+     * connections are in use, or <code>0</code> to wait without limit.
+     *
+     * @param connectionPoolTimeout The new timeout
+     */
+    public void setConnectionPoolTimeout(long connectionPoolTimeout) {
+
+        this.connectionPoolTimeout = connectionPoolTimeout;
+
+    }
+
+
+    /**
+     * Return the time in seconds after which an idle connection is checked
+     * before being reused.
+     */
+    public int getConnectionValidationInterval() {
+
+        return (this.connectionValidationInterval);
+
+    }
+
+
+    /**
+     * Set the time in seconds after which an idle connection is checked
+     * before being reused, or a negative value to never check connections.
+     *
+     * @param connectionValidationInterval The new interval
+     */
+    public void setConnectionValidationInterval
+        (int connectionValidationInterval) {
+
+        this.connectionValidationInterval = connectionValidationInterval;
+
+    }
+
+
+    /**
+     * Return the number of open connections to the directory server, either
+     * idle or in use.
+     */
+    public int getConnectionCount() {
+
+        synchronized (connections) {
+            return (connectionCount);
+        }
+
+    }
+
+
+    /**
+     * Return the number of idle connections to the directory server.
+     */
+    public int getIdleConnectionCount() {
+
+        synchronized (connections) {
+            return (connections.size());
+        }
+
+    }
+
+
     // ---------------------------------------------------------- Realm Methods
 
 
@@ -797,7 +953,11 @@ public class JNDIRealm extends RealmBase {
     public Principal authenticate(String username, String credentials) {
 
         DirContext context = null;
-        Principal principal = null;
+
+        // Check the cache of authenticated users
+        Principal principal = getCachedPrincipal(username, credentials);
+        if (principal != null)
+            return (principal);
 
         try {
 
@@ -817,8 +977,8 @@ public class JNDIRealm extends RealmBase {
                 containerLog.warn(sm.getString("jndiRealm.exception"), e);
 
                 // close the connection so we know it will be reopened.
-                if (context != null)
-                    close(context);
+                close(context);
+                context = null;
 
                 // open a new directory context.
                 context = open();
@@ -832,8 +992,8 @@ public class JNDIRealm extends RealmBase {
                 containerLog.warn(sm.getString("jndiRealm.exception"), e);
 
                 // close the connection so we know it will be reopened.
-                if (context != null)
-                    close(context);
+                close(context);
+                context = null;
 
                 // open a new directory context.
                 context = open();
@@ -846,8 +1006,10 @@ public class JNDIRealm extends RealmBase {
 
             // Release this context
             release(context);
+            context = null;
 
             // Return the authenticated Principal (if any)
+            cachePrincipal(username, credentials, principal);
             return (principal);
 
         } catch (NamingException e) {
@@ -855,13 +1017,15 @@ public class JNDIRealm extends RealmBase {
             // Log the problem for posterity
             containerLog.error(sm.getString("jndiRealm.exception"), e);
 
+            // Return "not authenticated" for this request
+            return (null);
+
+        } finally {
+
             // Close the connection so that it gets reopened next time
             if (context != null)
                 close(context);
 
-            // Return "not authenticated" for this request
-            return (null);
-
         }
 
     }
@@ -884,9 +1048,9 @@ public class JNDIRealm extends RealmBase {
      *
      * @exception NamingException if a directory server error occurs
      */
-    public synchronized Principal authenticate(DirContext context,
-                                               String username,
-                                               String credentials)
+    public Principal authenticate(DirContext context,
+                                  String username,
+                                  String credentials)
         throws NamingException {
 
         if (username == null || username.equals("")
@@ -894,11 +1058,11 @@ public class JNDIRealm extends RealmBase {
             return (null);
 
         if (userPatternArray != null) {
-            for (curUserPattern = 0;
+            for (int curUserPattern = 0;
                  curUserPattern < userPatternFormatArray.length;
                  curUserPattern++) {
                 // Retrieve user information
-                User user = getUser(context, username);
+                User user = getUser(context, username, curUserPattern);
                 if (user != null) {
                     try {
                         // Check the user's credentials
@@ -923,7 +1087,7 @@ public class JNDIRealm extends RealmBase {
             return null;
         } else {
             // Retrieve user information
-            User user = getUser(context, username);
+            User user = getUser(context, username, 0);
             if (user == null)
                 return (null);
 
@@ -940,6 +1104,32 @@ public class JNDIRealm extends RealmBase {
     }
 
 
+    /**
+     * Return a User object containing information about the user
+     * with the specified username, if found in the directory;
+     * otherwise return <code>null</code>.  If several user patterns
+     * are configured, the first one matching an entry is used.
+     *
+     * @param context The directory context
+     * @param username Username to be looked up
+     *
+     * @exception NamingException if a directory server error occurs
+     */
+    protected User getUser(DirContext context, String username)
+        throws NamingException {
+
+        if (userPatternFormatArray == null)
+            return (getUser(context, username, 0));
+        for (int i = 0; i < userPatternFormatArray.length; i++) {
+            User user = getUser(context, username, i);
+            if (user != null)
+                return (user);
+        }
+        return (null);
+
+    }
+
+
     /**
      * Return a User object containing information about the user
      * with the specified username, if found in the directory;
@@ -953,10 +1143,13 @@ public class JNDIRealm extends RealmBase {
      *
      * @param context The directory context
      * @param username Username to be looked up
+     * @param curUserPattern Index of the user pattern to use, if user
+     *  patterns are configured
      *
      * @exception NamingException if a directory server error occurs
      */
-    protected User getUser(DirContext context, String username)
+    protected User getUser(DirContext context, String username,
+                           int curUserPattern)
         throws NamingException {
 
         User user = null;
@@ -972,7 +1165,8 @@ public class JNDIRealm extends RealmBase {
 
         // Use pattern or search for user entry
         if (userPatternFormatArray != null) {
-            user = getUserByPattern(context, username, attrIds);
+            user = getUserByPattern(context, username, attrIds,
+                                    curUserPattern);
         } else {
             user = getUserBySearch(context, username, attrIds);
         }
@@ -993,12 +1187,39 @@ public class JNDIRealm extends RealmBase {
      * retrieve.
      *
      * @exception NamingException if a directory server error occurs
+     * @deprecated Use
+     *  <code>getUserByPattern(DirContext, String, String[], int)</code>
      */
     protected User getUserByPattern(DirContext context,
                                               String username,
                                               String[] attrIds)
         throws NamingException {
 
+        return getUserByPattern(context, username, attrIds, curUserPattern);
+
+    }
+
+
+    /**
+     * Use the <code>UserPattern</code> configuration attribute to
+     * locate the directory entry for the user with the specified
+     * username and return a User object; otherwise return
+     * <code>null</code>.
+     *
+     * @param context The directory context
+     * @param username The username
+     * @param attrIds String[]containing names of attributes to
+     * retrieve.
+     * @param curUserPattern Index of the user pattern to use
+     *
+     * @exception NamingException if a directory server error occurs
+     */
+    protected User getUserByPattern(DirContext context,
+                                              String username,
+                                              String[] attrIds,
+                                              int curUserPattern)
+        throws NamingException {
+
         if (username == null || userPatternFormatArray[curUserPattern] == null)
             return (null);
 
@@ -1183,53 +1404,42 @@ public class JNDIRealm extends RealmBase {
             // The string is in a format compatible with Base64.encode not
             // the Hex encoding of the parent class.
             if (password.startsWith("{MD5}") || password.startsWith("{SHA}")) {
-                /* sync since super.digest() does this same thing */
-                synchronized (this) {
-                    password = password.substring(5);
-                    md.reset();
-                    md.update(credentials.getBytes());
-                    String digestedPassword =
-                        new String(Base64.encode(md.digest()));
-                    validated = password.equals(digestedPassword);
-                }
+                password = password.substring(5);
+                String digestedPassword =
+                    new String(Base64.encode(digestCredentials
+                                             (credentials.getBytes(), null)));
+                validated = password.equals(digestedPassword);
             } else if (password.startsWith("{SSHA}")) {
                 // Bugzilla 32938
-                /* sync since super.digest() does this same thing */
-                synchronized (this) {
-                    password = password.substring(6);
-
-                    md.reset();
-                    md.update(credentials.getBytes());
-
-                    // Decode stored password.
-                    ByteChunk pwbc = new ByteChunk(password.length());
-                    try {
-                        pwbc.append(password.getBytes(), 0, password.length());
-                    } catch (IOException e) {
-                        // Should never happen
-                        containerLog.error("Could not append password bytes to chunk: ", e);
-                    }
+                password = password.substring(6);
+
+                // Decode stored password.
+                ByteChunk pwbc = new ByteChunk(password.length());
+                try {
+                    pwbc.append(password.getBytes(), 0, password.length());
+                } catch (IOException e) {
+                    // Should never happen
+                    containerLog.error("Could not append password bytes to chunk: ", e);
+                }
 
-                    CharChunk decoded = new CharChunk();
-                    Base64.decode(pwbc, decoded);
-                    char[] pwarray = decoded.getBuffer();
+                CharChunk decoded = new CharChunk();
+                Base64.decode(pwbc, decoded);
+                char[] pwarray = decoded.getBuffer();
 
-                    // Split decoded password into hash and salt.
-                    final int saltpos = 20;
-                    byte[] hash = new byte[saltpos];
-                    for (int i=0; i< hash.length; i++) {
-                        hash[i] = (byte) pwarray[i];
-                    }
+                // Split decoded password into hash and salt.
+                final int saltpos = 20;
+                byte[] hash = new byte[saltpos];
+                for (int i=0; i< hash.length; i++) {
+                    hash[i] = (byte) pwarray[i];
+                }
 
-                    byte[] salt = new byte[pwarray.length - saltpos];
-                    for (int i=0; i< salt.length; i++)
-                        salt[i] = (byte)pwarray[i+saltpos];
+                byte[] salt = new byte[pwarray.length - saltpos];
+                for (int i=0; i< salt.length; i++)
+                    salt[i] = (byte)pwarray[i+saltpos];
 
-                    md.update(salt);
-                    byte[] dp = md.digest();
+                byte[] dp = digestCredentials(credentials.getBytes(), salt);
 
-                    validated = Arrays.equals(dp, hash);
-                } // End synchronized(this) block
+                validated = Arrays.equals(dp, hash);
             } else {
                 // Hex hashes should be compared case-insensitive
                 validated = (digest(credentials).equalsIgnoreCase(password));
@@ -1287,21 +1497,25 @@ public class JNDIRealm extends RealmBase {
                 containerLog.trace("  bind attempt failed");
             }
         }
+        finally {
 
-        // Restore the original security environment
-        if (connectionName != null) {
-            context.addToEnvironment(Context.SECURITY_PRINCIPAL,
-                                     connectionName);
-        } else {
-            context.removeFromEnvironment(Context.SECURITY_PRINCIPAL);
-        }
+            // Restore the original security environment, as this context
+            // will be reused for other users
+            if (connectionName != null) {
+                context.addToEnvironment(Context.SECURITY_PRINCIPAL,
+                                         connectionName);
+            } else {
+                context.removeFromEnvironment(Context.SECURITY_PRINCIPAL);
+            }
+
+            if (connectionPassword != null) {
+                context.addToEnvironment(Context.SECURITY_CREDENTIALS,
+                                         connectionPassword);
+            }
+            else {
+                context.removeFromEnvironment(Context.SECURITY_CREDENTIALS);
+            }
 
-        if (connectionPassword != null) {
-            context.addToEnvironment(Context.SECURITY_CREDENTIALS,
-                                     connectionPassword);
-        }
-        else {
-            context.removeFromEnvironment(Context.SECURITY_CREDENTIALS);
         }
 
         return (validated);
@@ -1344,6 +1558,16 @@ public class JNDIRealm extends RealmBase {
         if ((roleFormat == null) || (roleName == null))
             return (list);
 
+        // Use the cached results of the search, if any
+        RoleCache roleCache = this.roleCache;
+        if (roleCache != null) {
+            List roles = roleCache.get(dn);
+            if (roles != null) {
+                list.addAll(roles);
+                return (list);
+            }
+        }
+
         // Set up parameters for an appropriate search
         String filter = roleFormat.format(new String[] { doRFC2254Encoding(dn), username });
         SearchControls controls = new SearchControls();
@@ -1358,13 +1582,17 @@ public class JNDIRealm extends RealmBase {
             context.search(roleBase, filter, controls);
         if (results == null)
             return (list);  // Should never happen, but just in case ...
+        ArrayList roles = new ArrayList();
         while (results.hasMore()) {
             SearchResult result = (SearchResult) results.next();
             Attributes attrs = result.getAttributes();
             if (attrs == null)
                 continue;
-            list = addAttributeValues(roleName, attrs, list);
+            roles = addAttributeValues(roleName, attrs, roles);
         }
+        if (roleCache != null)
+            roleCache.put(dn, username, roles);
+        list.addAll(roles);
 
 
         if (containerLog.isTraceEnabled()) {
@@ -1448,7 +1676,8 @@ public class JNDIRealm extends RealmBase {
 
 
     /**
-     * Close any open connection to the directory server for this Realm.
+     * Close the specified connection to the directory server, which was
+     * returned by <code>open()</code>, instead of releasing it to the pool.
      *
      * @param context The directory context to be closed
      */
@@ -1466,7 +1695,10 @@ public class JNDIRealm extends RealmBase {
         } catch (NamingException e) {
             containerLog.error(sm.getString("jndiRealm.close"), e);
         }
-        this.context = null;
+        synchronized (connections) {
+            connectionCount--;
+            connections.notify();
+        }
 
     }
 
@@ -1516,8 +1748,8 @@ public class JNDIRealm extends RealmBase {
                 containerLog.warn(sm.getString("jndiRealm.exception"), e);
 
                 // close the connection so we know it will be reopened.
-                if (context != null)
-                    close(context);
+                close(context);
+                context = null;
 
                 // open a new directory context.
                 context = open();
@@ -1531,8 +1763,8 @@ public class JNDIRealm extends RealmBase {
                 containerLog.warn(sm.getString("jndiRealm.exception"), e);
 
                 // close the connection so we know it will be reopened.
-                if (context != null)
-                    close(context);
+                close(context);
+                context = null;
 
                 // open a new directory context.
                 context = open();
@@ -1545,6 +1777,7 @@ public class JNDIRealm extends RealmBase {
 
             // Release this context
             release(context);
+            context = null;
 
             // Return the authenticated Principal (if any)
             return (principal);
@@ -1554,24 +1787,25 @@ public class JNDIRealm extends RealmBase {
             // Log the problem for posterity
             containerLog.error(sm.getString("jndiRealm.exception"), e);
 
+            // Return "not authenticated" for this request
+            return (null);
+
+        } finally {
+
             // Close the connection so that it gets reopened next time
             if (context != null)
                 close(context);
 
-            // Return "not authenticated" for this request
-            return (null);
-
         }
 
-
     }
 
 
     /**
      * Return the Principal associated with the given user name.
      */
-    protected synchronized Principal getPrincipal(DirContext context,
-                                                  String username)
+    protected Principal getPrincipal(DirContext context,
+                                     String username)
         throws NamingException {
         
         User user = getUser(context, username);
@@ -1585,16 +1819,94 @@ public class JNDIRealm extends RealmBase {
     }
 
     /**
-     * Open (if necessary) and return a connection to the configured
-     * directory server for this Realm.
+     * Return a connection to the configured directory server for this Realm,
+     * which must then be either released or closed.  An idle connection is
+     * reused if there is one, otherwise a new connection is opened, unless
+     * <code>connectionPoolSize</code> connections are already in use, in
+     * which case we wait at most <code>connectionPoolTimeout</code>
+     * milliseconds for one of them to be released.
      *
-     * @exception NamingException if a directory server error occurs
+     * @exception NamingException if a directory server error occurs, if no
+     *  connection was released in time, or if the calling thread was
+     *  interrupted while waiting
      */
     protected DirContext open() throws NamingException {
 
-        // Do nothing if there is a directory server connection already open
-        if (context != null)
-            return (context);
+        long start = 0L;
+        while (true) {
+
+            // Get an idle connection, or permission to open a new one
+            PooledConnection idle = null;
+            synchronized (connections) {
+                while (connections.isEmpty()
+                       && (connectionCount >= connectionPoolSize)) {
+                    long now = System.currentTimeMillis();
+                    if (start == 0L)
+                        start = now;
+                    long wait = 0L;
+                    if (connectionPoolTimeout > 0) {
+                        wait = connectionPoolTimeout - (now - start);
+                        if (wait <= 0) {
+                            throw new NamingException
+                                (sm.getString("jndiRealm.openTimeout",
+                                              String.valueOf(connectionPoolTimeout)));
+                        }
+                    }
+                    try {
+                        connections.wait(wait);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new NamingException
+                            (sm.getString("jndiRealm.openInterrupted"));
+                    }
+                }
+                if (!connections.isEmpty())
+                    idle = (PooledConnection) connections.removeFirst();
+                else
+                    connectionCount++;
+            }
+
+            // Open a new connection
+            if (idle == null) {
+                boolean success = false;
+                try {
+                    DirContext context = createDirContext();
+                    success = true;
+                    return (context);
+                } finally {
+                    if (!success) {
+                        synchronized (connections) {
+                            connectionCount--;
+                            connections.notify();
+                        }
+                    }
+                }
+            }
+
+            // Check the idle connection if it has not been used for a while
+            if ((connectionValidationInterval < 0)
+                || (System.currentTimeMillis() - idle.released
+                    < connectionValidationInterval * 1000L)
+                || validateConnection(idle.context))
+                return (idle.context);
+            close(idle.context);
+
+        }
+
+    }
+
+
+    /**
+     * Open and return a new connection to the configured directory server
+     * for this Realm, trying the alternate URL if the connection to the
+     * primary URL fails.
+     *
+     * @exception NamingException if a directory server error occurs
+     */
+    protected synchronized DirContext createDirContext()
+        throws NamingException {
+
+        DirContext context = null;
 
         try {
 
@@ -1623,6 +1935,36 @@ public class JNDIRealm extends RealmBase {
 
     }
 
+
+    /**
+     * Return <code>true</code> if the specified idle connection to the
+     * directory server is still usable, by reading the entry at the base of
+     * the context.  Only communication failures make the connection
+     * unusable, as the entry may not exist or be readable.
+     *
+     * @param context The directory context to check
+     */
+    protected boolean validateConnection(DirContext context) {
+
+        try {
+            context.getAttributes("", new String[] { "objectClass" });
+        } catch (CommunicationException e) {
+            if (containerLog.isDebugEnabled())
+                containerLog.debug
+                    (sm.getString("jndiRealm.invalidConnection"), e);
+            return (false);
+        } catch (ServiceUnavailableException e) {
+            if (containerLog.isDebugEnabled())
+                containerLog.debug
+                    (sm.getString("jndiRealm.invalidConnection"), e);
+            return (false);
+        } catch (NamingException e) {
+            ;
+        }
+        return (true);
+
+    }
+
     /**
      * Create our directory context configuration.
      *
@@ -1667,7 +2009,16 @@ public class JNDIRealm extends RealmBase {
      */
     protected void release(DirContext context) {
 
-        ; // NO-OP since we are not pooling anything
+        if (context == null)
+            return;
+        if (!started) {
+            close(context);
+            return;
+        }
+        synchronized (connections) {
+            connections.addFirst(new PooledConnection(context));
+            connections.notify();
+        }
 
     }
 
@@ -1686,9 +2037,13 @@ public class JNDIRealm extends RealmBase {
         // Perform normal superclass initialization
         super.start();
 
+        // Create the cache of role searches, if desired
+        if (cacheSize > 0)
+            roleCache = new RoleCache(cacheSize, cacheTimeout * 1000L);
+
         // Validate that we can open our connection
         try {
-            open();
+            release(open());
         } catch (NamingException e) {
             throw new LifecycleException(sm.getString("jndiRealm.open"), e);
         }
@@ -1706,9 +2061,63 @@ public class JNDIRealm extends RealmBase {
 
         // Perform normal superclass finalization
         super.stop();
+        roleCache = null;
+
+        // Close the idle directory server connections, the connections in
+        // use being closed when they are released
+        while (true) {
+            PooledConnection idle = null;
+            synchronized (connections) {
+                if (connections.isEmpty())
+                    break;
+                idle = (PooledConnection) connections.removeFirst();
+            }
+            close(idle.context);
+        }
+
+    }
+
+
+    /**
+     * Execute a periodic task, such as removing the expired entries of the
+     * caches.
+     */
+    public void backgroundProcess() {
+
+        super.backgroundProcess();
+        RoleCache roleCache = this.roleCache;
+        if (roleCache != null)
+            roleCache.expire();
+
+    }
+
+
+    /**
+     * Remove all the users from the cache of authenticated users, and all
+     * the cached role searches.
+     */
+    public void clearCache() {
+
+        super.clearCache();
+        RoleCache roleCache = this.roleCache;
+        if (roleCache != null)
+            roleCache.clear();
+
+    }
+
+
+    /**
+     * Remove the specified user from the cache of authenticated users, and
+     * the cached role searches of this user.
+     *
+     * @param username Username to remove
+     */
+    public void removeCachedUser(String username) {
 
-        // Close any open directory server connection
-        close(this.context);
+        super.removeCachedUser(username);
+        RoleCache roleCache = this.roleCache;
+        if ((roleCache != null) && (username != null))
+            roleCache.removeUser(username);
 
     }
 
@@ -1857,6 +2266,112 @@ public class JNDIRealm extends RealmBase {
     }
 
 
+    // ----------------------------------------------- PooledConnection Class
+
+
+    /**
+     * An idle connection to the directory server.
+     */
+    protected static class PooledConnection {
+
+        protected DirContext context;
+        protected long released;
+
+        public PooledConnection(DirContext context) {
+            this.context = context;
+            this.released = System.currentTimeMillis();
+        }
+
+    }
+
+
+    // ------------------------------------------------------ RoleCache Class
+
+
+    /**
+     * Least recently used cache of the roles found by role searches, keyed
+     * by user distinguished name.
+     */
+    protected static class RoleCache {
+
+        protected long timeout;
+        protected LinkedHashMap entries;
+
+        public RoleCache(final int maxEntries, long timeout) {
+            this.timeout = timeout;
+            this.entries = new LinkedHashMap(16, 0.75f, true) {
+                protected boolean removeEldestEntry(Map.Entry eldest) {
+                    return (size() > maxEntries);
+                }
+            };
+        }
+
+        /**
+         * Return the unexpired roles of the specified user, or
+         * <code>null</code>.
+         */
+        public synchronized List get(String dn) {
+            Entry entry = (Entry) entries.get(dn);
+            if (entry == null)
+                return (null);
+            if (entry.expires <= System.currentTimeMillis()) {
+                entries.remove(dn);
+                return (null);
+            }
+            return (entry.roles);
+        }
+
+        public synchronized void put(String dn, String username, List roles) {
+            entries.put(dn, new Entry(username, roles,
+                                      System.currentTimeMillis() + timeout));
+        }
+
+        /**
+         * Remove the roles of the specified user.
+         */
+        public synchronized void removeUser(String username) {
+            Iterator iterator = entries.values().iterator();
+            while (iterator.hasNext()) {
+                Entry entry = (Entry) iterator.next();
+                if (username.equals(entry.username))
+                    iterator.remove();
+            }
+        }
+
+        public synchronized void clear() {
+            entries.clear();
+        }
+
+        /**
+         * Remove the expired entries.
+         */
+        public synchronized void expire() {
+            long now = System.currentTimeMillis();
+            Iterator iterator = entries.values().iterator();
+            while (iterator.hasNext()) {
+                Entry entry = (Entry) iterator.next();
+                if (entry.expires <= now)
+                    iterator.remove();
+            }
+        }
+
+        protected static class Entry {
+
+            protected String username;
+            protected List roles;
+            protected long expires;
+
+            public Entry(String username, List roles, long expires) {
+                this.username = username;
+                this.roles = roles;
+                this.expires = expires;
+            }
+
+        }
+
+    }
+
+
 }
 
 // ------------------------------------------------------ Private Classes
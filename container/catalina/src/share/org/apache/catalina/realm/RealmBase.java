@@ -47,6 +47,7 @@ import org.apache.catalina.core.ContainerBase;
 import org.apache.catalina.deploy.LoginConfig;
 import org.apache.catalina.deploy.SecurityConstraint;
 import org.apache.catalina.deploy.SecurityCollection;
+import org.apache.catalina.util.ConcurrentMessageDigest;
 import org.apache.catalina.util.HexUtils;
 import org.apache.catalina.util.LifecycleSupport;
 import org.apache.catalina.util.MD5Encoder;
@@ -72,6 +73,27 @@ public abstract class RealmBase
     // ----------------------------------------------------- Instance Variables
 
 
+    /**
+     * The cache of authenticated users, or <code>null</code> if caching is
+     * disabled.
+     */
+    protected volatile RealmCache cache = null;
+
+
+    /**
+     * Maximum number of authenticated users kept in the cache.  Caching is
+     * disabled if this is not a positive number.
+     */
+    protected int cacheSize = 0;
+
+
+    /**
+     * Time in seconds after which a cached user has to be authenticated
+     * again by this Realm.
+     */
+    protected int cacheTimeout = 60;
+
+
     /**
      * The Container with which this Realm is associated.
      */
@@ -113,6 +135,10 @@ public abstract class RealmBase
 
     /**
      * The MessageDigest object for digesting user credentials (passwords).
+     * Credentials are digested with instances of the same algorithm borrowed
+     * from <code>ConcurrentMessageDigest</code>, so that authentications do
+     * not wait for each other; subclasses should do the same rather than
+     * synchronize on this instance.
      */
     protected MessageDigest md = null;
 
@@ -124,7 +150,10 @@ public abstract class RealmBase
 
 
     /**
-     * MD5 message digest provider.
+     * MD5 message digest provider.  It is still initialized as before, but
+     * is no longer used by this class.
+     * @deprecated MD5 digests are computed with
+     *  <code>ConcurrentMessageDigest</code>
      */
     protected static MessageDigest md5Helper;
 
@@ -163,6 +192,90 @@ public abstract class RealmBase
     // ------------------------------------------------------------- Properties
 
 
+    /**
+     * Return the maximum number of authenticated users kept in the cache.
+     */
+    public int getCacheSize() {
+
+        return (this.cacheSize);
+
+    }
+
+
+    /**
+     * Set the maximum number of authenticated users kept in the cache, or
+     * zero to disable caching.  This takes effect when the Realm is
+     * started.
+     *
+     * @param cacheSize The new maximum number of cached users
+     */
+    public void setCacheSize(int cacheSize) {
+
+        this.cacheSize = cacheSize;
+
+    }
+
+
+    /**
+     * Return the time in seconds after which a cached user has to be
+     * authenticated again.
+     */
+    public int getCacheTimeout() {
+
+        return (this.cacheTimeout);
+
+    }
+
+
+    /**
+     * Set the time in seconds after which a cached user has to be
+     * authenticated again.  This takes effect when the Realm is started.
+     *
+     * @param cacheTimeout The new timeout
+     */
+    public void setCacheTimeout(int cacheTimeout) {
+
+        this.cacheTimeout = cacheTimeout;
+
+    }
+
+
+    /**
+     * Return the number of authentications answered from the cache.
+     */
+    public long getCacheHitCount() {
+
+        RealmCache cache = this.cache;
+        return ((cache == null) ? 0 : cache.getHitCount());
+
+    }
+
+
+    /**
+     * Return the number of authentications which could not be answered
+     * from the cache.
+     */
+    public long getCacheMissCount() {
+
+        RealmCache cache = this.cache;
+        return ((cache == null) ? 0 : cache.getMissCount());
+
+    }
+
+
+    /**
+     * Return the number of entries currently in the cache.  A user who
+     * authenticated both with its password and with DIGEST has two
+     * entries.
+     */
+    public int getCacheEntryCount() {
+
+        RealmCache cache = this.cache;
+        return ((cache == null) ? 0 : cache.size());
+
+    }
+
+
     /**
      * Return the Container with which this Realm has been associated.
      */
@@ -304,6 +417,10 @@ public abstract class RealmBase
      */
     public Principal authenticate(String username, String credentials) {
 
+        Principal principal = getCachedPrincipal(username, credentials);
+        if (principal != null)
+            return (principal);
+
         String serverCredentials = getPassword(username);
 
         boolean validated ;
@@ -326,7 +443,9 @@ public abstract class RealmBase
                                             username));
         }
 
-        return getPrincipal(username);
+        principal = getPrincipal(username);
+        cachePrincipal(username, credentials, principal);
+        return (principal);
     }
 
 
@@ -363,34 +482,25 @@ public abstract class RealmBase
                                   String qop, String realm,
                                   String md5a2) {
 
-        String md5a1 = getDigest(username, realm);
-        if (md5a1 == null)
-            return null;
-        String serverDigestValue;
-        if (qop == null) {
-            serverDigestValue = md5a1 + ":" + nonce + ":" + md5a2;
-        } else {
-            serverDigestValue = md5a1 + ":" + nonce + ":" + nc + ":" +
-                    cnonce + ":" + qop + ":" + md5a2;
-        }
-
-        byte[] valueBytes = null;
-        if(getDigestEncoding() == null) {
-            valueBytes = serverDigestValue.getBytes();
-        } else {
-            try {
-                valueBytes = serverDigestValue.getBytes(getDigestEncoding());
-            } catch (UnsupportedEncodingException uee) {
-                log.error("Illegal digestEncoding: " + getDigestEncoding(), uee);
-                throw new IllegalArgumentException(uee.getMessage());
+        // Check the digest cached for this user, if any
+        RealmCache cache = this.cache;
+        if ((cache != null) && (username != null) && (realm != null)) {
+            String md5a1 = cache.getDigest(username, realm);
+            if ((md5a1 != null)
+                && getServerDigest(md5a1, nonce, nc, cnonce, qop,
+                                   md5a2).equals(clientDigest)) {
+                Principal principal =
+                    cache.getDigestPrincipal(username, realm);
+                if (principal != null)
+                    return (principal);
             }
         }
 
-        String serverDigest = null;
-        // Bugzilla 32137
-        synchronized(md5Helper) {
-            serverDigest = md5Encoder.encode(md5Helper.digest(valueBytes));
-        }
+        String md5a1 = getDigest(username, realm);
+        if (md5a1 == null)
+            return null;
+        String serverDigest =
+            getServerDigest(md5a1, nonce, nc, cnonce, qop, md5a2);
 
         if (log.isDebugEnabled()) {
             log.debug("Digest : " + clientDigest + " Username:" + username 
@@ -400,10 +510,13 @@ public abstract class RealmBase
                     + " Server digest:" + serverDigest);
         }
         
-        if (serverDigest.equals(clientDigest))
-            return getPrincipal(username);
-        else
+        if (!serverDigest.equals(clientDigest))
             return null;
+
+        Principal principal = getPrincipal(username);
+        if ((cache != null) && (principal != null) && (realm != null))
+            cache.putDigest(username, realm, md5a1, principal);
+        return (principal);
     }
 
 
@@ -450,6 +563,40 @@ public abstract class RealmBase
      * throwables will be caught and logged.
      */
     public void backgroundProcess() {
+
+        RealmCache cache = this.cache;
+        if (cache != null)
+            cache.expire();
+
+    }
+
+
+    /**
+     * Remove all the users from the cache of authenticated users, so that
+     * they are authenticated again by this Realm.
+     */
+    public void clearCache() {
+
+        RealmCache cache = this.cache;
+        if (cache != null)
+            cache.clear();
+
+    }
+
+
+    /**
+     * Remove the specified user from the cache of authenticated users, so
+     * that the user is authenticated again by this Realm, for example after
+     * the password or the roles of the user have been changed.
+     *
+     * @param username Username to remove
+     */
+    public void removeCachedUser(String username) {
+
+        RealmCache cache = this.cache;
+        if ((cache != null) && (username != null))
+            cache.remove(username);
+
     }
 
 
@@ -1019,12 +1166,18 @@ public abstract class RealmBase
         if (digest != null) {
             try {
                 md = MessageDigest.getInstance(digest);
+                ConcurrentMessageDigest.init(digest);
             } catch (NoSuchAlgorithmException e) {
                 throw new LifecycleException
                     (sm.getString("realmBase.algorithm", digest), e);
             }
         }
 
+        // Create the cache of authenticated users, if desired
+        if (cacheSize > 0) {
+            cache = new RealmCache(cacheSize, cacheTimeout * 1000L);
+        }
+
     }
 
 
@@ -1051,6 +1204,7 @@ public abstract class RealmBase
 
         // Clean up allocated resources
         md = null;
+        cache = null;
         
         destroy();
     
@@ -1089,32 +1243,139 @@ public abstract class RealmBase
             return (credentials);
 
         // Digest the user credentials and return as hexadecimal
-        synchronized (this) {
-            try {
-                md.reset();
-    
-                byte[] bytes = null;
-                if(getDigestEncoding() == null) {
-                    bytes = credentials.getBytes();
-                } else {
-                    try {
-                        bytes = credentials.getBytes(getDigestEncoding());
-                    } catch (UnsupportedEncodingException uee) {
-                        log.error("Illegal digestEncoding: " + getDigestEncoding(), uee);
-                        throw new IllegalArgumentException(uee.getMessage());
-                    }
+        try {
+            byte[] bytes = null;
+            if(getDigestEncoding() == null) {
+                bytes = credentials.getBytes();
+            } else {
+                try {
+                    bytes = credentials.getBytes(getDigestEncoding());
+                } catch (UnsupportedEncodingException uee) {
+                    log.error("Illegal digestEncoding: " + getDigestEncoding(), uee);
+                    throw new IllegalArgumentException(uee.getMessage());
                 }
-                md.update(bytes);
+            }
 
-                return (HexUtils.convert(md.digest()));
-            } catch (Exception e) {
-                log.error(sm.getString("realmBase.digest"), e);
-                return (credentials);
+            return (HexUtils.convert
+                    (ConcurrentMessageDigest.digest(md.getAlgorithm(), bytes)));
+        } catch (Exception e) {
+            log.error(sm.getString("realmBase.digest"), e);
+            return (credentials);
+        }
+
+    }
+
+    /**
+     * Digest the specified credentials, followed by the specified salt if
+     * any, using the algorithm of this Realm.  This method may be called
+     * concurrently and does not lock this Realm.
+     *
+     * @param credentials Credentials to digest
+     * @param salt Salt appended to the credentials, or <code>null</code>
+     */
+    protected byte[] digestCredentials(byte[] credentials, byte[] salt) {
+
+        byte[][] input = null;
+        if (salt == null)
+            input = new byte[][] { credentials };
+        else
+            input = new byte[][] { credentials, salt };
+        try {
+            return (ConcurrentMessageDigest.digest(md.getAlgorithm(), input));
+        } catch (NoSuchAlgorithmException e) {
+            // Checked when the Realm was started
+            throw new IllegalStateException(e.getMessage());
+        }
+
+    }
+
+
+    /**
+     * Return the digest expected from the client for DIGEST authentication,
+     * as described in RFC 2069 and RFC 2617.
+     *
+     * @param md5a1 First MD5 digest : MD5(username + ":" + realm + ":"
+     *  + password)
+     * @param nonce Unique (or supposedly unique) token which has been used
+     *  for this request
+     * @param nc Nonce count
+     * @param cnonce Client nonce
+     * @param qop Quality of protection, or <code>null</code>
+     * @param md5a2 Second MD5 digest : MD5(Method + ":" + uri)
+     */
+    protected String getServerDigest(String md5a1, String nonce,
+                                     String nc, String cnonce, String qop,
+                                     String md5a2) {
+
+        String serverDigestValue;
+        if (qop == null) {
+            serverDigestValue = md5a1 + ":" + nonce + ":" + md5a2;
+        } else {
+            serverDigestValue = md5a1 + ":" + nonce + ":" + nc + ":" +
+                    cnonce + ":" + qop + ":" + md5a2;
+        }
+
+        byte[] valueBytes = null;
+        if(getDigestEncoding() == null) {
+            valueBytes = serverDigestValue.getBytes();
+        } else {
+            try {
+                valueBytes = serverDigestValue.getBytes(getDigestEncoding());
+            } catch (UnsupportedEncodingException uee) {
+                log.error("Illegal digestEncoding: " + getDigestEncoding(), uee);
+                throw new IllegalArgumentException(uee.getMessage());
             }
         }
 
+        return (md5Encoder.encode
+                (ConcurrentMessageDigest.digestMD5(valueBytes)));
+
     }
 
+
+    /**
+     * Return the cached Principal of the specified user, if the specified
+     * credentials are those which were last verified for this user and the
+     * entry has not expired; otherwise return <code>null</code>.
+     *
+     * @param username Username of the Principal to look up
+     * @param credentials Password or other credentials to use in
+     *  authenticating this username
+     */
+    protected Principal getCachedPrincipal(String username,
+                                           String credentials) {
+
+        RealmCache cache = this.cache;
+        if ((cache == null) || (username == null) || (credentials == null))
+            return (null);
+        Principal principal = cache.getPrincipal(username, credentials);
+        if ((principal != null) && containerLog.isTraceEnabled())
+            containerLog.trace(sm.getString("realmBase.cacheHit", username));
+        return (principal);
+
+    }
+
+
+    /**
+     * Cache the specified Principal, if caching is enabled, after the
+     * specified credentials have been verified for this user.
+     *
+     * @param username Username of the Principal
+     * @param credentials Credentials which have been verified
+     * @param principal The Principal, or <code>null</code> if the
+     *  authentication failed
+     */
+    protected void cachePrincipal(String username, String credentials,
+                                  Principal principal) {
+
+        RealmCache cache = this.cache;
+        if ((cache != null) && (username != null) && (credentials != null)
+            && (principal != null))
+            cache.putPrincipal(username, credentials, principal);
+
+    }
+
+
     protected boolean hasMessageDigest() {
         return !(md == null);
     }
@@ -1152,13 +1413,8 @@ public abstract class RealmBase
             }
         }
 
-        byte[] digest = null;
-        // Bugzilla 32137
-        synchronized(md5Helper) {
-            digest = md5Helper.digest(valueBytes);
-        }
-
-        return md5Encoder.encode(digest);
+        return md5Encoder.encode
+            (ConcurrentMessageDigest.digestMD5(valueBytes));
     }
 
 
@@ -1206,20 +1462,18 @@ public abstract class RealmBase
                                       String encoding) {
 
         try {
-            // Obtain a new message digest with "digest" encryption
-            MessageDigest md =
-                (MessageDigest) MessageDigest.getInstance(algorithm).clone();
-
             // encode the credentials
             // Should use the digestEncoding, but that's not a static field
+            byte[] bytes = null;
             if (encoding == null) {
-                md.update(credentials.getBytes());
+                bytes = credentials.getBytes();
             } else {
-                md.update(credentials.getBytes(encoding));                
+                bytes = credentials.getBytes(encoding);
             }
 
             // Digest the credentials and return as hexadecimal
-            return (HexUtils.convert(md.digest()));
+            return (HexUtils.convert
+                    (ConcurrentMessageDigest.digest(algorithm, bytes)));
         } catch(Exception ex) {
             log.error(ex);
             return credentials;
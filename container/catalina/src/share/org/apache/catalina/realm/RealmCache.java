@@ -0,0 +1,483 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apache.catalina.realm;
+
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.Principal;
+import java.security.SecureRandom;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ * Bounded cache of the users recently authenticated by a Realm.  For each
+ * user, the cache keeps the Principal (and so its roles) returned by the
+ * Realm, along with a salted hash of the credentials which were verified,
+ * and, in a separate entry, the digest used for DIGEST authentication, so
+ * that users authenticating both ways do not replace each other's entries.
+ * Entries expire after a fixed time, so that changes made to the underlying
+ * user database are eventually taken into account: until then, a user whose
+ * password has changed can still be authenticated with the previous one.
+ * <p>
+ * The entries are spread over several stripes, each one being a least
+ * recently used map with its own lock, so that request threads only
+ * contend when their users hash to the same stripe.
+ *
+ * @version $Id$
+ */
+
+public class RealmCache {
+
+
+    // -------------------------------------------------------------- Constants
+
+
+    /**
+     * Number of stripes.
+     */
+    protected static final int STRIPES = 16;
+
+
+    /**
+     * Algorithm used to hash the credentials.
+     */
+    protected static final String ALGORITHM = "SHA";
+
+
+    // ----------------------------------------------------------- Constructors
+
+
+    /**
+     * Construct a new cache.
+     *
+     * @param maxEntries Maximum number of cached users
+     * @param timeout Time in milliseconds after which an entry expires
+     */
+    public RealmCache(int maxEntries, long timeout) {
+
+        this.timeout = timeout;
+        stripes = new Stripe[STRIPES];
+        int maxStripeEntries = Math.max(maxEntries / STRIPES, 1);
+        for (int i = 0; i < stripes.length; i++)
+            stripes[i] = new Stripe(maxStripeEntries);
+        salt = new byte[16];
+        new SecureRandom().nextBytes(salt);
+        try {
+            prototype = MessageDigest.getInstance(ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e.getMessage());
+        }
+
+    }
+
+
+    // ----------------------------------------------------- Instance Variables
+
+
+    /**
+     * The stripes of the cache.
+     */
+    protected Stripe[] stripes = null;
+
+
+    /**
+     * Time in milliseconds after which an entry expires.
+     */
+    protected long timeout = 0L;
+
+
+    /**
+     * Random salt of the credential hashes, so that they are of no use
+     * outside of this cache.
+     */
+    protected byte[] salt = null;
+
+
+    /**
+     * Message digest which is cloned to hash credentials.
+     */
+    protected MessageDigest prototype = null;
+
+
+    // ------------------------------------------------------------- Properties
+
+
+    /**
+     * Return the number of lookups which were answered from the cache.
+     */
+    public long getHitCount() {
+
+        long result = 0;
+        for (int i = 0; i < stripes.length; i++) {
+            synchronized (stripes[i]) {
+                result += stripes[i].hitCount;
+            }
+        }
+        return (result);
+
+    }
+
+
+    /**
+     * Return the number of lookups which had to be passed to the Realm.
+     */
+    public long getMissCount() {
+
+        long result = 0;
+        for (int i = 0; i < stripes.length; i++) {
+            synchronized (stripes[i]) {
+                result += stripes[i].missCount;
+            }
+        }
+        return (result);
+
+    }
+
+
+    /**
+     * Return the number of cached entries, including the expired entries
+     * which have not been removed yet.
+     */
+    public int size() {
+
+        int result = 0;
+        for (int i = 0; i < stripes.length; i++) {
+            synchronized (stripes[i]) {
+                result += stripes[i].size();
+            }
+        }
+        return (result);
+
+    }
+
+
+    // --------------------------------------------------------- Public Methods
+
+
+    /**
+     * Return the cached Principal of the specified user, if the specified
+     * credentials are those which were verified for this user; otherwise
+     * return <code>null</code>.
+     *
+     * @param username Username of the Principal to look up
+     * @param credentials Password or other credentials of the user
+     */
+    public Principal getPrincipal(String username, String credentials) {
+
+        byte[] hash = hash(username, credentials);
+        Stripe stripe = getStripe(username);
+        synchronized (stripe) {
+            Entry entry = getEntry(stripe, username);
+            if ((entry != null) && (entry.credentials != null)
+                && MessageDigest.isEqual(entry.credentials, hash)) {
+                stripe.hitCount++;
+                return (entry.principal);
+            }
+            stripe.missCount++;
+            return (null);
+        }
+
+    }
+
+
+    /**
+     * Return the cached Principal of the specified user for DIGEST
+     * authentication in the specified realm, if there is one; otherwise
+     * return <code>null</code>.
+     *
+     * @param username Username of the Principal to look up
+     * @param realmName Name of the realm used by the client
+     */
+    public Principal getDigestPrincipal(String username, String realmName) {
+
+        Stripe stripe = getStripe(username);
+        synchronized (stripe) {
+            Entry entry = getEntry(stripe, new DigestKey(username));
+            if ((entry != null) && entry.realmName.equals(realmName))
+                return (entry.principal);
+            return (null);
+        }
+
+    }
+
+
+    /**
+     * Return the cached digest of the specified user for DIGEST
+     * authentication in the specified realm, if there is one; otherwise
+     * return <code>null</code>.
+     *
+     * @param username Username of the Principal to look up
+     * @param realmName Name of the realm used by the client
+     */
+    public String getDigest(String username, String realmName) {
+
+        Stripe stripe = getStripe(username);
+        synchronized (stripe) {
+            Entry entry = getEntry(stripe, new DigestKey(username));
+            if ((entry != null) && entry.realmName.equals(realmName)) {
+                stripe.hitCount++;
+                return (entry.digest);
+            }
+            stripe.missCount++;
+            return (null);
+        }
+
+    }
+
+
+    /**
+     * Cache the Principal of the specified user, whose credentials have
+     * been verified by the Realm.
+     *
+     * @param username Username of the Principal
+     * @param credentials Credentials which have been verified
+     * @param principal The Principal
+     */
+    public void putPrincipal(String username, String credentials,
+                             Principal principal) {
+
+        Entry entry = new Entry(principal, System.currentTimeMillis() + timeout);
+        entry.credentials = hash(username, credentials);
+        Stripe stripe = getStripe(username);
+        synchronized (stripe) {
+            stripe.put(username, entry);
+        }
+
+    }
+
+
+    /**
+     * Cache the Principal of the specified user, whose DIGEST
+     * authentication has been verified by the Realm.
+     *
+     * @param username Username of the Principal
+     * @param realmName Name of the realm used by the client
+     * @param digest The digest of the user for this realm
+     * @param principal The Principal
+     */
+    public void putDigest(String username, String realmName, String digest,
+                          Principal principal) {
+
+        Entry entry = new Entry(principal, System.currentTimeMillis() + timeout);
+        entry.realmName = realmName;
+        entry.digest = digest;
+        Stripe stripe = getStripe(username);
+        synchronized (stripe) {
+            stripe.put(new DigestKey(username), entry);
+        }
+
+    }
+
+
+    /**
+     * Remove the specified user from the cache.
+     *
+     * @param username Username to remove
+     */
+    public void remove(String username) {
+
+        Stripe stripe = getStripe(username);
+        synchronized (stripe) {
+            stripe.remove(username);
+            stripe.remove(new DigestKey(username));
+        }
+
+    }
+
+
+    /**
+     * Remove all the users from the cache.
+     */
+    public void clear() {
+
+        for (int i = 0; i < stripes.length; i++) {
+            synchronized (stripes[i]) {
+                stripes[i].clear();
+            }
+        }
+
+    }
+
+
+    /**
+     * Remove the expired entries from the cache.
+     */
+    public void expire() {
+
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < stripes.length; i++) {
+            synchronized (stripes[i]) {
+                Iterator iterator = stripes[i].values().iterator();
+                while (iterator.hasNext()) {
+                    Entry entry = (Entry) iterator.next();
+                    if (entry.expires <= now)
+                        iterator.remove();
+                }
+            }
+        }
+
+    }
+
+
+    // ------------------------------------------------------ Protected Methods
+
+
+    /**
+     * Return the stripe holding the specified user.
+     *
+     * @param username Username
+     */
+    protected Stripe getStripe(String username) {
+
+        return (stripes[(username.hashCode() & 0x7fffffff) % stripes.length]);
+
+    }
+
+
+    /**
+     * Return the entry with the specified key in the specified stripe, or
+     * <code>null</code> if there is none or if it has expired.  The caller
+     * must hold the lock of the stripe.
+     *
+     * @param stripe The stripe
+     * @param key The username for credentials, or a <code>DigestKey</code>
+     */
+    protected Entry getEntry(Stripe stripe, Object key) {
+
+        Entry entry = (Entry) stripe.get(key);
+        if ((entry != null)
+            && (entry.expires <= System.currentTimeMillis())) {
+            stripe.remove(key);
+            entry = null;
+        }
+        return (entry);
+
+    }
+
+
+    /**
+     * Return the salted hash of the specified credentials.
+     *
+     * @param username Username
+     * @param credentials Credentials
+     */
+    protected byte[] hash(String username, String credentials) {
+
+        MessageDigest md = null;
+        try {
+            md = (MessageDigest) prototype.clone();
+        } catch (CloneNotSupportedException e) {
+            try {
+                md = MessageDigest.getInstance(ALGORITHM);
+            } catch (NoSuchAlgorithmException e2) {
+                throw new IllegalStateException(e2.getMessage());
+            }
+        }
+        try {
+            md.update(salt);
+            md.update(username.getBytes("UTF-8"));
+            md.update((byte) 0);
+            md.update(credentials.getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e.getMessage());
+        }
+        return (md.digest());
+
+    }
+
+
+    // --------------------------------------------------------- Stripe Class
+
+
+    /**
+     * Least recently used map of cached users, which is also the lock
+     * protecting them.
+     */
+    protected static class Stripe extends LinkedHashMap {
+
+        protected int maxEntries;
+        protected long hitCount = 0;
+        protected long missCount = 0;
+
+        public Stripe(int maxEntries) {
+            super(16, 0.75f, true);
+            this.maxEntries = maxEntries;
+        }
+
+        protected boolean removeEldestEntry(Map.Entry eldest) {
+            return (size() > maxEntries);
+        }
+
+    }
+
+
+    // ---------------------------------------------------------- Entry Class
+
+
+    /**
+     * A cached authentication of a user.
+     */
+    protected static class Entry {
+
+        protected Principal principal;
+        protected long expires;
+        protected byte[] credentials = null;
+        protected String realmName = null;
+        protected String digest = null;
+
+        public Entry(Principal principal, long expires) {
+            this.principal = principal;
+            this.expires = expires;
+        }
+
+    }
+
+
+    // ------------------------------------------------------ DigestKey Class
+
+
+    /**
+     * The key of the entry of a user for DIGEST authentication, which is
+     * kept apart from the entry of its credentials, keyed by its username.
+     */
+    protected static final class DigestKey {
+
+        protected String username;
+
+        public DigestKey(String username) {
+            this.username = username;
+        }
+
+        public boolean equals(Object o) {
+            return ((o instanceof DigestKey)
+                    && username.equals(((DigestKey) o).username));
+        }
+
+        public int hashCode() {
+            return (username.hashCode());
+        }
+
+    }
+
+
+}
@@ -27,20 +27,26 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.io.RandomAccessFile;
 import java.io.Reader;
 import java.io.StringReader;
 import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
 import java.util.StringTokenizer;
 
 import javax.naming.InitialContext;
 import javax.naming.NameClassPair;
 import javax.naming.NamingEnumeration;
 import javax.naming.NamingException;
+import javax.naming.directory.Attributes;
 import javax.naming.directory.DirContext;
 import javax.servlet.ServletException;
 import javax.servlet.ServletOutputStream;
@@ -158,6 +164,25 @@ public class DefaultServlet
      */
     protected boolean useAcceptRanges = true;
 
+    /**
+     * Should a precompressed variant of a static resource (the same path
+     * with an additional ".gz" extension) be served to clients which
+     * accept the gzip content encoding?
+     */
+    protected boolean gzip = false;
+
+    /**
+     * Time in milliseconds during which a rendered directory listing is
+     * reused, as long as the directory is not modified.
+     */
+    protected int listingsCacheTTL = 5000;
+
+    /**
+     * Maximum size in KB of a rendered directory listing which is reused.
+     * Larger listings are only written out as they are rendered.
+     */
+    protected int listingsCacheMaxSize = 512;
+
     /**
      * Full range marker.
      */
@@ -186,6 +211,13 @@ public class DefaultServlet
     protected static final String mimeSeparation = "CATALINA_MIME_BOUNDARY";
 
 
+    /**
+     * Trailer of multipart responses.
+     */
+    protected static final String MULTIPART_TRAILER =
+        "\r\n--" + mimeSeparation + "--";
+
+
     /**
      * JNDI resources name.
      */
@@ -285,6 +317,24 @@ public class DefaultServlet
             log("DefaultServlet.init: couldn't read fileEncoding from " + value);
         }
 
+        try {
+            value = getServletConfig().getInitParameter("listingsCacheTTL");
+            if (value != null) {
+                listingsCacheTTL = Integer.parseInt(value);
+            }
+        } catch (Exception e) {
+            log("DefaultServlet.init: couldn't read listingsCacheTTL from " + value);
+        }
+
+        try {
+            value = getServletConfig().getInitParameter("listingsCacheMaxSize");
+            if (value != null) {
+                listingsCacheMaxSize = Integer.parseInt(value);
+            }
+        } catch (Exception e) {
+            log("DefaultServlet.init: couldn't read listingsCacheMaxSize from " + value);
+        }
+
         globalXsltFile = getServletConfig().getInitParameter("globalXsltFile");
         localXsltFile = getServletConfig().getInitParameter("localXsltFile");
         readmeFile = getServletConfig().getInitParameter("readmeFile");
@@ -294,6 +344,11 @@ public class DefaultServlet
             useAcceptRanges = Boolean.valueOf(value).booleanValue();
         }
 
+        value = getServletConfig().getInitParameter("gzip");
+        if (value != null) {
+            gzip = Boolean.valueOf(value).booleanValue();
+        }
+
         // Sanity check on the specified buffer sizes
         if (input < 256)
             input = 256;
@@ -679,9 +734,34 @@ public class DefaultServlet
                                      ResourceAttributes resourceAttributes)
         throws IOException {
 
-        return checkIfMatch(request, response, resourceAttributes)
-            && checkIfModifiedSince(request, response, resourceAttributes)
-            && checkIfNoneMatch(request, response, resourceAttributes)
+        return checkIfHeaders(request, response, resourceAttributes,
+                              getETag(resourceAttributes));
+
+    }
+
+
+    /**
+     * Check if the conditions specified in the optional If headers are
+     * satisfied by the variant of the resource with the given ETag.
+     *
+     * @param request The servlet request we are processing
+     * @param response The servlet response we are creating
+     * @param resourceAttributes The resource information
+     * @param eTag The ETag of the variant of the resource which is served
+     * @return boolean true if the resource meets all the specified conditions,
+     * and false if any of the conditions is not satisfied, in which case
+     * request processing is stopped
+     */
+    protected boolean checkIfHeaders(HttpServletRequest request,
+                                     HttpServletResponse response,
+                                     ResourceAttributes resourceAttributes,
+                                     String eTag)
+        throws IOException {
+
+        return checkIfMatch(request, response, resourceAttributes, eTag)
+            && checkIfModifiedSince(request, response, resourceAttributes,
+                                    eTag)
+            && checkIfNoneMatch(request, response, resourceAttributes, eTag)
             && checkIfUnmodifiedSince(request, response, resourceAttributes);
 
     }
@@ -798,6 +878,13 @@ public class DefaultServlet
             }
         }
 
+        // Retrieve the metadata computed the first time the cached resource
+        // was served
+        ResourceMetadata metadata = null;
+        if (cacheEntry.context == null) {
+            metadata = getMetadata(cacheEntry);
+        }
+
         boolean isError = false;
         Integer status =
             (Integer) request.getAttribute("javax.servlet.error.status_code");
@@ -805,25 +892,50 @@ public class DefaultServlet
             isError = status.intValue() >= HttpServletResponse.SC_BAD_REQUEST;
         }
 
+        // Select the precompressed variant of the resource, if any, as the
+        // conditional headers are evaluated against the ETag of the variant
+        // which is served
+        boolean included =
+            (request.getAttribute(Globals.INCLUDE_CONTEXT_PATH_ATTR) != null);
+        CacheEntry gzipEntry = null;
+        String eTag = null;
+        if (metadata != null) {
+            eTag = metadata.eTag;
+            if ((metadata.gzipName != null) && !isError) {
+                // The representation depends on the accepted encodings
+                response.addHeader("Vary", "Accept-Encoding");
+                if (!included && acceptsGzip(request)) {
+                    gzipEntry = getGzipEntry(cacheEntry, metadata);
+                    if (gzipEntry != null) {
+                        eTag = metadata.gzipETag;
+                    }
+                }
+            }
+        }
+
         // Check if the conditions specified in the optional If headers are
         // satisfied.
         if (cacheEntry.context == null) {
 
             // Checking If headers
-            boolean included =
-                (request.getAttribute(Globals.INCLUDE_CONTEXT_PATH_ATTR) != null);
             if (!included && !isError &&
-                    !checkIfHeaders(request, response, cacheEntry.attributes)) {
+                    !checkIfHeaders(request, response, cacheEntry.attributes,
+                                    eTag)) {
                 return;
             }
 
         }
 
         // Find content type.
-        String contentType = cacheEntry.attributes.getMimeType();
-        if (contentType == null) {
-            contentType = getServletContext().getMimeType(cacheEntry.name);
-            cacheEntry.attributes.setMimeType(contentType);
+        String contentType = null;
+        if (metadata != null) {
+            contentType = metadata.contentType;
+        } else {
+            contentType = cacheEntry.attributes.getMimeType();
+            if (contentType == null) {
+                contentType = getServletContext().getMimeType(cacheEntry.name);
+                cacheEntry.attributes.setMimeType(contentType);
+            }
         }
 
         ArrayList ranges = null;
@@ -847,15 +959,33 @@ public class DefaultServlet
                     response.setHeader("Accept-Ranges", "bytes");
                 }
     
-                // Parse range specifier
-                ranges = parseRange(request, response, cacheEntry.attributes);
+                // Parse range specifier, unless the same unconditional
+                // range specifier has already been parsed for the resource.
+                // Ranges always apply to the identity variant, so that an
+                // If-Range with the ETag of the precompressed variant
+                // causes the whole precompressed variant to be sent
+                String rangeHeader = request.getHeader("Range");
+                ParsedRanges parsedRanges = metadata.parsedRanges;
+                if ((rangeHeader != null) && (parsedRanges != null)
+                    && (request.getHeader("If-Range") == null)
+                    && rangeHeader.equals(parsedRanges.header)) {
+                    ranges = new ArrayList(parsedRanges.ranges);
+                } else {
+                    ranges = parseRange(request, response,
+                                        cacheEntry.attributes);
+                    if ((rangeHeader != null) && (ranges != null)
+                        && (ranges != FULL) && (!ranges.isEmpty())
+                        && (request.getHeader("If-Range") == null)) {
+                        metadata.parsedRanges =
+                            new ParsedRanges(rangeHeader, ranges);
+                    }
+                }
     
                 // ETag header
-                response.setHeader("ETag", getETag(cacheEntry.attributes));
+                response.setHeader("ETag", metadata.eTag);
     
                 // Last-Modified header
-                response.setHeader("Last-Modified",
-                        cacheEntry.attributes.getLastModifiedHttp());
+                response.setHeader("Last-Modified", metadata.lastModifiedHttp);
             }
 
             // Get content length
@@ -897,6 +1027,14 @@ public class DefaultServlet
                         && (request.getHeader("Range") == null) )
                 || (ranges == FULL) ) {
 
+            // Serve the precompressed variant of the resource, if selected
+            if ((gzipEntry != null) && (writer == null)) {
+                response.setHeader("Content-Encoding", "gzip");
+                response.setHeader("ETag", metadata.gzipETag);
+                contentLength = gzipEntry.attributes.getContentLength();
+                cacheEntry = gzipEntry;
+            }
+
             // Set the appropriate output headers
             if (contentType != null) {
                 if (debug > 0)
@@ -917,12 +1055,21 @@ public class DefaultServlet
             }
 
             InputStream renderResult = null;
+            byte[] listing = null;
             if (cacheEntry.context != null) {
 
-                if (content) {
+                if (content && (ostream == null)) {
                     // Serve the directory browser
                     renderResult =
                         render(request.getContextPath(), cacheEntry);
+                } else if (content) {
+                    // The length of a rendered listing which is reused
+                    // is known
+                    listing =
+                        getCachedListing(request.getContextPath(), cacheEntry);
+                    if (listing != null) {
+                        response.setContentLength(listing.length);
+                    }
                 }
 
             }
@@ -935,8 +1082,16 @@ public class DefaultServlet
                     // Silent catch
                 }
                 if (ostream != null) {
-                    if (!checkSendfile(request, response, cacheEntry, contentLength, null))
+                    if (listing != null) {
+                        // Write the listing whose length has been set, as
+                        // the cached one may have expired in the meantime
+                        ostream.write(listing);
+                    } else if (cacheEntry.context != null) {
+                        // Serve the directory browser, as it is rendered
+                        render(request.getContextPath(), cacheEntry, ostream);
+                    } else if (!checkSendfile(request, response, cacheEntry, contentLength, null)) {
                         copy(cacheEntry, renderResult, ostream);
+                    }
                 } else {
                     copy(cacheEntry, renderResult, writer);
                 }
@@ -992,6 +1147,16 @@ public class DefaultServlet
                 response.setContentType("multipart/byteranges; boundary="
                                         + mimeSeparation);
 
+                if (ostream != null) {
+                    long length = getMultipartLength(ranges, contentType);
+                    if (length < Integer.MAX_VALUE) {
+                        response.setContentLength((int) length);
+                    } else {
+                        // Set the content-length as String to be able to use a long
+                        response.setHeader("content-length", "" + length);
+                    }
+                }
+
                 if (content) {
                     try {
                         response.setBufferSize(output);
@@ -1220,20 +1385,121 @@ public class DefaultServlet
      */
     protected InputStream render
         (String contextPath, CacheEntry cacheEntry) {
+
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        try {
+            render(contextPath, cacheEntry, stream);
+        } catch (IOException e) {
+            // Should never happen
+            log("DefaultServlet.render: " + e.getMessage());
+        }
+        return (new ByteArrayInputStream(stream.toByteArray()));
+
+    }
+
+
+    /**
+     * Write the listing of the specified directory to the specified
+     * stream as it is being rendered.  Listings which are not larger than
+     * <code>listingsCacheMaxSize</code> are kept with the cache entry of the
+     * directory, and are written again as is for
+     * <code>listingsCacheTTL</code> milliseconds, as long as the directory
+     * is not modified.
+     *
+     * @param contextPath Context path to which our internal paths are
+     *  relative
+     * @param cacheEntry The directory information
+     * @param ostream The stream to write to
+     *
+     * @exception IOException if an input/output error occurs
+     */
+    protected void render(String contextPath, CacheEntry cacheEntry,
+                          OutputStream ostream)
+        throws IOException {
+
+        byte[] listing = getCachedListing(contextPath, cacheEntry);
+        if (listing != null) {
+            ostream.write(listing);
+            return;
+        }
+
+        long lastModified = cacheEntry.attributes.getLastModified();
+        long expires = System.currentTimeMillis() + listingsCacheTTL;
+        int maxSize = -1;
+        if (listingsCacheTTL > 0)
+            maxSize = listingsCacheMaxSize * 1024;
+        ListingOutputStream stream = new ListingOutputStream(ostream, maxSize);
+
         InputStream xsltInputStream =
             findXsltInputStream(cacheEntry.context);
-
-        if (xsltInputStream==null) {
-            return renderHtml(contextPath, cacheEntry);
+        if (xsltInputStream == null) {
+            renderHtml(contextPath, cacheEntry, stream);
         } else {
-            return renderXml(contextPath, cacheEntry, xsltInputStream);
+            renderXml(contextPath, cacheEntry, xsltInputStream, stream);
+        }
+
+        listing = stream.getContent();
+        if (listing != null) {
+            cacheEntry.metadata = new DirectoryListing
+                (contextPath, lastModified, expires, listing);
         }
 
     }
 
+
     /**
-     * Return an InputStream to an HTML representation of the contents
-     * of this directory.
+     * Return the rendered listing of the specified directory kept with its
+     * cache entry, or <code>null</code> if there is none, or if it is not
+     * valid anymore.
+     *
+     * @param contextPath Context path to which our internal paths are
+     *  relative
+     * @param cacheEntry The directory information
+     */
+    protected byte[] getCachedListing(String contextPath,
+                                      CacheEntry cacheEntry) {
+
+        Object metadata = cacheEntry.metadata;
+        if (!(metadata instanceof DirectoryListing))
+            return (null);
+        DirectoryListing listing = (DirectoryListing) metadata;
+        if ((!listing.contextPath.equals(contextPath))
+            || (listing.lastModified
+                != cacheEntry.attributes.getLastModified())
+            || (System.currentTimeMillis() > listing.expires))
+            return (null);
+        return (listing.content);
+
+    }
+
+
+    /**
+     * Return the attributes of the specified member of a directory, or
+     * <code>null</code> if it does not exist anymore. The attributes are
+     * retrieved without loading the member in the resources cache, so that
+     * listing a large directory does not evict the cached resources.
+     *
+     * @param name Name of the member
+     */
+    protected ResourceAttributes getListingAttributes(String name) {
+
+        try {
+            Attributes attributes =
+                resources.getDirContext().getAttributes(name);
+            if (!(attributes instanceof ResourceAttributes)) {
+                attributes = new ResourceAttributes(attributes);
+            }
+            return ((ResourceAttributes) attributes);
+        } catch (NamingException e) {
+            return (null);
+        }
+
+    }
+
+
+    /**
+     * Return an InputStream to an XML representation of the contents
+     * of this directory, transformed by the specified style sheet.
      *
      * @param contextPath Context path to which our internal paths are
      *  relative
@@ -1242,6 +1508,35 @@ public class DefaultServlet
                                     CacheEntry cacheEntry,
                                     InputStream xsltInputStream) {
 
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        try {
+            renderXml(contextPath, cacheEntry, xsltInputStream, stream);
+        } catch (IOException e) {
+            // Should never happen
+            log("DefaultServlet.renderXml: " + e.getMessage());
+        }
+        return (new ByteArrayInputStream(stream.toByteArray()));
+
+    }
+
+
+    /**
+     * Write an XML representation of the contents of this directory,
+     * transformed by the specified style sheet, to the specified stream.
+     * The result of the transformation is buffered, so that the HTML
+     * representation can be written instead if it fails.
+     *
+     * @param contextPath Context path to which our internal paths are
+     *  relative
+     * @param ostream The stream to write to
+     *
+     * @exception IOException if an input/output error occurs
+     */
+    protected void renderXml(String contextPath, CacheEntry cacheEntry,
+                             InputStream xsltInputStream,
+                             OutputStream ostream)
+        throws IOException {
+
         StringBuffer sb = new StringBuffer();
 
         sb.append("<?xml version=\"1.0\"?>");
@@ -1275,33 +1570,34 @@ public class DefaultServlet
                     trimmed.equalsIgnoreCase(localXsltFile))
                     continue;
 
-                CacheEntry childCacheEntry =
-                    resources.lookupCache(cacheEntry.name + resourceName);
-                if (!childCacheEntry.exists) {
+                ResourceAttributes childAttributes =
+                    getListingAttributes(cacheEntry.name + resourceName);
+                if (childAttributes == null) {
                     continue;
                 }
+                boolean collection = childAttributes.isCollection();
 
                 sb.append("<entry");
                 sb.append(" type='")
-                  .append((childCacheEntry.context != null)?"dir":"file")
+                  .append(collection?"dir":"file")
                   .append("'");
                 sb.append(" urlPath='")
                   .append(rewrittenContextPath)
                   .append(rewriteUrl(cacheEntry.name + resourceName))
-                  .append((childCacheEntry.context != null)?"/":"")
+                  .append(collection?"/":"")
                   .append("'");
-                if (childCacheEntry.resource != null) {
+                if (!collection) {
                     sb.append(" size='")
-                      .append(renderSize(childCacheEntry.attributes.getContentLength()))
+                      .append(renderSize(childAttributes.getContentLength()))
                       .append("'");
                 }
                 sb.append(" date='")
-                  .append(childCacheEntry.attributes.getLastModifiedHttp())
+                  .append(childAttributes.getLastModifiedHttp())
                   .append("'");
 
                 sb.append(">");
                 sb.append(RequestUtil.filter(trimmed));
-                if (childCacheEntry.context != null)
+                if (collection)
                     sb.append("/");
                 sb.append("</entry>");
 
@@ -1326,24 +1622,27 @@ public class DefaultServlet
         sb.append("</listing>");
 
 
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
         try {
             TransformerFactory tFactory = TransformerFactory.newInstance();
             Source xmlSource = new StreamSource(new StringReader(sb.toString()));
             Source xslSource = new StreamSource(xsltInputStream);
             Transformer transformer = tFactory.newTransformer(xslSource);
 
-            ByteArrayOutputStream stream = new ByteArrayOutputStream();
             OutputStreamWriter osWriter = new OutputStreamWriter(stream, "UTF8");
             StreamResult out = new StreamResult(osWriter);
             transformer.transform(xmlSource, out);
             osWriter.flush();
-            return (new ByteArrayInputStream(stream.toByteArray()));
         } catch (Exception e) {
             log("directory transform failure: " + e.getMessage());
-            return renderHtml(contextPath, cacheEntry);
+            renderHtml(contextPath, cacheEntry, ostream);
+            return;
         }
+        stream.writeTo(ostream);
+
     }
 
+
     /**
      * Return an InputStream to an HTML representation of the contents
      * of this directory.
@@ -1354,6 +1653,33 @@ public class DefaultServlet
     protected InputStream renderHtml
         (String contextPath, CacheEntry cacheEntry) {
 
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        try {
+            renderHtml(contextPath, cacheEntry, stream);
+        } catch (IOException e) {
+            // Should never happen
+            log("DefaultServlet.renderHtml: " + e.getMessage());
+        }
+        return (new ByteArrayInputStream(stream.toByteArray()));
+
+    }
+
+
+    /**
+     * Write an HTML representation of the contents of this directory to
+     * the specified stream. The entries are written as they are listed, so
+     * that large directories are never rendered in memory.
+     *
+     * @param contextPath Context path to which our internal paths are
+     *  relative
+     * @param ostream The stream to write to
+     *
+     * @exception IOException if an input/output error occurs
+     */
+    protected void renderHtml(String contextPath, CacheEntry cacheEntry,
+                              OutputStream ostream)
+        throws IOException {
+
         String name = cacheEntry.name;
 
         // Number of characters to trim from the beginnings of filenames
@@ -1363,16 +1689,14 @@ public class DefaultServlet
         if (name.equals("/"))
             trim = 1;
 
-        // Prepare a writer to a buffered area
-        ByteArrayOutputStream stream = new ByteArrayOutputStream();
-        OutputStreamWriter osWriter = null;
+        // Prepare a writer to the stream
+        Writer writer = null;
         try {
-            osWriter = new OutputStreamWriter(stream, "UTF8");
+            writer = new OutputStreamWriter(ostream, "UTF8");
         } catch (Exception e) {
             // Should never happen
-            osWriter = new OutputStreamWriter(stream);
+            writer = new OutputStreamWriter(ostream);
         }
-        PrintWriter writer = new PrintWriter(osWriter);
 
         StringBuffer sb = new StringBuffer();
         
@@ -1449,11 +1773,12 @@ public class DefaultServlet
                     trimmed.equalsIgnoreCase("META-INF"))
                     continue;
 
-                CacheEntry childCacheEntry =
-                    resources.lookupCache(cacheEntry.name + resourceName);
-                if (!childCacheEntry.exists) {
+                ResourceAttributes childAttributes =
+                    getListingAttributes(cacheEntry.name + resourceName);
+                if (childAttributes == null) {
                     continue;
                 }
+                boolean collection = childAttributes.isCollection();
 
                 sb.append("<tr");
                 if (shade)
@@ -1466,26 +1791,32 @@ public class DefaultServlet
                 sb.append(rewrittenContextPath);
                 resourceName = rewriteUrl(name + resourceName);
                 sb.append(resourceName);
-                if (childCacheEntry.context != null)
+                if (collection)
                     sb.append("/");
                 sb.append("\"><tt>");
                 sb.append(RequestUtil.filter(trimmed));
-                if (childCacheEntry.context != null)
+                if (collection)
                     sb.append("/");
                 sb.append("</tt></a></td>\r\n");
 
                 sb.append("<td align=\"right\"><tt>");
-                if (childCacheEntry.context != null)
+                if (collection)
                     sb.append("&nbsp;");
                 else
-                    sb.append(renderSize(childCacheEntry.attributes.getContentLength()));
+                    sb.append(renderSize(childAttributes.getContentLength()));
                 sb.append("</tt></td>\r\n");
 
                 sb.append("<td align=\"right\"><tt>");
-                sb.append(childCacheEntry.attributes.getLastModifiedHttp());
+                sb.append(childAttributes.getLastModifiedHttp());
                 sb.append("</tt></td>\r\n");
 
                 sb.append("</tr>\r\n");
+
+                // Write out the rendered entries
+                if (sb.length() >= output) {
+                    writer.write(sb.toString());
+                    sb.setLength(0);
+                }
             }
 
         } catch (NamingException e) {
@@ -1508,10 +1839,8 @@ public class DefaultServlet
         sb.append("</body>\r\n");
         sb.append("</html>\r\n");
 
-        // Return an input stream to the underlying bytes
         writer.write(sb.toString());
         writer.flush();
-        return (new ByteArrayInputStream(stream.toByteArray()));
 
     }
 
@@ -1644,8 +1973,145 @@ public class DefaultServlet
             return false;
         }
     }
-    
-    
+
+
+    /**
+     * Return the metadata of the specified resource, which is computed once
+     * and kept with the cache entry for as long as it remains in the cache.
+     *
+     * @param cacheEntry The resource information
+     */
+    protected ResourceMetadata getMetadata(CacheEntry cacheEntry) {
+
+        Object metadata = cacheEntry.metadata;
+        if (metadata instanceof ResourceMetadata)
+            return ((ResourceMetadata) metadata);
+
+        ResourceAttributes attributes = cacheEntry.attributes;
+        String contentType = attributes.getMimeType();
+        if (contentType == null) {
+            contentType = getServletContext().getMimeType(cacheEntry.name);
+            attributes.setMimeType(contentType);
+        }
+
+        // Look for a precompressed variant
+        String gzipName = null;
+        if (gzip && !cacheEntry.name.endsWith(".gz")) {
+            CacheEntry gzipEntry = resources.lookupCache(cacheEntry.name + ".gz");
+            if (gzipEntry.exists && (gzipEntry.context == null)) {
+                gzipName = gzipEntry.name;
+            }
+        }
+
+        ResourceMetadata result = new ResourceMetadata
+            (contentType, getETag(attributes), attributes.getLastModifiedHttp(),
+             gzipName);
+        cacheEntry.metadata = result;
+        return (result);
+
+    }
+
+
+    /**
+     * Return the precompressed variant of the specified resource, or
+     * <code>null</code> if it does not exist anymore or is older than the
+     * resource itself.
+     *
+     * @param cacheEntry The resource information
+     * @param metadata The resource metadata
+     */
+    protected CacheEntry getGzipEntry(CacheEntry cacheEntry,
+                                      ResourceMetadata metadata) {
+
+        CacheEntry gzipEntry = resources.lookupCache(metadata.gzipName);
+        if ((!gzipEntry.exists) || (gzipEntry.context != null)
+            || (gzipEntry.resource == null)
+            || (gzipEntry.attributes.getLastModified()
+                < cacheEntry.attributes.getLastModified())) {
+            return (null);
+        }
+        return (gzipEntry);
+
+    }
+
+
+    /**
+     * Check if the client accepts the gzip content encoding.
+     *
+     * @param request The servlet request we are processing
+     */
+    protected boolean acceptsGzip(HttpServletRequest request) {
+
+        String headerValue = request.getHeader("Accept-Encoding");
+        if (headerValue == null)
+            return false;
+
+        StringTokenizer commaTokenizer = new StringTokenizer(headerValue, ",");
+        while (commaTokenizer.hasMoreTokens()) {
+            String currentToken = commaTokenizer.nextToken().trim();
+            String coding = currentToken;
+            String parameters = null;
+            int semicolon = currentToken.indexOf(';');
+            if (semicolon >= 0) {
+                coding = currentToken.substring(0, semicolon).trim();
+                parameters = currentToken.substring(semicolon + 1).trim();
+            }
+            if (!coding.equalsIgnoreCase("gzip"))
+                continue;
+            if ((parameters == null) || (!parameters.startsWith("q=")))
+                return true;
+            try {
+                return (Float.parseFloat(parameters.substring(2).trim()) > 0);
+            } catch (NumberFormatException e) {
+                return false;
+            }
+        }
+        return false;
+
+    }
+
+
+    /**
+     * Return the MIME header written before the specified range in a
+     * multipart response.
+     *
+     * @param range The range
+     * @param contentType Content type of the resource
+     */
+    protected String getPartHeader(Range range, String contentType) {
+
+        StringBuffer buf = new StringBuffer("\r\n--");
+        buf.append(mimeSeparation).append("\r\n");
+        if (contentType != null)
+            buf.append("Content-Type: ").append(contentType).append("\r\n");
+        buf.append("Content-Range: bytes ").append(range.start);
+        buf.append('-').append(range.end).append('/').append(range.length);
+        buf.append("\r\n\r\n");
+        return buf.toString();
+
+    }
+
+
+    /**
+     * Return the length of a multipart response containing the specified
+     * ranges.
+     *
+     * @param ranges The ranges the client wanted to retrieve
+     * @param contentType Content type of the resource
+     */
+    protected long getMultipartLength(ArrayList ranges, String contentType) {
+
+        long length = MULTIPART_TRAILER.length();
+        for (int i = 0; i < ranges.size(); i++) {
+            Range range = (Range) ranges.get(i);
+            length += getPartHeader(range, contentType).length();
+            length += range.end - range.start + 1;
+        }
+        return (length);
+
+    }
+
+
     /**
      * Check if the if-match condition is satisfied.
      *
@@ -1661,7 +2127,29 @@ public class DefaultServlet
                                  ResourceAttributes resourceAttributes)
         throws IOException {
 
-        String eTag = getETag(resourceAttributes);
+        return checkIfMatch(request, response, resourceAttributes,
+                            getETag(resourceAttributes));
+
+    }
+
+
+    /**
+     * Check if the if-match condition is satisfied.
+     *
+     * @param request The servlet request we are processing
+     * @param response The servlet response we are creating
+     * @param resourceAttributes The resource information
+     * @param eTag The ETag of the variant of the resource which is served
+     * @return boolean true if the resource meets the specified condition,
+     * and false if the condition is not satisfied, in which case request
+     * processing is stopped
+     */
+    protected boolean checkIfMatch(HttpServletRequest request,
+                                 HttpServletResponse response,
+                                 ResourceAttributes resourceAttributes,
+                                 String eTag)
+        throws IOException {
+
         String headerValue = request.getHeader("If-Match");
         if (headerValue != null) {
             if (headerValue.indexOf('*') == -1) {
@@ -1705,9 +2193,41 @@ public class DefaultServlet
                                          HttpServletResponse response,
                                          ResourceAttributes resourceAttributes)
         throws IOException {
+
+        return checkIfModifiedSince(request, response, resourceAttributes,
+                                    getETag(resourceAttributes));
+
+    }
+
+
+    /**
+     * Check if the if-modified-since condition is satisfied.
+     *
+     * @param request The servlet request we are processing
+     * @param response The servlet response we are creating
+     * @param resourceAttributes The resource information
+     * @param eTag The ETag of the variant of the resource which is served
+     * @return boolean true if the resource meets the specified condition,
+     * and false if the condition is not satisfied, in which case request
+     * processing is stopped
+     */
+    protected boolean checkIfModifiedSince(HttpServletRequest request,
+                                         HttpServletResponse response,
+                                         ResourceAttributes resourceAttributes,
+                                         String eTag)
+        throws IOException {
         try {
-            long headerValue = request.getDateHeader("If-Modified-Since");
+            long headerValue = -1L;
             long lastModified = resourceAttributes.getLastModified();
+            String header = request.getHeader("If-Modified-Since");
+            if (header != null) {
+                // Clients usually send back the Last-Modified value as is,
+                // in which case there is no need to parse the date
+                if (header.equals(resourceAttributes.getLastModifiedHttp()))
+                    headerValue = lastModified;
+                else
+                    headerValue = request.getDateHeader("If-Modified-Since");
+            }
             if (headerValue != -1) {
 
                 // If an If-None-Match header has been specified, if modified since
@@ -1717,7 +2237,7 @@ public class DefaultServlet
                     // The entity has not been modified since the date
                     // specified by the client. This is not an error case.
                     response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
-                    response.setHeader("ETag", getETag(resourceAttributes));
+                    response.setHeader("ETag", eTag);
 
                     return false;
                 }
@@ -1745,13 +2265,40 @@ public class DefaultServlet
                                      ResourceAttributes resourceAttributes)
         throws IOException {
 
-        String eTag = getETag(resourceAttributes);
+        return checkIfNoneMatch(request, response, resourceAttributes,
+                                getETag(resourceAttributes));
+
+    }
+
+
+    /**
+     * Check if the if-none-match condition is satisfied.
+     *
+     * @param request The servlet request we are processing
+     * @param response The servlet response we are creating
+     * @param resourceAttributes The resource information
+     * @param eTag The ETag of the variant of the resource which is served
+     * @return boolean true if the resource meets the specified condition,
+     * and false if the condition is not satisfied, in which case request
+     * processing is stopped
+     */
+    protected boolean checkIfNoneMatch(HttpServletRequest request,
+                                     HttpServletResponse response,
+                                     ResourceAttributes resourceAttributes,
+                                     String eTag)
+        throws IOException {
+
         String headerValue = request.getHeader("If-None-Match");
         if (headerValue != null) {
 
             boolean conditionSatisfied = false;
 
-            if (!headerValue.equals("*")) {
+            if (headerValue.equals(eTag)) {
+
+                // Single ETag, as sent back by most clients
+                conditionSatisfied = true;
+
+            } else if (!headerValue.equals("*")) {
 
                 StringTokenizer commaTokenizer =
                     new StringTokenizer(headerValue, ",");
@@ -1775,7 +2322,7 @@ public class DefaultServlet
                 if ( ("GET".equals(request.getMethod()))
                      || ("HEAD".equals(request.getMethod())) ) {
                     response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
-                    response.setHeader("ETag", getETag(resourceAttributes));
+                    response.setHeader("ETag", eTag);
 
                     return false;
                 } else {
@@ -1848,6 +2395,11 @@ public class DefaultServlet
                 ostream.write(buffer, 0, buffer.length);
                 return;
             }
+            ByteBuffer mappedContent = cacheEntry.resource.getMappedContent();
+            if (mappedContent != null) {
+                copy(mappedContent.duplicate(), ostream);
+                return;
+            }
             resourceInputStream = cacheEntry.resource.streamContent();
         } else {
             resourceInputStream = is;
@@ -1874,6 +2426,30 @@ public class DefaultServlet
     }
 
 
+    /**
+     * Copy the remaining content of the specified buffer, which is usually
+     * a memory mapped view of a file, to the specified output stream. Only
+     * a small transient array is used, so that the content is never
+     * retained on the heap.
+     *
+     * @param buffer The buffer to copy
+     * @param ostream The output stream to write to
+     *
+     * @exception IOException if an input/output error occurs
+     */
+    protected void copy(ByteBuffer buffer, ServletOutputStream ostream)
+        throws IOException {
+
+        byte b[] = new byte[Math.min(output, buffer.remaining())];
+        while (buffer.hasRemaining()) {
+            int len = Math.min(b.length, buffer.remaining());
+            buffer.get(b, 0, len);
+            ostream.write(b, 0, len);
+        }
+
+    }
+
+
     /**
      * Copy the contents of the specified input stream to the specified
      * output stream, and ensure that both streams are closed before returning
@@ -1938,6 +2514,22 @@ public class DefaultServlet
 
         IOException exception = null;
 
+        byte[] content = cacheEntry.resource.getContent();
+        if (content != null) {
+            ostream.write(content, (int) range.start,
+                          (int) (range.end - range.start + 1));
+            return;
+        }
+
+        ByteBuffer mappedContent = cacheEntry.resource.getMappedContent();
+        if (mappedContent != null) {
+            ByteBuffer buffer = mappedContent.duplicate();
+            buffer.position((int) range.start);
+            buffer.limit((int) range.end + 1);
+            copy(buffer, ostream);
+            return;
+        }
+
         InputStream resourceInputStream = cacheEntry.resource.streamContent();
         InputStream istream =
             new BufferedInputStream(resourceInputStream, input);
@@ -2018,39 +2610,75 @@ public class DefaultServlet
 
         IOException exception = null;
 
-        while ( (exception == null) && (ranges.hasNext()) ) {
+        byte[] content = cacheEntry.resource.getContent();
+        ByteBuffer mappedContent = cacheEntry.resource.getMappedContent();
+        InputStream istream = null;
+        long position = 0;
 
-            InputStream resourceInputStream = cacheEntry.resource.streamContent();
-            InputStream istream =
-                new BufferedInputStream(resourceInputStream, input);
+        while ( (exception == null) && (ranges.hasNext()) ) {
 
             Range currentRange = (Range) ranges.next();
 
             // Writing MIME header.
-            ostream.println();
-            ostream.println("--" + mimeSeparation);
-            if (contentType != null)
-                ostream.println("Content-Type: " + contentType);
-            ostream.println("Content-Range: bytes " + currentRange.start
-                           + "-" + currentRange.end + "/"
-                           + currentRange.length);
-            ostream.println();
+            ostream.write(getPartHeader(currentRange, contentType)
+                          .getBytes("ISO-8859-1"));
 
             // Printing content
-            exception = copyRange(istream, ostream, currentRange.start,
-                                  currentRange.end);
+            if (content != null) {
+                ostream.write(content, (int) currentRange.start,
+                              (int) (currentRange.end - currentRange.start + 1));
+            } else if (mappedContent != null) {
+                ByteBuffer buffer = mappedContent.duplicate();
+                buffer.position((int) currentRange.start);
+                buffer.limit((int) currentRange.end + 1);
+                copy(buffer, ostream);
+            } else {
+                // The same stream is used as long as the ranges are
+                // ascending
+                if ((istream != null) && (currentRange.start < position)) {
+                    try {
+                        istream.close();
+                    } catch (Exception e) {
+                        log("DefaultServlet.copy: exception closing input stream: "
+                            + e.getMessage());
+                    }
+                    istream = null;
+                }
+                if (istream == null) {
+                    istream = new BufferedInputStream
+                        (cacheEntry.resource.streamContent(), input);
+                    position = 0;
+                }
+                try {
+                    long skip = currentRange.start - position;
+                    while (skip > 0) {
+                        long n = istream.skip(skip);
+                        if (n <= 0)
+                            break;
+                        skip -= n;
+                    }
+                } catch (IOException e) {
+                    exception = e;
+                }
+                if (exception == null) {
+                    exception = copyRange(istream, ostream, 0,
+                                          currentRange.end - currentRange.start);
+                    position = currentRange.end + 1;
+                }
+            }
+
+        }
 
+        if (istream != null) {
             try {
                 istream.close();
             } catch (Exception e) {
                 log("DefaultServlet.copy: exception closing input stream: "
                     + e.getMessage());
             }
-
         }
 
-        ostream.println();
-        ostream.print("--" + mimeSeparation + "--");
+        ostream.write(MULTIPART_TRAILER.getBytes("ISO-8859-1"));
 
         // Rethrow any exception that has occurred
         if (exception != null) {
@@ -2215,24 +2843,22 @@ public class DefaultServlet
         IOException exception = null;
         long bytesToRead = end - start + 1;
 
+        // Never read past the end of the range, so that the stream may be
+        // used to copy a following range
         byte buffer[] = new byte[input];
         int len = buffer.length;
-        while ( (bytesToRead > 0) && (len >= buffer.length)) {
+        while (bytesToRead > 0) {
             try {
-                len = istream.read(buffer);
-                if (bytesToRead >= len) {
-                    ostream.write(buffer, 0, len);
-                    bytesToRead -= len;
-                } else {
-                    ostream.write(buffer, 0, (int) bytesToRead);
-                    bytesToRead = 0;
-                }
+                len = istream.read(buffer, 0,
+                                   (int) Math.min(buffer.length, bytesToRead));
+                if (len == -1)
+                    break;
+                ostream.write(buffer, 0, len);
+                bytesToRead -= len;
             } catch (IOException e) {
                 exception = e;
-                len = -1;
-            }
-            if (len < buffer.length)
                 break;
+            }
         }
 
         return exception;
@@ -2289,7 +2915,141 @@ public class DefaultServlet
 
 
 
-    // ------------------------------------------------------ Range Inner Class
+    // -------------------------------------------- ResourceMetadata Inner Class
+
+
+    /**
+     * Metadata of a resource, computed once per cache entry.
+     */
+    protected static class ResourceMetadata {
+
+        public final String contentType;
+        public final String eTag;
+        public final String lastModifiedHttp;
+        public final String gzipName;
+        public final String gzipETag;
+        public volatile ParsedRanges parsedRanges = null;
+
+        public ResourceMetadata(String contentType, String eTag,
+                                String lastModifiedHttp, String gzipName) {
+            this.contentType = contentType;
+            this.eTag = eTag;
+            this.lastModifiedHttp = lastModifiedHttp;
+            this.gzipName = gzipName;
+            if (gzipName == null) {
+                this.gzipETag = null;
+            } else if (eTag.endsWith("\"")) {
+                // The precompressed variant is a different entity
+                this.gzipETag = eTag.substring(0, eTag.length() - 1)
+                    + "-gzip\"";
+            } else {
+                this.gzipETag = eTag + "-gzip";
+            }
+        }
+
+    }
+
+
+    // -------------------------------------------- DirectoryListing Inner Class
+
+
+    /**
+     * A rendered directory listing, kept with the cache entry of the
+     * directory.
+     */
+    protected static class DirectoryListing {
+
+        public final String contextPath;
+        public final long lastModified;
+        public final long expires;
+        public final byte[] content;
+
+        public DirectoryListing(String contextPath, long lastModified,
+                                long expires, byte[] content) {
+            this.contextPath = contextPath;
+            this.lastModified = lastModified;
+            this.expires = expires;
+            this.content = content;
+        }
+
+    }
+
+
+    // ----------------------------------------- ListingOutputStream Inner Class
+
+
+    /**
+     * Stream writing a directory listing through to the response, and
+     * keeping a copy of it as long as it is not larger than the specified
+     * size.
+     */
+    protected static class ListingOutputStream extends OutputStream {
+
+        protected OutputStream ostream;
+        protected ByteArrayOutputStream content = null;
+        protected int maxSize;
+
+        public ListingOutputStream(OutputStream ostream, int maxSize) {
+            this.ostream = ostream;
+            this.maxSize = maxSize;
+            if (maxSize > 0)
+                content = new ByteArrayOutputStream();
+        }
+
+        public void write(int b) throws IOException {
+            ostream.write(b);
+            if (content != null) {
+                if (content.size() >= maxSize)
+                    content = null;
+                else
+                    content.write(b);
+            }
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            ostream.write(b, off, len);
+            if (content != null) {
+                if (content.size() + len > maxSize)
+                    content = null;
+                else
+                    content.write(b, off, len);
+            }
+        }
+
+        /**
+         * Return the copy of the listing, or <code>null</code> if it was
+         * too large.
+         */
+        public byte[] getContent() {
+            if (content == null)
+                return (null);
+            return (content.toByteArray());
+        }
+
+    }
+
+
+    // ------------------------------------------------ ParsedRanges Inner Class
+
+
+    /**
+     * The ranges parsed from a range specifier, which may be used by
+     * several requests at once and are therefore read only.
+     */
+    protected static class ParsedRanges {
+
+        public final String header;
+        public final List ranges;
+
+        public ParsedRanges(String header, ArrayList ranges) {
+            this.header = header;
+            this.ranges = Collections.unmodifiableList(new ArrayList(ranges));
+        }
+
+    }
+
+
+    // ------------------------------------------------------- Range Inner Class
 
 
     protected class Range {
@@ -315,16 +315,19 @@ public class WebdavServlet  extends DefaultServlet {
      * @param request The servlet request we are processing
      * @param response The servlet response we are creating
      * @param resourceAttributes The resource information
+     * @param eTag The ETag of the variant of the resource which is served
      * @return boolean true if the resource meets all the specified conditions,
      * and false if any of the conditions is not satisfied, in which case
      * request processing is stopped
      */
     protected boolean checkIfHeaders(HttpServletRequest request,
                                      HttpServletResponse response,
-                                     ResourceAttributes resourceAttributes)
+                                     ResourceAttributes resourceAttributes,
+                                     String eTag)
         throws IOException {
 
-        if (!super.checkIfHeaders(request, response, resourceAttributes))
+        if (!super.checkIfHeaders(request, response, resourceAttributes,
+                                  eTag))
             return false;
 
         // TODO : Checking the WebDAV If header
@@ -0,0 +1,432 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apache.catalina.session;
+
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.ObjectStreamConstants;
+import java.io.ObjectStreamField;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+
+
+/**
+ * Implementation of <b>SessionSerializer</b> that writes compact class
+ * descriptors.  Instead of the full descriptor produced by Java
+ * serialization, a class is written as a one byte index for a set of
+ * common JDK types (boxed primitives, collections, arrays, ...), or as
+ * its name followed by a fingerprint of its serial version UID and
+ * serializable fields.  When reading, the descriptors of the local classes
+ * are used, and are cached per web application class loader so that the
+ * class loader is only consulted once per class.
+ * <p>
+ * Streams written with plain Java serialization (such as session files
+ * written by previous versions) are detected and read transparently, but
+ * previous versions cannot read compact streams, so this serializer is not
+ * the default.
+ *
+ * @version $Id$
+ */
+
+public class CompactSessionSerializer
+    extends StandardSessionSerializer {
+
+
+    // -------------------------------------------------------------- Constants
+
+
+    /**
+     * Magic number written at the start of compact streams.
+     */
+    protected static final short COMPACT_MAGIC = (short) 0x5E55;
+
+
+    /**
+     * Version of the compact stream format.
+     */
+    protected static final short COMPACT_VERSION = 1;
+
+
+    /**
+     * Descriptor type: one of the common classes, followed by its index.
+     */
+    protected static final int TYPE_COMMON = 0;
+
+
+    /**
+     * Descriptor type: class name, serial version UID and field
+     * fingerprint.
+     */
+    protected static final int TYPE_NAME = 1;
+
+
+    /**
+     * Descriptor type: full Java serialization class descriptor.
+     */
+    protected static final int TYPE_FULL = 2;
+
+
+    /**
+     * The common classes which are encoded as a single byte.  New entries
+     * must only ever be appended, as the index is part of the format.
+     */
+    protected static final String[] COMMON_CLASSES = {
+        "java.lang.Number",
+        "java.lang.Boolean",
+        "java.lang.Byte",
+        "java.lang.Character",
+        "java.lang.Short",
+        "java.lang.Integer",
+        "java.lang.Long",
+        "java.lang.Float",
+        "java.lang.Double",
+        "java.lang.String",
+        "java.math.BigInteger",
+        "java.math.BigDecimal",
+        "java.util.Date",
+        "java.util.Locale",
+        "java.util.ArrayList",
+        "java.util.LinkedList",
+        "java.util.Vector",
+        "java.util.HashMap",
+        "java.util.LinkedHashMap",
+        "java.util.TreeMap",
+        "java.util.Hashtable",
+        "java.util.HashSet",
+        "java.util.LinkedHashSet",
+        "java.util.TreeSet",
+        "java.sql.Timestamp",
+        "[Ljava.lang.Object;",
+        "[Ljava.lang.String;",
+        "[Z",
+        "[B",
+        "[C",
+        "[S",
+        "[I",
+        "[J",
+        "[F",
+        "[D"
+    };
+
+
+    /**
+     * Descriptors of the common classes, in the order of
+     * <code>COMMON_CLASSES</code>.
+     */
+    protected static final ObjectStreamClass[] commonDescriptors =
+        new ObjectStreamClass[COMMON_CLASSES.length];
+
+
+    /**
+     * Index of the common classes, keyed by class name.
+     */
+    protected static final HashMap commonIndex = new HashMap();
+
+
+    static {
+        for (int i = 0; i < COMMON_CLASSES.length; i++) {
+            try {
+                commonDescriptors[i] = ObjectStreamClass.lookup
+                    (Class.forName(COMMON_CLASSES[i]));
+                commonIndex.put(COMMON_CLASSES[i], new Integer(i));
+            } catch (ClassNotFoundException e) {
+                // Not available on this platform, always written by name
+            }
+        }
+    }
+
+
+    // ----------------------------------------------------- Instance Variables
+
+
+    /**
+     * The class loader for which the descriptors are cached.
+     */
+    protected WeakReference cacheLoader = null;
+
+
+    /**
+     * The cached local class descriptors, keyed by class name.  The
+     * descriptors are weakly referenced, so that the cache does not prevent
+     * the classes of an undeployed web application from being unloaded.
+     */
+    protected HashMap descriptors = new HashMap();
+
+
+    // --------------------------------------------------------- Public Methods
+
+
+    /**
+     * Return an <code>ObjectOutputStream</code> that writes session data
+     * to the specified stream, using compact class descriptors.
+     *
+     * @param stream The stream that will receive the serialized data
+     *
+     * @exception IOException if an input/output error occurs
+     */
+    public ObjectOutputStream getObjectOutputStream(OutputStream stream)
+        throws IOException {
+
+        return (new CompactObjectOutputStream(stream));
+
+    }
+
+
+    /**
+     * Return an <code>ObjectInputStream</code> that reads session data
+     * from the specified stream, resolving classes with the specified
+     * class loader.  Both compact streams and plain Java serialization
+     * streams are accepted.
+     *
+     * @param stream The stream containing the serialized data
+     * @param classLoader The class loader of the web application, or
+     *  <code>null</code> to use the default class resolution
+     *
+     * @exception IOException if an input/output error occurs
+     */
+    public ObjectInputStream getObjectInputStream(InputStream stream,
+                                                  ClassLoader classLoader)
+        throws IOException {
+
+        if (!stream.markSupported())
+            stream = new BufferedInputStream(stream);
+        stream.mark(2);
+        int b1 = stream.read();
+        int b2 = stream.read();
+        stream.reset();
+        if ((b1 >= 0) && (b2 >= 0) &&
+            ((short) ((b1 << 8) | b2) == ObjectStreamConstants.STREAM_MAGIC))
+            return (super.getObjectInputStream(stream, classLoader));
+        else
+            return (new CompactObjectInputStream(stream, classLoader));
+
+    }
+
+
+    // ------------------------------------------------------ Protected Methods
+
+
+    /**
+     * Return the local descriptor of the specified class, as resolved by
+     * the specified class loader.
+     *
+     * @param name Name of the class
+     * @param classLoader The class loader used to resolve the class
+     *
+     * @exception ClassNotFoundException if the class cannot be found
+     * @exception InvalidClassException if the class is not serializable
+     */
+    protected ObjectStreamClass lookup(String name, ClassLoader classLoader)
+        throws ClassNotFoundException, InvalidClassException {
+
+        ObjectStreamClass desc = null;
+        synchronized (this) {
+            if ((cacheLoader == null) || (cacheLoader.get() != classLoader)) {
+                descriptors.clear();
+                cacheLoader = new WeakReference(classLoader);
+            }
+            WeakReference ref = (WeakReference) descriptors.get(name);
+            if (ref != null)
+                desc = (ObjectStreamClass) ref.get();
+        }
+        if (desc != null)
+            return (desc);
+
+        Class clazz = null;
+        if (classLoader != null) {
+            clazz = Class.forName(name, false, classLoader);
+        } else {
+            clazz = Class.forName(name, false, getClass().getClassLoader());
+        }
+        desc = ObjectStreamClass.lookup(clazz);
+        if (desc == null)
+            throw new InvalidClassException(name, "Not serializable");
+
+        synchronized (this) {
+            if ((cacheLoader != null) && (cacheLoader.get() == classLoader))
+                descriptors.put(name, new WeakReference(desc));
+        }
+        return (desc);
+
+    }
+
+
+    /**
+     * Return a fingerprint of the serializable fields of the specified
+     * class descriptor, used to detect incompatible local classes.
+     *
+     * @param desc The class descriptor
+     */
+    protected static int fingerprint(ObjectStreamClass desc) {
+
+        int hash = 0;
+        ObjectStreamField[] fields = desc.getFields();
+        for (int i = 0; i < fields.length; i++) {
+            hash = 31 * hash + fields[i].getName().hashCode();
+            hash = 31 * hash + fields[i].getTypeCode();
+            if (fields[i].getTypeString() != null)
+                hash = 31 * hash + fields[i].getTypeString().hashCode();
+        }
+        return (hash);
+
+    }
+
+
+    // ---------------------------------------- CompactObjectOutputStream Class
+
+
+    /**
+     * <code>ObjectOutputStream</code> writing compact class descriptors.
+     */
+    protected static class CompactObjectOutputStream
+        extends ObjectOutputStream {
+
+        public CompactObjectOutputStream(OutputStream stream)
+            throws IOException {
+            super(stream);
+        }
+
+        protected void writeStreamHeader() throws IOException {
+            writeShort(COMPACT_MAGIC);
+            writeShort(COMPACT_VERSION);
+        }
+
+        protected void writeClassDescriptor(ObjectStreamClass desc)
+            throws IOException {
+            Integer index = (Integer) commonIndex.get(desc.getName());
+            if (index != null) {
+                writeByte(TYPE_COMMON);
+                writeByte(index.intValue());
+            } else if ((desc.forClass() != null)
+                       && (ObjectStreamClass.lookup(desc.forClass()) != null)) {
+                writeByte(TYPE_NAME);
+                writeUTF(desc.getName());
+                writeLong(desc.getSerialVersionUID());
+                writeInt(fingerprint(desc));
+            } else {
+                writeByte(TYPE_FULL);
+                super.writeClassDescriptor(desc);
+            }
+        }
+
+    }
+
+
+    // ----------------------------------------- CompactObjectInputStream Class
+
+
+    /**
+     * <code>ObjectInputStream</code> reading compact class descriptors, and
+     * resolving classes through the web application class loader.
+     */
+    protected class CompactObjectInputStream
+        extends ObjectInputStream {
+
+        protected ClassLoader classLoader = null;
+
+        public CompactObjectInputStream(InputStream stream,
+                                        ClassLoader classLoader)
+            throws IOException {
+            super(stream);
+            this.classLoader = classLoader;
+        }
+
+        protected void readStreamHeader() throws IOException {
+            short magic = readShort();
+            short version = readShort();
+            if ((magic != COMPACT_MAGIC) || (version != COMPACT_VERSION))
+                throw new StreamCorruptedException
+                    ("Invalid stream header: " + Integer.toHexString(magic)
+                     + " " + Integer.toHexString(version));
+        }
+
+        protected ObjectStreamClass readClassDescriptor()
+            throws IOException, ClassNotFoundException {
+            int type = readByte();
+            if (type == TYPE_COMMON) {
+                int index = readUnsignedByte();
+                if ((index >= commonDescriptors.length)
+                    || (commonDescriptors[index] == null))
+                    throw new StreamCorruptedException
+                        ("Invalid class index: " + index);
+                return (commonDescriptors[index]);
+            } else if (type == TYPE_NAME) {
+                String name = readUTF();
+                long suid = readLong();
+                int fingerprint = readInt();
+                ObjectStreamClass desc = lookup(name, classLoader);
+                if ((desc.getSerialVersionUID() != suid)
+                    || (fingerprint(desc) != fingerprint))
+                    throw new InvalidClassException
+                        (name, "Incompatible local class");
+                return (desc);
+            } else if (type == TYPE_FULL) {
+                return (super.readClassDescriptor());
+            } else {
+                throw new StreamCorruptedException
+                    ("Invalid class descriptor type: " + type);
+            }
+        }
+
+        protected Class resolveClass(ObjectStreamClass classDesc)
+            throws ClassNotFoundException, IOException {
+            if (classDesc.forClass() != null)
+                return (classDesc.forClass());
+            if (classLoader == null)
+                return (super.resolveClass(classDesc));
+            try {
+                return (Class.forName(classDesc.getName(), false,
+                                      classLoader));
+            } catch (ClassNotFoundException e) {
+                try {
+                    // Try also the superclass because of primitive types
+                    return (super.resolveClass(classDesc));
+                } catch (ClassNotFoundException e2) {
+                    throw e;
+                }
+            }
+        }
+
+        protected Class resolveProxyClass(String[] interfaces)
+            throws IOException, ClassNotFoundException {
+            if (classLoader == null)
+                return (super.resolveProxyClass(interfaces));
+            Class[] cinterfaces = new Class[interfaces.length];
+            for (int i = 0; i < interfaces.length; i++)
+                cinterfaces[i] = classLoader.loadClass(interfaces[i]);
+            try {
+                return (Proxy.getProxyClass(classLoader, cinterfaces));
+            } catch (IllegalArgumentException e) {
+                throw new ClassNotFoundException(null, e);
+            }
+        }
+
+    }
+
+
+}
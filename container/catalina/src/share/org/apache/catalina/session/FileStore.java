@@ -38,7 +38,6 @@ import org.apache.catalina.Globals;
 import org.apache.catalina.Loader;
 import org.apache.catalina.Session;
 import org.apache.catalina.Store;
-import org.apache.catalina.util.CustomObjectInputStream;
 
 
 /**
@@ -270,10 +269,7 @@ public final class FileStore
                 loader = container.getLoader();
             if (loader != null)
                 classLoader = loader.getClassLoader();
-            if (classLoader != null)
-                ois = new CustomObjectInputStream(bis, classLoader);
-            else
-                ois = new ObjectInputStream(bis);
+            ois = getSerializer().getObjectInputStream(bis, classLoader);
         } catch (FileNotFoundException e) {
             if (manager.getContainer().getLogger().isDebugEnabled())
                 manager.getContainer().getLogger().debug("No persisted data file found");
@@ -356,7 +352,8 @@ public final class FileStore
         ObjectOutputStream oos = null;
         try {
             fos = new FileOutputStream(file.getAbsolutePath());
-            oos = new ObjectOutputStream(new BufferedOutputStream(fos));
+            oos = getSerializer().getObjectOutputStream
+                (new BufferedOutputStream(fos));
         } catch (IOException e) {
             if (oos != null) {
                 try {
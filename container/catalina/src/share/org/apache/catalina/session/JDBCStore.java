@@ -22,7 +22,6 @@ import org.apache.catalina.LifecycleException;
 import org.apache.catalina.Loader;
 import org.apache.catalina.Session;
 import org.apache.catalina.Store;
-import org.apache.catalina.util.CustomObjectInputStream;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
@@ -597,12 +596,8 @@ public class JDBCStore
                         if (loader != null) {
                             classLoader = loader.getClassLoader();
                         }
-                        if (classLoader != null) {
-                            ois = new CustomObjectInputStream(bis,
-                                    classLoader);
-                        } else {
-                            ois = new ObjectInputStream(bis);
-                        }
+                        ois = getSerializer().getObjectInputStream(bis,
+                                classLoader);
 
                         if (manager.getContainer().getLogger().isDebugEnabled()) {
                             manager.getContainer().getLogger().debug(sm.getString(getStoreName() + ".loading",
@@ -759,7 +754,8 @@ public class JDBCStore
 
                 try {
                     bos = new ByteArrayOutputStream();
-                    oos = new ObjectOutputStream(new BufferedOutputStream(bos));
+                    oos = getSerializer().getObjectOutputStream
+                        (new BufferedOutputStream(bos));
 
                     ((StandardSession) session).writeObjectData(oos);
                     oos.close();
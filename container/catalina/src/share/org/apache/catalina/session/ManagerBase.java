@@ -163,6 +163,20 @@ public abstract class ManagerBase implements Manager, MBeanRegistration {
     protected String randomClass = "java.security.SecureRandom";
 
 
+    /**
+     * The serializer used to write and read the serialized form of the
+     * sessions of this Manager.
+     */
+    protected SessionSerializer serializer = null;
+
+
+    /**
+     * The Java class name of the session serializer to be used.
+     */
+    protected String serializerClass =
+        "org.apache.catalina.session.StandardSessionSerializer";
+
+
     /**
      * The longest time (in seconds) that an expired session had been alive.
      */
@@ -636,6 +650,55 @@ public abstract class ManagerBase implements Manager, MBeanRegistration {
     }
 
 
+    /**
+     * Return the serializer used to write and read the serialized form of
+     * the sessions of this Manager.  If there is no such serializer
+     * currently defined, construct a new one.
+     */
+    public SessionSerializer getSerializer() {
+        if (this.serializer == null) {
+            try {
+                Class clazz = Class.forName(serializerClass);
+                this.serializer = (SessionSerializer) clazz.newInstance();
+            } catch (Exception e) {
+                // Fall back to plain Java serialization
+                log.error(sm.getString("managerBase.serializer",
+                                       serializerClass), e);
+                this.serializer = new StandardSessionSerializer();
+            }
+        }
+
+        return (this.serializer);
+
+    }
+
+
+    /**
+     * Return the session serializer class name.
+     */
+    public String getSerializerClass() {
+
+        return (this.serializerClass);
+
+    }
+
+
+    /**
+     * Set the session serializer class name.
+     *
+     * @param serializerClass The new session serializer class name
+     */
+    public void setSerializerClass(String serializerClass) {
+
+        String oldSerializerClass = this.serializerClass;
+        this.serializerClass = serializerClass;
+        this.serializer = null;
+        support.firePropertyChange("serializerClass", oldSerializerClass,
+                                   this.serializerClass);
+
+    }
+
+
     /**
      * Gets the number of sessions that have expired.
      *
@@ -0,0 +1,77 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apache.catalina.session;
+
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+
+
+/**
+ * A <b>SessionSerializer</b> creates the object streams used to write and
+ * read the serialized form of sessions, whether they are persisted by a
+ * <code>Manager</code> on shutdown, swapped out to a <code>Store</code>,
+ * or replicated to other cluster members.  The session state itself is
+ * still written by <code>StandardSession.writeObjectData()</code>; the
+ * serializer only controls the encoding of the underlying stream.
+ * <p>
+ * Implementations must be thread safe, as a single instance is shared by
+ * all the sessions of a Manager.
+ *
+ * @version $Id$
+ */
+
+public interface SessionSerializer {
+
+
+    // --------------------------------------------------------- Public Methods
+
+
+    /**
+     * Return an <code>ObjectOutputStream</code> that writes session data
+     * to the specified stream.
+     *
+     * @param stream The stream that will receive the serialized data
+     *
+     * @exception IOException if an input/output error occurs
+     */
+    public ObjectOutputStream getObjectOutputStream(OutputStream stream)
+        throws IOException;
+
+
+    /**
+     * Return an <code>ObjectInputStream</code> that reads session data
+     * from the specified stream, resolving classes with the specified
+     * class loader.
+     *
+     * @param stream The stream containing the serialized data
+     * @param classLoader The class loader of the web application, or
+     *  <code>null</code> to use the default class resolution
+     *
+     * @exception IOException if an input/output error occurs
+     */
+    public ObjectInputStream getObjectInputStream(InputStream stream,
+                                                  ClassLoader classLoader)
+        throws IOException;
+
+
+}
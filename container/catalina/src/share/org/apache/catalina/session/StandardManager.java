@@ -34,6 +34,7 @@ import java.security.PrivilegedActionException;
 import java.security.PrivilegedExceptionAction;
 import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 import javax.servlet.ServletContext;
 import org.apache.catalina.Container;
 import org.apache.catalina.Context;
@@ -43,7 +44,6 @@ import org.apache.catalina.LifecycleException;
 import org.apache.catalina.LifecycleListener;
 import org.apache.catalina.Loader;
 import org.apache.catalina.Session;
-import org.apache.catalina.util.CustomObjectInputStream;
 import org.apache.catalina.util.LifecycleSupport;
 
 import org.apache.catalina.security.SecurityUtil;
@@ -93,6 +93,44 @@ public class StandardManager
     }
 
 
+    /**
+     * Loads or saves the sessions of one partition, on its own thread.  The
+     * session activation listeners belong to the web application, and need
+     * its class loader and naming context, so they are not called by the
+     * task: the loaded sessions are activated, and the saved sessions are
+     * passivated, by the calling thread.
+     */
+    protected class PartitionTask
+        implements Runnable {
+
+        private File file;
+        private List list;
+        private List loaded = new ArrayList();
+        private Exception exception = null;
+
+        PartitionTask(File file, List list) {
+            this.file = file;
+            this.list = list;
+        }
+
+        public void run() {
+            try {
+                if (list == null)
+                    loadSessions(file, loaded);
+                else
+                    unloadSessions(file, list, false);
+            } catch (Exception e) {
+                exception = e;
+            } catch (Throwable t) {
+                IOException e = new IOException(t.toString());
+                e.initCause(t);
+                exception = e;
+            }
+        }
+
+    }
+
+
     // ----------------------------------------------------- Instance Variables
 
 
@@ -131,6 +169,15 @@ public class StandardManager
     protected String pathname = "SESSIONS.ser";
 
 
+    /**
+     * The number of threads used to save and load the sessions.  If more
+     * than one, the sessions are split into partitions saved in separate
+     * files, named after <code>pathname</code> with the partition number
+     * appended.
+     */
+    protected int persistenceThreads = 1;
+
+
     /**
      * Has this component been started yet?
      */
@@ -267,6 +314,32 @@ public class StandardManager
     }
 
 
+    /**
+     * Return the number of threads used to save and load the sessions.
+     */
+    public int getPersistenceThreads() {
+
+        return (this.persistenceThreads);
+
+    }
+
+
+    /**
+     * Set the number of threads used to save and load the sessions.
+     *
+     * @param persistenceThreads The new number of threads
+     */
+    public void setPersistenceThreads(int persistenceThreads) {
+
+        int oldPersistenceThreads = this.persistenceThreads;
+        this.persistenceThreads = persistenceThreads;
+        support.firePropertyChange("persistenceThreads",
+                                   new Integer(oldPersistenceThreads),
+                                   new Integer(this.persistenceThreads));
+
+    }
+
+
     // --------------------------------------------------------- Public Methods
 
     /**
@@ -343,8 +416,76 @@ public class StandardManager
         File file = file();
         if (file == null)
             return;
+
+        // Sessions saved in a single file
+        if (file.exists())
+            loadSessions(file);
+
+        // Sessions saved in one file per partition
+        File[] partitions = partitionFiles(file);
+        if (partitions.length == 1) {
+            loadSessions(partitions[0]);
+        } else if (partitions.length > 1) {
+            PartitionTask[] tasks = new PartitionTask[partitions.length];
+            for (int i = 0; i < partitions.length; i++)
+                tasks[i] = new PartitionTask(partitions[i], null);
+            Exception exception = runPartitionTasks(tasks);
+            for (int i = 0; i < tasks.length; i++) {
+                Iterator loaded = tasks[i].loaded.iterator();
+                while (loaded.hasNext())
+                    ((StandardSession) loaded.next()).activate();
+            }
+            if (exception instanceof ClassNotFoundException)
+                throw (ClassNotFoundException) exception;
+            else if (exception instanceof IOException)
+                throw (IOException) exception;
+            else if (exception instanceof RuntimeException)
+                throw (RuntimeException) exception;
+        }
+
+        if (log.isDebugEnabled())
+            log.debug("Finish: Loading persisted sessions");
+    }
+
+
+    /**
+     * Load the sessions saved in the specified file, and delete the file.
+     * Each session is made available as soon as it has been read.
+     *
+     * @param file The file containing the sessions
+     *
+     * @exception ClassNotFoundException if a serialized class cannot be
+     *  found during the reload
+     * @exception IOException if an input/output error occurs
+     */
+    protected void loadSessions(File file)
+        throws ClassNotFoundException, IOException {
+
+        loadSessions(file, null);
+
+    }
+
+
+    /**
+     * Load the sessions saved in the specified file, and delete the file.
+     * Each session is made available as soon as it has been read, and is
+     * either activated, or added to the specified list, so that it can be
+     * activated by the caller.
+     *
+     * @param file The file containing the sessions
+     * @param loaded The list the loaded sessions are added to, or
+     *  <code>null</code> to activate them
+     *
+     * @exception ClassNotFoundException if a serialized class cannot be
+     *  found during the reload
+     * @exception IOException if an input/output error occurs
+     */
+    protected void loadSessions(File file, List loaded)
+        throws ClassNotFoundException, IOException {
+
         if (log.isDebugEnabled())
-            log.debug(sm.getString("standardManager.loading", pathname));
+            log.debug(sm.getString("standardManager.loading",
+                                   file.getAbsolutePath()));
         FileInputStream fis = null;
         ObjectInputStream ois = null;
         Loader loader = null;
@@ -356,15 +497,10 @@ public class StandardManager
                 loader = container.getLoader();
             if (loader != null)
                 classLoader = loader.getClassLoader();
-            if (classLoader != null) {
-                if (log.isDebugEnabled())
-                    log.debug("Creating custom object input stream for class loader ");
-                ois = new CustomObjectInputStream(bis, classLoader);
-            } else {
-                if (log.isDebugEnabled())
-                    log.debug("Creating standard object input stream");
-                ois = new ObjectInputStream(bis);
-            }
+            if (log.isDebugEnabled())
+                log.debug("Creating object input stream with serializer "
+                          + serializerClass);
+            ois = getSerializer().getObjectInputStream(bis, classLoader);
         } catch (FileNotFoundException e) {
             if (log.isDebugEnabled())
                 log.debug("No persisted data file found");
@@ -378,64 +514,54 @@ public class StandardManager
                     ;
                 }
                 ois = null;
+            } else if (fis != null) {
+                try {
+                    fis.close();
+                } catch (IOException f) {
+                    ;
+                }
             }
             throw e;
         }
 
         // Load the previously unloaded active sessions
-        synchronized (sessions) {
-            try {
-                Integer count = (Integer) ois.readObject();
-                int n = count.intValue();
-                if (log.isDebugEnabled())
-                    log.debug("Loading " + n + " persisted sessions");
-                for (int i = 0; i < n; i++) {
-                    StandardSession session = getNewSession();
-                    session.readObjectData(ois);
-                    session.setManager(this);
+        try {
+            Integer count = (Integer) ois.readObject();
+            int n = count.intValue();
+            if (log.isDebugEnabled())
+                log.debug("Loading " + n + " persisted sessions");
+            for (int i = 0; i < n; i++) {
+                StandardSession session = getNewSession();
+                session.readObjectData(ois);
+                session.setManager(this);
+                synchronized (sessions) {
                     sessions.put(session.getIdInternal(), session);
-                    session.activate();
                     sessionCounter++;
                 }
-            } catch (ClassNotFoundException e) {
-                log.error(sm.getString("standardManager.loading.cnfe", e), e);
-                if (ois != null) {
-                    try {
-                        ois.close();
-                    } catch (IOException f) {
-                        ;
-                    }
-                    ois = null;
-                }
-                throw e;
-            } catch (IOException e) {
-                log.error(sm.getString("standardManager.loading.ioe", e), e);
-                if (ois != null) {
-                    try {
-                        ois.close();
-                    } catch (IOException f) {
-                        ;
-                    }
-                    ois = null;
-                }
-                throw e;
-            } finally {
-                // Close the input stream
-                try {
-                    if (ois != null)
-                        ois.close();
-                } catch (IOException f) {
-                    // ignored
-                }
-
-                // Delete the persistent storage file
-                if (file != null && file.exists() )
-                    file.delete();
+                if (loaded == null)
+                    session.activate();
+                else
+                    loaded.add(session);
             }
+        } catch (ClassNotFoundException e) {
+            log.error(sm.getString("standardManager.loading.cnfe", e), e);
+            throw e;
+        } catch (IOException e) {
+            log.error(sm.getString("standardManager.loading.ioe", e), e);
+            throw e;
+        } finally {
+            // Close the input stream
+            try {
+                ois.close();
+            } catch (IOException f) {
+                // ignored
+            }
+
+            // Delete the persistent storage file
+            if (file.exists())
+                file.delete();
         }
 
-        if (log.isDebugEnabled())
-            log.debug("Finish: Loading persisted sessions");
     }
 
 
@@ -481,70 +607,42 @@ public class StandardManager
         File file = file();
         if (file == null)
             return;
-        if (log.isDebugEnabled())
-            log.debug(sm.getString("standardManager.unloading", pathname));
-        FileOutputStream fos = null;
-        ObjectOutputStream oos = null;
-        try {
-            fos = new FileOutputStream(file.getAbsolutePath());
-            oos = new ObjectOutputStream(new BufferedOutputStream(fos));
-        } catch (IOException e) {
-            log.error(sm.getString("standardManager.unloading.ioe", e), e);
-            if (oos != null) {
-                try {
-                    oos.close();
-                } catch (IOException f) {
-                    ;
-                }
-                oos = null;
-            }
-            throw e;
-        }
 
-        // Write the number of active sessions, followed by the details
+        // Remove any files left over by a previous unload
+        File[] partitions = partitionFiles(file);
+        for (int i = 0; i < partitions.length; i++)
+            partitions[i].delete();
+
         ArrayList list = new ArrayList();
         synchronized (sessions) {
-            if (log.isDebugEnabled())
-                log.debug("Unloading " + sessions.size() + " sessions");
-            try {
-                oos.writeObject(new Integer(sessions.size()));
-                Iterator elements = sessions.values().iterator();
-                while (elements.hasNext()) {
-                    StandardSession session =
-                        (StandardSession) elements.next();
-                    list.add(session);
-                    ((StandardSession) session).passivate();
-                    session.writeObjectData(oos);
-                }
-            } catch (IOException e) {
-                log.error(sm.getString("standardManager.unloading.ioe", e), e);
-                if (oos != null) {
-                    try {
-                        oos.close();
-                    } catch (IOException f) {
-                        ;
-                    }
-                    oos = null;
-                }
-                throw e;
-            }
+            list.addAll(sessions.values());
         }
+        if (log.isDebugEnabled())
+            log.debug("Unloading " + list.size() + " sessions");
 
-        // Flush and close the output stream
-        try {
-            oos.flush();
-            oos.close();
-            oos = null;
-        } catch (IOException e) {
-            if (oos != null) {
-                try {
-                    oos.close();
-                } catch (IOException f) {
-                    ;
-                }
-                oos = null;
-            }
-            throw e;
+        // Write the sessions, in a single file or in one file per partition
+        int n = Math.min(persistenceThreads, list.size());
+        if (n <= 1) {
+            unloadSessions(file, list);
+        } else {
+            if (file.exists())
+                file.delete();
+            ArrayList[] lists = new ArrayList[n];
+            for (int i = 0; i < n; i++)
+                lists[i] = new ArrayList();
+            for (int i = 0; i < list.size(); i++)
+                lists[i % n].add(list.get(i));
+            Iterator passivates = list.iterator();
+            while (passivates.hasNext())
+                ((StandardSession) passivates.next()).passivate();
+            PartitionTask[] tasks = new PartitionTask[n];
+            for (int i = 0; i < n; i++)
+                tasks[i] = new PartitionTask(partitionFile(file, i), lists[i]);
+            Exception exception = runPartitionTasks(tasks);
+            if (exception instanceof IOException)
+                throw (IOException) exception;
+            else if (exception instanceof RuntimeException)
+                throw (RuntimeException) exception;
         }
 
         // Expire all the sessions we just wrote
@@ -568,6 +666,81 @@ public class StandardManager
     }
 
 
+    /**
+     * Save the specified sessions to the specified file.
+     *
+     * @param file The file to which the sessions will be written
+     * @param list The sessions to save
+     *
+     * @exception IOException if an input/output error occurs
+     */
+    protected void unloadSessions(File file, List list) throws IOException {
+
+        unloadSessions(file, list, true);
+
+    }
+
+
+    /**
+     * Save the specified sessions to the specified file.
+     *
+     * @param file The file to which the sessions will be written
+     * @param list The sessions to save
+     * @param passivate Should the sessions be passivated before being
+     *  written, or have they already been passivated by the caller?
+     *
+     * @exception IOException if an input/output error occurs
+     */
+    protected void unloadSessions(File file, List list, boolean passivate)
+        throws IOException {
+
+        if (log.isDebugEnabled())
+            log.debug(sm.getString("standardManager.unloading",
+                                   file.getAbsolutePath()));
+        FileOutputStream fos = null;
+        ObjectOutputStream oos = null;
+        try {
+            fos = new FileOutputStream(file.getAbsolutePath());
+            oos = getSerializer().getObjectOutputStream
+                (new BufferedOutputStream(fos));
+        } catch (IOException e) {
+            log.error(sm.getString("standardManager.unloading.ioe", e), e);
+            if (fos != null) {
+                try {
+                    fos.close();
+                } catch (IOException f) {
+                    ;
+                }
+            }
+            throw e;
+        }
+
+        // Write the number of sessions, followed by the details
+        try {
+            oos.writeObject(new Integer(list.size()));
+            Iterator elements = list.iterator();
+            while (elements.hasNext()) {
+                StandardSession session =
+                    (StandardSession) elements.next();
+                if (passivate)
+                    session.passivate();
+                session.writeObjectData(oos);
+            }
+            oos.flush();
+        } catch (IOException e) {
+            log.error(sm.getString("standardManager.unloading.ioe", e), e);
+            throw e;
+        } finally {
+            try {
+                oos.close();
+            } catch (IOException f) {
+                ;
+            }
+        }
+
+    }
+
+
     // ------------------------------------------------------ Lifecycle Methods
 
 
@@ -750,4 +923,75 @@ public class StandardManager
         return (file);
 
     }
+
+
+    /**
+     * Return a File object representing the specified partition of our
+     * persistence file.
+     *
+     * @param file Our persistence file
+     * @param partition The partition number
+     */
+    protected File partitionFile(File file, int partition) {
+
+        return (new File(file.getPath() + "." + partition));
+
+    }
+
+
+    /**
+     * Return the existing partition files of our persistence file.
+     *
+     * @param file Our persistence file
+     */
+    protected File[] partitionFiles(File file) {
+
+        ArrayList list = new ArrayList();
+        File partition = partitionFile(file, 0);
+        while (partition.exists()) {
+            list.add(partition);
+            partition = partitionFile(file, list.size());
+        }
+        return ((File[]) list.toArray(new File[list.size()]));
+
+    }
+
+
+    /**
+     * Run the specified partition tasks on separate threads, and wait for
+     * all of them to complete.  If the calling thread is interrupted, the
+     * tasks are still waited for, as the sessions would otherwise be only
+     * partially loaded or saved, and the interrupt status is restored
+     * afterwards.
+     *
+     * @param tasks The tasks to run
+     * @return the first exception thrown by a task, or <code>null</code>
+     */
+    protected Exception runPartitionTasks(PartitionTask[] tasks) {
+
+        Thread[] threads = new Thread[tasks.length];
+        for (int i = 0; i < tasks.length; i++) {
+            threads[i] = new Thread(tasks[i], getName() + "-Persistence-" + i);
+            threads[i].setDaemon(true);
+            threads[i].start();
+        }
+        boolean interrupted = false;
+        for (int i = 0; i < threads.length; i++) {
+            try {
+                threads[i].join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+                i--;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+        for (int i = 0; i < tasks.length; i++) {
+            Exception exception = tasks[i].exception;
+            if (exception != null)
+                return (exception);
+        }
+        return (null);
+
+    }
 }
@@ -0,0 +1,86 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apache.catalina.session;
+
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+
+import org.apache.catalina.util.CustomObjectInputStream;
+
+
+/**
+ * Implementation of <b>SessionSerializer</b> that uses plain Java
+ * serialization, writing a full class descriptor for every class
+ * encountered in a stream.  This is the format used by all previous
+ * versions of Tomcat.
+ *
+ * @version $Id$
+ */
+
+public class StandardSessionSerializer
+    implements SessionSerializer {
+
+
+    // --------------------------------------------------------- Public Methods
+
+
+    /**
+     * Return an <code>ObjectOutputStream</code> that writes session data
+     * to the specified stream.
+     *
+     * @param stream The stream that will receive the serialized data
+     *
+     * @exception IOException if an input/output error occurs
+     */
+    public ObjectOutputStream getObjectOutputStream(OutputStream stream)
+        throws IOException {
+
+        return (new ObjectOutputStream(stream));
+
+    }
+
+
+    /**
+     * Return an <code>ObjectInputStream</code> that reads session data
+     * from the specified stream, resolving classes with the specified
+     * class loader.
+     *
+     * @param stream The stream containing the serialized data
+     * @param classLoader The class loader of the web application, or
+     *  <code>null</code> to use the default class resolution
+     *
+     * @exception IOException if an input/output error occurs
+     */
+    public ObjectInputStream getObjectInputStream(InputStream stream,
+                                                  ClassLoader classLoader)
+        throws IOException {
+
+        if (classLoader != null)
+            return (new CustomObjectInputStream(stream, classLoader));
+        else
+            return (new ObjectInputStream(stream));
+
+    }
+
+
+}
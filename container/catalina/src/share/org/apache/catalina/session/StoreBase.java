@@ -113,6 +113,17 @@ public abstract class StoreBase
         return(this.manager);
     }
 
+    /**
+     * Return the serializer used to write and read the sessions of this
+     * Store, which is the one of the associated Manager.
+     */
+    public SessionSerializer getSerializer() {
+        if (manager instanceof ManagerBase)
+            return (((ManagerBase) manager).getSerializer());
+        else
+            return (new StandardSessionSerializer());
+    }
+
 
     // --------------------------------------------------------- Public Methods
 
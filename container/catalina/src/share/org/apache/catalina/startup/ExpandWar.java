@@ -18,7 +18,6 @@
 
 package org.apache.catalina.startup;
 
-import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
@@ -27,6 +26,7 @@ import java.io.IOException;
 import java.net.JarURLConnection;
 import java.net.URL;
 import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 import java.util.Enumeration;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
@@ -56,6 +56,19 @@ public class ExpandWar {
         StringManager.getManager(Constants.Package);
 
 
+    /**
+     * Suffix of the temporary directory into which a WAR is expanded before
+     * being renamed to its document base.
+     */
+    public static final String TEMP_SUFFIX = ".expanding";
+
+
+    /**
+     * Minimum number of files expanded by each thread.
+     */
+    protected static final int FILES_PER_THREAD = 16;
+
+
     /**
      * Expand the WAR file found at the specified URL into an unpacked
      * directory structure, and return the absolute pathname to the expanded
@@ -131,28 +144,34 @@ public class ExpandWar {
             return (docBase.getAbsolutePath());
         }
 
-        // Create the new document base directory
-        if(!docBase.mkdir() && !docBase.isDirectory())
+        // Expand into a temporary directory, which is renamed to the document
+        // base once complete, so that a partially expanded WAR is never used
+        File expandBase = new File(appBase, pathname + TEMP_SUFFIX);
+        if (expandBase.exists()) {
+            // Left over by an interrupted expansion
+            deleteDir(expandBase);
+        }
+        if(!expandBase.mkdir() && !expandBase.isDirectory())
             throw new IOException(
-                    sm.getString("expandWar.createFailed", docBase));
+                    sm.getString("expandWar.createFailed", expandBase));
 
-        // Expand the WAR into the new document base directory
-        String canonicalDocBasePrefix = docBase.getCanonicalPath();
+        // Expand the WAR into the temporary directory
+        String canonicalDocBasePrefix = expandBase.getCanonicalPath();
         if (!canonicalDocBasePrefix.endsWith(File.separator)) {
             canonicalDocBasePrefix += File.separator;
         }
         JarURLConnection juc = (JarURLConnection) war.openConnection();
         juc.setUseCaches(false);
         JarFile jarFile = null;
-        InputStream input = null;
         boolean success = false;
         try {
             jarFile = juc.getJarFile();
+            ArrayList files = new ArrayList();
             Enumeration jarEntries = jarFile.entries();
             while (jarEntries.hasMoreElements()) {
                 JarEntry jarEntry = (JarEntry) jarEntries.nextElement();
                 String name = jarEntry.getName();
-                File expandedFile = new File(docBase, name);
+                File expandedFile = new File(expandBase, name);
                 if (!expandedFile.getCanonicalPath().startsWith(
                         canonicalDocBasePrefix)) {
                     // Trying to expand outside the docBase
@@ -162,7 +181,7 @@ public class ExpandWar {
                 }
                 int last = name.lastIndexOf('/');
                 if (last >= 0) {
-                    File parent = new File(docBase,
+                    File parent = new File(expandBase,
                                            name.substring(0, last));
                     if(!parent.mkdirs() && !parent.isDirectory())
                         throw new IOException(
@@ -171,17 +190,51 @@ public class ExpandWar {
                 if (name.endsWith("/")) {
                     continue;
                 }
-                input = jarFile.getInputStream(jarEntry);
+                files.add(jarEntry);
+            }
 
-                // Bugzilla 33636
-                expand(input, expandedFile);
-                long lastModified = jarEntry.getTime();
-                if ((lastModified != -1) && (lastModified != 0)) {
-                    expandedFile.setLastModified(lastModified);
+            // Expand the files, using several threads for large WARs
+            int threads = Math.min(Runtime.getRuntime().availableProcessors(),
+                                   files.size() / FILES_PER_THREAD);
+            Expander expander = new Expander(jarFile, files, expandBase);
+            if (threads <= 1) {
+                expander.run();
+            } else {
+                Thread workers[] = new Thread[threads];
+                for (int i = 0; i < threads; i++) {
+                    workers[i] = new Thread(expander, "ExpandWar["
+                                            + pathname + "]-" + (i + 1));
+                    workers[i].setDaemon(true);
+                    workers[i].start();
                 }
+                // Wait for the expansion to complete
+                boolean interrupted = false;
+                for (int i = 0; i < threads; i++) {
+                    while (workers[i].isAlive()) {
+                        try {
+                            workers[i].join();
+                        } catch (InterruptedException e) {
+                            interrupted = true;
+                        }
+                    }
+                }
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            if (expander.exception != null) {
+                throw expander.exception;
+            }
 
-                input.close();
-                input = null;
+            // Move the expanded WAR to its document base
+            if (!expandBase.renameTo(docBase)) {
+                if (!docBase.isDirectory()) {
+                    throw new IOException(
+                            sm.getString("expandWar.renameFailed",
+                                         expandBase, docBase));
+                }
+                // Expanded concurrently, use the existing document base
+                deleteDir(expandBase);
             }
             success = true;
         } catch (IOException e) {
@@ -190,15 +243,7 @@ public class ExpandWar {
             if (!success) {
                 // If something went wrong, delete expanded dir to keep things 
                 // clean
-                deleteDir(docBase);
-            }
-            if (input != null) {
-                try {
-                    input.close();
-                } catch (Throwable t) {
-                    // Ignore
-                }
-                input = null;
+                deleteDir(expandBase);
             }
             if (jarFile != null) {
                 try {
@@ -456,11 +501,10 @@ public class ExpandWar {
      */
     private static void expand(InputStream input, File file)
         throws IOException {
-        BufferedOutputStream output = null;
+        FileOutputStream output = null;
         try {
-            output = 
-                new BufferedOutputStream(new FileOutputStream(file));
-            byte buffer[] = new byte[2048];
+            output = new FileOutputStream(file);
+            byte buffer[] = new byte[8192];
             while (true) {
                 int n = input.read(buffer);
                 if (n <= 0)
@@ -479,4 +523,72 @@ public class ExpandWar {
     }
 
 
+    // ---------------------------------------------------- Expander Inner Class
+
+
+    /**
+     * Expands the files of a WAR, which may be shared by several threads.
+     * The expansion stops at the first error, which is recorded.
+     */
+    protected static class Expander implements Runnable {
+
+        protected JarFile jarFile;
+        protected ArrayList files;
+        protected File expandBase;
+        protected int next = 0;
+        protected IOException exception = null;
+
+        public Expander(JarFile jarFile, ArrayList files, File expandBase) {
+            this.jarFile = jarFile;
+            this.files = files;
+            this.expandBase = expandBase;
+        }
+
+        protected synchronized JarEntry nextEntry() {
+            if ((exception != null) || (next >= files.size())) {
+                return (null);
+            }
+            return ((JarEntry) files.get(next++));
+        }
+
+        protected synchronized void failed(IOException e) {
+            if (exception == null) {
+                exception = e;
+            }
+        }
+
+        public void run() {
+            JarEntry jarEntry = nextEntry();
+            while (jarEntry != null) {
+                InputStream input = null;
+                try {
+                    File expandedFile = 
+                        new File(expandBase, jarEntry.getName());
+                    input = jarFile.getInputStream(jarEntry);
+                    // Bugzilla 33636
+                    expand(input, expandedFile);
+                    long lastModified = jarEntry.getTime();
+                    if ((lastModified != -1) && (lastModified != 0)) {
+                        expandedFile.setLastModified(lastModified);
+                    }
+                } catch (IOException e) {
+                    failed(e);
+                } catch (RuntimeException e) {
+                    failed(new IOException(e.toString()));
+                } finally {
+                    if (input != null) {
+                        try {
+                            input.close();
+                        } catch (Throwable t) {
+                            // Ignore
+                        }
+                    }
+                }
+                jarEntry = nextEntry();
+            }
+        }
+
+    }
+
+
 }
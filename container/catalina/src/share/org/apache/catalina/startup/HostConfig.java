@@ -29,6 +29,7 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.Set;
+import java.util.StringTokenizer;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
 
@@ -42,6 +43,7 @@ import org.apache.catalina.Lifecycle;
 import org.apache.catalina.LifecycleEvent;
 import org.apache.catalina.LifecycleListener;
 import org.apache.catalina.core.ContainerBase;
+import org.apache.catalina.core.StandardContext;
 import org.apache.catalina.core.StandardHost;
 import org.apache.catalina.util.StringManager;
 import org.apache.commons.modeler.Registry;
@@ -158,6 +160,26 @@ public class HostConfig
      */
     protected Set invalidWars = new HashSet();
 
+
+    /**
+     * The number of threads used to deploy and undeploy the web applications.
+     */
+    protected int startStopThreads = 1;
+
+
+    /**
+     * The context paths of the web applications which are deployed first,
+     * in the given order, separated by commas.
+     */
+    protected String deployOrder = null;
+
+
+    /**
+     * The context paths of the web applications which failed to deploy
+     * during the current deployment.
+     */
+    protected ArrayList failed = new ArrayList();
+
     // ------------------------------------------------------------- Properties
 
 
@@ -287,6 +309,54 @@ public class HostConfig
     }    
 
 
+    /**
+     * Return the number of threads used to deploy and undeploy the web
+     * applications.
+     */
+    public int getStartStopThreads() {
+
+        return (this.startStopThreads);
+
+    }
+
+
+    /**
+     * Set the number of threads used to deploy and undeploy the web
+     * applications.
+     *
+     * @param startStopThreads The new number of threads
+     */
+    public void setStartStopThreads(int startStopThreads) {
+
+        this.startStopThreads = startStopThreads;
+
+    }
+
+
+    /**
+     * Return the context paths of the web applications which are deployed
+     * first.
+     */
+    public String getDeployOrder() {
+
+        return (this.deployOrder);
+
+    }
+
+
+    /**
+     * Set the context paths of the web applications which are deployed
+     * first, in the given order.
+     *
+     * @param deployOrder Comma separated list of context paths
+     */
+    public void setDeployOrder(String deployOrder) {
+
+        this.deployOrder = deployOrder;
+
+    }
+
+
     // --------------------------------------------------------- Public Methods
 
 
@@ -308,6 +378,8 @@ public class HostConfig
                 setUnpackWARs(((StandardHost) host).isUnpackWARs());
                 setXmlNamespaceAware(((StandardHost) host).getXmlNamespaceAware());
                 setXmlValidation(((StandardHost) host).getXmlValidation());
+                setStartStopThreads(((StandardHost) host).getStartStopThreads());
+                setDeployOrder(((StandardHost) host).getDeployOrder());
             }
         } catch (ClassCastException e) {
             log.error(sm.getString("hostConfig.cce", event.getLifecycle()), e);
@@ -354,7 +426,10 @@ public class HostConfig
      * on which the application was deployed
      */
     public long getDeploymentTime(String name) {
-    	DeployedApplication app = (DeployedApplication) deployed.get(name);
+    	DeployedApplication app = null;
+    	synchronized (deployed) {
+    		app = (DeployedApplication) deployed.get(name);
+    	}
     	if (app == null) {
     		return 0L;
     	} else {
@@ -371,11 +446,8 @@ public class HostConfig
      * exist
      */
     public boolean isDeployed(String name) {
-        DeployedApplication app = (DeployedApplication) deployed.get(name);
-        if (app == null) {
-            return false;
-        } else {
-            return true;
+        synchronized (deployed) {
+            return (deployed.containsKey(name));
         }
     }
     
@@ -492,16 +564,46 @@ public class HostConfig
 
         File appBase = appBase();
         File configBase = configBase();
+        // Deploy the applications other applications depend on first
+        deployOrdered();
         // Deploy XML descriptors from configBase
         deployDescriptors(configBase, configBase.list());
         // Deploy WARs, and loop if additional descriptors are found
         deployWARs(appBase, appBase.list());
         // Deploy expanded folders
         deployDirectories(appBase, appBase.list());
+        // Report the applications which failed to deploy
+        logFailed();
         
     }
 
 
+    /**
+     * Deploy the applications listed in the deploy order, one after the
+     * other and in the listed order.
+     */
+    protected void deployOrdered() {
+
+        if (deployOrder == null)
+            return;
+
+        StringTokenizer tokenizer = new StringTokenizer(deployOrder, ",");
+        while (tokenizer.hasMoreTokens()) {
+            String contextPath = tokenizer.nextToken().trim();
+            if (contextPath.equals("/") || contextPath.equals("/ROOT")) {
+                contextPath = "";
+            } else if (!contextPath.startsWith("/")) {
+                contextPath = "/" + contextPath;
+            }
+            if (isServiced(contextPath) || deploymentExists(contextPath))
+                continue;
+            deployApps(contextPath);
+            checkDeployed(contextPath);
+        }
+
+    }
+
+
     /**
      * Deploy applications for any directories or WAR files that are found
      * in our "application root" directory.
@@ -537,6 +639,7 @@ public class HostConfig
         if (files == null)
             return;
         
+        ArrayList tasks = new ArrayList();
         for (int i = 0; i < files.length; i++) {
 
             if (files[i].equalsIgnoreCase("META-INF"))
@@ -558,12 +661,14 @@ public class HostConfig
                 
                 String file = files[i];
 
-                deployDescriptor(contextPath, contextXml, file);
+                tasks.add(new DeployDescriptor(contextPath, contextXml, file));
                 
             }
 
         }
 
+        runTasks(tasks);
+
     }
 
 
@@ -690,7 +795,9 @@ public class HostConfig
         }
 
         if (context != null && host.findChild(context.getName()) != null) {
-            deployed.put(contextPath, deployedApp);
+            synchronized (deployed) {
+                deployed.put(contextPath, deployedApp);
+            }
         }
     }
 
@@ -703,6 +810,7 @@ public class HostConfig
         if (files == null)
             return;
         
+        ArrayList tasks = new ArrayList();
         for (int i = 0; i < files.length; i++) {
             
             if (files[i].equalsIgnoreCase("META-INF"))
@@ -734,12 +842,14 @@ public class HostConfig
                 
                 String file = files[i];
                 
-                deployWAR(contextPath, dir, file);
+                tasks.add(new DeployWar(contextPath, dir, file));
                 
             }
             
         }
         
+        runTasks(tasks);
+
     }
 
 
@@ -911,7 +1021,9 @@ public class HostConfig
             log.error(sm.getString("hostConfig.deployJar.error", file), t);
         }
         
-        deployed.put(contextPath, deployedApp);
+        synchronized (deployed) {
+            deployed.put(contextPath, deployedApp);
+        }
     }
 
 
@@ -923,12 +1035,15 @@ public class HostConfig
         if (files == null)
             return;
         
+        ArrayList tasks = new ArrayList();
         for (int i = 0; i < files.length; i++) {
 
             if (files[i].equalsIgnoreCase("META-INF"))
                 continue;
             if (files[i].equalsIgnoreCase("WEB-INF"))
                 continue;
+            if (files[i].endsWith(ExpandWar.TEMP_SUFFIX))
+                continue;
             File dir = new File(appBase, files[i]);
             if (dir.isDirectory()) {
 
@@ -940,12 +1055,14 @@ public class HostConfig
                 if (isServiced(contextPath))
                     continue;
 
-                deployDirectory(contextPath, dir, files[i]);
+                tasks.add(new DeployDirectory(contextPath, dir, files[i]));
             
             }
 
         }
 
+        runTasks(tasks);
+
     }
 
     
@@ -989,7 +1106,9 @@ public class HostConfig
             log.error(sm.getString("hostConfig.deployDir.error", file), t);
         }
 
-        deployed.put(contextPath, deployedApp);
+        synchronized (deployed) {
+            deployed.put(contextPath, deployedApp);
+        }
     }
 
     
@@ -999,7 +1118,92 @@ public class HostConfig
      * @param contextPath of the context which will be checked
      */
     protected boolean deploymentExists(String contextPath) {
-        return (deployed.containsKey(contextPath) || (host.findChild(contextPath) != null));
+        synchronized (deployed) {
+            if (deployed.containsKey(contextPath))
+                return true;
+        }
+        return (host.findChild(contextPath) != null);
+    }
+    
+
+    /**
+     * Run the given deployment or undeployment tasks, in parallel if more
+     * than one thread is used to start and stop the web applications, and
+     * wait for their completion.
+     *
+     * @param tasks The tasks
+     */
+    protected void runTasks(ArrayList tasks) {
+
+        int threads = Math.min(startStopThreads, tasks.size());
+        if (threads <= 1) {
+            for (int i = 0; i < tasks.size(); i++) {
+                ((Runnable) tasks.get(i)).run();
+            }
+            return;
+        }
+
+        Deployer deployer = new Deployer(tasks);
+        Thread workers[] = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Thread(deployer, "HostConfig[" + host.getName()
+                                    + "]-" + (i + 1));
+            workers[i].setContextClassLoader
+                (Thread.currentThread().getContextClassLoader());
+            workers[i].start();
+        }
+        boolean interrupted = false;
+        for (int i = 0; i < threads; i++) {
+            while (workers[i].isAlive()) {
+                try {
+                    workers[i].join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+    }
+
+
+    /**
+     * Record the specified application as failed if it is not deployed
+     * and available once its deployment is complete.
+     *
+     * @param contextPath Context path of the application
+     */
+    protected void checkDeployed(String contextPath) {
+
+        Container context = host.findChild(contextPath);
+        if ((context == null)
+            || ((context instanceof StandardContext)
+                && !((StandardContext) context).getAvailable())) {
+            synchronized (failed) {
+                failed.add(contextPath.equals("") ? "/" : contextPath);
+            }
+        }
+
+    }
+
+
+    /**
+     * Report together the applications which failed to deploy during the
+     * current deployment.
+     */
+    protected void logFailed() {
+
+        synchronized (failed) {
+            if (failed.size() > 0) {
+                log.error(sm.getString("hostConfig.deploy.failed",
+                                       new Integer(failed.size()),
+                                       host.getName(), failed.toString()));
+                failed.clear();
+            }
+        }
+
     }
     
 
@@ -1084,7 +1288,9 @@ public class HostConfig
                                     ("hostConfig.canonicalizing", app.name), e);
                         }
                     }
-                    deployed.remove(app.name);
+                    synchronized (deployed) {
+                        deployed.remove(app.name);
+                    }
                     return;
                 }
             } else {
@@ -1142,7 +1348,9 @@ public class HostConfig
                                 ("hostConfig.canonicalizing", app.name), e);
                     }
                 }
-                deployed.remove(app.name);
+                synchronized (deployed) {
+                    deployed.remove(app.name);
+                }
                 return;
             }
         }
@@ -1238,18 +1446,20 @@ public class HostConfig
             log.debug(sm.getString("hostConfig.undeploying"));
 
         // Soft undeploy all contexts we have deployed
-        DeployedApplication[] apps = 
-            (DeployedApplication[]) deployed.values().toArray(new DeployedApplication[0]);
+        DeployedApplication[] apps = null;
+        synchronized (deployed) {
+            apps = (DeployedApplication[])
+                deployed.values().toArray(new DeployedApplication[0]);
+        }
+        ArrayList tasks = new ArrayList();
         for (int i = 0; i < apps.length; i++) {
-            try {
-                host.removeChild(host.findChild(apps[i].name));
-            } catch (Throwable t) {
-                log.warn(sm.getString
-                        ("hostConfig.context.remove", apps[i].name), t);
-            }
+            tasks.add(new Undeploy(apps[i].name));
         }
+        runTasks(tasks);
         
-        deployed.clear();
+        synchronized (deployed) {
+            deployed.clear();
+        }
 
     }
 
@@ -1261,8 +1471,11 @@ public class HostConfig
 
         if (host.getAutoDeploy()) {
             // Check for resources modification to trigger redeployment
-            DeployedApplication[] apps = 
-                (DeployedApplication[]) deployed.values().toArray(new DeployedApplication[0]);
+            DeployedApplication[] apps = null;
+            synchronized (deployed) {
+                apps = (DeployedApplication[])
+                    deployed.values().toArray(new DeployedApplication[0]);
+            }
             for (int i = 0; i < apps.length; i++) {
                 if (!isServiced(apps[i].name))
                     checkResources(apps[i]);
@@ -1278,7 +1491,10 @@ public class HostConfig
      * Check status of a specific webapp, for use with stuff like management webapps.
      */
     public void check(String name) {
-        DeployedApplication app = (DeployedApplication) deployed.get(name);
+        DeployedApplication app = null;
+        synchronized (deployed) {
+            app = (DeployedApplication) deployed.get(name);
+        }
         if (app != null) {
             checkResources(app);
         } else {
@@ -1294,8 +1510,10 @@ public class HostConfig
 
         String contextPath = context.getPath();
         
-        if (deployed.containsKey(contextPath))
-            return;
+        synchronized (deployed) {
+            if (deployed.containsKey(contextPath))
+                return;
+        }
 
         DeployedApplication deployedApp = new DeployedApplication(contextPath);
         
@@ -1337,7 +1555,9 @@ public class HostConfig
         } else {
             addWatchedResources(deployedApp, null, context);
         }
-        deployed.put(contextPath, deployedApp);
+        synchronized (deployed) {
+            deployed.put(contextPath, deployedApp);
+        }
     }
 
     /**
@@ -1346,11 +1566,146 @@ public class HostConfig
      */
     public void unmanageApp(String contextPath) {
         if(isServiced(contextPath)) {
-            deployed.remove(contextPath);
+            synchronized (deployed) {
+                deployed.remove(contextPath);
+            }
             host.removeChild(host.findChild(contextPath));
         }
     }
 
+    // ----------------------------------------------------------- Task Classes
+
+
+    /**
+     * Worker running the pending deployment or undeployment tasks.
+     */
+    protected class Deployer implements Runnable {
+
+        protected ArrayList tasks = null;
+
+        protected int next = 0;
+
+        public Deployer(ArrayList tasks) {
+            this.tasks = tasks;
+        }
+
+        protected synchronized Runnable nextTask() {
+            if (next < tasks.size()) {
+                return ((Runnable) tasks.get(next++));
+            }
+            return (null);
+        }
+
+        public void run() {
+            Runnable task = nextTask();
+            while (task != null) {
+                task.run();
+                task = nextTask();
+            }
+        }
+
+    }
+
+
+    /**
+     * Task deploying an XML context descriptor.
+     */
+    protected class DeployDescriptor implements Runnable {
+
+        protected String contextPath;
+        protected File contextXml;
+        protected String file;
+
+        public DeployDescriptor(String contextPath, File contextXml,
+                                String file) {
+            this.contextPath = contextPath;
+            this.contextXml = contextXml;
+            this.file = file;
+        }
+
+        public void run() {
+            if (deploymentExists(contextPath))
+                return;
+            deployDescriptor(contextPath, contextXml, file);
+            checkDeployed(contextPath);
+        }
+
+    }
+
+
+    /**
+     * Task deploying a WAR file.
+     */
+    protected class DeployWar implements Runnable {
+
+        protected String contextPath;
+        protected File dir;
+        protected String file;
+
+        public DeployWar(String contextPath, File dir, String file) {
+            this.contextPath = contextPath;
+            this.dir = dir;
+            this.file = file;
+        }
+
+        public void run() {
+            if (deploymentExists(contextPath))
+                return;
+            deployWAR(contextPath, dir, file);
+            checkDeployed(contextPath);
+        }
+
+    }
+
+
+    /**
+     * Task deploying a directory.
+     */
+    protected class DeployDirectory implements Runnable {
+
+        protected String contextPath;
+        protected File dir;
+        protected String file;
+
+        public DeployDirectory(String contextPath, File dir, String file) {
+            this.contextPath = contextPath;
+            this.dir = dir;
+            this.file = file;
+        }
+
+        public void run() {
+            if (deploymentExists(contextPath))
+                return;
+            deployDirectory(contextPath, dir, file);
+            checkDeployed(contextPath);
+        }
+
+    }
+
+
+    /**
+     * Task undeploying a web application.
+     */
+    protected class Undeploy implements Runnable {
+
+        protected String contextPath;
+
+        public Undeploy(String contextPath) {
+            this.contextPath = contextPath;
+        }
+
+        public void run() {
+            try {
+                host.removeChild(host.findChild(contextPath));
+            } catch (Throwable t) {
+                log.warn(sm.getString
+                        ("hostConfig.context.remove", contextPath), t);
+            }
+        }
+
+    }
+
+
     // ----------------------------------------------------- Instance Variables
 
 
@@ -54,6 +54,7 @@ import org.apache.catalina.LifecycleEvent;
 import org.apache.catalina.LifecycleListener;
 import org.apache.catalina.core.StandardContext;
 import org.apache.catalina.core.StandardHost;
+import org.apache.catalina.util.JarIndexCache;
 import org.apache.catalina.util.StringManager;
 import org.apache.tomcat.util.digester.Digester;
 import org.xml.sax.InputSource;
@@ -296,22 +297,41 @@ public final class TldConfig implements LifecycleListener {
         }
 
         // Scan each accumulated resource path for TLDs to be processed
+        ArrayList scanList = new ArrayList();
         Iterator paths = resourcePaths.iterator();
         while (paths.hasNext()) {
-            String path = (String) paths.next();
-            if (path.endsWith(".jar")) {
-                tldScanJar(path);
-            } else {
-                tldScanTld(path);
-            }
+            scanList.add(new TldScan((String) paths.next(), null));
         }
         if (jarPaths != null) {
             paths = jarPaths.values().iterator();
             while (paths.hasNext()) {
-                tldScanJar((File) paths.next());
+                scanList.add(new TldScan(null, (File) paths.next()));
+            }
+        }
+        TldScan scans[] = new TldScan[scanList.size()];
+        scanList.toArray(scans);
+        tldScan(scans);
+
+        // Merge the results in scanning order, so that they do not depend
+        // on the number of threads used
+        HashMap locations = new HashMap();
+        for (int i = 0; i < scans.length; i++) {
+            if (scans[i].exception != null) {
+                throw scans[i].exception;
+            }
+            for (int j = 0; j < scans[i].listeners.size(); j++) {
+                addApplicationListener((String) scans[i].listeners.get(j));
+            }
+            if ((scans[i].jarPath != null)
+                    && !locations.containsKey(scans[i].jarPath)) {
+                locations.put(scans[i].jarPath, scans[i].getLocations());
             }
         }
 
+        // Share the taglib URIs found in the JARs with Jasper
+        context.getServletContext().setAttribute(Globals.TLD_LOCATIONS_ATTR,
+                                                 locations);
+
         String list[] = getTldListeners();
 
         if( tldCache!= null ) {
@@ -321,6 +341,7 @@ public final class TldConfig implements LifecycleListener {
                 out=new FileOutputStream(tldCache);
                 ObjectOutputStream oos=new ObjectOutputStream( out );
                 oos.writeObject( list );
+                oos.writeObject( locations );
                 oos.close();
                 out = null;
             } catch( IOException ex ) {
@@ -357,6 +378,83 @@ public final class TldConfig implements LifecycleListener {
 
     // -------------------------------------------------------- Private Methods
 
+    /*
+     * Performs the given scans, either sequentially or using the number of
+     * threads configured on the context.
+     *
+     * @param scans The scans to perform
+     */
+    private void tldScan(TldScan[] scans) {
+
+        int threads = 1;
+        if (context instanceof StandardContext) {
+            threads = ((StandardContext) context).getTldScanThreads();
+        }
+        if (threads > scans.length) {
+            threads = scans.length;
+        }
+        if (threads <= 1) {
+            for (int i = 0; i < scans.length; i++) {
+                tldScan(scans[i], tldDigester);
+            }
+            return;
+        }
+
+        if (log.isDebugEnabled()) {
+            log.debug("Scanning " + scans.length + " TLD resources using "
+                      + threads + " threads");
+        }
+        TldScanner scanner = new TldScanner(scans);
+        Thread workers[] = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Thread(scanner,
+                                    "TldScanner[" + context.getName() + "]-"
+                                    + (i + 1));
+            workers[i].setContextClassLoader
+                (Thread.currentThread().getContextClassLoader());
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+        for (int i = 0; i < threads; i++) {
+            boolean interrupted = false;
+            while (workers[i].isAlive()) {
+                try {
+                    workers[i].join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+    }
+
+    /*
+     * Performs the given scan using the given digester, recording any
+     * exception on the scan.
+     *
+     * @param scan The scan to perform
+     * @param digester The digester used to parse the TLDs
+     */
+    private void tldScan(TldScan scan, Digester digester) {
+
+        try {
+            if (scan.file != null) {
+                tldScanJar(scan.file, scan, digester);
+            } else if (scan.resourcePath.endsWith(".jar")) {
+                tldScanJar(scan.resourcePath, scan, digester);
+            } else {
+                tldScanTld(scan.resourcePath, scan, digester);
+            }
+        } catch (Exception e) {
+            scan.exception = e;
+        }
+
+    }
+
+
     /*
      * Returns the last modification date of the given sets of resources.
      *
@@ -408,11 +506,17 @@ public final class TldConfig implements LifecycleListener {
             in =new FileInputStream(tldCache);
             ObjectInputStream ois=new ObjectInputStream( in );
             String list[]=(String [])ois.readObject();
+            // The taglib URIs of the JARs, missing from caches written by
+            // previous versions, which are then rewritten
+            Map locations=(Map)ois.readObject();
             if( log.isDebugEnabled() )
                 log.debug("Reusing tldCache " + tldCache + " " + list.length);
             for( int i=0; list!=null && i<list.length; i++ ) {
                 context.addApplicationListener(list[i]);
             }
+            // Share the taglib URIs found in the JARs with Jasper
+            context.getServletContext().setAttribute
+                (Globals.TLD_LOCATIONS_ATTR, locations);
             ois.close();
             in = null;
             return true;
@@ -445,7 +549,8 @@ public final class TldConfig implements LifecycleListener {
      *
      * @exception Exception if an exception occurs while scanning this JAR
      */
-    private void tldScanJar(String resourcePath) throws Exception {
+    private void tldScanJar(String resourcePath, TldScan scan,
+                            Digester digester) throws Exception {
 
         if (log.isDebugEnabled()) {
             log.debug(" Scanning JAR at resource path '" + resourcePath + "'");
@@ -460,7 +565,7 @@ public final class TldConfig implements LifecycleListener {
 
         File file = new File(url.getFile());
         file = file.getCanonicalFile();
-        tldScanJar(file);
+        tldScanJar(file, scan, digester);
 
     }
 
@@ -469,13 +574,44 @@ public final class TldConfig implements LifecycleListener {
      *
      * @param file JAR file whose TLD entries are scanned for application
      * listeners
+     * @param scan The scan receiving the listeners and taglib URIs
+     * @param digester The digester used to parse the TLDs
      */
-    private void tldScanJar(File file) throws Exception {
+    private void tldScanJar(File file, TldScan scan, Digester digester)
+        throws Exception {
 
         JarFile jarFile = null;
         String name = null;
 
-        String jarPath = file.getAbsolutePath();
+        // Jasper looks up the taglib URIs by canonical path
+        String jarPath = null;
+        try {
+            jarPath = file.getCanonicalPath();
+        } catch (IOException e) {
+            jarPath = file.getAbsolutePath();
+        }
+        scan.jarPath = jarPath;
+
+        // Use the listeners cached for this JAR, if it has not changed
+        JarIndexCache jarIndexCache = null;
+        JarIndexCache.Entry cacheEntry = null;
+        if (context instanceof StandardContext) {
+            jarIndexCache = ((StandardContext) context).getJarIndexCache();
+        }
+        if (jarIndexCache != null) {
+            cacheEntry = jarIndexCache.get(file);
+            if ((cacheEntry != null) && (cacheEntry.tldListeners != null)
+                    && (cacheEntry.tldLocations != null)) {
+                for (int i = 0; i < cacheEntry.tldListeners.length; i++) {
+                    scan.addApplicationListener(cacheEntry.tldListeners[i]);
+                }
+                for (int i = 0; i < cacheEntry.tldLocations.length; i++) {
+                    scan.locations.add(cacheEntry.tldLocations[i]);
+                }
+                return;
+            }
+        }
+        boolean complete = true;
 
         try {
             jarFile = new JarFile(file);
@@ -493,14 +629,18 @@ public final class TldConfig implements LifecycleListener {
                     log.trace("  Processing TLD at '" + name + "'");
                 }
                 try {
-                    tldScanStream(new InputSource(jarFile.getInputStream(entry)));
+                    scan.entryName = name;
+                    tldScanStream(new InputSource(jarFile.getInputStream(entry)),
+                                  scan, digester);
                 } catch (Exception e) {
+                    complete = false;
                     log.error(sm.getString("contextConfig.tldEntryException",
                                            name, jarPath, context.getPath()),
                               e);
                 }
             }
         } catch (Exception e) {
+            complete = false;
             log.error(sm.getString("contextConfig.tldJarException",
                                    jarPath, context.getPath()),
                       e);
@@ -513,6 +653,16 @@ public final class TldConfig implements LifecycleListener {
                 }
             }
         }
+
+        // Cache the listeners declared by the TLDs of this JAR
+        if ((jarIndexCache != null) && complete) {
+            if (cacheEntry == null)
+                cacheEntry = new JarIndexCache.Entry();
+            cacheEntry.tldListeners = (String[]) scan.listeners.toArray
+                (new String[scan.listeners.size()]);
+            cacheEntry.tldLocations = scan.getLocations();
+            jarIndexCache.put(file, cacheEntry);
+        }
     }
 
     /**
@@ -522,18 +672,21 @@ public final class TldConfig implements LifecycleListener {
      * method returns.
      *
      * @param resourceStream InputStream containing a tag library descriptor
+     * @param scan The scan receiving the listeners and taglib URIs
+     * @param digester The digester used to parse the TLD
      *
      * @exception Exception if an exception occurs while scanning this TLD
      */
-    private void tldScanStream(InputSource resourceStream)
+    private void tldScanStream(InputSource resourceStream, TldScan scan,
+                               Digester digester)
         throws Exception {
 
-        synchronized (tldDigester) {
+        synchronized (digester) {
             try {
-                tldDigester.push(this);
-                tldDigester.parse(resourceStream);
+                digester.push(scan);
+                digester.parse(resourceStream);
             } finally {
-                tldDigester.reset();
+                digester.reset();
             }
         }
 
@@ -544,10 +697,13 @@ public final class TldConfig implements LifecycleListener {
      * any application event listeners found there.
      *
      * @param resourcePath Resource path being scanned
+     * @param scan The scan receiving the listeners
+     * @param digester The digester used to parse the TLD
      *
      * @exception Exception if an exception occurs while scanning this TLD
      */
-    private void tldScanTld(String resourcePath) throws Exception {
+    private void tldScanTld(String resourcePath, TldScan scan,
+                            Digester digester) throws Exception {
 
         if (log.isDebugEnabled()) {
             log.debug(" Scanning TLD at resource path '" + resourcePath + "'");
@@ -570,7 +726,7 @@ public final class TldConfig implements LifecycleListener {
                     (sm.getString("contextConfig.tldResourcePath",
                                   resourcePath));
             }
-            tldScanStream(inputSource);
+            tldScanStream(inputSource, scan, digester);
         } catch (Exception e) {
              throw new ServletException
                  (sm.getString("contextConfig.tldFileException", resourcePath,
@@ -793,4 +949,111 @@ public final class TldConfig implements LifecycleListener {
             tldDigester.getParser();
         }
     }
+
+
+    // ------------------------------------------------------ TldScan Class
+
+    /**
+     * The scan of a TLD resource path or JAR file, which receives the
+     * application listeners and taglib URIs declared by the parsed TLDs.
+     * The scans are merged in order once they are all complete.
+     */
+    public static final class TldScan {
+
+        /**
+         * The resource path of the TLD or JAR file, if any.
+         */
+        private String resourcePath = null;
+
+        /**
+         * The JAR file, if any.
+         */
+        private File file = null;
+
+        /**
+         * The absolute path of the JAR file, once it has been resolved.
+         */
+        private String jarPath = null;
+
+        /**
+         * The name of the JAR entry being parsed.
+         */
+        private String entryName = null;
+
+        /**
+         * The application listeners declared by the TLDs.
+         */
+        private ArrayList listeners = new ArrayList();
+
+        /**
+         * The taglib URIs declared by the TLDs of the JAR file, as pairs of
+         * taglib URI and JAR entry name.
+         */
+        private ArrayList locations = new ArrayList();
+
+        /**
+         * The exception which occurred during the scan, if any.
+         */
+        private Exception exception = null;
+
+        private TldScan(String resourcePath, File file) {
+            this.resourcePath = resourcePath;
+            this.file = file;
+        }
+
+        public void addApplicationListener(String listener) {
+            listeners.add(listener);
+        }
+
+        public void setUri(String uri) {
+            if ((entryName != null) && (uri != null) && (uri.length() > 0)) {
+                locations.add(uri);
+                locations.add(entryName);
+            }
+        }
+
+        private String[] getLocations() {
+            return ((String[]) locations.toArray(new String[locations.size()]));
+        }
+
+    }
+
+
+    // --------------------------------------------------- TldScanner Class
+
+    /**
+     * Worker performing the pending scans, using its own digester as the
+     * digesters are not thread safe.
+     */
+    private final class TldScanner implements Runnable {
+
+        private TldScan[] scans = null;
+
+        private int next = 0;
+
+        private TldScanner(TldScan[] scans) {
+            this.scans = scans;
+        }
+
+        private synchronized TldScan nextScan() {
+            if (next < scans.length) {
+                return (scans[next++]);
+            }
+            return (null);
+        }
+
+        public void run() {
+            Digester digester = null;
+            TldScan scan = nextScan();
+            while (scan != null) {
+                if (digester == null) {
+                    digester = DigesterFactory.newDigester
+                        (tldValidation, tldNamespaceAware, new TldRuleSet());
+                }
+                tldScan(scan, digester);
+                scan = nextScan();
+            }
+        }
+
+    }
 }
@@ -89,6 +89,8 @@ public class TldRuleSet extends RuleSetBase {
 
         digester.addCallMethod(prefix + "taglib/listener/listener-class",
                                "addApplicationListener", 0);
+        digester.addCallMethod(prefix + "taglib/uri",
+                               "setUri", 0);
 
     }
 
@@ -0,0 +1,214 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apache.catalina.util;
+
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.LinkedList;
+
+
+/**
+ * Computes message digests without serializing the callers on a single
+ * shared <code>MessageDigest</code>.  Instances are kept in a pool per
+ * algorithm: a caller borrows one for the duration of a single digest and
+ * returns it, so the pool lock is only held to push and pop an instance.
+ * New instances are cloned from a prototype when the pool is empty.
+ *
+ * @version $Id$
+ */
+
+public final class ConcurrentMessageDigest {
+
+
+    // -------------------------------------------------------------- Constants
+
+
+    /**
+     * The MD5 algorithm name.
+     */
+    public static final String MD5 = "MD5";
+
+
+    /**
+     * Maximum number of idle instances kept per algorithm.
+     */
+    protected static final int MAX_IDLE = 64;
+
+
+    // ------------------------------------------------------- Static Variables
+
+
+    /**
+     * The pools of idle instances, keyed by algorithm name.
+     */
+    private static HashMap pools = new HashMap();
+
+
+    // ----------------------------------------------------------- Constructors
+
+
+    private ConcurrentMessageDigest() {
+    }
+
+
+    // --------------------------------------------------------- Public Methods
+
+
+    /**
+     * Make sure the specified algorithm is available, and prepare its pool.
+     *
+     * @param algorithm The digest algorithm
+     *
+     * @exception NoSuchAlgorithmException if the algorithm is not available
+     */
+    public static void init(String algorithm)
+        throws NoSuchAlgorithmException {
+
+        getPool(algorithm);
+
+    }
+
+
+    /**
+     * Return the MD5 digest of the specified bytes.
+     *
+     * @param input The bytes to digest
+     */
+    public static byte[] digestMD5(byte[] input) {
+
+        try {
+            return (digest(MD5, input));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e.getMessage());
+        }
+
+    }
+
+
+    /**
+     * Return the digest of the specified bytes.
+     *
+     * @param algorithm The digest algorithm
+     * @param input The bytes to digest
+     *
+     * @exception NoSuchAlgorithmException if the algorithm is not available
+     */
+    public static byte[] digest(String algorithm, byte[] input)
+        throws NoSuchAlgorithmException {
+
+        return (digest(algorithm, new byte[][] { input }));
+
+    }
+
+
+    /**
+     * Return the digest of the concatenation of the specified byte arrays.
+     *
+     * @param algorithm The digest algorithm
+     * @param input The byte arrays to digest, in order
+     *
+     * @exception NoSuchAlgorithmException if the algorithm is not available
+     */
+    public static byte[] digest(String algorithm, byte[][] input)
+        throws NoSuchAlgorithmException {
+
+        Pool pool = getPool(algorithm);
+        MessageDigest md = pool.borrow();
+        try {
+            for (int i = 0; i < input.length; i++)
+                md.update(input[i]);
+            return (md.digest());
+        } finally {
+            md.reset();
+            pool.release(md);
+        }
+
+    }
+
+
+    // -------------------------------------------------------- Private Methods
+
+
+    /**
+     * Return the pool of the specified algorithm, creating it if needed.
+     *
+     * @param algorithm The digest algorithm
+     *
+     * @exception NoSuchAlgorithmException if the algorithm is not available
+     */
+    private static Pool getPool(String algorithm)
+        throws NoSuchAlgorithmException {
+
+        synchronized (pools) {
+            Pool pool = (Pool) pools.get(algorithm);
+            if (pool == null) {
+                pool = new Pool(MessageDigest.getInstance(algorithm));
+                pools.put(algorithm, pool);
+            }
+            return (pool);
+        }
+
+    }
+
+
+    // ------------------------------------------------------------ Pool Class
+
+
+    /**
+     * The idle instances of one algorithm.
+     */
+    private static final class Pool {
+
+        private MessageDigest prototype = null;
+        private boolean cloneable = true;
+        private LinkedList idle = new LinkedList();
+
+        Pool(MessageDigest prototype) {
+            this.prototype = prototype;
+        }
+
+        MessageDigest borrow() throws NoSuchAlgorithmException {
+            synchronized (idle) {
+                if (!idle.isEmpty())
+                    return ((MessageDigest) idle.removeFirst());
+            }
+            if (cloneable) {
+                try {
+                    return ((MessageDigest) prototype.clone());
+                } catch (CloneNotSupportedException e) {
+                    cloneable = false;
+                }
+            }
+            return (MessageDigest.getInstance(prototype.getAlgorithm(),
+                                              prototype.getProvider()));
+        }
+
+        void release(MessageDigest md) {
+            synchronized (idle) {
+                if (idle.size() < MAX_IDLE)
+                    idle.addFirst(md);
+            }
+        }
+
+    }
+
+
+}
@@ -181,7 +181,8 @@ public final class ExtensionValidator {
                 }
                 Resource resource = (Resource)dirContext.lookup
                                         ("/WEB-INF/lib/" + binding.getName());
-                Manifest jmanifest = getManifest(resource.streamContent());
+                Manifest jmanifest = getManifest
+                    (context, "/WEB-INF/lib/" + binding.getName(), resource);
                 if (jmanifest != null) {
                     ManifestResource mre = new ManifestResource(
                                                 binding.getName(),
@@ -357,6 +358,39 @@ public final class ExtensionValidator {
         return availableList;
     }
     
+    /**
+     * Return the Manifest of a JAR of a web application, using the JAR
+     * index cache of the web application when possible.
+     *
+     * @param context The web application
+     * @param path The path of the JAR in the web application
+     * @param resource The JAR resource
+     * @return The JAR's manifest
+     */
+    private static Manifest getManifest(StandardContext context, String path,
+                                        Resource resource)
+            throws IOException {
+
+        JarIndexCache jarIndexCache = context.getJarIndexCache();
+        String realPath = context.getServletContext().getRealPath(path);
+        if ((jarIndexCache == null) || (realPath == null)) {
+            return getManifest(resource.streamContent());
+        }
+
+        File file = new File(realPath);
+        JarIndexCache.Entry entry = jarIndexCache.get(file);
+        if ((entry != null) && (entry.manifest != null)) {
+            return entry.getManifest();
+        }
+        Manifest manifest = getManifest(resource.streamContent());
+        if (entry == null) {
+            entry = new JarIndexCache.Entry();
+        }
+        entry.setManifest(manifest);
+        jarIndexCache.put(file, entry);
+        return manifest;
+    }
+
     /**
      * Return the Manifest from a jar file or war file
      *
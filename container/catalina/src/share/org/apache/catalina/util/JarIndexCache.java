@@ -0,0 +1,416 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apache.catalina.util;
+
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.jar.Manifest;
+import java.util.zip.CRC32;
+
+
+/**
+ * Persistent cache of the information extracted from the JAR files of a web
+ * application, such as the directories they contain, the listeners declared
+ * by their TLDs, and their manifest.  Entries are keyed by the canonical
+ * path of the JAR, and are only used while the size, the last modification
+ * date and the checksum of the central directory of the JAR are unchanged,
+ * so that unchanged JARs do not need to be scanned again when the web
+ * application is restarted.  The central directory lists the names, sizes
+ * and CRCs of all the entries of the JAR, so a JAR which is replaced with
+ * one of the same size and date is still detected.
+ * <p>
+ * The cache is stored in a file, usually in the work directory of the web
+ * application, and only contains the JARs which have been used since it
+ * was loaded when it is saved.
+ *
+ * @version $Id$
+ */
+
+public class JarIndexCache {
+
+
+    private static org.apache.commons.logging.Log log=
+        org.apache.commons.logging.LogFactory.getLog(JarIndexCache.class);
+
+
+    /**
+     * The string resources for this package.
+     */
+    private static StringManager sm =
+        StringManager.getManager("org.apache.catalina.util");
+
+
+    // ----------------------------------------------------------- Constructors
+
+
+    /**
+     * Create a cache stored in the specified file.
+     *
+     * @param file The file in which the cache is stored
+     */
+    public JarIndexCache(File file) {
+
+        this.file = file;
+
+    }
+
+
+    // ----------------------------------------------------- Instance Variables
+
+
+    /**
+     * The file in which the cache is stored.
+     */
+    protected File file = null;
+
+
+    /**
+     * The cached entries, keyed by JAR path.
+     */
+    protected HashMap entries = null;
+
+
+    /**
+     * The JAR paths used since the cache was loaded.
+     */
+    protected HashSet used = new HashSet();
+
+
+    /**
+     * The JAR paths whose entry has been checked against the JAR since the
+     * cache was loaded.
+     */
+    protected HashSet verified = new HashSet();
+
+
+    /**
+     * Has the cache been modified since it was loaded?
+     */
+    protected boolean modified = false;
+
+
+    // --------------------------------------------------------- Public Methods
+
+
+    /**
+     * Return the cached entry of the specified JAR, or <code>null</code> if
+     * there is none, or if the JAR has been modified since it was cached.
+     *
+     * @param jar The JAR file
+     */
+    public synchronized Entry get(File jar) {
+
+        load();
+        String path = getPath(jar);
+        used.add(path);
+        Entry entry = (Entry) entries.get(path);
+        if ((entry != null) && !verified.contains(path)) {
+            if ((entry.length != jar.length())
+                || (entry.lastModified != jar.lastModified())
+                || (entry.checksum < 0)
+                || (entry.checksum != getChecksum(jar))) {
+                entries.remove(path);
+                modified = true;
+                entry = null;
+            } else {
+                verified.add(path);
+            }
+        }
+        return (entry);
+
+    }
+
+
+    /**
+     * Store the entry of the specified JAR, with the current size, last
+     * modification date and checksum of the JAR.
+     *
+     * @param jar The JAR file
+     * @param entry The entry
+     */
+    public synchronized void put(File jar, Entry entry) {
+
+        load();
+        String path = getPath(jar);
+        if (!verified.contains(path) || (entries.get(path) != entry)) {
+            entry.length = jar.length();
+            entry.lastModified = jar.lastModified();
+            entry.checksum = getChecksum(jar);
+            verified.add(path);
+        }
+        used.add(path);
+        entries.put(path, entry);
+        modified = true;
+
+    }
+
+
+    /**
+     * Save the cache, if it has been modified or if some of its entries
+     * have not been used since it was loaded.
+     */
+    public synchronized void save() {
+
+        if (entries == null)
+            return;
+        Iterator paths = entries.keySet().iterator();
+        while (paths.hasNext()) {
+            if (!used.contains(paths.next())) {
+                paths.remove();
+                modified = true;
+            }
+        }
+        if (!modified)
+            return;
+
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(file);
+            ObjectOutputStream oos = new ObjectOutputStream(out);
+            oos.writeObject(entries);
+            oos.close();
+            out = null;
+            modified = false;
+        } catch (IOException e) {
+            log.warn(sm.getString("jarIndexCache.write", file), e);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (Exception ignored) {
+                    // Do nothing
+                }
+                file.delete();
+            }
+        }
+
+    }
+
+
+    // ------------------------------------------------------ Protected Methods
+
+
+    /**
+     * Return the path used as the key of the specified JAR.
+     */
+    protected String getPath(File jar) {
+
+        try {
+            return (jar.getCanonicalPath());
+        } catch (IOException e) {
+            return (jar.getAbsolutePath());
+        }
+
+    }
+
+
+    /**
+     * Return the CRC of the central directory of the specified JAR,
+     * including its end record, or -1 if it cannot be read.
+     *
+     * @param jar The JAR file
+     */
+    protected static long getChecksum(File jar) {
+
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(jar, "r");
+            long length = raf.length();
+
+            // The end record may be followed by a comment of up to 64KB
+            int tail = (int) Math.min(length, 22 + 0xffff);
+            byte[] buffer = new byte[Math.max(tail, 8192)];
+            raf.seek(length - tail);
+            raf.readFully(buffer, 0, tail);
+            int end = -1;
+            for (int pos = tail - 22; (pos >= 0) && (end < 0); pos--) {
+                if ((buffer[pos] == 0x50) && (buffer[pos + 1] == 0x4b)
+                    && (buffer[pos + 2] == 0x05) && (buffer[pos + 3] == 0x06))
+                    end = pos;
+            }
+            if (end < 0)
+                return (-1L);
+            long size = getInt(buffer, end + 12);
+            long offset = getInt(buffer, end + 16);
+            if (offset + size > length - tail + end)
+                return (-1L);
+
+            CRC32 crc = new CRC32();
+            crc.update(buffer, end, tail - end);
+            raf.seek(offset);
+            while (size > 0) {
+                int n = (int) Math.min(buffer.length, size);
+                raf.readFully(buffer, 0, n);
+                crc.update(buffer, 0, n);
+                size -= n;
+            }
+            return (crc.getValue());
+        } catch (IOException e) {
+            return (-1L);
+        } finally {
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+        }
+
+    }
+
+
+    /**
+     * Return the unsigned little endian int at the specified position.
+     */
+    private static long getInt(byte[] b, int pos) {
+
+        return ((b[pos] & 0xffL) | ((b[pos + 1] & 0xffL) << 8)
+                | ((b[pos + 2] & 0xffL) << 16) | ((b[pos + 3] & 0xffL) << 24));
+
+    }
+
+
+    /**
+     * Load the cache from its file, if it has not been loaded yet.
+     */
+    protected void load() {
+
+        if (entries != null)
+            return;
+        entries = new HashMap();
+        if (!file.exists())
+            return;
+
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            ObjectInputStream ois = new ObjectInputStream(in);
+            entries = (HashMap) ois.readObject();
+            ois.close();
+            in = null;
+            if (log.isDebugEnabled())
+                log.debug("Loaded " + entries.size() + " JAR entries from "
+                          + file);
+        } catch (Exception e) {
+            log.warn(sm.getString("jarIndexCache.read", file), e);
+            entries = new HashMap();
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (Exception ignored) {
+                    // Do nothing
+                }
+                file.delete();
+            }
+        }
+
+    }
+
+
+    // ---------------------------------------------------- Entry Inner Class
+
+
+    /**
+     * The information cached for a JAR.  Each kind of information is
+     * <code>null</code> until it has been extracted from the JAR.
+     */
+    public static class Entry implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * The size of the JAR when the entry was stored.
+         */
+        protected long length = -1L;
+
+        /**
+         * The last modification date of the JAR when the entry was stored.
+         */
+        protected long lastModified = -1L;
+
+        /**
+         * The CRC of the central directory of the JAR when the entry was
+         * stored, or -1 if it could not be read.
+         */
+        protected long checksum = -1L;
+
+        /**
+         * The paths of the directories containing entries of the JAR
+         * (ending with '/', or empty for the root directory), sorted.
+         */
+        public String[] directories = null;
+
+        /**
+         * The application listeners declared by the TLDs of the JAR.
+         */
+        public String[] tldListeners = null;
+
+        /**
+         * The taglib URIs declared by the TLDs of the JAR, as pairs of
+         * taglib URI and JAR entry name.
+         */
+        public String[] tldLocations = null;
+
+        /**
+         * The bytes of the manifest of the JAR, which are empty if the JAR
+         * has no manifest.
+         */
+        public byte[] manifest = null;
+
+        /**
+         * Return the manifest of the JAR, or <code>null</code> if the JAR
+         * has no manifest.
+         */
+        public Manifest getManifest() throws IOException {
+            if ((manifest == null) || (manifest.length == 0))
+                return (null);
+            return (new Manifest(new ByteArrayInputStream(manifest)));
+        }
+
+        /**
+         * Set the manifest of the JAR.
+         *
+         * @param manifest The manifest, or <code>null</code> if the JAR has
+         *  no manifest
+         */
+        public void setManifest(Manifest manifest) throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            if (manifest != null)
+                manifest.write(out);
+            this.manifest = out.toByteArray();
+        }
+
+    }
+
+
+}
@@ -0,0 +1,263 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apache.catalina.util;
+
+
+import java.util.AbstractMap;
+import java.util.HashMap;
+import java.util.Set;
+
+
+/**
+ * Thread safe <code>Map</code> whose entries are spread over several
+ * <code>HashMap</code> stripes, each one with its own lock, so that threads
+ * only contend when their keys hash to the same stripe.  Unlike a
+ * synchronized map, this allows concurrent access from the request threads
+ * without a single lock being held for every operation.
+ * <p>
+ * The single key operations are atomic.  The collection views are snapshots
+ * of the content of the map, which are not updated when the map is
+ * modified, and which do not write through to the map.  The
+ * <code>remove(Object, Object)</code> and <code>putIfAbsent()</code>
+ * methods allow conditional updates.
+ *
+ * @version $Id$
+ */
+
+public class StripedHashMap extends AbstractMap {
+
+
+    // ----------------------------------------------------------- Constructors
+
+
+    /**
+     * Construct a new map with the default number of stripes.
+     */
+    public StripedHashMap() {
+
+        this(16);
+
+    }
+
+
+    /**
+     * Construct a new map with the specified number of stripes.
+     *
+     * @param concurrency Number of stripes
+     */
+    public StripedHashMap(int concurrency) {
+
+        stripes = new HashMap[Math.max(concurrency, 1)];
+        for (int i = 0; i < stripes.length; i++)
+            stripes[i] = new HashMap();
+
+    }
+
+
+    // ----------------------------------------------------- Instance Variables
+
+
+    /**
+     * The stripes, each one being its own lock.
+     */
+    protected HashMap[] stripes = null;
+
+
+    // --------------------------------------------------------- Public Methods
+
+
+    /**
+     * Return the value associated with the specified key, or
+     * <code>null</code>.
+     *
+     * @param key The key
+     */
+    public Object get(Object key) {
+
+        HashMap stripe = getStripe(key);
+        synchronized (stripe) {
+            return (stripe.get(key));
+        }
+
+    }
+
+
+    /**
+     * Return <code>true</code> if a value is associated with the specified
+     * key.
+     *
+     * @param key The key
+     */
+    public boolean containsKey(Object key) {
+
+        HashMap stripe = getStripe(key);
+        synchronized (stripe) {
+            return (stripe.containsKey(key));
+        }
+
+    }
+
+
+    /**
+     * Associate the specified value with the specified key, and return the
+     * previous value, if any.
+     *
+     * @param key The key
+     * @param value The value
+     */
+    public Object put(Object key, Object value) {
+
+        HashMap stripe = getStripe(key);
+        synchronized (stripe) {
+            return (stripe.put(key, value));
+        }
+
+    }
+
+
+    /**
+     * Associate the specified value with the specified key, unless a value
+     * is already associated with it.  Return the previous value, or
+     * <code>null</code> if the value has been added.
+     *
+     * @param key The key
+     * @param value The value
+     */
+    public Object putIfAbsent(Object key, Object value) {
+
+        HashMap stripe = getStripe(key);
+        synchronized (stripe) {
+            Object previous = stripe.get(key);
+            if (previous == null)
+                stripe.put(key, value);
+            return (previous);
+        }
+
+    }
+
+
+    /**
+     * Remove the value associated with the specified key, and return it.
+     *
+     * @param key The key
+     */
+    public Object remove(Object key) {
+
+        HashMap stripe = getStripe(key);
+        synchronized (stripe) {
+            return (stripe.remove(key));
+        }
+
+    }
+
+
+    /**
+     * Remove the value associated with the specified key, only if it is the
+     * specified value.  Return <code>true</code> if the value was removed.
+     *
+     * @param key The key
+     * @param value The expected value
+     */
+    public boolean remove(Object key, Object value) {
+
+        HashMap stripe = getStripe(key);
+        synchronized (stripe) {
+            if ((value == null) || (stripe.get(key) != value))
+                return (false);
+            stripe.remove(key);
+            return (true);
+        }
+
+    }
+
+
+    /**
+     * Return the number of entries of the map.
+     */
+    public int size() {
+
+        int result = 0;
+        for (int i = 0; i < stripes.length; i++) {
+            synchronized (stripes[i]) {
+                result += stripes[i].size();
+            }
+        }
+        return (result);
+
+    }
+
+
+    /**
+     * Return <code>true</code> if the map has no entry.
+     */
+    public boolean isEmpty() {
+
+        return (size() == 0);
+
+    }
+
+
+    /**
+     * Remove all the entries of the map.
+     */
+    public void clear() {
+
+        for (int i = 0; i < stripes.length; i++) {
+            synchronized (stripes[i]) {
+                stripes[i].clear();
+            }
+        }
+
+    }
+
+
+    /**
+     * Return a snapshot of the entries of the map.
+     */
+    public Set entrySet() {
+
+        HashMap snapshot = new HashMap();
+        for (int i = 0; i < stripes.length; i++) {
+            synchronized (stripes[i]) {
+                snapshot.putAll(stripes[i]);
+            }
+        }
+        return (snapshot.entrySet());
+
+    }
+
+
+    // ------------------------------------------------------ Protected Methods
+
+
+    /**
+     * Return the stripe holding the specified key.
+     *
+     * @param key The key
+     */
+    protected HashMap getStripe(Object key) {
+
+        int hash = (key == null) ? 0 : key.hashCode();
+        hash ^= (hash >>> 16);
+        return (stripes[(hash & 0x7fffffff) % stripes.length]);
+
+    }
+
+
+}
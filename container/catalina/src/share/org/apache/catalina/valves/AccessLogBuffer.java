@@ -0,0 +1,423 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apache.catalina.valves;
+
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+
+import org.apache.tomcat.util.buf.ByteChunk;
+import org.apache.tomcat.util.buf.CharChunk;
+import org.apache.tomcat.util.buf.MessageBytes;
+
+
+/**
+ * Reusable buffer into which access log entries are formatted, encoded with
+ * the platform default encoding, or the specified encoding.  ASCII characters, which make up almost
+ * all access log entries, are copied as is, and values held by
+ * <code>MessageBytes</code> are copied without being converted to Strings,
+ * so that an entry can usually be formatted without allocating.  The
+ * buffers are not thread safe, and are meant to be used as per thread
+ * buffers.
+ *
+ * @version $Id$
+ */
+
+public class AccessLogBuffer {
+
+
+    // ----------------------------------------------------------- Constructors
+
+
+    /**
+     * Construct a new buffer, using the platform default encoding.
+     */
+    public AccessLogBuffer() {
+
+        this(System.getProperty("file.encoding", "ISO-8859-1"));
+
+    }
+
+
+    /**
+     * Construct a new buffer, using the specified encoding.
+     *
+     * @param encoding The encoding of the characters
+     */
+    public AccessLogBuffer(String encoding) {
+
+        Charset charset = null;
+        try {
+            charset = Charset.forName(encoding);
+        } catch (Exception e) {
+            charset = Charset.forName("ISO-8859-1");
+        }
+        encoder = charset.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+    }
+
+
+    // -------------------------------------------------------------- Constants
+
+
+    /**
+     * Hexadecimal digits.
+     */
+    protected static final byte[] HEX = {
+        '0', '1', '2', '3', '4', '5', '6', '7',
+        '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'
+    };
+
+
+    // ----------------------------------------------------- Instance Variables
+
+
+    /**
+     * The buffer.
+     */
+    protected byte[] bytes = new byte[256];
+
+
+    /**
+     * The number of bytes in the buffer.
+     */
+    protected int length = 0;
+
+
+    /**
+     * The encoder used for non ASCII characters.
+     */
+    protected CharsetEncoder encoder = null;
+
+
+    /**
+     * Scratch space used to format numbers.
+     */
+    protected byte[] digits = new byte[20];
+
+
+    // ------------------------------------------------------------- Properties
+
+
+    /**
+     * Return the buffer, which is only valid up to <code>getLength()</code>.
+     */
+    public byte[] getBytes() {
+
+        return (bytes);
+
+    }
+
+
+    /**
+     * Return the number of bytes in the buffer.
+     */
+    public int getLength() {
+
+        return (length);
+
+    }
+
+
+    // --------------------------------------------------------- Public Methods
+
+
+    /**
+     * Empty the buffer.
+     */
+    public void reset() {
+
+        length = 0;
+
+    }
+
+
+    /**
+     * Append the specified character.
+     *
+     * @param c The character
+     */
+    public void append(char c) {
+
+        if (c < 0x80) {
+            ensureCapacity(1);
+            bytes[length++] = (byte) c;
+        } else {
+            appendEncoded(CharBuffer.wrap(new char[] { c }));
+        }
+
+    }
+
+
+    /**
+     * Append the specified String, if it is not <code>null</code>.
+     *
+     * @param s The String
+     */
+    public void append(String s) {
+
+        if (s == null)
+            return;
+        int n = s.length();
+        ensureCapacity(n);
+        for (int i = 0; i < n; i++) {
+            char c = s.charAt(i);
+            if (c >= 0x80) {
+                appendEncoded(CharBuffer.wrap(s, i, n));
+                return;
+            }
+            bytes[length++] = (byte) c;
+        }
+
+    }
+
+
+    /**
+     * Append the specified characters.
+     *
+     * @param c The array containing the characters
+     * @param off Offset of the characters in the array
+     * @param len Number of characters
+     */
+    public void append(char[] c, int off, int len) {
+
+        ensureCapacity(len);
+        int end = off + len;
+        for (int i = off; i < end; i++) {
+            if (c[i] >= 0x80) {
+                appendEncoded(CharBuffer.wrap(c, i, end - i));
+                return;
+            }
+            bytes[length++] = (byte) c[i];
+        }
+
+    }
+
+
+    /**
+     * Append the specified bytes, which are interpreted as ISO-8859-1
+     * characters.
+     *
+     * @param b The array containing the bytes
+     * @param off Offset of the bytes in the array
+     * @param len Number of bytes
+     */
+    public void append(byte[] b, int off, int len) {
+
+        ensureCapacity(len);
+        int end = off + len;
+        for (int i = off; i < end; i++) {
+            if (b[i] < 0) {
+                append((char) (b[i] & 0xff));
+            } else {
+                bytes[length++] = b[i];
+            }
+        }
+
+    }
+
+
+    /**
+     * Append the value of the specified <code>MessageBytes</code>, if it
+     * is not null.
+     *
+     * @param mb The value
+     */
+    public void append(MessageBytes mb) {
+
+        if ((mb == null) || mb.isNull())
+            return;
+        switch (mb.getType()) {
+        case MessageBytes.T_BYTES:
+            ByteChunk bc = mb.getByteChunk();
+            append(bc.getBytes(), bc.getStart(), bc.getLength());
+            break;
+        case MessageBytes.T_CHARS:
+            CharChunk cc = mb.getCharChunk();
+            append(cc.getBuffer(), cc.getStart(), cc.getLength());
+            break;
+        default:
+            append(mb.toString());
+        }
+
+    }
+
+
+    /**
+     * Append the decimal representation of the specified number.
+     *
+     * @param value The number
+     */
+    public void append(long value) {
+
+        if (value == Long.MIN_VALUE) {
+            append(String.valueOf(value));
+            return;
+        }
+        if (value < 0) {
+            append('-');
+            value = -value;
+        }
+        int n = 0;
+        do {
+            digits[n++] = (byte) ('0' + (value % 10));
+            value /= 10;
+        } while (value > 0);
+        ensureCapacity(n);
+        while (n > 0) {
+            bytes[length++] = digits[--n];
+        }
+
+    }
+
+
+    /**
+     * Append the specified number, padded with zeros to the specified
+     * number of digits.
+     *
+     * @param value The number, which must be positive
+     * @param width The minimum number of digits
+     */
+    public void append(long value, int width) {
+
+        long limit = 1;
+        for (int i = 1; i < width; i++) {
+            limit *= 10;
+            if (value < limit)
+                append('0');
+        }
+        append(value);
+
+    }
+
+
+    /**
+     * Append the specified bytes as is.
+     *
+     * @param b The array containing the bytes
+     * @param off Offset of the bytes in the array
+     * @param len Number of bytes
+     */
+    public void appendBytes(byte[] b, int off, int len) {
+
+        ensureCapacity(len);
+        System.arraycopy(b, off, bytes, length, len);
+        length += len;
+
+    }
+
+
+    /**
+     * Append the specified bytes, escaped for use in a JSON string.  Quotes,
+     * backslashes and control characters are escaped, and all other bytes
+     * are appended as is.
+     *
+     * @param b The array containing the bytes
+     * @param off Offset of the bytes in the array
+     * @param len Number of bytes
+     */
+    public void appendEscaped(byte[] b, int off, int len) {
+
+        ensureCapacity(len);
+        int end = off + len;
+        for (int i = off; i < end; i++) {
+            byte c = b[i];
+            if ((c == '"') || (c == '\\')) {
+                ensureCapacity(end - i + 1);
+                bytes[length++] = '\\';
+                bytes[length++] = c;
+            } else if ((c >= 0) && (c < 0x20)) {
+                ensureCapacity(end - i + 5);
+                bytes[length++] = '\\';
+                bytes[length++] = 'u';
+                bytes[length++] = '0';
+                bytes[length++] = '0';
+                bytes[length++] = HEX[c >> 4];
+                bytes[length++] = HEX[c & 0xf];
+            } else {
+                bytes[length++] = c;
+            }
+        }
+
+    }
+
+
+    /**
+     * Append the specified number, which must be positive, as a variable
+     * length integer: seven bits per byte, least significant bits first,
+     * with the high bit set on all bytes but the last.
+     *
+     * @param value The number
+     */
+    public void appendVarint(long value) {
+
+        ensureCapacity(10);
+        while ((value & ~0x7fL) != 0) {
+            bytes[length++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        bytes[length++] = (byte) value;
+
+    }
+
+
+    // ------------------------------------------------------ Protected Methods
+
+
+    /**
+     * Make sure the buffer can hold the specified number of additional
+     * bytes.
+     *
+     * @param n The number of bytes
+     */
+    protected void ensureCapacity(int n) {
+
+        if (length + n > bytes.length) {
+            byte[] newBytes = new byte[Math.max(length + n, bytes.length * 2)];
+            System.arraycopy(bytes, 0, newBytes, 0, length);
+            bytes = newBytes;
+        }
+
+    }
+
+
+    /**
+     * Append the specified characters using the encoder.
+     *
+     * @param chars The characters
+     */
+    protected void appendEncoded(CharBuffer chars) {
+
+        ensureCapacity((int) Math.ceil
+                       (chars.remaining() * encoder.maxBytesPerChar()));
+        ByteBuffer out = ByteBuffer.wrap(bytes, length, bytes.length - length);
+        encoder.reset();
+        encoder.encode(chars, out, true);
+        encoder.flush(out);
+        length = out.position();
+
+    }
+
+
+}
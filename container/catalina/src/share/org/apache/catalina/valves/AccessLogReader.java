@@ -0,0 +1,473 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apache.catalina.valves;
+
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.io.StreamCorruptedException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.catalina.util.StringManager;
+
+
+/**
+ * Reader for the access log files written by <code>AccessLogValve</code>,
+ * which also defines the format of the binary files.  Compressed files are
+ * detected and uncompressed.
+ * <p>
+ * A binary file starts with a header made of the magic number
+ * <code>TCAL</code>, the version of the format (one byte), the number of
+ * elements of the pattern, and the elements, each of them made of its type
+ * (one byte) and its constant text or its name, such as <code>%h</code> or
+ * <code>%{Referer}i</code>.  The records follow, made of the values of the
+ * elements which are not constant text: the time as a number of
+ * milliseconds, and the other values as their length followed by their
+ * bytes.  Numbers are written as variable length integers, and text is
+ * encoded in UTF-8.
+ * <p>
+ * The <code>main</code> method prints access log files in the text format,
+ * or as JSON lines when the <code>-json</code> option is specified.  Files
+ * which are not binary files are printed as is.
+ *
+ * @version $Id$
+ */
+
+public class AccessLogReader {
+
+
+    // -------------------------------------------------------------- Constants
+
+
+    /**
+     * The magic number at the start of binary files.
+     */
+    public static final byte[] MAGIC = { 'T', 'C', 'A', 'L' };
+
+
+    /**
+     * The version of the binary format.
+     */
+    public static final int VERSION = 1;
+
+
+    /**
+     * Element type: constant text.
+     */
+    public static final int ELEMENT_TEXT = 0;
+
+
+    /**
+     * Element type: value.
+     */
+    public static final int ELEMENT_VALUE = 1;
+
+
+    /**
+     * Element type: time at which the request completed, in milliseconds.
+     */
+    public static final int ELEMENT_TIME = 2;
+
+
+    // ----------------------------------------------------------- Constructors
+
+
+    /**
+     * Construct a reader for the specified stream.
+     *
+     * @param stream The stream containing the access log
+     *
+     * @exception IOException if an input/output error occurs
+     */
+    public AccessLogReader(InputStream stream)
+        throws IOException {
+
+        if (!stream.markSupported())
+            stream = new BufferedInputStream(stream);
+
+        // Uncompress the stream if needed
+        stream.mark(2);
+        if ((stream.read() == 0x1f) && (stream.read() == 0x8b)) {
+            stream.reset();
+            stream = new BufferedInputStream(new GZIPInputStream(stream));
+        } else {
+            stream.reset();
+        }
+        this.stream = stream;
+
+        // Read the header of binary files
+        stream.mark(MAGIC.length);
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (stream.read() != MAGIC[i]) {
+                stream.reset();
+                return;
+            }
+        }
+        int version = stream.read();
+        if (version != VERSION)
+            throw new StreamCorruptedException
+                (sm.getString("accessLogReader.invalidVersion",
+                              String.valueOf(version)));
+        int n = (int) readVarint();
+        types = new int[n];
+        texts = new String[n];
+        int count = 0;
+        for (int i = 0; i < n; i++) {
+            types[i] = readByte();
+            texts[i] = readString();
+            if (types[i] != ELEMENT_TEXT)
+                count++;
+        }
+        names = new String[count];
+        count = 0;
+        for (int i = 0; i < n; i++) {
+            if (types[i] != ELEMENT_TEXT)
+                names[count++] = texts[i];
+        }
+
+    }
+
+
+    // ----------------------------------------------------- Instance Variables
+
+
+    /**
+     * The stream from which the access log is read.
+     */
+    protected InputStream stream = null;
+
+
+    /**
+     * The types of the elements of the pattern, or <code>null</code> if
+     * this is not a binary file.
+     */
+    protected int[] types = null;
+
+
+    /**
+     * The constant text or the name of the elements of the pattern.
+     */
+    protected String[] texts = null;
+
+
+    /**
+     * The names of the values of the records.
+     */
+    protected String[] names = null;
+
+
+    /**
+     * Scratch buffer used to read the values.
+     */
+    protected byte[] buffer = new byte[256];
+
+
+    /**
+     * The formatter used for the time, in Common Log Format.
+     */
+    protected SimpleDateFormat dateFormatter =
+        new SimpleDateFormat("[dd/MMM/yyyy:HH:mm:ss Z]", Locale.US);
+
+
+    /**
+     * The string manager for this package.
+     */
+    protected static StringManager sm =
+        StringManager.getManager(Constants.Package);
+
+
+    // ------------------------------------------------------------- Properties
+
+
+    /**
+     * Is this a binary file?
+     */
+    public boolean isBinary() {
+
+        return (types != null);
+
+    }
+
+
+    /**
+     * Return the names of the values of the records, such as
+     * <code>%h</code>, or <code>null</code> if this is not a binary file.
+     */
+    public String[] getNames() {
+
+        return (names);
+
+    }
+
+
+    // --------------------------------------------------------- Public Methods
+
+
+    /**
+     * Read the next record of a binary file, and return its values, in the
+     * order of <code>getNames()</code>.  The time is returned as a number
+     * of milliseconds.  Return <code>null</code> at the end of the file.
+     *
+     * @exception IOException if an input/output error occurs, or if the
+     *  file is truncated
+     */
+    public String[] readRecord()
+        throws IOException {
+
+        if (types == null)
+            return (null);
+        stream.mark(1);
+        if (stream.read() < 0)
+            return (null);
+        stream.reset();
+
+        String[] values = new String[names.length];
+        int count = 0;
+        for (int i = 0; i < types.length; i++) {
+            if (types[i] == ELEMENT_TIME)
+                values[count++] = String.valueOf(readVarint());
+            else if (types[i] != ELEMENT_TEXT)
+                values[count++] = readString();
+        }
+        return (values);
+
+    }
+
+
+    /**
+     * Format the specified record like the text format would have.
+     *
+     * @param values The values of the record
+     */
+    public String formatText(String[] values) {
+
+        StringBuffer result = new StringBuffer();
+        int count = 0;
+        for (int i = 0; i < types.length; i++) {
+            if (types[i] == ELEMENT_TEXT) {
+                result.append(texts[i]);
+            } else if (types[i] == ELEMENT_TIME) {
+                long time = Long.parseLong(values[count++]);
+                result.append(dateFormatter.format(new Date(time)));
+            } else {
+                result.append(values[count++]);
+            }
+        }
+        return (result.toString());
+
+    }
+
+
+    /**
+     * Format the specified record like the JSON format would have.
+     *
+     * @param values The values of the record
+     */
+    public String formatJson(String[] values) {
+
+        StringBuffer result = new StringBuffer();
+        result.append('{');
+        int count = 0;
+        for (int i = 0; i < types.length; i++) {
+            if (types[i] == ELEMENT_TEXT)
+                continue;
+            if (count > 0)
+                result.append(',');
+            appendJson(result, texts[i]);
+            result.append(':');
+            if (types[i] == ELEMENT_TIME)
+                result.append(values[count++]);
+            else
+                appendJson(result, values[count++]);
+        }
+        result.append('}');
+        return (result.toString());
+
+    }
+
+
+    /**
+     * Close the reader.
+     *
+     * @exception IOException if an input/output error occurs
+     */
+    public void close()
+        throws IOException {
+
+        stream.close();
+
+    }
+
+
+    /**
+     * Print the specified access log files.
+     *
+     * @param args The command line arguments
+     */
+    public static void main(String args[]) {
+
+        boolean json = false;
+        int first = 0;
+        if ((args.length > 0) && args[0].equals("-json")) {
+            json = true;
+            first++;
+        }
+        if (first == args.length) {
+            System.err.println(sm.getString("accessLogReader.usage"));
+            System.exit(1);
+        }
+
+        PrintStream out = System.out;
+        for (int i = first; i < args.length; i++) {
+            AccessLogReader reader = null;
+            try {
+                reader = new AccessLogReader(new FileInputStream(args[i]));
+                if (reader.isBinary()) {
+                    String[] values = null;
+                    while ((values = reader.readRecord()) != null) {
+                        if (json)
+                            out.println(reader.formatJson(values));
+                        else
+                            out.println(reader.formatText(values));
+                    }
+                } else {
+                    byte[] buffer = new byte[8192];
+                    int n = 0;
+                    while ((n = reader.stream.read(buffer)) >= 0)
+                        out.write(buffer, 0, n);
+                }
+            } catch (IOException e) {
+                out.flush();
+                System.err.println(sm.getString("accessLogReader.error",
+                                                args[i], e.toString()));
+            } finally {
+                if (reader != null) {
+                    try {
+                        reader.close();
+                    } catch (IOException e) {
+                        ;
+                    }
+                }
+            }
+        }
+        out.flush();
+
+    }
+
+
+    // ------------------------------------------------------ Protected Methods
+
+
+    /**
+     * Read one byte.
+     *
+     * @exception IOException if an input/output error occurs
+     */
+    protected int readByte()
+        throws IOException {
+
+        int b = stream.read();
+        if (b < 0)
+            throw new EOFException();
+        return (b);
+
+    }
+
+
+    /**
+     * Read a variable length integer.
+     *
+     * @exception IOException if an input/output error occurs
+     */
+    protected long readVarint()
+        throws IOException {
+
+        long value = 0;
+        int shift = 0;
+        while (true) {
+            int b = readByte();
+            value |= ((long) (b & 0x7f)) << shift;
+            if ((b & 0x80) == 0)
+                return (value);
+            shift += 7;
+            if (shift > 63)
+                throw new StreamCorruptedException();
+        }
+
+    }
+
+
+    /**
+     * Read a String, made of its length and its bytes in UTF-8.
+     *
+     * @exception IOException if an input/output error occurs
+     */
+    protected String readString()
+        throws IOException {
+
+        int length = (int) readVarint();
+        if (length > buffer.length)
+            buffer = new byte[Math.max(length, buffer.length * 2)];
+        int pos = 0;
+        while (pos < length) {
+            int n = stream.read(buffer, pos, length - pos);
+            if (n < 0)
+                throw new EOFException();
+            pos += n;
+        }
+        return (new String(buffer, 0, length, "UTF-8"));
+
+    }
+
+
+    /**
+     * Append the specified String as a JSON string.
+     *
+     * @param result The buffer to which the String is appended
+     * @param s The String
+     */
+    protected static void appendJson(StringBuffer result, String s) {
+
+        result.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if ((c == '"') || (c == '\\')) {
+                result.append('\\');
+                result.append(c);
+            } else if (c < 0x20) {
+                result.append("\\u00");
+                result.append(Character.forDigit(c >> 4, 16));
+                result.append(Character.forDigit(c & 0xf, 16));
+            } else {
+                result.append(c);
+            }
+        }
+        result.append('"');
+
+    }
+
+
+}
@@ -19,15 +19,20 @@
 package org.apache.catalina.valves;
 
 
+import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
 import java.net.InetAddress;
-import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.TimeZone;
+import java.util.zip.GZIPOutputStream;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.Cookie;
@@ -41,6 +46,7 @@ import org.apache.catalina.connector.Response;
 import org.apache.catalina.util.LifecycleSupport;
 import org.apache.catalina.util.StringManager;
 import org.apache.coyote.RequestInfo;
+import org.apache.tomcat.util.buf.MessageBytes;
 
 
 /**
@@ -105,6 +111,26 @@ import org.apache.coyote.RequestInfo;
  * yields a non-null value. The logging will be skipped.
  * </p>
  *
+ * <p>
+ * The pattern is compiled once into a list of elements, which format the
+ * log line directly into a reusable per thread buffer.
+ * </p>
+ *
+ * <p>
+ * When the <code>async</code> property is set, the log lines are written
+ * to the log file, which is also rotated, by a background thread, and the
+ * request threads only queue them.
+ * </p>
+ *
+ * <p>
+ * The <code>format</code> property selects the format of the log file:
+ * <code>text</code> lines formatted with the pattern, <code>json</code>
+ * lines holding the values of the pattern, or <code>binary</code> records
+ * holding the values of the pattern, which can be read with
+ * <code>AccessLogReader</code>.  The log files can also be compressed, and
+ * rotated once they reach a given size.
+ * </p>
+ *
  * @author Craig R. McClanahan
  * @author Jason Brittain
  * @author Peter Rossbach
@@ -112,7 +138,7 @@ import org.apache.coyote.RequestInfo;
  */
 
 public class AccessLogValve
-    extends ValveBase
+    extends AsyncLogValveBase
     implements Lifecycle {
 
 
@@ -121,6 +147,12 @@ public class AccessLogValve
 
     private static final char MARK_EMPTY = '-';
 
+    private static final int FORMAT_TEXT = 0;
+    private static final int FORMAT_JSON = 1;
+    private static final int FORMAT_BINARY = 2;
+
+    private static final String[] FORMATS = { "text", "json", "binary" };
+
     /**
      * Construct a new instance of this class with default property values.
      */
@@ -191,6 +223,49 @@ public class AccessLogValve
     private String pattern = null;
 
 
+    /**
+     * The elements the pattern has been compiled to.
+     */
+    private AccessLogElement[] logElements = new AccessLogElement[0];
+
+
+    /**
+     * The header written at the start of binary log files.
+     */
+    private byte[] header = null;
+
+
+    /**
+     * The format of the log files.
+     */
+    private int format = FORMAT_TEXT;
+
+
+    /**
+     * Should the log files be compressed?
+     */
+    private boolean compress = false;
+
+
+    /**
+     * The size of the log files above which they are rotated, or 0 if
+     * they are never rotated based on their size.
+     */
+    private long maxFileSize = 0;
+
+
+    /**
+     * The index of the currently open log file, for the as-of date.
+     */
+    private int fileIndex = 0;
+
+
+    /**
+     * The number of bytes in the currently open log file.
+     */
+    private volatile long fileSize = 0;
+
+
     /**
      * The prefix that is added to log file filenames.
      */
@@ -223,16 +298,17 @@ public class AccessLogValve
 
 
     /**
-     * The PrintWriter to which we are currently logging, if any.
+     * A date formatter to format a Date into a date in the format
+     * "yyyy-MM-dd".
      */
-    private PrintWriter writer = null;
+    private SimpleDateFormat fileDateFormatter = null;
 
 
     /**
-     * A date formatter to format a Date into a date in the format
-     * "yyyy-MM-dd".
+     * The decimal separator of the default locale, used for the time taken
+     * to process the request in seconds.
      */
-    private SimpleDateFormat fileDateFormatter = null;
+    private char decimalSeparator = '.';
 
 
     /**
@@ -272,7 +348,8 @@ public class AccessLogValve
         private SimpleDateFormat monthFormatter = new SimpleDateFormat("MM");
         private SimpleDateFormat yearFormatter = new SimpleDateFormat("yyyy");
         private SimpleDateFormat timeFormatter = new SimpleDateFormat("HH:mm:ss");
-        private DecimalFormat timeTakenFormatter;
+        private AccessLogBuffer buffer = new AccessLogBuffer();
+        private AccessLogBuffer field = new AccessLogBuffer("UTF-8");
 
         public AccessDateStruct() {
             dayFormatter.setTimeZone(timezone);
@@ -312,16 +389,6 @@ public class AccessLogValve
             }
             return currentDateString;
         }
-
-        /**
-         * Format the time taken value for 3 decimal places.
-         */
-        public String formatTimeTaken(long time) {
-            if (timeTakenFormatter == null) {
-                timeTakenFormatter = new DecimalFormat("0.000");
-            }
-            return timeTakenFormatter.format(time/1000d);
-        }
     }
 
     private static ThreadLocal currentDateStruct = new ThreadLocal() {
@@ -336,6 +403,12 @@ public class AccessLogValve
     private static final char space = ' ';
 
 
+    /**
+     * The local IP address, which is looked up once.
+     */
+    private static String localAddress = null;
+
+
     /**
      * Resolve hosts.
      */
@@ -359,6 +432,12 @@ public class AccessLogValve
      */
     private String fileDateFormat = null;
 
+
+    /**
+     * The stream to which we are currently logging, if any.
+     */
+    private OutputStream stream = null;
+
     // ------------------------------------------------------------- Properties
 
 
@@ -429,6 +508,9 @@ public class AccessLogValve
         else
             combined = false;
 
+        logElements = createLogElements(this.pattern);
+        header = createHeader(logElements);
+
     }
 
 
@@ -559,6 +641,82 @@ public class AccessLogValve
         this.fileDateFormat =  fileDateFormat;
     }
 
+
+    /**
+     * Return the format of the log files.
+     */
+    public String getFormat() {
+
+        return (FORMATS[format]);
+
+    }
+
+
+    /**
+     * Set the format of the log files: <code>text</code>, <code>json</code>
+     * or <code>binary</code>.  This takes effect when the valve is started.
+     *
+     * @param format The new format
+     */
+    public void setFormat(String format) {
+
+        for (int i = 0; i < FORMATS.length; i++) {
+            if (FORMATS[i].equalsIgnoreCase(format)) {
+                this.format = i;
+                return;
+            }
+        }
+        throw new IllegalArgumentException
+            (sm.getString("accessLogValve.invalidFormat", format));
+
+    }
+
+
+    /**
+     * Should the log files be compressed?
+     */
+    public boolean isCompress() {
+
+        return (compress);
+
+    }
+
+
+    /**
+     * Set the value if the log files should be compressed with gzip.  This
+     * takes effect when the valve is started.
+     *
+     * @param compress true if the log files are compressed
+     */
+    public void setCompress(boolean compress) {
+
+        this.compress = compress;
+
+    }
+
+
+    /**
+     * Return the size of the log files above which they are rotated.
+     */
+    public long getMaxFileSize() {
+
+        return (maxFileSize);
+
+    }
+
+
+    /**
+     * Set the size of the log files above which they are rotated, or 0 if
+     * they should never be rotated based on their size.
+     *
+     * @param maxFileSize The new size, in bytes
+     */
+    public void setMaxFileSize(long maxFileSize) {
+
+        this.maxFileSize = maxFileSize;
+
+    }
+
     // --------------------------------------------------------- Public Methods
 
 
@@ -590,109 +748,23 @@ public class AccessLogValve
 
 
         AccessDateStruct struct = (AccessDateStruct) currentDateStruct.get();
-        Date date = struct.getDate();
-        StringBuffer result = new StringBuffer(128);
-
-        // Check to see if we should log using the "common" access log pattern
-        if (common || combined) {
-            String value;
-
-            if (isResolveHosts())
-                result.append(request.getRemoteHost());
-            else
-                result.append(request.getRemoteAddr());
-
-            result.append(" - ");
-
-            value = request.getRemoteUser();
-            if (value == null)
-                result.append("- ");
-            else {
-                result.append(value);
-                result.append(space);
-            }
-
-            result.append(struct.getCurrentDateString());
-
-            result.append(" \"");
-            result.append(request.getMethod());
-            result.append(space);
-            result.append(request.getRequestURI());
-            if (request.getQueryString() != null) {
-                result.append('?');
-                result.append(request.getQueryString());
+        struct.getDate();
+        AccessLogBuffer result = struct.buffer;
+        result.reset();
+
+        // Generate a message based on the compiled pattern
+        AccessLogElement[] elements = logElements;
+        if (format == FORMAT_TEXT) {
+            for (int i = 0; i < elements.length; i++) {
+                elements[i].addElement(result, struct, request, response,
+                                       time);
             }
-            result.append(space);
-            result.append(request.getProtocol());
-            result.append("\" ");
-
-            result.append(response.getStatus());
-
-            result.append(space);
-
-            long length = response.getContentCountLong() ;
-            if (length <= 0)
-                result.append(MARK_EMPTY);
-            else
-                result.append(length);
-
-            if (combined) {
-                result.append(space);
-                result.append('\"');
-                String referer = request.getHeader("referer");
-                if(referer != null)
-                    result.append(referer);
-                else
-                    result.append(MARK_EMPTY);
-                result.append('\"');
-
-                result.append(space);
-                result.append('\"');
-                String ua = request.getHeader("user-agent");
-                if(ua != null)
-                    result.append(ua);
-                else
-                    result.append(MARK_EMPTY);
-                result.append('\"');
-            }
-
+            result.append(AsyncLogWriter.LINE_SEPARATOR);
         } else {
-            // Generate a message based on the defined pattern
-            boolean replace = false;
-            for (int i = 0; i < pattern.length(); i++) {
-                char ch = pattern.charAt(i);
-                if (replace) {
-                    /* For code that processes {, the behavior will be ... if I
-                     * do not enounter a closing } - then I ignore the {
-                     */
-                    if ('{' == ch){
-                        int j = i + 1;
-                        for(;j < pattern.length() && '}' != pattern.charAt(j); j++) {
-                            // loop through characters that are part of the name
-                        }
-                        if (j+1 < pattern.length()) {
-                            /* the +1 was to account for } which we increment now */
-                            j++;
-                            replace(result, pattern.substring(i + 1, j - 1),
-                                    pattern.charAt(j), request, response);
-                            i=j; /*Since we walked more than one character*/
-                        } else {
-                            //D'oh - end of string - pretend we never did this
-                            //and do processing the "old way"
-                            replace(result, ch, struct, request, response, time);
-                        }
-                    } else {
-                        replace(result, ch, struct, request, response,time );
-                    }
-                    replace = false;
-                } else if (ch == '%') {
-                    replace = true;
-                } else {
-                    result.append(ch);
-                }
-            }
+            addRecord(result, elements, struct, request, response, time,
+                      t2);
         }
-        log(result.toString(), date);
+        log(result);
 
     }
 
@@ -705,11 +777,14 @@ public class AccessLogValve
      */
     private synchronized void close() {
 
-        if (writer == null)
+        if (stream == null)
             return;
-        writer.flush();
-        writer.close();
-        writer = null;
+        try {
+            stream.close();
+        } catch (IOException e) {
+            ;
+        }
+        stream = null;
         dateStamp = "";
 
     }
@@ -717,7 +792,8 @@ public class AccessLogValve
 
     /**
      * Log the specified message to the log file, switching files if the date
-     * has changed since the previous log call.
+     * has changed since the previous log call.  The message is ignored
+     * unless the log file is in the text format.
      *
      * @param message Message to be logged
      * @param date the current Date object (so this method doesn't need to
@@ -725,6 +801,121 @@ public class AccessLogValve
      */
     public void log(String message, Date date) {
 
+        if (format != FORMAT_TEXT)
+            return;
+
+        AccessDateStruct struct = (AccessDateStruct) currentDateStruct.get();
+        AccessLogBuffer buffer = struct.buffer;
+        buffer.reset();
+        buffer.append(message);
+        buffer.append(AsyncLogWriter.LINE_SEPARATOR);
+        log(buffer);
+
+    }
+
+
+    /**
+     * Log the formatted line contained in the specified buffer, switching
+     * files if the date has changed since the previous log call.
+     *
+     * @param buffer The buffer containing the line
+     */
+    private void log(AccessLogBuffer buffer) {
+
+        // Hand the line over to the background writer
+        if (logAsync(buffer.getBytes(), 0, buffer.getLength()))
+            return;
+
+        rotate();
+
+        // Log this line
+        synchronized(this) {
+            if (stream != null) {
+                try {
+                    stream.write(buffer.getBytes(), 0, buffer.getLength());
+                    stream.flush();
+                } catch (IOException e) {
+                    ;
+                }
+            }
+        }
+
+    }
+
+
+    /**
+     * Add a record holding the values of the specified elements, in the JSON
+     * or binary format.
+     *
+     * @param result AccessLogBuffer that accumulates the record
+     * @param elements The elements of the pattern
+     * @param struct the object containing current Date
+     * @param request Request being processed
+     * @param response Response being processed
+     * @param time Time taken to process the request
+     * @param date Time at which the request completed, in milliseconds
+     */
+    private void addRecord(AccessLogBuffer result,
+            AccessLogElement[] elements, AccessDateStruct struct,
+            Request request, Response response, long time, long date) {
+
+        boolean json = (format == FORMAT_JSON);
+        AccessLogBuffer field = struct.field;
+        int count = 0;
+
+        if (json)
+            result.append('{');
+        for (int i = 0; i < elements.length; i++) {
+            int type = elements[i].getType();
+            if (type == AccessLogReader.ELEMENT_TEXT)
+                continue;
+            if (json) {
+                if (count > 0)
+                    result.append(',');
+                byte[] name = elements[i].getName();
+                result.append('"');
+                result.appendEscaped(name, 0, name.length);
+                result.append('"');
+                result.append(':');
+            }
+            count++;
+            if (type == AccessLogReader.ELEMENT_TIME) {
+                // The date of the text format is only refreshed once per
+                // second, while the records have millisecond precision
+                if (json)
+                    result.append(date);
+                else
+                    result.appendVarint(date);
+            } else {
+                field.reset();
+                elements[i].addElement(field, struct, request, response,
+                                       time);
+                if (json) {
+                    result.append('"');
+                    result.appendEscaped(field.getBytes(), 0,
+                                         field.getLength());
+                    result.append('"');
+                } else {
+                    result.appendVarint(field.getLength());
+                    result.appendBytes(field.getBytes(), 0,
+                                       field.getLength());
+                }
+            }
+        }
+        if (json) {
+            result.append('}');
+            result.append('\n');
+        }
+
+    }
+
+
+    /**
+     * Switch log files if the date has changed since the last check, or if
+     * the current log file has reached its maximum size.
+     */
+    private void rotate() {
+
         if (rotatable){
             // Only do a logfile switch check once a second, max.
             long systime = System.currentTimeMillis();
@@ -741,6 +932,7 @@ public class AccessLogValve
                         if (!dateStamp.equals(tsDate)) {
                             close();
                             dateStamp = tsDate;
+                            fileIndex = 0;
                             open();
                         }
                     }
@@ -748,10 +940,15 @@ public class AccessLogValve
             }
         }
 
-        // Log this message
-        synchronized(this) {
-            if (writer != null) {
-                writer.println(message);
+        if ((maxFileSize > 0) && (fileSize >= maxFileSize)) {
+            synchronized(this) {
+                if ((stream != null) && (fileSize >= maxFileSize)) {
+                    String tsDate = dateStamp;
+                    close();
+                    dateStamp = tsDate;
+                    fileIndex++;
+                    open();
+                }
             }
         }
 
@@ -788,21 +985,185 @@ public class AccessLogValve
             dir = new File(System.getProperty("catalina.base"), directory);
         dir.mkdirs();
 
+        // Skip the log files which are full, or which can't be appended to
+        boolean append = (format == FORMAT_TEXT) && !compress;
+        File file = getLogFile(dir);
+        while (append ? ((maxFileSize > 0) && (file.length() >= maxFileSize))
+               : (file.length() > 0)) {
+            fileIndex++;
+            file = getLogFile(dir);
+        }
+
         // Open the current log file
         try {
-            String pathname;
-            // If no rotate - no need for dateStamp in fileName
-            if (rotatable){
-                pathname = dir.getAbsolutePath() + File.separator +
-                            prefix + dateStamp + suffix;
+            fileSize = file.length();
+            OutputStream out =
+                new CountingOutputStream(new FileOutputStream(file, true));
+            if (compress)
+                out = new GZIPOutputStream(out);
+            stream = new BufferedOutputStream(out, 32768);
+            if (format == FORMAT_BINARY)
+                stream.write(header);
+        } catch (IOException e) {
+            stream = null;
+        }
+
+    }
+
+
+    /**
+     * Return the log file for the date specified by <code>dateStamp</code>
+     * and the index specified by <code>fileIndex</code>.
+     *
+     * @param dir The directory of the log files
+     */
+    private File getLogFile(File dir) {
+
+        // If no rotate - no need for dateStamp in fileName
+        String name = rotatable ? (prefix + dateStamp) : prefix;
+        if (fileIndex > 0) {
+            if (!name.endsWith("."))
+                name = name + ".";
+            name = name + fileIndex;
+        }
+        name = name + suffix;
+        if (compress)
+            name = name + ".gz";
+        return (new File(dir, name));
+
+    }
+
+
+    /**
+     * Create the header of binary log files for the specified elements.
+     *
+     * @param elements The elements of the pattern
+     */
+    private static byte[] createHeader(AccessLogElement[] elements) {
+
+        AccessLogBuffer result = new AccessLogBuffer("UTF-8");
+        result.appendBytes(AccessLogReader.MAGIC, 0,
+                           AccessLogReader.MAGIC.length);
+        result.appendVarint(AccessLogReader.VERSION);
+        result.appendVarint(elements.length);
+        for (int i = 0; i < elements.length; i++) {
+            byte[] name = elements[i].getName();
+            result.appendVarint(elements[i].getType());
+            result.appendVarint(name.length);
+            result.appendBytes(name, 0, name.length);
+        }
+        byte[] header = new byte[result.getLength()];
+        System.arraycopy(result.getBytes(), 0, header, 0, header.length);
+        return (header);
+
+    }
+
+
+    /**
+     * Return the specified String encoded in UTF-8.
+     *
+     * @param s The String
+     */
+    private static byte[] getBytes(String s) {
+
+        try {
+            return (s.getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            return (s.getBytes());
+        }
+
+    }
+
+
+    /**
+     * Compile the specified pattern into a list of elements.
+     *
+     * @param pattern The pattern
+     */
+    private AccessLogElement[] createLogElements(String pattern) {
+
+        ArrayList list = new ArrayList();
+        StringBuffer buf = new StringBuffer();
+        boolean replace = false;
+        for (int i = 0; i < pattern.length(); i++) {
+            char ch = pattern.charAt(i);
+            if (replace) {
+                /* For code that processes {, the behavior will be ... if I
+                 * do not enounter a closing } - then I ignore the {
+                 */
+                if ('{' == ch){
+                    int j = i + 1;
+                    for(;j < pattern.length() && '}' != pattern.charAt(j); j++) {
+                        // loop through characters that are part of the name
+                    }
+                    if (j+1 < pattern.length()) {
+                        /* the +1 was to account for } which we increment now */
+                        j++;
+                        list.add(new HeaderElement(pattern.substring(i + 1, j - 1),
+                                                   pattern.charAt(j)));
+                        i=j; /*Since we walked more than one character*/
+                    } else {
+                        //D'oh - end of string - pretend we never did this
+                        //and do processing the "old way"
+                        list.add(new CodeElement(ch));
+                    }
+                } else {
+                    list.add(new CodeElement(ch));
+                }
+                replace = false;
+            } else if (ch == '%') {
+                replace = true;
+                if (buf.length() > 0) {
+                    list.add(new StringElement(buf.toString()));
+                    buf.setLength(0);
+                }
             } else {
-                pathname = dir.getAbsolutePath() + File.separator +
-                            prefix + suffix;
+                buf.append(ch);
             }
-            writer = new PrintWriter(new FileWriter(pathname, true), true);
-        } catch (IOException e) {
-            writer = null;
         }
+        if (buf.length() > 0) {
+            list.add(new StringElement(buf.toString()));
+        }
+        return ((AccessLogElement[])
+                list.toArray(new AccessLogElement[list.size()]));
+
+    }
+
+
+    /**
+     * Return the local IP address.
+     */
+    private static String getLocalAddress() {
+
+        if (localAddress == null) {
+            try {
+                localAddress = InetAddress.getLocalHost().getHostAddress();
+            } catch(Throwable e){
+                localAddress = "127.0.0.1";
+            }
+        }
+        return (localAddress);
+
+    }
+
+
+    /**
+     * Print the query string of the request, prepended with a '?', if
+     * it exists.
+     *
+     * @param result AccessLogBuffer that accumulates the log message text
+     * @param request Request being processed
+     */
+    private static void appendQueryString(AccessLogBuffer result,
+            Request request) {
+
+        MessageBytes query = request.getCoyoteRequest().queryString();
+        if (query.isNull())
+            return;
+        if ((query.getLength() == 0) && (request.getQueryString() == null))
+            return;
+        result.append('?');
+        result.append(query);
 
     }
 
@@ -810,14 +1171,14 @@ public class AccessLogValve
     /**
      * Print the replacement text for the specified pattern character.
      *
-     * @param result StringBuffer that accumulates the log message text
+     * @param result AccessLogBuffer that accumulates the log message text
      * @param pattern Pattern character identifying the desired text
      * @param struct the object containing current Date so that this method
      *        doesn't need to create one
      * @param request Request being processed
      * @param response Response being processed
      */
-    private void replace(StringBuffer result, char pattern,
+    private void replace(AccessLogBuffer result, char pattern,
             AccessDateStruct struct, Request request, Response response,
             long time) {
 
@@ -826,11 +1187,7 @@ public class AccessLogValve
         if (pattern == 'a') {
             value = request.getRemoteAddr();
         } else if (pattern == 'A') {
-            try {
-                value = InetAddress.getLocalHost().getHostAddress();
-            } catch(Throwable e){
-                value = "127.0.0.1";
-            }
+            value = getLocalAddress();
         } else if (pattern == 'b') {
             long length = response.getContentCountLong() ;
             if (length <= 0)
@@ -842,17 +1199,21 @@ public class AccessLogValve
             result.append(response.getContentCountLong());
             return;
         } else if (pattern == 'h') {
-            value = request.getRemoteHost();
+            // The common and combined patterns honor resolveHosts
+            if ((common || combined) && !isResolveHosts())
+                value = request.getRemoteAddr();
+            else
+                value = request.getRemoteHost();
         } else if (pattern == 'H') {
-            value = request.getProtocol();
+            result.append(request.getCoyoteRequest().protocol());
+            return;
         } else if (pattern == 'l') {
             result.append(MARK_EMPTY);
             return;
         } else if (pattern == 'm') {
             if (request != null)
-                value = request.getMethod();
-            else
-                value = "";
+                result.append(request.getCoyoteRequest().method());
+            return;
         } else if (pattern == 'p') {
             result.append(request.getServerPort());
             return;
@@ -860,23 +1221,17 @@ public class AccessLogValve
             result.append(time);
             return;
         } else if (pattern == 'q') {
-            String query = null;
             if (request != null)
-                query = request.getQueryString();
-            if (query != null)
-                result.append('?').append(query);
+                appendQueryString(result, request);
             return;
         } else if (pattern == 'r') {
             if (request != null) {
-                result.append(request.getMethod());
+                result.append(request.getCoyoteRequest().method());
                 result.append(space);
-                result.append(request.getRequestURI());
-                if (request.getQueryString() != null) {
-                    result.append('?');
-                    result.append(request.getQueryString());
-                }
+                result.append(request.getCoyoteRequest().requestURI());
+                appendQueryString(result, request);
                 result.append(space);
-                result.append(request.getProtocol());
+                result.append(request.getCoyoteRequest().protocol());
             } else {
                 result.append("- - -");
             }
@@ -901,7 +1256,10 @@ public class AccessLogValve
             result.append(struct.getCurrentDateString());
             return;
         } else if (pattern == 'T') {
-            result.append(struct.formatTimeTaken(time));
+            // Time taken in seconds, with 3 decimal places
+            result.append(time / 1000);
+            result.append(decimalSeparator);
+            result.append(time % 1000, 3);
             return;
         } else if (pattern == 'u') {
             if (request != null) {
@@ -914,14 +1272,15 @@ public class AccessLogValve
             result.append(MARK_EMPTY);
             return;
         } else if (pattern == 'U') {
-            if (request != null)
-                value = request.getRequestURI();
-            else {
+            if (request != null) {
+                result.append(request.getCoyoteRequest().requestURI());
+            } else {
                 result.append(MARK_EMPTY);
-                return;
             }
+            return;
         } else if (pattern == 'v') {
-            value = request.getServerName();
+            result.append(request.getCoyoteRequest().serverName());
+            return;
         } else if (pattern == 'I' ) {
             RequestInfo info = request.getCoyoteRequest().getRequestProcessor();
             if(info != null) {
@@ -931,7 +1290,9 @@ public class AccessLogValve
                 return;
             }
         } else {
-            result.append("???").append(pattern).append("???");
+            result.append("???");
+            result.append(pattern);
+            result.append("???");
             return;
         }
 
@@ -943,22 +1304,28 @@ public class AccessLogValve
     /**
      * Print the replacement text for the specified "header/parameter".
      *
-     * @param result StringBuffer that accumulates the log message text
+     * @param result AccessLogBuffer that accumulates the log message text
      * @param header The header/parameter to get
      * @param type Where to get it from i=input,c=cookie,r=ServletRequest,s=Session
      * @param request Request being processed
      * @param response Response being processed
      */
-    private void replace(StringBuffer result, String header, char type,
+    private void replace(AccessLogBuffer result, String header, char type,
             Request request, Response response) {
 
         Object value;
 
         switch (type) {
             case 'i':
-                if (null != request)
-                    value = request.getHeader(header);
-                else
+                if (null != request) {
+                    MessageBytes mb = request.getCoyoteRequest()
+                        .getMimeHeaders().getValue(header);
+                    if (mb != null) {
+                        result.append(mb);
+                        return;
+                    }
+                    value = null;
+                } else
                     value = "??";
                 break;
             case 'o':
@@ -1112,10 +1479,14 @@ public class AccessLogValve
             fileDateFormatter = new SimpleDateFormat(fileDateFormat);
             fileDateFormatter.setTimeZone(timezone);
             dateStamp = fileDateFormatter.format(new Date());
+            fileIndex = 0;
         }
+        decimalSeparator = new DecimalFormatSymbols().getDecimalSeparator();
 
         open();
 
+        startAsyncWriter(new LogTarget(), "AccessLogWriter[" + prefix + "]");
+
     }
 
 
@@ -1136,7 +1507,186 @@ public class AccessLogValve
         lifecycle.fireLifecycleEvent(STOP_EVENT, null);
         started = false;
 
+        // Write the queued log lines
+        stopAsyncWriter();
+
         close();
 
     }
+
+
+    // ----------------------------------------------- AccessLogElement Classes
+
+
+    /**
+     * An element of a compiled pattern.
+     */
+    private interface AccessLogElement {
+
+        public void addElement(AccessLogBuffer buf, AccessDateStruct struct,
+                               Request request, Response response,
+                               long time);
+
+        /**
+         * Return the type of the element, as written in binary log files.
+         */
+        public int getType();
+
+        /**
+         * Return the constant text or the name of the element, encoded in
+         * UTF-8.
+         */
+        public byte[] getName();
+
+    }
+
+
+    /**
+     * Constant text.
+     */
+    private static class StringElement implements AccessLogElement {
+
+        private String str;
+        private byte[] name;
+
+        public StringElement(String str) {
+            this.str = str;
+            this.name = getBytes(str);
+        }
+
+        public void addElement(AccessLogBuffer buf, AccessDateStruct struct,
+                               Request request, Response response,
+                               long time) {
+            buf.append(str);
+        }
+
+        public int getType() {
+            return (AccessLogReader.ELEMENT_TEXT);
+        }
+
+        public byte[] getName() {
+            return (name);
+        }
+
+    }
+
+
+    /**
+     * A pattern character, such as <code>%h</code>.
+     */
+    private class CodeElement implements AccessLogElement {
+
+        private char code;
+        private byte[] name;
+
+        public CodeElement(char code) {
+            this.code = code;
+            this.name = getBytes("%" + code);
+        }
+
+        public void addElement(AccessLogBuffer buf, AccessDateStruct struct,
+                               Request request, Response response,
+                               long time) {
+            replace(buf, code, struct, request, response, time);
+        }
+
+        public int getType() {
+            if (code == 't')
+                return (AccessLogReader.ELEMENT_TIME);
+            return (AccessLogReader.ELEMENT_VALUE);
+        }
+
+        public byte[] getName() {
+            return (name);
+        }
+
+    }
+
+
+    /**
+     * A header, cookie or attribute, such as <code>%{Referer}i</code>.
+     */
+    private class HeaderElement implements AccessLogElement {
+
+        private String header;
+        private char type;
+        private byte[] name;
+
+        public HeaderElement(String header, char type) {
+            this.header = header;
+            this.type = type;
+            this.name = getBytes("%{" + header + "}" + type);
+        }
+
+        public void addElement(AccessLogBuffer buf, AccessDateStruct struct,
+                               Request request, Response response,
+                               long time) {
+            replace(buf, header, type, request, response);
+        }
+
+        public int getType() {
+            return (AccessLogReader.ELEMENT_VALUE);
+        }
+
+        public byte[] getName() {
+            return (name);
+        }
+
+    }
+
+
+    // ---------------------------------------------- CountingOutputStream Class
+
+
+    /**
+     * Stream counting the bytes written to the current log file.
+     */
+    private class CountingOutputStream extends FilterOutputStream {
+
+        public CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        public void write(int b)
+            throws IOException {
+            out.write(b);
+            fileSize++;
+        }
+
+        public void write(byte[] b, int off, int len)
+            throws IOException {
+            out.write(b, off, len);
+            fileSize += len;
+        }
+
+    }
+
+
+    // -------------------------------------------------------- LogTarget Class
+
+
+    /**
+     * The target of the background writer, which writes to the current log
+     * file, switching files if the date has changed.
+     */
+    private class LogTarget implements AsyncLogWriter.Target {
+
+        public void write(byte[] b, int off, int len)
+            throws IOException {
+            rotate();
+            OutputStream stream = AccessLogValve.this.stream;
+            if (stream != null)
+                stream.write(b, off, len);
+        }
+
+        public void flush()
+            throws IOException {
+            OutputStream stream = AccessLogValve.this.stream;
+            if (stream != null)
+                stream.flush();
+        }
+
+    }
+
+
 }
@@ -0,0 +1,376 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apache.catalina.valves;
+
+
+/**
+ * Binary prefix trie of IPv4 and IPv6 address ranges, written in CIDR
+ * notation such as <code>192.168.0.0/16</code> or
+ * <code>2001:db8::/32</code>.  Testing whether an address belongs to one of
+ * the ranges walks at most one node per bit of the address, whatever the
+ * number of ranges.  IPv4-mapped IPv6 addresses are handled as IPv4
+ * addresses.
+ * <p>
+ * The nodes are held in arrays, where the children of node <i>n</i> are at
+ * indexes <i>2n</i> and <i>2n+1</i> of <code>children</code>.  A trie is
+ * not thread safe while ranges are added, and is meant to be built once
+ * and then only read, as many threads may do concurrently.
+ *
+ * @version $Id$
+ */
+
+public class AddressTrie {
+
+
+    // -------------------------------------------------------------- Constants
+
+
+    /**
+     * The root node of the IPv4 ranges.
+     */
+    protected static final int ROOT_IPV4 = 0;
+
+
+    /**
+     * The root node of the IPv6 ranges.
+     */
+    protected static final int ROOT_IPV6 = 1;
+
+
+    // ----------------------------------------------------- Instance Variables
+
+
+    /**
+     * The children of the nodes, 0 meaning no child since the roots are
+     * never children.
+     */
+    protected int[] children = new int[64];
+
+
+    /**
+     * The nodes which end a range, covering all their descendants.
+     */
+    protected boolean[] terminal = new boolean[32];
+
+
+    /**
+     * The number of nodes.
+     */
+    protected int nodeCount = 2;
+
+
+    /**
+     * The number of ranges.
+     */
+    protected int size = 0;
+
+
+    // ------------------------------------------------------------- Properties
+
+
+    /**
+     * Return the number of ranges which have been added.
+     */
+    public int size() {
+
+        return (size);
+
+    }
+
+
+    // --------------------------------------------------------- Public Methods
+
+
+    /**
+     * Add the specified range, in CIDR notation, or the specified single
+     * address.
+     *
+     * @param range The range
+     *
+     * @exception IllegalArgumentException if the range is not valid
+     */
+    public void add(String range) {
+
+        String address = range.trim();
+        int prefixLength = -1;
+        int slash = address.indexOf('/');
+        if (slash >= 0) {
+            try {
+                prefixLength =
+                    Integer.parseInt(address.substring(slash + 1).trim());
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException(range);
+            }
+            address = address.substring(0, slash).trim();
+        }
+        byte[] bytes = parseAddress(address);
+        if (bytes == null)
+            throw new IllegalArgumentException(range);
+        if (prefixLength < 0) {
+            prefixLength = bytes.length * 8;
+        } else if ((bytes.length == 4) && (address.indexOf(':') >= 0)) {
+            // IPv4-mapped IPv6 range
+            prefixLength -= 96;
+        }
+        if ((prefixLength < 0) || (prefixLength > bytes.length * 8))
+            throw new IllegalArgumentException(range);
+        add(bytes, prefixLength);
+
+    }
+
+
+    /**
+     * Add the range made of the specified number of leading bits of the
+     * specified address.
+     *
+     * @param address The address, made of 4 or 16 bytes
+     * @param prefixLength The number of significant bits
+     */
+    public void add(byte[] address, int prefixLength) {
+
+        int node = (address.length == 4) ? ROOT_IPV4 : ROOT_IPV6;
+        for (int i = 0; i < prefixLength; i++) {
+            if (terminal[node]) {
+                // Already covered by a larger range
+                size++;
+                return;
+            }
+            int index = 2 * node + ((address[i >> 3] >> (7 - (i & 7))) & 1);
+            if (children[index] == 0) {
+                // Grow the arrays before storing into them
+                int child = newNode();
+                children[index] = child;
+            }
+            node = children[index];
+        }
+        terminal[node] = true;
+        size++;
+
+    }
+
+
+    /**
+     * Return <code>true</code> if the specified address belongs to one of
+     * the ranges.
+     *
+     * @param address The address, made of 4 or 16 bytes
+     */
+    public boolean contains(byte[] address) {
+
+        int node = (address.length == 4) ? ROOT_IPV4 : ROOT_IPV6;
+        int bits = address.length * 8;
+        for (int i = 0; ; i++) {
+            if (terminal[node])
+                return (true);
+            if (i == bits)
+                return (false);
+            node = children[2 * node + ((address[i >> 3] >> (7 - (i & 7))) & 1)];
+            if (node == 0)
+                return (false);
+        }
+
+    }
+
+
+    /**
+     * Return <code>true</code> if the specified address, in textual form,
+     * belongs to one of the ranges.  Return <code>false</code> if it is
+     * not a valid IPv4 or IPv6 address.
+     *
+     * @param address The address
+     */
+    public boolean contains(String address) {
+
+        byte[] bytes = parseAddress(address);
+        return ((bytes != null) && contains(bytes));
+
+    }
+
+
+    /**
+     * Parse the specified IPv4 or IPv6 address, without any name lookup.
+     * Return the 4 bytes of IPv4 and IPv4-mapped IPv6 addresses, the 16
+     * bytes of other IPv6 addresses, or <code>null</code> if the address is
+     * not valid.
+     *
+     * @param address The address in textual form
+     */
+    public static byte[] parseAddress(String address) {
+
+        if (address == null)
+            return (null);
+        if (address.indexOf(':') < 0)
+            return (parseIPv4(address, 0, address.length()));
+
+        int end = address.length();
+        int start = 0;
+        if (address.startsWith("[") && address.endsWith("]")) {
+            start++;
+            end--;
+        }
+        int zone = address.indexOf('%', start);
+        if ((zone >= 0) && (zone < end))
+            end = zone;
+        return (parseIPv6(address, start, end));
+
+    }
+
+
+    // ------------------------------------------------------ Protected Methods
+
+
+    /**
+     * Allocate a new node, and return its index.
+     */
+    protected int newNode() {
+
+        if (nodeCount == terminal.length) {
+            int[] newChildren = new int[children.length * 2];
+            System.arraycopy(children, 0, newChildren, 0, children.length);
+            children = newChildren;
+            boolean[] newTerminal = new boolean[terminal.length * 2];
+            System.arraycopy(terminal, 0, newTerminal, 0, terminal.length);
+            terminal = newTerminal;
+        }
+        return (nodeCount++);
+
+    }
+
+
+    /**
+     * Parse the specified dotted decimal IPv4 address.
+     *
+     * @param s The String containing the address
+     * @param start Start of the address
+     * @param end End of the address
+     */
+    protected static byte[] parseIPv4(String s, int start, int end) {
+
+        byte[] result = new byte[4];
+        int count = 0;
+        int value = -1;
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c == '.') {
+                if ((value < 0) || (count == 3))
+                    return (null);
+                result[count++] = (byte) value;
+                value = -1;
+            } else if ((c >= '0') && (c <= '9')) {
+                value = ((value < 0) ? 0 : value * 10) + (c - '0');
+                if (value > 255)
+                    return (null);
+            } else {
+                return (null);
+            }
+        }
+        if ((value < 0) || (count != 3))
+            return (null);
+        result[count] = (byte) value;
+        return (result);
+
+    }
+
+
+    /**
+     * Parse the specified IPv6 address.
+     *
+     * @param s The String containing the address
+     * @param start Start of the address
+     * @param end End of the address
+     */
+    protected static byte[] parseIPv6(String s, int start, int end) {
+
+        int[] groups = new int[8];
+        int count = 0;
+        int gap = -1;
+        int i = start;
+
+        if (s.startsWith("::", i)) {
+            gap = 0;
+            i += 2;
+        } else if ((i < end) && (s.charAt(i) == ':')) {
+            return (null);
+        }
+        while (i < end) {
+            int groupStart = i;
+            int value = 0;
+            while ((i < end) && (s.charAt(i) != ':')) {
+                if (s.charAt(i) == '.') {
+                    // Embedded IPv4 address, which ends the address
+                    byte[] ipv4 = parseIPv4(s, groupStart, end);
+                    if ((ipv4 == null) || (count > 6))
+                        return (null);
+                    groups[count++] = ((ipv4[0] & 0xff) << 8) | (ipv4[1] & 0xff);
+                    groups[count++] = ((ipv4[2] & 0xff) << 8) | (ipv4[3] & 0xff);
+                    i = end;
+                    groupStart = -1;
+                    break;
+                }
+                int digit = Character.digit(s.charAt(i), 16);
+                if ((digit < 0) || (i - groupStart == 4))
+                    return (null);
+                value = (value << 4) | digit;
+                i++;
+            }
+            if (groupStart < 0)
+                break;
+            if ((i == groupStart) || (count == 8))
+                return (null);
+            groups[count++] = value;
+            if (i < end) {
+                // Skip the separator
+                i++;
+                if ((i < end) && (s.charAt(i) == ':')) {
+                    if (gap >= 0)
+                        return (null);
+                    gap = count;
+                    i++;
+                } else if (i == end) {
+                    return (null);
+                }
+            }
+        }
+        if ((gap < 0) ? (count != 8) : (count > 7))
+            return (null);
+
+        byte[] result = new byte[16];
+        int shift = (gap < 0) ? 0 : (8 - count);
+        for (int j = 0; j < count; j++) {
+            int position = ((gap >= 0) && (j >= gap)) ? (j + shift) : j;
+            result[2 * position] = (byte) (groups[j] >> 8);
+            result[2 * position + 1] = (byte) groups[j];
+        }
+
+        // IPv4-mapped address
+        for (int j = 0; j < 10; j++) {
+            if (result[j] != 0)
+                return (result);
+        }
+        if ((result[10] == (byte) 0xff) && (result[11] == (byte) 0xff)) {
+            byte[] ipv4 = new byte[4];
+            System.arraycopy(result, 12, ipv4, 0, 4);
+            return (ipv4);
+        }
+        return (result);
+
+    }
+
+
+}
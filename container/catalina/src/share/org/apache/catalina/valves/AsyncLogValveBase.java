@@ -0,0 +1,274 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apache.catalina.valves;
+
+
+/**
+ * Convenience base class for the access log valves which can write their
+ * log lines from a background thread.  When the <code>async</code> property
+ * is set, the subclass starts an <code>AsyncLogWriter</code> when it is
+ * started, hands its log lines over to it, and stops it when it is stopped.
+ * The writer is kept once stopped, so that the lines logged by late requests
+ * are counted as discarded rather than lost.
+ *
+ * @version $Id$
+ */
+
+public abstract class AsyncLogValveBase
+    extends ValveBase {
+
+
+    // ----------------------------------------------------- Instance Variables
+
+
+    /**
+     * Should the log lines be written by a background thread?
+     */
+    protected boolean async = false;
+
+
+    /**
+     * Maximum number of log lines queued for the background thread.
+     */
+    protected int asyncQueueSize = 8192;
+
+
+    /**
+     * Policy used when the queue of the background thread is full.
+     */
+    protected String asyncOverflowPolicy = AsyncLogWriter.OVERFLOW_BLOCK;
+
+
+    /**
+     * The background writer, if the log lines are written asynchronously.
+     */
+    protected volatile AsyncLogWriter asyncWriter = null;
+
+
+    // ------------------------------------------------------------- Properties
+
+
+    /**
+     * Should the log lines be written by a background thread?
+     */
+    public boolean isAsync() {
+
+        return async;
+
+    }
+
+
+    /**
+     * Set the value is we should write the log lines from a background
+     * thread.  This takes effect when the valve is started.
+     *
+     * @param async true is the log lines are written asynchronously
+     */
+    public void setAsync(boolean async) {
+
+        this.async = async;
+
+    }
+
+
+    /**
+     * Return the maximum number of log lines queued for the background
+     * thread.
+     */
+    public int getAsyncQueueSize() {
+
+        return asyncQueueSize;
+
+    }
+
+
+    /**
+     * Set the maximum number of log lines queued for the background thread.
+     *
+     * @param asyncQueueSize The new queue size
+     */
+    public void setAsyncQueueSize(int asyncQueueSize) {
+
+        this.asyncQueueSize = asyncQueueSize;
+
+    }
+
+
+    /**
+     * Return the policy used when the queue of the background thread is
+     * full.
+     */
+    public String getAsyncOverflowPolicy() {
+
+        return asyncOverflowPolicy;
+
+    }
+
+
+    /**
+     * Set the policy used when the queue of the background thread is full:
+     * <code>block</code>, <code>drop</code> or <code>count</code>.
+     *
+     * @param asyncOverflowPolicy The new overflow policy
+     */
+    public void setAsyncOverflowPolicy(String asyncOverflowPolicy) {
+
+        this.asyncOverflowPolicy = asyncOverflowPolicy;
+
+    }
+
+
+    /**
+     * Return the number of log lines queued for the background thread.
+     */
+    public int getAsyncPendingCount() {
+
+        AsyncLogWriter writer = asyncWriter;
+        return ((writer == null) ? 0 : writer.getPendingCount());
+
+    }
+
+
+    /**
+     * Return the number of log lines written by the background thread.
+     */
+    public long getAsyncWrittenCount() {
+
+        AsyncLogWriter writer = asyncWriter;
+        return ((writer == null) ? 0 : writer.getWrittenCount());
+
+    }
+
+
+    /**
+     * Return the number of log lines discarded since the queue of the
+     * background thread was full, or since the valve was stopped.
+     */
+    public long getAsyncDroppedCount() {
+
+        AsyncLogWriter writer = asyncWriter;
+        return ((writer == null) ? 0 : writer.getDroppedCount());
+
+    }
+
+
+    /**
+     * Return the number of times a request thread waited for room in the
+     * queue of the background thread.
+     */
+    public long getAsyncBlockedCount() {
+
+        AsyncLogWriter writer = asyncWriter;
+        return ((writer == null) ? 0 : writer.getBlockedCount());
+
+    }
+
+
+    // ------------------------------------------------------ Protected Methods
+
+
+    /**
+     * Start the background writer if the <code>async</code> property is
+     * set, or forget the writer of a previous start otherwise.
+     *
+     * @param target The target the log lines are written to
+     * @param name Name of the writer thread
+     */
+    protected void startAsyncWriter(AsyncLogWriter.Target target,
+                                    String name) {
+
+        if (async) {
+            AsyncLogWriter writer = createAsyncWriter(target, name);
+            writer.start();
+            asyncWriter = writer;
+        } else {
+            asyncWriter = null;
+        }
+
+    }
+
+
+    /**
+     * Create the background writer, which is started by the caller.
+     *
+     * @param target The target the log lines are written to
+     * @param name Name of the writer thread
+     */
+    protected AsyncLogWriter createAsyncWriter(AsyncLogWriter.Target target,
+                                               String name) {
+
+        return (new AsyncLogWriter
+                (target, asyncQueueSize, asyncOverflowPolicy, name));
+
+    }
+
+
+    /**
+     * Stop the background writer, if any, once all the queued log lines
+     * have been written.  The lines logged afterwards are discarded.
+     */
+    protected void stopAsyncWriter() {
+
+        AsyncLogWriter writer = asyncWriter;
+        if (writer != null) {
+            writer.stop();
+        }
+
+    }
+
+
+    /**
+     * Hand the specified log line over to the background writer, and
+     * return <code>true</code>, or return <code>false</code> if the log
+     * lines are not written asynchronously.
+     *
+     * @param b The buffer containing the line
+     * @param off The offset of the line in the buffer
+     * @param len The length of the line
+     */
+    protected boolean logAsync(byte[] b, int off, int len) {
+
+        AsyncLogWriter writer = asyncWriter;
+        if (writer == null)
+            return (false);
+        writer.log(b, off, len);
+        return (true);
+
+    }
+
+
+    /**
+     * Hand the specified message over to the background writer, followed by
+     * a line separator, and return <code>true</code>, or return
+     * <code>false</code> if the log lines are not written asynchronously.
+     *
+     * @param message The message to log
+     */
+    protected boolean logAsync(String message) {
+
+        AsyncLogWriter writer = asyncWriter;
+        if (writer == null)
+            return (false);
+        writer.log(message);
+        return (true);
+
+    }
+
+
+}
@@ -0,0 +1,687 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apache.catalina.valves;
+
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+
+import org.apache.catalina.util.StringManager;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+
+/**
+ * Background writer for the access log valves.  Request threads encode their
+ * log entries into a per thread buffer, and copy the bytes into a bounded
+ * ring of entries, which only requires holding a monitor for the time of the
+ * copy.  A single writer thread drains the ring in batches, and hands the
+ * entries over to a <code>Target</code>, which writes them to the log file,
+ * rotating it when needed, and flushes it at the end of each batch.
+ * <p>
+ * When the ring is full, the entry is handled according to the overflow
+ * policy: the request thread waits for the writer thread to make room
+ * (<code>block</code>), the entry is discarded (<code>drop</code>), or the
+ * entry is discarded and the number of discarded entries is reported in the
+ * container log (<code>count</code>).  The entries logged once the writer
+ * is stopped, and the entries of request threads which are interrupted
+ * while waiting for room, are discarded and counted as well.
+ * <p>
+ * A batch holds at most <code>batchSize</code> entries.  A batch which
+ * fails is written again, from its first entry, up to
+ * <code>retryCount</code> times, waiting <code>retryDelay</code>
+ * milliseconds before each retry, and its entries are then discarded.  Once
+ * the writer is stopped, a failed batch is not retried, and the entries
+ * which are still queued are discarded, so that stopping the writer does
+ * not wait for a target which is down.
+ *
+ * @version $Id$
+ */
+
+public class AsyncLogWriter
+    implements Runnable {
+
+
+    // -------------------------------------------------------------- Constants
+
+
+    /**
+     * Overflow policy: wait until the entry can be queued.
+     */
+    public static final String OVERFLOW_BLOCK = "block";
+
+
+    /**
+     * Overflow policy: discard the entry.
+     */
+    public static final String OVERFLOW_DROP = "drop";
+
+
+    /**
+     * Overflow policy: discard the entry, and report the number of discarded
+     * entries in the container log.
+     */
+    public static final String OVERFLOW_COUNT = "count";
+
+
+    /**
+     * Minimum interval between two reports of discarded entries.
+     */
+    protected static final long REPORT_INTERVAL = 60000L;
+
+
+    /**
+     * The line separator appended to the entries logged as Strings.
+     */
+    protected static final String LINE_SEPARATOR =
+        System.getProperty("line.separator", "\n");
+
+
+    // ----------------------------------------------------------- Constructors
+
+
+    /**
+     * Construct a new writer.
+     *
+     * @param target The target the entries are written to
+     * @param queueSize Maximum number of queued entries
+     * @param overflowPolicy Policy used when the queue is full
+     * @param name Name of the writer thread
+     */
+    public AsyncLogWriter(Target target, int queueSize,
+                          String overflowPolicy, String name) {
+
+        if (queueSize < 1)
+            queueSize = 1;
+        this.target = target;
+        this.entries = new byte[queueSize][];
+        this.lengths = new int[queueSize];
+        this.block = !OVERFLOW_DROP.equalsIgnoreCase(overflowPolicy)
+            && !OVERFLOW_COUNT.equalsIgnoreCase(overflowPolicy);
+        this.report = OVERFLOW_COUNT.equalsIgnoreCase(overflowPolicy);
+        this.name = name;
+
+    }
+
+
+    // ----------------------------------------------------- Instance Variables
+
+
+    private static Log log = LogFactory.getLog(AsyncLogWriter.class);
+
+
+    /**
+     * The string manager for this package.
+     */
+    private static StringManager sm =
+        StringManager.getManager(Constants.Package);
+
+
+    /**
+     * The per thread buffers used to encode the entries logged as Strings.
+     */
+    private static ThreadLocal encoders = new ThreadLocal() {
+        protected Object initialValue() {
+            return new EntryEncoder();
+        }
+    };
+
+
+    /**
+     * The target the entries are written to.
+     */
+    protected Target target = null;
+
+
+    /**
+     * The ring of queued entries, which are reused.
+     */
+    protected byte[][] entries = null;
+
+
+    /**
+     * The lengths of the queued entries.
+     */
+    protected int[] lengths = null;
+
+
+    /**
+     * Index of the oldest queued entry.
+     */
+    protected int head = 0;
+
+
+    /**
+     * Number of queued entries.
+     */
+    protected int count = 0;
+
+
+    /**
+     * Should request threads wait when the queue is full?
+     */
+    protected boolean block = true;
+
+
+    /**
+     * Should discarded entries be reported?
+     */
+    protected boolean report = false;
+
+
+    /**
+     * Maximum number of entries written in one batch.
+     */
+    protected int batchSize = Integer.MAX_VALUE;
+
+
+    /**
+     * Number of times a failed batch is written again.
+     */
+    protected int retryCount = 0;
+
+
+    /**
+     * Time to wait before writing a failed batch again, in milliseconds.
+     */
+    protected long retryDelay = 1000L;
+
+
+    /**
+     * Name of the writer thread.
+     */
+    protected String name = null;
+
+
+    /**
+     * The writer thread.
+     */
+    protected Thread thread = null;
+
+
+    /**
+     * Is the writer thread running?
+     */
+    protected boolean running = false;
+
+
+    /**
+     * Number of written entries.
+     */
+    protected long writtenCount = 0;
+
+
+    /**
+     * Number of discarded entries.
+     */
+    protected long droppedCount = 0;
+
+
+    /**
+     * Number of times a request thread had to wait for room in the queue.
+     */
+    protected long blockedCount = 0;
+
+
+    /**
+     * Number of discarded entries at the time of the last report.
+     */
+    protected long reportedCount = 0;
+
+
+    /**
+     * Time of the last report of discarded entries.
+     */
+    protected long reportTime = 0L;
+
+
+    // ------------------------------------------------------------- Properties
+
+
+    /**
+     * Return the maximum number of queued entries.
+     */
+    public int getQueueSize() {
+
+        return (entries.length);
+
+    }
+
+
+    /**
+     * Return the maximum number of entries written in one batch.
+     */
+    public int getBatchSize() {
+
+        return (batchSize);
+
+    }
+
+
+    /**
+     * Set the maximum number of entries written in one batch.  This must be
+     * set before the writer is started.
+     *
+     * @param batchSize The new batch size
+     */
+    public void setBatchSize(int batchSize) {
+
+        this.batchSize = Math.max(batchSize, 1);
+
+    }
+
+
+    /**
+     * Return the number of times a failed batch is written again.
+     */
+    public int getRetryCount() {
+
+        return (retryCount);
+
+    }
+
+
+    /**
+     * Set the number of times a failed batch is written again before its
+     * entries are discarded.  This must be set before the writer is started.
+     *
+     * @param retryCount The new retry count
+     */
+    public void setRetryCount(int retryCount) {
+
+        this.retryCount = retryCount;
+
+    }
+
+
+    /**
+     * Return the time to wait before writing a failed batch again.
+     */
+    public long getRetryDelay() {
+
+        return (retryDelay);
+
+    }
+
+
+    /**
+     * Set the time to wait before writing a failed batch again.  This must
+     * be set before the writer is started.
+     *
+     * @param retryDelay The new delay, in milliseconds
+     */
+    public void setRetryDelay(long retryDelay) {
+
+        this.retryDelay = retryDelay;
+
+    }
+
+
+    /**
+     * Return the number of queued entries.
+     */
+    public synchronized int getPendingCount() {
+
+        return (count);
+
+    }
+
+
+    /**
+     * Return the number of written entries.
+     */
+    public synchronized long getWrittenCount() {
+
+        return (writtenCount);
+
+    }
+
+
+    /**
+     * Return the number of discarded entries.
+     */
+    public synchronized long getDroppedCount() {
+
+        return (droppedCount);
+
+    }
+
+
+    /**
+     * Return the number of times a request thread had to wait for room in
+     * the queue.
+     */
+    public synchronized long getBlockedCount() {
+
+        return (blockedCount);
+
+    }
+
+
+    // --------------------------------------------------------- Public Methods
+
+
+    /**
+     * Start the writer thread.
+     */
+    public void start() {
+
+        synchronized (this) {
+            if (running)
+                return;
+            running = true;
+        }
+        thread = new Thread(this, name);
+        thread.setDaemon(true);
+        thread.start();
+
+    }
+
+
+    /**
+     * Stop the writer thread, once all the queued entries have been
+     * written.  The entries logged afterwards are discarded.
+     */
+    public void stop() {
+
+        synchronized (this) {
+            if (!running)
+                return;
+            running = false;
+            notifyAll();
+        }
+        boolean interrupted = false;
+        while (thread.isAlive()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        thread = null;
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        // Report the entries discarded since the last report
+        long dropped = 0;
+        synchronized (this) {
+            if (report && (droppedCount > reportedCount)) {
+                dropped = droppedCount - reportedCount;
+                reportedCount = droppedCount;
+            }
+        }
+        if (dropped > 0) {
+            log.warn(sm.getString("asyncLogWriter.dropped", name,
+                                  String.valueOf(dropped)));
+        }
+
+    }
+
+
+    /**
+     * Queue the specified message, followed by a line separator.  The
+     * message is encoded with the platform default encoding.
+     *
+     * @param message The message to log
+     */
+    public void log(String message) {
+
+        EntryEncoder encoder = (EntryEncoder) encoders.get();
+        int length = encoder.encode(message);
+        log(encoder.bytes, 0, length);
+
+    }
+
+
+    /**
+     * Queue the specified entry, which is copied, or discard it if the
+     * writer is stopped.
+     *
+     * @param b The buffer containing the entry
+     * @param off The offset of the entry in the buffer
+     * @param len The length of the entry
+     */
+    public void log(byte[] b, int off, int len) {
+
+        synchronized (this) {
+            while (running && block && (count == entries.length)) {
+                blockedCount++;
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    // Discard the entry, but keep the interrupt status
+                    droppedCount++;
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+            if (!running || (count == entries.length)) {
+                // The writer thread would never write the entry
+                droppedCount++;
+                return;
+            }
+            int tail = (head + count) % entries.length;
+            byte[] entry = entries[tail];
+            if ((entry == null) || (entry.length < len)) {
+                entry = new byte[Math.max(len, 256)];
+                entries[tail] = entry;
+            }
+            System.arraycopy(b, off, entry, 0, len);
+            lengths[tail] = len;
+            count++;
+            if (count == 1)
+                notifyAll();
+        }
+
+    }
+
+
+    /**
+     * The background thread that writes the queued entries.
+     */
+    public void run() {
+
+        boolean abandon = false;
+        while (true) {
+
+            // Wait for entries
+            int start = 0;
+            int n = 0;
+            synchronized (this) {
+                while (running && (count == 0)) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        ;
+                    }
+                }
+                if (count == 0)
+                    break;
+                start = head;
+                n = Math.min(count, batchSize);
+            }
+
+            // Write the entries, which request threads will not reuse
+            // until they are released.  Once the writer is stopped, a failed
+            // batch is not retried, and the remaining entries are discarded
+            boolean written = false;
+            if (!abandon) {
+                for (int tries = 0; ; tries++) {
+                    try {
+                        for (int i = 0; i < n; i++) {
+                            int index = (start + i) % entries.length;
+                            target.write(entries[index], 0, lengths[index]);
+                        }
+                        target.flush();
+                        written = true;
+                        break;
+                    } catch (Throwable t) {
+                        log.error(sm.getString("asyncLogWriter.writeError"),
+                                  t);
+                    }
+                    if (tries >= retryCount)
+                        break;
+                    synchronized (this) {
+                        if (running) {
+                            try {
+                                wait(retryDelay);
+                            } catch (InterruptedException e) {
+                                ;
+                            }
+                        }
+                        if (!running)
+                            break;
+                    }
+                }
+                if (!written) {
+                    synchronized (this) {
+                        abandon = !running;
+                    }
+                }
+            }
+
+            // Release the entries
+            long dropped = 0;
+            synchronized (this) {
+                head = (head + n) % entries.length;
+                count -= n;
+                if (written)
+                    writtenCount += n;
+                else
+                    droppedCount += n;
+                notifyAll();
+                if (report) {
+                    long time = System.currentTimeMillis();
+                    if ((droppedCount > reportedCount)
+                        && (time - reportTime > REPORT_INTERVAL)) {
+                        dropped = droppedCount - reportedCount;
+                        reportedCount = droppedCount;
+                        reportTime = time;
+                    }
+                }
+            }
+            if (dropped > 0) {
+                log.warn(sm.getString("asyncLogWriter.dropped", name,
+                                      String.valueOf(dropped)));
+            }
+
+        }
+
+    }
+
+
+    // ------------------------------------------------------- Target Interface
+
+
+    /**
+     * The destination of the entries, which is only ever called by the
+     * writer thread.  When <code>write</code> or <code>flush</code> throws
+     * an exception, the whole batch is written again or discarded, so that a
+     * target which does not write the entries as they come should forget the
+     * entries it holds.
+     */
+    public interface Target {
+
+        /**
+         * Write the specified entry.
+         *
+         * @param b The buffer containing the entry
+         * @param off The offset of the entry in the buffer
+         * @param len The length of the entry
+         *
+         * @exception IOException if an input/output error occurs
+         */
+        public void write(byte[] b, int off, int len)
+            throws IOException;
+
+        /**
+         * Flush the written entries, at the end of a batch.
+         *
+         * @exception IOException if an input/output error occurs
+         */
+        public void flush()
+            throws IOException;
+
+    }
+
+
+    // ----------------------------------------------------- EntryEncoder Class
+
+
+    /**
+     * Per thread buffers used to encode entries without allocating.
+     */
+    protected static class EntryEncoder {
+
+        protected CharsetEncoder encoder = null;
+        protected char[] chars = new char[256];
+        protected CharBuffer charBuffer = CharBuffer.wrap(chars);
+        protected byte[] bytes = new byte[512];
+        protected ByteBuffer byteBuffer = ByteBuffer.wrap(bytes);
+
+        public EntryEncoder() {
+            Charset charset = null;
+            try {
+                charset = Charset.forName
+                    (System.getProperty("file.encoding", "ISO-8859-1"));
+            } catch (Exception e) {
+                charset = Charset.forName("ISO-8859-1");
+            }
+            encoder = charset.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        }
+
+        /**
+         * Encode the specified message followed by a line separator, and
+         * return the number of bytes in <code>bytes</code>.
+         */
+        public int encode(String message) {
+            int length = message.length() + LINE_SEPARATOR.length();
+            if (chars.length < length) {
+                chars = new char[Math.max(length, chars.length * 2)];
+                charBuffer = CharBuffer.wrap(chars);
+            }
+            message.getChars(0, message.length(), chars, 0);
+            LINE_SEPARATOR.getChars(0, LINE_SEPARATOR.length(), chars,
+                                    message.length());
+            int maxBytes =
+                (int) Math.ceil(length * encoder.maxBytesPerChar());
+            if (bytes.length < maxBytes) {
+                bytes = new byte[Math.max(maxBytes, bytes.length * 2)];
+                byteBuffer = ByteBuffer.wrap(bytes);
+            }
+            charBuffer.clear();
+            charBuffer.limit(length);
+            byteBuffer.clear();
+            encoder.reset();
+            encoder.encode(charBuffer, byteBuffer, true);
+            encoder.flush(byteBuffer);
+            return (byteBuffer.position());
+        }
+
+    }
+
+
+}
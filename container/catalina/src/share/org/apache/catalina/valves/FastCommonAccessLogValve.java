@@ -19,10 +19,13 @@
 package org.apache.catalina.valves;
 
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.text.SimpleDateFormat;
 import java.util.Date;
@@ -50,6 +53,11 @@ import org.apache.catalina.util.StringManager;
  * If the value returned from ServletRequest.getAttribute(condition)
  * yields a non-null value. The logging will be skipped.
  * </p>
+ * <p>
+ * When the <code>async</code> property is set, the log lines are written
+ * to the log file, which is also rotated, by a background thread, and the
+ * request threads only queue them.
+ * </p>
  *
  * @author Craig R. McClanahan
  * @author Jason Brittain
@@ -58,7 +66,7 @@ import org.apache.catalina.util.StringManager;
  */
 
 public final class FastCommonAccessLogValve
-    extends ValveBase
+    extends AsyncLogValveBase
     implements Lifecycle {
 
 
@@ -272,6 +280,12 @@ public final class FastCommonAccessLogValve
     private String fileDateFormat = null;
 
 
+    /**
+     * The stream to which the background writer is currently logging,
+     * if any.
+     */
+    private OutputStream stream = null;
+
     // ------------------------------------------------------------- Properties
 
 
@@ -580,6 +594,15 @@ public final class FastCommonAccessLogValve
      */
     private synchronized void close() {
 
+        if (stream != null) {
+            try {
+                stream.close();
+            } catch (IOException e) {
+                ;
+            }
+            stream = null;
+            dateStamp = "";
+        }
         if (writer == null)
             return;
         writer.flush();
@@ -598,6 +621,27 @@ public final class FastCommonAccessLogValve
      */
     public void log(String message) {
 
+        // Hand the message over to the background writer
+        if (logAsync(message))
+            return;
+
+        rotate();
+
+        synchronized(this) {
+            // Log this message
+            if (writer != null) {
+                writer.println(message);
+            }
+        }
+
+    }
+
+
+    /**
+     * Switch log files if the date has changed since the last check.
+     */
+    private void rotate() {
+
         // Check for log rotation
         if (rotatable) {
             // Only do a logfile switch check once a second, max.
@@ -622,13 +666,6 @@ public final class FastCommonAccessLogValve
             }
         }
 
-        synchronized(this) {
-            // Log this message
-            if (writer != null) {
-                writer.println(message);
-            }
-        }
-
     }
 
 
@@ -673,10 +710,16 @@ public final class FastCommonAccessLogValve
                 pathname = dir.getAbsolutePath() + File.separator +
                             prefix + suffix;
             }
-            writer = new PrintWriter(new BufferedWriter
-                    (new FileWriter(pathname, true), 128000), false);
+            if (async) {
+                stream = new BufferedOutputStream
+                    (new FileOutputStream(pathname, true), 32768);
+            } else {
+                writer = new PrintWriter(new BufferedWriter
+                        (new FileWriter(pathname, true), 128000), false);
+            }
         } catch (IOException e) {
             writer = null;
+            stream = null;
         }
 
     }
@@ -781,6 +824,8 @@ public final class FastCommonAccessLogValve
 
         open();
 
+        startAsyncWriter(new LogTarget(), "AccessLogWriter[" + prefix + "]");
+
     }
 
 
@@ -801,7 +846,39 @@ public final class FastCommonAccessLogValve
         lifecycle.fireLifecycleEvent(STOP_EVENT, null);
         started = false;
 
+        // Write the queued log lines
+        stopAsyncWriter();
+
         close();
 
     }
+
+
+    // -------------------------------------------------------- LogTarget Class
+
+
+    /**
+     * The target of the background writer, which writes to the current log
+     * file, switching files if the date has changed.
+     */
+    private class LogTarget implements AsyncLogWriter.Target {
+
+        public void write(byte[] b, int off, int len)
+            throws IOException {
+            rotate();
+            OutputStream stream = FastCommonAccessLogValve.this.stream;
+            if (stream != null)
+                stream.write(b, off, len);
+        }
+
+        public void flush()
+            throws IOException {
+            OutputStream stream = FastCommonAccessLogValve.this.stream;
+            if (stream != null)
+                stream.flush();
+        }
+
+    }
+
+
 }
@@ -19,21 +19,30 @@
 package org.apache.catalina.valves;
 
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.sql.Connection;
 import java.sql.Driver;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.sql.Timestamp;
+import java.util.ArrayList;
 import java.util.Properties;
 
+import javax.naming.Context;
 import javax.servlet.ServletException;
+import javax.sql.DataSource;
 
 import org.apache.catalina.Lifecycle;
 import org.apache.catalina.LifecycleException;
 import org.apache.catalina.LifecycleListener;
+import org.apache.catalina.ServerFactory;
 import org.apache.catalina.connector.Request;
 import org.apache.catalina.connector.Response;
+import org.apache.catalina.core.StandardServer;
 import org.apache.catalina.util.LifecycleSupport;
 import org.apache.catalina.util.StringManager;
 
@@ -102,6 +111,31 @@ import org.apache.catalina.util.StringManager;
  * to be defined.
  * </p>
  * <p>
+ * Instead of a JDBC driver, connections can be taken from a
+ * <code>DataSource</code>, either set with <code>setDataSource</code>, or
+ * looked up in the global JNDI resources with the name set with
+ * <code>dataSourceName</code>.  A connection is then taken from the
+ * <code>DataSource</code> for each insert, or for each batch, and given back
+ * to it right after, rather than kept for the life of the valve.
+ * </p>
+ * <p>
+ * When the <code>async</code> attribute is set to <code>true</code>, request
+ * threads only queue their access entries, and the background thread of an
+ * <code>AsyncLogWriter</code> inserts them using JDBC batches of at most
+ * <code>batchSize</code> entries, so that a slow database does not slow the
+ * requests down.  When the queue, which
+ * holds at most <code>asyncQueueSize</code> entries, is full, the request
+ * thread waits (<code>asyncOverflowPolicy="block"</code>, the default), or
+ * the entry is discarded (<code>drop</code>, or <code>count</code> to also
+ * report the number of discarded entries).  A failed batch is retried
+ * <code>retryCount</code> times, waiting <code>retryDelay</code>
+ * milliseconds before each retry, using a new connection, before it is
+ * discarded.  Once the valve is stopped, a failed batch is not retried, and
+ * the entries which are still queued are discarded, so that stopping the
+ * valve does not wait for a database which is down.  The entries of the
+ * requests which complete once the valve is stopped are discarded as well.
+ * </p>
+ * <p>
  * If the request method is "common", only these fields are used:
  * <code>remoteHost, user, timeStamp, query, status, bytes</code>
  * </p>
@@ -114,7 +148,7 @@ import org.apache.catalina.util.StringManager;
  */
 
 public final class JDBCAccessLogValve 
-    extends ValveBase 
+    extends AsyncLogValveBase 
     implements Lifecycle {
 
     // ----------------------------------------------------------- Constructors
@@ -165,6 +199,16 @@ public final class JDBCAccessLogValve
 
     // ----------------------------------------------------- Instance Variables
 
+    /**
+     * The per thread buffers used to encode the queued entries.
+     */
+    private static ThreadLocal buffers = new ThreadLocal() {
+        protected Object initialValue() {
+            return new EntryBuffer();
+        }
+    };
+
+
    /**
     * Use long contentLength as you have more 4 GB output.
     * @since 5.5.25
@@ -209,6 +253,44 @@ public final class JDBCAccessLogValve
     private PreparedStatement ps;
 
 
+    /**
+     * The connection and statement used by the background thread, which are
+     * only kept between batches when they are not taken from a DataSource.
+     */
+    private Connection asyncConnection;
+    private PreparedStatement asyncStatement;
+
+
+    /**
+     * The name of the global JNDI DataSource the connections are taken from.
+     */
+    protected String dataSourceName = null;
+
+
+    /**
+     * The DataSource the connections are taken from, instead of the driver.
+     */
+    protected DataSource dataSource = null;
+
+
+    /**
+     * Maximum number of entries inserted in one batch.
+     */
+    protected int batchSize = 100;
+
+
+    /**
+     * Number of times a failed batch is retried.
+     */
+    protected int retryCount = 3;
+
+
+    /**
+     * Time to wait before retrying a failed batch, in milliseconds.
+     */
+    protected long retryDelay = 1000L;
+
+
     private long currentTimeMillis;
 
 
@@ -434,6 +516,89 @@ public final class JDBCAccessLogValve
         this.useLongContentLength = useLongContentLength;
     }
 
+    /**
+     * Return the name of the global JNDI DataSource.
+     */
+    public String getDataSourceName() {
+        return dataSourceName;
+    }
+
+    /**
+     * Set the name of the global JNDI DataSource the connections are taken
+     * from, instead of the driver.
+     *
+     * @param dataSourceName The name of the DataSource
+     */
+    public void setDataSourceName(String dataSourceName) {
+        this.dataSourceName = dataSourceName;
+    }
+
+    /**
+     * Return the DataSource the connections are taken from.
+     */
+    public DataSource getDataSource() {
+        return dataSource;
+    }
+
+    /**
+     * Set the DataSource the connections are taken from, instead of the
+     * driver.
+     *
+     * @param dataSource The DataSource
+     */
+    public void setDataSource(DataSource dataSource) {
+        this.dataSource = dataSource;
+    }
+
+    /**
+     * Return the maximum number of entries inserted in one batch.
+     */
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Set the maximum number of entries inserted in one batch.
+     *
+     * @param batchSize The new batch size
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Return the number of times a failed batch is retried.
+     */
+    public int getRetryCount() {
+        return retryCount;
+    }
+
+    /**
+     * Set the number of times a failed batch is retried before its entries
+     * are discarded.
+     *
+     * @param retryCount The new retry count
+     */
+    public void setRetryCount(int retryCount) {
+        this.retryCount = retryCount;
+    }
+
+    /**
+     * Return the time to wait before retrying a failed batch.
+     */
+    public long getRetryDelay() {
+        return retryDelay;
+    }
+
+    /**
+     * Set the time to wait before retrying a failed batch.
+     *
+     * @param retryDelay The new delay, in milliseconds
+     */
+    public void setRetryDelay(long retryDelay) {
+        this.retryDelay = retryDelay;
+    }
+
     // --------------------------------------------------------- Public Methods
 
 
@@ -452,61 +617,34 @@ public final class JDBCAccessLogValve
 
         getNext().invoke(request, response);
 
-        String remoteHost = "";
-        if(resolveHosts)
-            remoteHost = request.getRemoteHost();
-        else
-            remoteHost = request.getRemoteAddr();
-        String user = "";
-        if(request != null)
-            user = request.getRemoteUser();
-        String query="";
-        if(request != null)
-            query = request.getRequestURI();
-        
-        long bytes = response.getContentCountLong() ;
-        if(bytes < 0)
-            bytes = 0;
-        int status = response.getStatus();
+        if (asyncWriter != null) {
+            queue(request, response);
+            return;
+        }
+
+        AccessEntry entry = new AccessEntry();
+        entry.set(request, response, getCurrentTimeMillis());
+
+        if (dataSource != null) {
+            // Take a connection from the DataSource for this insert only
+            for (int numberOfTries = 2; numberOfTries > 0; numberOfTries--) {
+                try {
+                    insert(entry);
+                    return;
+                } catch (SQLException e) {
+                    container.getLogger().error(sm.getString("jdbcAccessLogValve.exception"), e);
+                }
+            }
+            return;
+        }
 
         synchronized (this) {
           int numberOfTries = 2;
           while (numberOfTries>0) {
             try {
                 open();
-    
-                ps.setString(1, remoteHost);
-                ps.setString(2, user);
-                ps.setTimestamp(3, new Timestamp(getCurrentTimeMillis()));
-                ps.setString(4, query);
-                ps.setInt(5, status);
-                
-                if(useLongContentLength) {
-                    ps.setLong(6, bytes);                
-                } else {
-                    if (bytes > Integer.MAX_VALUE)
-                        bytes = -1 ;
-                    ps.setInt(6, (int) bytes);
-                }               
-                if (pattern.equals("combined")) {
-     
-                      String virtualHost = "";
-                      if(request != null)
-                         virtualHost = request.getServerName();
-                      String method = "";
-                      if(request != null)
-                         method = request.getMethod();
-                      String referer = "";
-                      if(request != null)
-                         referer = request.getHeader("referer");
-                      String userAgent = "";
-                      if(request != null)
-                         userAgent = request.getHeader("user-agent");
-                      ps.setString(7, virtualHost);
-                      ps.setString(8, method);
-                      ps.setString(9, referer);
-                      ps.setString(10, userAgent);
-                }
+
+                bind(ps, entry);
                 ps.executeUpdate();
                 return;
               } catch (SQLException e) {
@@ -524,6 +662,157 @@ public final class JDBCAccessLogValve
     }	
 
 
+    /**
+     * Queue an entry for the specified request and response, to be inserted
+     * by the background thread.
+     *
+     * @param request The Request object.
+     * @param response The Response object.
+     */
+    protected void queue(Request request, Response response) {
+
+        AccessEntry entry = new AccessEntry();
+        entry.set(request, response, getCurrentTimeMillis());
+
+        EntryBuffer buffer = (EntryBuffer) buffers.get();
+        buffer.reset();
+        try {
+            entry.write(buffer.out);
+            buffer.out.flush();
+        } catch (IOException e) {
+            // Never thrown by the in memory buffer
+            return;
+        }
+        logAsync(buffer.getBuffer(), 0, buffer.size());
+
+    }
+
+
+    /**
+     * Create the background writer, which inserts the entries in batches,
+     * retrying the batches which fail.
+     *
+     * @param target The target the entries are written to
+     * @param name Name of the writer thread
+     */
+    protected AsyncLogWriter createAsyncWriter(AsyncLogWriter.Target target,
+                                               String name) {
+
+        AsyncLogWriter writer = super.createAsyncWriter(target, name);
+        writer.setBatchSize(batchSize);
+        writer.setRetryCount(retryCount);
+        writer.setRetryDelay(retryDelay);
+        return (writer);
+
+    }
+
+
+    /**
+     * Insert the specified entry using a connection taken from the
+     * DataSource, which is given back right after.
+     *
+     * @param entry The entry
+     *
+     * @exception SQLException if a database error occurs
+     */
+    protected void insert(AccessEntry entry) throws SQLException {
+
+        Connection conn = dataSource.getConnection();
+        PreparedStatement ps = null;
+        try {
+            conn.setAutoCommit(true);
+            ps = prepare(conn);
+            bind(ps, entry);
+            ps.executeUpdate();
+        } finally {
+            if (ps != null) {
+                try {
+                    ps.close();
+                } catch (Throwable t) {
+                    ;
+                }
+            }
+            try {
+                conn.close();
+            } catch (SQLException e) {
+                container.getLogger().error(sm.getString("jdbcAccessLogValve.close"), e);
+            }
+        }
+
+    }
+
+
+    /**
+     * Insert the specified entries in one batch, using the connection of the
+     * background thread.
+     *
+     * @param entries The entries
+     *
+     * @exception SQLException if a database error occurs
+     */
+    protected void insert(ArrayList entries) throws SQLException {
+
+        try {
+            openAsync();
+            for (int i = 0; i < entries.size(); i++) {
+                bind(asyncStatement, (AccessEntry) entries.get(i));
+                asyncStatement.addBatch();
+            }
+            asyncStatement.executeBatch();
+            asyncConnection.commit();
+            if (dataSource != null)
+                closeAsync();
+        } catch (SQLException e) {
+            if (asyncConnection != null) {
+                try {
+                    asyncConnection.rollback();
+                } catch (Throwable t) {
+                    ;
+                }
+            }
+            closeAsync();
+            throw e;
+        }
+
+    }
+
+
+    /**
+     * Set the parameters of the specified insert statement to the values of
+     * the specified entry.
+     *
+     * @param ps The insert statement
+     * @param entry The entry
+     *
+     * @exception SQLException if a database error occurs
+     */
+    protected void bind(PreparedStatement ps, AccessEntry entry)
+        throws SQLException {
+
+        long bytes = entry.bytes;
+        ps.setString(1, entry.remoteHost);
+        ps.setString(2, entry.user);
+        ps.setTimestamp(3, new Timestamp(entry.time));
+        ps.setString(4, entry.query);
+        ps.setInt(5, entry.status);
+
+        if(useLongContentLength) {
+            ps.setLong(6, bytes);                
+        } else {
+            if (bytes > Integer.MAX_VALUE)
+                bytes = -1 ;
+            ps.setInt(6, (int) bytes);
+        }               
+        if (pattern.equals("combined")) {
+            ps.setString(7, entry.virtualHost);
+            ps.setString(8, entry.method);
+            ps.setString(9, entry.referer);
+            ps.setString(10, entry.userAgent);
+        }
+
+    }
+
+
     /**
      * Adds a Lifecycle listener.
      * 
@@ -570,6 +859,39 @@ public final class JDBCAccessLogValve
         if (conn != null)
             return ;
 
+        conn = getConnection();
+        conn.setAutoCommit(true);
+        ps = prepare(conn);
+    }
+
+    /**
+     * Open (if necessary) the database connection of the background
+     * thread.
+     *
+     * @exception SQLException if a database error occurs
+     */
+    protected void openAsync() throws SQLException {
+
+        // Do nothing if there is a database connection already open
+        if (asyncConnection != null)
+            return ;
+
+        asyncConnection = getConnection();
+        asyncConnection.setAutoCommit(false);
+        asyncStatement = prepare(asyncConnection);
+    }
+
+    /**
+     * Return a new database connection, taken from the DataSource, or
+     * created with the driver.
+     *
+     * @exception SQLException if a database error occurs
+     */
+    protected Connection getConnection() throws SQLException {
+
+        if (dataSource != null)
+            return dataSource.getConnection();
+
         // Instantiate our database driver if necessary
         if (driver == null) {
             try {
@@ -587,17 +909,20 @@ public final class JDBCAccessLogValve
             props.put("user", connectionName);
         if (connectionPassword != null)
             props.put("password", connectionPassword);
-        conn = driver.connect(connectionURL, props);
-        conn.setAutoCommit(true);
-        if (pattern.equals("common")) {
-                ps = conn.prepareStatement
-                    ("INSERT INTO " + tableName + " (" 
-                     + remoteHostField + ", " + userField + ", "
-                     + timestampField +", " + queryField + ", "
-                     + statusField + ", " + bytesField 
-                     + ") VALUES(?, ?, ?, ?, ?, ?)");
-        } else if (pattern.equals("combined")) {
-                ps = conn.prepareStatement
+        return driver.connect(connectionURL, props);
+    }
+
+    /**
+     * Prepare the insert statement on the specified connection.
+     *
+     * @param conn The database connection
+     *
+     * @exception SQLException if a database error occurs
+     */
+    protected PreparedStatement prepare(Connection conn) throws SQLException {
+
+        if (pattern.equals("combined")) {
+                return conn.prepareStatement
                     ("INSERT INTO " + tableName + " (" 
                      + remoteHostField + ", " + userField + ", "
                      + timestampField + ", " + queryField + ", " 
@@ -605,6 +930,13 @@ public final class JDBCAccessLogValve
                      + virtualHostField + ", " + methodField + ", "
                      + refererField + ", " + userAgentField
                      + ") VALUES(?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
+        } else {
+                return conn.prepareStatement
+                    ("INSERT INTO " + tableName + " (" 
+                     + remoteHostField + ", " + userField + ", "
+                     + timestampField +", " + queryField + ", "
+                     + statusField + ", " + bytesField 
+                     + ") VALUES(?, ?, ?, ?, ?, ?)");
         }
     }
 
@@ -636,6 +968,32 @@ public final class JDBCAccessLogValve
            this.conn = null;
         }
 
+    }
+
+    /**
+     * Close the database connection of the background thread.
+     */
+    protected void closeAsync() {
+
+        // Do nothing if the database connection is already closed
+        if (asyncConnection == null)
+            return;
+
+        try {
+            asyncStatement.close();
+        } catch (Throwable f) {
+            ;
+        }
+        asyncStatement = null;
+
+        try {
+            asyncConnection.close();
+        } catch (SQLException e) {
+            container.getLogger().error(sm.getString("jdbcAccessLogValve.close"), e);
+        } finally {
+            asyncConnection = null;
+        }
+
     }
     /**
      * Invoked by Tomcat on startup. The database connection is set here.
@@ -651,6 +1009,27 @@ public final class JDBCAccessLogValve
         lifecycle.fireLifecycleEvent(START_EVENT, null);
         started = true;
 
+        // Look up the global JNDI DataSource if necessary
+        if ((dataSource == null) && (dataSourceName != null)) {
+            try {
+                StandardServer server =
+                    (StandardServer) ServerFactory.getServer();
+                Context context = server.getGlobalNamingContext();
+                dataSource = (DataSource) context.lookup(dataSourceName);
+            } catch (Exception e) {
+                throw new LifecycleException
+                    (sm.getString("jdbcAccessLogValve.dataSource",
+                                  dataSourceName), e);
+            }
+        }
+
+        startAsyncWriter(new InsertTarget(),
+                         "JDBCAccessLogWriter[" + tableName + "]");
+
+        // Connections taken from a DataSource are only held for each insert
+        if ((asyncWriter != null) || (dataSource != null))
+            return;
+
         try {
             open() ;        
         } catch (SQLException e) {
@@ -673,7 +1052,11 @@ public final class JDBCAccessLogValve
                 (sm.getString("accessLogValve.notStarted"));
         lifecycle.fireLifecycleEvent(STOP_EVENT, null);
         started = false;
-        
+
+        // Insert the queued entries
+        stopAsyncWriter();
+        closeAsync();
+
         close() ;
     	
     }
@@ -687,4 +1070,163 @@ public final class JDBCAccessLogValve
         return currentTimeMillis;
     }
 
+
+
+    // ------------------------------------------------------ AccessEntry Class
+
+
+    /**
+     * The values inserted for a request.
+     */
+    protected final class AccessEntry {
+
+        private String remoteHost;
+        private String user;
+        private long time;
+        private String query;
+        private int status;
+        private long bytes;
+        private String virtualHost;
+        private String method;
+        private String referer;
+        private String userAgent;
+
+        /**
+         * Set the values for the specified request and response.
+         */
+        public void set(Request request, Response response, long time) {
+            if(resolveHosts)
+                remoteHost = request.getRemoteHost();
+            else
+                remoteHost = request.getRemoteAddr();
+            user = request.getRemoteUser();
+            query = request.getRequestURI();
+            this.time = time;
+            bytes = response.getContentCountLong() ;
+            if(bytes < 0)
+                bytes = 0;
+            status = response.getStatus();
+            if (pattern.equals("combined")) {
+                virtualHost = request.getServerName();
+                method = request.getMethod();
+                referer = request.getHeader("referer");
+                userAgent = request.getHeader("user-agent");
+            }
+        }
+
+        /**
+         * Write the values to the specified stream.
+         */
+        public void write(DataOutputStream out) throws IOException {
+            writeString(out, remoteHost);
+            writeString(out, user);
+            out.writeLong(time);
+            writeString(out, query);
+            out.writeInt(status);
+            out.writeLong(bytes);
+            writeString(out, virtualHost);
+            writeString(out, method);
+            writeString(out, referer);
+            writeString(out, userAgent);
+        }
+
+        /**
+         * Read the values written by <code>write</code> from the specified
+         * stream.
+         */
+        public void read(DataInputStream in) throws IOException {
+            remoteHost = readString(in);
+            user = readString(in);
+            time = in.readLong();
+            query = readString(in);
+            status = in.readInt();
+            bytes = in.readLong();
+            virtualHost = readString(in);
+            method = readString(in);
+            referer = readString(in);
+            userAgent = readString(in);
+        }
+
+        private void writeString(DataOutputStream out, String s)
+            throws IOException {
+            if (s == null) {
+                out.writeInt(-1);
+            } else {
+                byte[] b = s.getBytes("UTF-8");
+                out.writeInt(b.length);
+                out.write(b);
+            }
+        }
+
+        private String readString(DataInputStream in) throws IOException {
+            int length = in.readInt();
+            if (length < 0)
+                return null;
+            byte[] b = new byte[length];
+            in.readFully(b);
+            return new String(b, "UTF-8");
+        }
+
+    }
+
+
+    // ----------------------------------------------------- InsertTarget Class
+
+
+    /**
+     * The target of the background writer, which inserts each batch of
+     * queued entries using JDBC batches.
+     */
+    private class InsertTarget implements AsyncLogWriter.Target {
+
+        private ArrayList batch = new ArrayList();
+
+        public void write(byte[] b, int off, int len)
+            throws IOException {
+            AccessEntry entry = new AccessEntry();
+            entry.read(new DataInputStream
+                       (new ByteArrayInputStream(b, off, len)));
+            batch.add(entry);
+        }
+
+        public void flush()
+            throws IOException {
+            try {
+                insert(batch);
+            } catch (SQLException e) {
+                IOException ioe = new IOException
+                    (sm.getString("jdbcAccessLogValve.batchException",
+                                  String.valueOf(batch.size())));
+                ioe.initCause(e);
+                throw ioe;
+            } finally {
+                // The batch is written again from its first entry if it
+                // is retried
+                batch.clear();
+            }
+        }
+
+    }
+
+
+    // ------------------------------------------------------ EntryBuffer Class
+
+
+    /**
+     * Per thread buffer used to encode the queued entries.
+     */
+    private static class EntryBuffer extends ByteArrayOutputStream {
+
+        protected DataOutputStream out = new DataOutputStream(this);
+
+        public EntryBuffer() {
+            super(256);
+        }
+
+        public byte[] getBuffer() {
+            return buf;
+        }
+
+    }
+
 }
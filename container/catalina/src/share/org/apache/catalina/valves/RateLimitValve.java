@@ -0,0 +1,635 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apache.catalina.valves;
+
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.catalina.Lifecycle;
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.LifecycleListener;
+import org.apache.catalina.Session;
+import org.apache.catalina.connector.Request;
+import org.apache.catalina.connector.Response;
+import org.apache.catalina.util.LifecycleSupport;
+import org.apache.catalina.util.StringManager;
+
+
+/**
+ * <p>Implementation of a Valve that limits the rate of requests, and
+ * optionally the number of concurrent requests, per client.</p>
+ *
+ * <p>The clients are identified by their remote address, by the value of a
+ * request header (such as <code>X-Forwarded-For</code> behind a proxy), or
+ * by their session, falling back to the remote address.  Each client has a
+ * token bucket, which holds at most <code>burst</code> tokens and is refilled
+ * with <code>rate</code> tokens per second, and each request takes a token.
+ * A request for which no token is left is answered with
+ * <code>rateLimitStatus</code> (429 by default), and a request which would
+ * exceed <code>maxConcurrent</code> concurrent requests for its client is
+ * answered with <code>concurrencyLimitStatus</code> (503 by default), both
+ * with a <code>Retry-After</code> header.</p>
+ *
+ * <p>The buckets are spread over a fixed number of independently locked
+ * stripes, so that request threads only contend when their clients hash to
+ * the same stripe.  Each stripe keeps its buckets in least recently used
+ * order, so that the number of tracked clients is bounded, and the buckets
+ * which have been idle for <code>idleTimeout</code> seconds are evicted by
+ * the background processing of the container.</p>
+ *
+ * <p>This Valve may be attached to any Container, depending on the granularity
+ * of the control you wish to perform.</p>
+ *
+ * @version $Id$
+ */
+
+public class RateLimitValve
+    extends ValveBase
+    implements Lifecycle {
+
+
+    // -------------------------------------------------------------- Constants
+
+
+    /**
+     * Key type: the remote address.
+     */
+    public static final String KEY_REMOTE_ADDR = "remoteAddr";
+
+
+    /**
+     * Key type: the value of the request header named by
+     * <code>keyHeader</code>.
+     */
+    public static final String KEY_HEADER = "header";
+
+
+    /**
+     * Key type: the session ID.
+     */
+    public static final String KEY_SESSION = "session";
+
+
+    /**
+     * Number of stripes.
+     */
+    protected static final int STRIPES = 32;
+
+
+    // ----------------------------------------------------- Instance Variables
+
+
+    /**
+     * The descriptive information related to this implementation.
+     */
+    private static final String info =
+        "org.apache.catalina.valves.RateLimitValve/1.0";
+
+
+    /**
+     * The string manager for this package.
+     */
+    private StringManager sm =
+        StringManager.getManager(Constants.Package);
+
+
+    /**
+     * The lifecycle event support for this component.
+     */
+    protected LifecycleSupport lifecycle = new LifecycleSupport(this);
+
+
+    /**
+     * Has this component been started yet?
+     */
+    private boolean started = false;
+
+
+    /**
+     * The stripes of the bucket map.
+     */
+    protected Stripe[] stripes = null;
+
+
+    // ------------------------------------------------------------- Properties
+
+
+    /**
+     * How clients are identified: <code>remoteAddr</code>,
+     * <code>header</code> or <code>session</code>.
+     */
+    protected String keyType = KEY_REMOTE_ADDR;
+    public String getKeyType() { return keyType; }
+    public void setKeyType(String keyType) { this.keyType = keyType; }
+
+
+    /**
+     * The request header identifying clients, for the <code>header</code>
+     * key type.
+     */
+    protected String keyHeader = "X-Forwarded-For";
+    public String getKeyHeader() { return keyHeader; }
+    public void setKeyHeader(String keyHeader) { this.keyHeader = keyHeader; }
+
+
+    /**
+     * Number of requests per second allowed per client, on average.
+     */
+    protected double rate = 10.0;
+    public double getRate() { return rate; }
+    public void setRate(double rate) { this.rate = rate; }
+
+
+    /**
+     * Number of requests a client can send in a burst.
+     */
+    protected int burst = 20;
+    public int getBurst() { return burst; }
+    public void setBurst(int burst) { this.burst = burst; }
+
+
+    /**
+     * Number of concurrent requests allowed per client, or 0 for no limit.
+     */
+    protected int maxConcurrent = 0;
+    public int getMaxConcurrent() { return maxConcurrent; }
+    public void setMaxConcurrent(int maxConcurrent) { this.maxConcurrent = maxConcurrent; }
+
+
+    /**
+     * Status code of the requests refused since the rate was exceeded.
+     */
+    protected int rateLimitStatus = 429;
+    public int getRateLimitStatus() { return rateLimitStatus; }
+    public void setRateLimitStatus(int rateLimitStatus) { this.rateLimitStatus = rateLimitStatus; }
+
+
+    /**
+     * Status code of the requests refused since too many requests of the
+     * same client were being processed.
+     */
+    protected int concurrencyLimitStatus =
+        HttpServletResponse.SC_SERVICE_UNAVAILABLE;
+    public int getConcurrencyLimitStatus() { return concurrencyLimitStatus; }
+    public void setConcurrencyLimitStatus(int concurrencyLimitStatus) { this.concurrencyLimitStatus = concurrencyLimitStatus; }
+
+
+    /**
+     * Time after which the bucket of an idle client is evicted, in seconds.
+     */
+    protected int idleTimeout = 60;
+    public int getIdleTimeout() { return idleTimeout; }
+    public void setIdleTimeout(int idleTimeout) { this.idleTimeout = idleTimeout; }
+
+
+    /**
+     * Maximum number of tracked clients.  The least recently seen clients
+     * are evicted when it is reached.
+     */
+    protected int maxKeys = 100000;
+    public int getMaxKeys() { return maxKeys; }
+    public void setMaxKeys(int maxKeys) { this.maxKeys = maxKeys; }
+
+
+    // ----------------------------------------------------------- JMX Counters
+
+
+    /**
+     * Return the number of requests which have been let through.
+     */
+    public long getAllowedCount() {
+        long result = 0;
+        Stripe[] stripes = this.stripes;
+        for (int i = 0; (stripes != null) && (i < stripes.length); i++) {
+            synchronized (stripes[i]) {
+                result += stripes[i].allowedCount;
+            }
+        }
+        return (result);
+    }
+
+
+    /**
+     * Return the number of requests which have been refused since their
+     * client exceeded the rate.
+     */
+    public long getRateLimitedCount() {
+        long result = 0;
+        Stripe[] stripes = this.stripes;
+        for (int i = 0; (stripes != null) && (i < stripes.length); i++) {
+            synchronized (stripes[i]) {
+                result += stripes[i].rateLimitedCount;
+            }
+        }
+        return (result);
+    }
+
+
+    /**
+     * Return the number of requests which have been refused since their
+     * client had too many concurrent requests.
+     */
+    public long getConcurrencyLimitedCount() {
+        long result = 0;
+        Stripe[] stripes = this.stripes;
+        for (int i = 0; (stripes != null) && (i < stripes.length); i++) {
+            synchronized (stripes[i]) {
+                result += stripes[i].concurrencyLimitedCount;
+            }
+        }
+        return (result);
+    }
+
+
+    /**
+     * Return the number of evicted buckets.
+     */
+    public long getEvictedCount() {
+        long result = 0;
+        Stripe[] stripes = this.stripes;
+        for (int i = 0; (stripes != null) && (i < stripes.length); i++) {
+            synchronized (stripes[i]) {
+                result += stripes[i].evictedCount;
+            }
+        }
+        return (result);
+    }
+
+
+    /**
+     * Return the number of tracked clients.
+     */
+    public int getKeyCount() {
+        int result = 0;
+        Stripe[] stripes = this.stripes;
+        for (int i = 0; (stripes != null) && (i < stripes.length); i++) {
+            synchronized (stripes[i]) {
+                result += stripes[i].size();
+            }
+        }
+        return (result);
+    }
+
+
+    // ------------------------------------------------------ Lifecycle Methods
+
+
+    /**
+     * Add a lifecycle event listener to this component.
+     *
+     * @param listener The listener to add
+     */
+    public void addLifecycleListener(LifecycleListener listener) {
+
+        lifecycle.addLifecycleListener(listener);
+
+    }
+
+
+    /**
+     * Get the lifecycle listeners associated with this lifecycle. If this
+     * Lifecycle has no listeners registered, a zero-length array is returned.
+     */
+    public LifecycleListener[] findLifecycleListeners() {
+
+        return lifecycle.findLifecycleListeners();
+
+    }
+
+
+    /**
+     * Remove a lifecycle event listener from this component.
+     *
+     * @param listener The listener to add
+     */
+    public void removeLifecycleListener(LifecycleListener listener) {
+
+        lifecycle.removeLifecycleListener(listener);
+
+    }
+
+
+    /**
+     * Prepare for the beginning of active use of the public methods of this
+     * component.  This method should be called after <code>configure()</code>,
+     * and before any of the public methods of the component are utilized.
+     *
+     * @exception LifecycleException if this component detects a fatal error
+     *  that prevents this component from being used
+     */
+    public void start() throws LifecycleException {
+
+        // Validate and update our current component state
+        if (started)
+            throw new LifecycleException
+                (sm.getString("rateLimitValve.alreadyStarted"));
+        if (!KEY_REMOTE_ADDR.equals(keyType) && !KEY_HEADER.equals(keyType)
+            && !KEY_SESSION.equals(keyType))
+            throw new LifecycleException
+                (sm.getString("rateLimitValve.invalidKeyType", keyType));
+        lifecycle.fireLifecycleEvent(START_EVENT, null);
+        started = true;
+
+        Stripe[] stripes = new Stripe[STRIPES];
+        int maxStripeKeys = Math.max(maxKeys / STRIPES, 1);
+        for (int i = 0; i < stripes.length; i++)
+            stripes[i] = new Stripe(maxStripeKeys);
+        this.stripes = stripes;
+
+    }
+
+
+    /**
+     * Gracefully terminate the active use of the public methods of this
+     * component.  This method should be the last one called on a given
+     * instance of this component.
+     *
+     * @exception LifecycleException if this component detects a fatal error
+     *  that needs to be reported
+     */
+    public void stop() throws LifecycleException {
+
+        // Validate and update our current component state
+        if (!started)
+            throw new LifecycleException
+                (sm.getString("rateLimitValve.notStarted"));
+        lifecycle.fireLifecycleEvent(STOP_EVENT, null);
+        started = false;
+
+        stripes = null;
+
+    }
+
+
+    // --------------------------------------------------------- Public Methods
+
+
+    /**
+     * Return descriptive information about this Valve implementation.
+     */
+    public String getInfo() {
+        return (info);
+    }
+
+
+    /**
+     * Evict the buckets of the clients which have been idle for longer than
+     * <code>idleTimeout</code>.
+     */
+    public void backgroundProcess() {
+
+        Stripe[] stripes = this.stripes;
+        if (stripes == null)
+            return;
+        long limit = System.currentTimeMillis() - (idleTimeout * 1000L);
+        for (int i = 0; i < stripes.length; i++) {
+            synchronized (stripes[i]) {
+                // Least recently used first
+                Iterator iterator = stripes[i].values().iterator();
+                while (iterator.hasNext()) {
+                    Bucket bucket = (Bucket) iterator.next();
+                    if (bucket.lastAccess > limit)
+                        break;
+                    if (bucket.active == 0) {
+                        iterator.remove();
+                        stripes[i].evictedCount++;
+                    }
+                }
+            }
+        }
+
+    }
+
+
+    /**
+     * Check the rate and concurrency of the client of the request, and pass
+     * it on to the next valve if they are within the limits.
+     *
+     * @param request The servlet request to be processed
+     * @param response The servlet response to be created
+     *
+     * @exception IOException if an input/output error occurs
+     * @exception ServletException if a servlet error occurs
+     */
+    public void invoke(Request request, Response response)
+        throws IOException, ServletException {
+
+        Stripe[] stripes = this.stripes;
+        String key = getKey(request);
+        if ((stripes == null) || (key == null)) {
+            getNext().invoke(request, response);
+            return;
+        }
+
+        Stripe stripe = stripes[(key.hashCode() & 0x7fffffff) % stripes.length];
+        Bucket bucket = null;
+        long retryAfter = 0;
+        boolean rateLimited = false;
+        synchronized (stripe) {
+            long now = System.currentTimeMillis();
+            bucket = (Bucket) stripe.get(key);
+            if (bucket == null) {
+                bucket = new Bucket(burst, now);
+                stripe.put(key, bucket);
+            }
+            bucket.refill(now, rate, burst);
+            if (bucket.tokens < 1.0) {
+                rateLimited = true;
+                stripe.rateLimitedCount++;
+                retryAfter = (rate > 0)
+                    ? (long) Math.ceil((1.0 - bucket.tokens) / rate) : 60;
+            } else if ((maxConcurrent > 0)
+                       && (bucket.active >= maxConcurrent)) {
+                stripe.concurrencyLimitedCount++;
+                retryAfter = 1;
+            } else {
+                bucket.tokens -= 1.0;
+                bucket.active++;
+                stripe.allowedCount++;
+            }
+        }
+
+        if (retryAfter > 0) {
+            if (rateLimited)
+                rateLimited(request, response, retryAfter);
+            else
+                concurrencyLimited(request, response, retryAfter);
+            return;
+        }
+
+        try {
+            getNext().invoke(request, response);
+        } finally {
+            synchronized (stripe) {
+                bucket.active--;
+            }
+        }
+
+    }
+
+
+    // ------------------------------------------------------ Protected Methods
+
+
+    /**
+     * Return the key identifying the client of the specified request, or
+     * <code>null</code> if the request should not be limited.
+     *
+     * @param request The servlet request
+     */
+    protected String getKey(Request request) {
+
+        if (KEY_HEADER.equals(keyType)) {
+            String value = request.getHeader(keyHeader);
+            if (value != null)
+                return (value);
+        } else if (KEY_SESSION.equals(keyType)) {
+            Session session = request.getSessionInternal(false);
+            if (session != null)
+                return (session.getIdInternal());
+        }
+        return (request.getRemoteAddr());
+
+    }
+
+
+    /**
+     * Refuse the specified request, since its client exceeded the rate.
+     *
+     * @param request The servlet request
+     * @param response The servlet response
+     * @param retryAfter Number of seconds after which a token is available
+     *
+     * @exception IOException if an input/output error occurs
+     * @exception ServletException if a servlet error occurs
+     */
+    protected void rateLimited(Request request, Response response,
+                               long retryAfter)
+        throws IOException, ServletException {
+
+        response.setHeader("Retry-After", String.valueOf(retryAfter));
+        response.sendError(rateLimitStatus);
+
+    }
+
+
+    /**
+     * Refuse the specified request, since its client has too many requests
+     * being processed.
+     *
+     * @param request The servlet request
+     * @param response The servlet response
+     * @param retryAfter Number of seconds after which to retry
+     *
+     * @exception IOException if an input/output error occurs
+     * @exception ServletException if a servlet error occurs
+     */
+    protected void concurrencyLimited(Request request, Response response,
+                                      long retryAfter)
+        throws IOException, ServletException {
+
+        response.setHeader("Retry-After", String.valueOf(retryAfter));
+        response.sendError(concurrencyLimitStatus);
+
+    }
+
+
+    // ----------------------------------------------------------- Stripe Class
+
+
+    /**
+     * A stripe of the bucket map, keeping its buckets in least recently used
+     * order, along with its counters.  Stripes are used as their own lock.
+     */
+    protected static class Stripe extends LinkedHashMap {
+
+        protected int maxKeys;
+        protected long allowedCount = 0;
+        protected long rateLimitedCount = 0;
+        protected long concurrencyLimitedCount = 0;
+        protected long evictedCount = 0;
+
+        public Stripe(int maxKeys) {
+            super(16, 0.75f, true);
+            this.maxKeys = maxKeys;
+        }
+
+        /**
+         * Evict the least recently used bucket which has no request in
+         * progress, as evicting a bucket would reset the concurrency limit
+         * of its client.  The bucket which has just been added is never
+         * evicted.  If all the other buckets have requests in progress,
+         * the stripe is allowed to grow beyond <code>maxKeys</code>.
+         */
+        protected boolean removeEldestEntry(Map.Entry eldest) {
+            if (size() <= maxKeys)
+                return false;
+            Iterator iterator = values().iterator();
+            for (int n = size() - 1; n > 0; n--) {
+                Bucket bucket = (Bucket) iterator.next();
+                if (bucket.active == 0) {
+                    iterator.remove();
+                    evictedCount++;
+                    break;
+                }
+            }
+            return false;
+        }
+
+    }
+
+
+    // ----------------------------------------------------------- Bucket Class
+
+
+    /**
+     * The token bucket of a client.
+     */
+    protected static class Bucket {
+
+        protected double tokens;
+        protected long lastAccess;
+        protected int active = 0;
+
+        public Bucket(int burst, long now) {
+            this.tokens = burst;
+            this.lastAccess = now;
+        }
+
+        /**
+         * Add the tokens accumulated since the last access.
+         */
+        public void refill(long now, double rate, int burst) {
+            if (now > lastAccess) {
+                tokens = Math.min(burst,
+                                  tokens + ((now - lastAccess) * rate / 1000.0));
+            }
+            lastAccess = now;
+        }
+
+    }
+
+
+}
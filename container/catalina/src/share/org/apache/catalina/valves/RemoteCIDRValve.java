@@ -0,0 +1,714 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apache.catalina.valves;
+
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.catalina.Lifecycle;
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.LifecycleListener;
+import org.apache.catalina.connector.Request;
+import org.apache.catalina.connector.Response;
+import org.apache.catalina.util.LifecycleSupport;
+import org.apache.catalina.util.StringManager;
+
+
+/**
+ * Implementation of a Valve that performs filtering based on the IP address
+ * of the remote client, compared to ranges of IPv4 and IPv6 addresses in
+ * CIDR notation, such as <code>10.0.0.0/8</code> or
+ * <code>2001:db8::/32</code>.  The ranges are held in binary prefix tries,
+ * so that checking an address costs the same whatever the number of ranges.
+ * <p>
+ * This valve is configured by setting the <code>allow</code> and/or
+ * <code>deny</code> properties to a comma-delimited list of ranges, and/or
+ * the <code>allowFile</code> and/or <code>denyFile</code> properties to
+ * files containing one range per line.  The files are reloaded by the
+ * background processing of the container when they are modified.
+ * Evaluation proceeds as follows:
+ * <ul>
+ * <li>If the address is in one of the deny ranges, this request will be
+ *     rejected with a "Forbidden" HTTP response.</li>
+ * <li>If the address is in one of the allow ranges, this request will be
+ *     allowed to pass through to the next Valve in the current
+ *     pipeline.</li>
+ * <li>If one or more deny ranges was specified but no allow ranges, allow
+ *     this request to pass through (because none of the deny ranges
+ *     matched it).
+ * <li>The request will be rejected with a "Forbidden" HTTP response.</li>
+ * </ul>
+ * <p>
+ * This Valve may be attached to any Container, depending on the granularity
+ * of the filtering you wish to perform.
+ *
+ * @version $Id$
+ */
+
+public final class RemoteCIDRValve
+    extends ValveBase implements Lifecycle {
+
+
+    // ----------------------------------------------------- Class Variables
+
+
+    /**
+     * The descriptive information related to this implementation.
+     */
+    private static final String info =
+        "org.apache.catalina.valves.RemoteCIDRValve/1.0";
+
+
+    /**
+     * The StringManager for this package.
+     */
+    protected static StringManager sm =
+        StringManager.getManager(Constants.Package);
+
+
+    // ----------------------------------------------------- Instance Variables
+
+
+    /**
+     * The comma-delimited set of <code>allow</code> ranges.
+     */
+    protected volatile String allow = null;
+
+
+    /**
+     * Helper variable to catch configuration errors.
+     * It is <code>true</code> by default, but becomes <code>false</code>
+     * if there was an attempt to assign an invalid value to the
+     * <code>allow</code> ranges.
+     */
+    protected volatile boolean allowValid = true;
+
+
+    /**
+     * The file containing additional <code>allow</code> ranges.
+     */
+    protected String allowFile = null;
+
+
+    /**
+     * The comma-delimited set of <code>deny</code> ranges.
+     */
+    protected volatile String deny = null;
+
+
+    /**
+     * Helper variable to catch configuration errors.
+     * It is <code>true</code> by default, but becomes <code>false</code>
+     * if there was an attempt to assign an invalid value to the
+     * <code>deny</code> ranges.
+     */
+    protected volatile boolean denyValid = true;
+
+
+    /**
+     * The file containing additional <code>deny</code> ranges.
+     */
+    protected String denyFile = null;
+
+
+    /**
+     * The tries of <code>allow</code> ranges we will evaluate.
+     */
+    protected volatile AddressTrie allows = new AddressTrie();
+
+
+    /**
+     * The tries of <code>deny</code> ranges we will evaluate.
+     */
+    protected volatile AddressTrie denies = new AddressTrie();
+
+
+    /**
+     * The last modification time of the <code>allow</code> file, when it
+     * was loaded.
+     */
+    protected long allowFileModified = 0L;
+
+
+    /**
+     * The last modification time of the <code>deny</code> file, when it
+     * was loaded.
+     */
+    protected long denyFileModified = 0L;
+
+
+    /**
+     * The last modification time of the <code>allow</code> file, when it
+     * could not be read.
+     */
+    protected long allowFileFailed = -1L;
+
+
+    /**
+     * The last modification time of the <code>deny</code> file, when it
+     * could not be read.
+     */
+    protected long denyFileFailed = -1L;
+
+
+    /**
+     * The lifecycle event support for this component.
+     */
+    protected LifecycleSupport lifecycle = new LifecycleSupport(this);
+
+
+    /**
+     * Has this component been started yet?
+     */
+    protected boolean started = false;
+
+
+    // ------------------------------------------------------------- Properties
+
+
+    /**
+     * Return a comma-delimited set of the <code>allow</code> ranges
+     * configured for this Valve, if any; otherwise, return <code>null</code>.
+     */
+    public String getAllow() {
+
+        return (this.allow);
+
+    }
+
+
+    /**
+     * Set the comma-delimited set of the <code>allow</code> ranges
+     * configured for this Valve, if any.
+     *
+     * @param allow The new set of allow ranges
+     */
+    public void setAllow(String allow) {
+        boolean success = false;
+        try {
+            this.allow = allow;
+            allows = loadRanges(allow, started ? allowFile : null);
+            success = true;
+        } finally {
+            allowValid = success;
+        }
+    }
+
+
+    /**
+     * Return the file containing additional <code>allow</code> ranges.
+     */
+    public String getAllowFile() {
+
+        return (this.allowFile);
+
+    }
+
+
+    /**
+     * Set the file containing additional <code>allow</code> ranges, one
+     * per line, relative to <code>$CATALINA_BASE</code>.
+     *
+     * @param allowFile The new file
+     */
+    public void setAllowFile(String allowFile) {
+
+        this.allowFile = allowFile;
+        allowFileModified = 0L;
+        allowFileFailed = -1L;
+
+    }
+
+
+    /**
+     * Return a comma-delimited set of the <code>deny</code> ranges
+     * configured for this Valve, if any; otherwise, return <code>null</code>.
+     */
+    public String getDeny() {
+
+        return (this.deny);
+
+    }
+
+
+    /**
+     * Set the comma-delimited set of the <code>deny</code> ranges
+     * configured for this Valve, if any.
+     *
+     * @param deny The new set of deny ranges
+     */
+    public void setDeny(String deny) {
+        boolean success = false;
+        try {
+            this.deny = deny;
+            denies = loadRanges(deny, started ? denyFile : null);
+            success = true;
+        } finally {
+            denyValid = success;
+        }
+    }
+
+
+    /**
+     * Return the file containing additional <code>deny</code> ranges.
+     */
+    public String getDenyFile() {
+
+        return (this.denyFile);
+
+    }
+
+
+    /**
+     * Set the file containing additional <code>deny</code> ranges, one per
+     * line, relative to <code>$CATALINA_BASE</code>.
+     *
+     * @param denyFile The new file
+     */
+    public void setDenyFile(String denyFile) {
+
+        this.denyFile = denyFile;
+        denyFileModified = 0L;
+        denyFileFailed = -1L;
+
+    }
+
+
+    /**
+     * Returns <code>false</code> if the last change to the
+     * <code>allow</code> ranges did not apply successfully. E.g.
+     * if a range is syntactically invalid.
+     */
+    public boolean isAllowValid() {
+        return allowValid;
+    }
+
+
+    /**
+     * Returns <code>false</code> if the last change to the
+     * <code>deny</code> ranges did not apply successfully. E.g.
+     * if a range is syntactically invalid.
+     */
+    public boolean isDenyValid() {
+        return denyValid;
+    }
+
+
+    /**
+     * Return the number of <code>allow</code> ranges, including those of
+     * the file.
+     */
+    public int getAllowCount() {
+        return allows.size();
+    }
+
+
+    /**
+     * Return the number of <code>deny</code> ranges, including those of
+     * the file.
+     */
+    public int getDenyCount() {
+        return denies.size();
+    }
+
+
+    /**
+     * Return descriptive information about this Valve implementation.
+     */
+    public String getInfo() {
+
+        return (info);
+
+    }
+
+
+    // --------------------------------------------------------- Public Methods
+
+
+    /**
+     * Check the remote address of the request against the configured
+     * ranges, and pass the request on to the next valve if it is allowed.
+     *
+     * @param request The servlet request to be processed
+     * @param response The servlet response to be created
+     *
+     * @exception IOException if an input/output error occurs
+     * @exception ServletException if a servlet error occurs
+     */
+    public void invoke(Request request, Response response)
+        throws IOException, ServletException {
+
+        if (isAllowed(request.getRequest().getRemoteAddr())) {
+            getNext().invoke(request, response);
+            return;
+        }
+
+        // Deny this request
+        response.sendError(HttpServletResponse.SC_FORBIDDEN);
+
+    }
+
+
+    /**
+     * Perform the test implemented by this Valve, matching against the
+     * specified IP address. This method is public so that it can be
+     * called through JMX, e.g. to test whether certain IP address is allowed or
+     * denied by the valve configuration.
+     *
+     * @param property The IP address on which to filter
+     */
+    public boolean isAllowed(String property) {
+        // Use local copies for thread safety
+        AddressTrie denies = this.denies;
+        AddressTrie allows = this.allows;
+        byte[] address = AddressTrie.parseAddress(property);
+
+        // Check the deny ranges, if any
+        if ((address != null) && denies.contains(address)) {
+            return false;
+        }
+
+        // Check the allow ranges, if any
+        if ((address != null) && allows.contains(address)) {
+            return true;
+        }
+
+        // Allow if denies specified but not allows
+        if ((denies.size() > 0) && (allows.size() == 0)) {
+            return true;
+        }
+
+        // Deny this request
+        return false;
+    }
+
+
+    /**
+     * Reload the files of ranges if they have been modified.  The ranges of
+     * a file which cannot be read completely are kept as they were, and the
+     * file is read again once it is modified.
+     */
+    public void backgroundProcess() {
+
+        if (!started)
+            return;
+        if (isModified(allowFile, allowFileModified)) {
+            long modified = getFile(allowFile).lastModified();
+            if (modified != allowFileFailed) {
+                try {
+                    allows = load(allow, allowFile);
+                    allowFileModified = modified;
+                    allowFileFailed = -1L;
+                } catch (IOException e) {
+                    allowFileFailed = modified;
+                    container.getLogger().error
+                        (sm.getString("remoteCIDRValve.loadError",
+                                      getFile(allowFile).getAbsolutePath()),
+                         e);
+                }
+            }
+        }
+        if (isModified(denyFile, denyFileModified)) {
+            long modified = getFile(denyFile).lastModified();
+            if (modified != denyFileFailed) {
+                try {
+                    denies = load(deny, denyFile);
+                    denyFileModified = modified;
+                    denyFileFailed = -1L;
+                } catch (IOException e) {
+                    denyFileFailed = modified;
+                    container.getLogger().error
+                        (sm.getString("remoteCIDRValve.loadError",
+                                      getFile(denyFile).getAbsolutePath()),
+                         e);
+                }
+            }
+        }
+
+    }
+
+
+    // ------------------------------------------------------ Protected Methods
+
+
+    /**
+     * Return a trie initialized from the specified comma-delimited list of
+     * ranges, which must be <code>null</code> or valid, and from the
+     * specified file of ranges, if any.  Invalid ranges in the file are
+     * logged and ignored.
+     *
+     * @param list The comma-delimited list of ranges
+     * @param path The path of the file of ranges, or <code>null</code>
+     *
+     * @exception IllegalArgumentException if one of the ranges of the
+     *  list is invalid
+     * @exception IOException if the file cannot be read completely
+     */
+    protected AddressTrie load(String list, String path)
+        throws IOException {
+
+        AddressTrie trie = new AddressTrie();
+        if (list != null) {
+            int start = 0;
+            while (start <= list.length()) {
+                int comma = list.indexOf(',', start);
+                if (comma < 0)
+                    comma = list.length();
+                String range = list.substring(start, comma).trim();
+                if (range.length() > 0) {
+                    try {
+                        trie.add(range);
+                    } catch (IllegalArgumentException e) {
+                        throw new IllegalArgumentException
+                            (sm.getString("remoteCIDRValve.syntax", range));
+                    }
+                }
+                start = comma + 1;
+            }
+        }
+        if (path != null) {
+            readFile(getFile(path), trie);
+        }
+        return (trie);
+
+    }
+
+
+    /**
+     * Return a trie initialized as by <code>load()</code>, for the setters
+     * of the ranges.
+     *
+     * @param list The comma-delimited list of ranges
+     * @param path The path of the file of ranges, or <code>null</code>
+     *
+     * @exception IllegalArgumentException if one of the ranges of the
+     *  list is invalid, or if the file cannot be read completely
+     */
+    protected AddressTrie loadRanges(String list, String path) {
+
+        try {
+            return (load(list, path));
+        } catch (IOException e) {
+            container.getLogger().error
+                (sm.getString("remoteCIDRValve.loadError",
+                              getFile(path).getAbsolutePath()), e);
+            throw new IllegalArgumentException
+                (sm.getString("remoteCIDRValve.loadError",
+                              getFile(path).getAbsolutePath()));
+        }
+
+    }
+
+
+    /**
+     * Add the ranges of the specified file to the specified trie.  The file
+     * is not considered complete if it is modified while it is read.
+     *
+     * @param file The file of ranges
+     * @param trie The trie
+     *
+     * @exception IOException if the file cannot be read completely
+     */
+    protected void readFile(File file, AddressTrie trie)
+        throws IOException {
+
+        long modified = file.lastModified();
+        long length = file.length();
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader
+                                        (new FileInputStream(file), "UTF-8"));
+            int count = 0;
+            String line = null;
+            while ((line = reader.readLine()) != null) {
+                int comment = line.indexOf('#');
+                if (comment >= 0)
+                    line = line.substring(0, comment);
+                line = line.trim();
+                if (line.length() == 0)
+                    continue;
+                try {
+                    trie.add(line);
+                    count++;
+                } catch (IllegalArgumentException e) {
+                    container.getLogger().warn
+                        (sm.getString("remoteCIDRValve.syntax", line));
+                }
+            }
+            if ((file.lastModified() != modified)
+                || (file.length() != length)) {
+                throw new IOException
+                    (sm.getString("remoteCIDRValve.modified",
+                                  file.getAbsolutePath()));
+            }
+            if (container.getLogger().isDebugEnabled())
+                container.getLogger().debug
+                    (sm.getString("remoteCIDRValve.loaded",
+                                  String.valueOf(count),
+                                  file.getAbsolutePath()));
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    ;
+                }
+            }
+        }
+
+    }
+
+
+    /**
+     * Return true if the specified file of ranges has been modified since it
+     * was loaded.
+     *
+     * @param path The path of the file, or <code>null</code>
+     * @param loaded The modification time of the file when it was loaded
+     */
+    protected boolean isModified(String path, long loaded) {
+
+        if (path == null)
+            return (false);
+        return (getFile(path).lastModified() != loaded);
+
+    }
+
+
+    /**
+     * Return the file with the specified path, relative to
+     * <code>$CATALINA_BASE</code>.
+     *
+     * @param path The path
+     */
+    protected File getFile(String path) {
+
+        File file = new File(path);
+        if (!file.isAbsolute())
+            file = new File(System.getProperty("catalina.base"), path);
+        return (file);
+
+    }
+
+
+    // ------------------------------------------------------ Lifecycle Methods
+
+
+    /**
+     * Add a lifecycle event listener to this component.
+     *
+     * @param listener The listener to add
+     */
+    public void addLifecycleListener(LifecycleListener listener) {
+        lifecycle.addLifecycleListener(listener);
+    }
+
+
+    /**
+     * Get the lifecycle listeners associated with this lifecycle. If this
+     * Lifecycle has no listeners registered, a zero-length array is returned.
+     */
+    public LifecycleListener[] findLifecycleListeners() {
+        return lifecycle.findLifecycleListeners();
+    }
+
+
+    /**
+     * Remove a lifecycle event listener from this component.
+     *
+     * @param listener The listener to add
+     */
+    public void removeLifecycleListener(LifecycleListener listener) {
+        lifecycle.removeLifecycleListener(listener);
+    }
+
+
+    /**
+     * Prepare for the beginning of active use of the public methods of this
+     * component.  This method should be called after <code>configure()</code>,
+     * and before any of the public methods of the component are utilized.
+     *
+     * @exception LifecycleException if this component detects a fatal error
+     *  that prevents this component from being used
+     */
+    public void start() throws LifecycleException {
+
+        // Validate and update our current component state
+        if (started) {
+            throw new LifecycleException(
+                    sm.getString("requestFilterValve.alreadyStarted"));
+        }
+        if (!allowValid || !denyValid) {
+            throw new LifecycleException(
+                    sm.getString("remoteCIDRValve.configInvalid"));
+        }
+
+        // Load the files of ranges, which must be readable so that the
+        // filter does not start without them
+        String path = null;
+        try {
+            if (allowFile != null) {
+                path = allowFile;
+                long modified = getFile(allowFile).lastModified();
+                allows = load(allow, allowFile);
+                allowFileModified = modified;
+                allowFileFailed = -1L;
+            }
+            if (denyFile != null) {
+                path = denyFile;
+                long modified = getFile(denyFile).lastModified();
+                denies = load(deny, denyFile);
+                denyFileModified = modified;
+                denyFileFailed = -1L;
+            }
+        } catch (IOException e) {
+            throw new LifecycleException
+                (sm.getString("remoteCIDRValve.loadError",
+                              getFile(path).getAbsolutePath()), e);
+        }
+
+        lifecycle.fireLifecycleEvent(START_EVENT, null);
+        started = true;
+    }
+
+    /**
+     * Gracefully terminate the active use of the public methods of this
+     * component.  This method should be the last one called on a given
+     * instance of this component.
+     *
+     * @exception LifecycleException if this component detects a fatal error
+     *  that needs to be reported
+     */
+    public void stop() throws LifecycleException {
+        // Validate and update our current component state
+        if (!started) {
+            return;
+        }
+        lifecycle.fireLifecycleEvent(STOP_EVENT, null);
+        started = false;
+    }
+
+}
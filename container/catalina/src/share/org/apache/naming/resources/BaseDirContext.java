@@ -110,6 +110,18 @@ public abstract class BaseDirContext implements DirContext {
     protected int cacheMaxSize = 10240; // 10 MB
 
 
+    /**
+     * Min size of resources which will have their content memory mapped.
+     */
+    protected int cacheMappedMinSize = -1;
+
+
+    /**
+     * Revalidate the cache entries in the background.
+     */
+    protected boolean cacheBackgroundRevalidation = false;
+
+
     // ------------------------------------------------------------- Properties
 
 
@@ -192,6 +204,41 @@ public abstract class BaseDirContext implements DirContext {
     }
 
 
+    /**
+     * Return the minimum size in KB of the resources which will have their
+     * content memory mapped, or a negative value if mapping is disabled.
+     */
+    public int getCacheMappedMinSize() {
+        return cacheMappedMinSize;
+    }
+
+
+    /**
+     * Set the minimum size in KB of the resources which will have their
+     * content memory mapped.
+     */
+    public void setCacheMappedMinSize(int cacheMappedMinSize) {
+        this.cacheMappedMinSize = cacheMappedMinSize;
+    }
+
+
+    /**
+     * Are the cache entries revalidated in the background ?
+     */
+    public boolean isCacheBackgroundRevalidation() {
+        return cacheBackgroundRevalidation;
+    }
+
+
+    /**
+     * Set background revalidation of the cache entries.
+     */
+    public void setCacheBackgroundRevalidation
+        (boolean cacheBackgroundRevalidation) {
+        this.cacheBackgroundRevalidation = cacheBackgroundRevalidation;
+    }
+
+
     // --------------------------------------------------------- Public Methods
 
 
@@ -981,7 +981,7 @@ public class FileDirContext extends BaseDirContext {
          */
         public InputStream streamContent()
             throws IOException {
-            if (binaryContent == null) {
+            if ((binaryContent == null) && (mappedContent == null)) {
                 FileInputStream fis = new FileInputStream(file);
                 inputStream = fis;
                 return fis;
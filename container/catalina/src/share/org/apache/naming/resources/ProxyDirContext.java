@@ -21,6 +21,8 @@ package org.apache.naming.resources;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
 import java.util.Hashtable;
 
 import javax.naming.Context;
@@ -77,6 +79,9 @@ public class ProxyDirContext implements DirContext {
                 cache.setCacheMaxSize(baseDirContext.getCacheMaxSize());
                 cacheTTL = baseDirContext.getCacheTTL();
                 cacheObjectMaxSize = baseDirContext.getCacheMaxSize() / 20;
+                cacheMappedMinSize = baseDirContext.getCacheMappedMinSize();
+                cacheBackgroundRevalidation = 
+                    baseDirContext.isCacheBackgroundRevalidation();
             }
         }
         hostName = (String) env.get(HOST);
@@ -177,6 +182,22 @@ public class ProxyDirContext implements DirContext {
     protected int cacheObjectMaxSize = 512; // 512 KB
 
 
+    /**
+     * Min size of resources which will have their content cached as a
+     * memory mapped view of their file, instead of on the heap. A negative
+     * value disables memory mapping. Mapped content counts towards the size
+     * of the cache, and files are only mapped once admitted in the cache.
+     */
+    protected int cacheMappedMinSize = -1;
+
+
+    /**
+     * Are the cache entries revalidated by the background process, instead
+     * of when they are accessed after their TTL has expired ?
+     */
+    protected boolean cacheBackgroundRevalidation = false;
+
+
     /**
      * Immutable name not found exception.
      */
@@ -201,6 +222,42 @@ public class ProxyDirContext implements DirContext {
     }
 
 
+    /**
+     * Execute a periodic task, such as revalidating the cache entries in
+     * the background. Entries which have been modified, removed, or created
+     * (for entries cached as not found) are removed from the cache, so
+     * that requests never have to check the resources themselves. Entries
+     * whose last modification date is unknown cannot be checked, and are
+     * only removed once their TTL has expired.
+     */
+    public void backgroundProcess() {
+        if ((cache == null) || !cacheBackgroundRevalidation)
+            return;
+        long now = System.currentTimeMillis();
+        CacheEntry[] entries = cache.entries();
+        for (int i = 0; i < entries.length; i++) {
+            CacheEntry entry = entries[i];
+            if (entry.exists) {
+                if ((entry.attributes == null)
+                    || (entry.attributes.getLastModified() <= 0)) {
+                    if (now >= entry.timestamp) {
+                        cacheUnload(entry.name);
+                    }
+                } else if (!revalidate(entry)) {
+                    cacheUnload(entry.name);
+                }
+            } else {
+                try {
+                    dirContext.getAttributes(entry.name);
+                    cacheUnload(entry.name);
+                } catch (NamingException e) {
+                    // Still not found
+                }
+            }
+        }
+    }
+
+
     /**
      * Return the actual directory context we are wrapping.
      */
@@ -1447,7 +1504,7 @@ public class ProxyDirContext implements DirContext {
             cacheEntry.name = name;
             // Load entry
             cacheLoad(cacheEntry);
-        } else {
+        } else if (!cacheBackgroundRevalidation) {
             if (!validate(cacheEntry)) {
                 if (!revalidate(cacheEntry)) {
                     cacheUnload(cacheEntry.name);
@@ -1457,7 +1514,6 @@ public class ProxyDirContext implements DirContext {
                         System.currentTimeMillis() + cacheTTL;
                 }
             }
-            cacheEntry.accessCount++;
         }
         return (cacheEntry);
     }
@@ -1470,7 +1526,8 @@ public class ProxyDirContext implements DirContext {
         if (((!entry.exists)
              || (entry.context != null)
              || ((entry.resource != null) 
-                 && (entry.resource.getContent() != null)))
+                 && ((entry.resource.getContent() != null)
+                     || (entry.resource.getMappedContent() != null))))
             && (System.currentTimeMillis() < entry.timestamp)) {
             return true;
         }
@@ -1554,9 +1611,25 @@ public class ProxyDirContext implements DirContext {
             }
         }
 
+        // Object content will be mapped, it will not use any heap space,
+        // but the mapped size counts towards the size of the cache
+        boolean map = false;
+        if ((exists) && (entry.resource != null)
+            && (entry.resource.getContent() == null)
+            && (entry.resource.getMappedContent() == null)
+            && (cacheMappedMinSize >= 0)
+            && (entry.attributes.getContentLength() >= 
+                (cacheMappedMinSize * 1024L))
+            && (entry.attributes.getContentLength() <= Integer.MAX_VALUE)
+            && (entry.attributes.getCanonicalPath() != null)) {
+            map = true;
+            entry.size += (entry.attributes.getContentLength() / 1024);
+        }
+
         // Load object content
-        if ((exists) && (entry.resource != null) 
+        if ((exists) && (!map) && (entry.resource != null) 
             && (entry.resource.getContent() == null) 
+            && (entry.resource.getMappedContent() == null) 
             && (entry.attributes.getContentLength() >= 0)
             && (entry.attributes.getContentLength() < 
                 (cacheObjectMaxSize * 1024))) {
@@ -1594,11 +1667,28 @@ public class ProxyDirContext implements DirContext {
         // Set timestamp
         entry.timestamp = System.currentTimeMillis() + cacheTTL;
 
-        // Add new entry to cache
-        synchronized (cache) {
-            // Check cache size, and remove elements if too big
-            if ((cache.lookup(name) == null) && cache.allocate(entry.size)) {
-                cache.load(entry);
+        // Add new entry to cache, the cache will make room for it if needed
+        if (!cache.load(entry) || !map)
+            return;
+
+        // Map object content only once admitted, so that rejected entries
+        // are not mapped again on each request; until it is mapped, the
+        // content is streamed
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile
+                (entry.attributes.getCanonicalPath(), "r");
+            entry.resource.setMappedContent(file.getChannel().map
+                (FileChannel.MapMode.READ_ONLY, 0, 
+                 entry.attributes.getContentLength()));
+        } catch (IOException e) {
+            ; // Ignore, the content will be streamed
+        } finally {
+            try {
+                if (file != null)
+                    file.close();
+            } catch (IOException e) {
+                ; // Ignore
             }
         }
 
@@ -1619,11 +1709,9 @@ public class ProxyDirContext implements DirContext {
         } else {
             name2 = name + "/";
         }
-        synchronized (cache) {
-            boolean result = cache.unload(name);
-            cache.unload(name2);
-            return result;
-        }
+        boolean result = cache.unload(name);
+        cache.unload(name2);
+        return result;
     }
 }
 
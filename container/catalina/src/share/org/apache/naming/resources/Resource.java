@@ -20,6 +20,7 @@ package org.apache.naming.resources;
 import java.io.InputStream;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * Encapsultes the contents of a resource.
@@ -62,6 +63,14 @@ public class Resource {
     protected InputStream inputStream = null;
     
     
+    /**
+     * Content held outside of the heap, such as a memory mapped view of the
+     * file of the resource.  It may be set after the resource has been
+     * published in the cache.
+     */
+    protected volatile ByteBuffer mappedContent = null;
+    
+    
     // ------------------------------------------------------------- Properties
     
     
@@ -75,6 +84,9 @@ public class Resource {
         if (binaryContent != null) {
             return new ByteArrayInputStream(binaryContent);
         }
+        if (mappedContent != null) {
+            return new ByteBufferInputStream(mappedContent.duplicate());
+        }
         return inputStream;
     }
     
@@ -89,6 +101,17 @@ public class Resource {
     }
     
     
+    /**
+     * Content accessor. The returned buffer is shared, and must be
+     * duplicated before its position is changed.
+     * 
+     * @return content held outside of the heap
+     */
+    public ByteBuffer getMappedContent() {
+        return mappedContent;
+    }
+    
+    
     /**
      * Content mutator.
      * 
@@ -109,4 +132,59 @@ public class Resource {
     }
     
     
+    /**
+     * Content mutator.
+     * 
+     * @param mappedContent New content held outside of the heap
+     */
+    public void setMappedContent(ByteBuffer mappedContent) {
+        this.mappedContent = mappedContent;
+    }
+    
+    
+    // ---------------------------------------- ByteBufferInputStream Inner Class
+    
+    
+    /**
+     * Input stream reading the remaining content of a buffer.
+     */
+    protected static class ByteBufferInputStream extends InputStream {
+        
+        protected ByteBuffer buffer;
+        
+        public ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+        
+        public int read() {
+            if (!buffer.hasRemaining())
+                return -1;
+            return buffer.get() & 0xff;
+        }
+        
+        public int read(byte[] b, int off, int len) {
+            if (len == 0)
+                return 0;
+            if (!buffer.hasRemaining())
+                return -1;
+            len = Math.min(len, buffer.remaining());
+            buffer.get(b, off, len);
+            return len;
+        }
+        
+        public long skip(long n) {
+            if (n <= 0)
+                return 0;
+            int skipped = (int) Math.min(n, buffer.remaining());
+            buffer.position(buffer.position() + skipped);
+            return skipped;
+        }
+        
+        public int available() {
+            return buffer.remaining();
+        }
+        
+    }
+    
+    
 }
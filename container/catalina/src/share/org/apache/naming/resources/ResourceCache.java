@@ -15,14 +15,27 @@
  * limitations under the License.
  */ 
 
+
 package org.apache.naming.resources;
 
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Random;
+import java.util.Iterator;
 
 
 /**
  * Implements a special purpose cache.
+ * <p>
+ * The cache is split in segments, selected using the hash of the entry
+ * name, which are locked independently.  Each segment weighs its entries
+ * by their size in KB, and admits them using a W-TinyLFU policy: new
+ * entries are first placed in a small LRU window, and when they leave it,
+ * they only enter the main space (a segmented LRU made of a probation and
+ * a protected area) if they have been accessed more frequently than the
+ * entries they would replace.  Access frequencies are tracked with a
+ * compact count-min sketch which is periodically aged, so that one time
+ * accesses (such as a crawler walking all the resources of a large static
+ * site) do not evict the popular entries.
  * 
  * @author <a href="mailto:remm@apache.org">Remy Maucherat</a>
  * @version $Revision$
@@ -30,33 +43,45 @@ import java.util.Random;
 public class ResourceCache {
     
     
-    // ----------------------------------------------------------- Constructors
-    
-    
-    public ResourceCache() {
-    }
-    
-    
-    // ----------------------------------------------------- Instance Variables
+    // -------------------------------------------------------------- Constants
+
+
+    /**
+     * Number of segments, which must be a power of two.
+     */
+    protected static final int SEGMENTS = 16;
 
 
     /**
-     * Random generator used to determine elements to free.
+     * Percentage of the size of a segment used by the admission window.
      */
-    protected Random random = new Random();
+    protected static final int WINDOW_PERCENT = 1;
 
 
     /**
-     * Cache.
-     * Path -> Cache entry.
+     * Percentage of the main space of a segment used by the protected area.
      */
-    protected CacheEntry[] cache = new CacheEntry[0];
+    protected static final int PROTECTED_PERCENT = 80;
+
+
+    // ----------------------------------------------------------- Constructors
+    
+    
+    public ResourceCache() {
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = new Segment();
+        }
+        resize();
+    }
+    
+    
+    // ----------------------------------------------------- Instance Variables
 
 
     /**
-     * Not found cache.
+     * Cache segments.
      */
-    protected HashMap notFoundCache = new HashMap();
+    protected Segment[] segments = new Segment[SEGMENTS];
 
 
     /**
@@ -67,51 +92,41 @@ public class ResourceCache {
 
     /**
      * Max amount of removals during a make space.
+     * Not used anymore, as space is reclaimed when entries are loaded.
      */
     protected int maxAllocateIterations = 20;
 
 
     /**
      * Entry hit ratio at which an entry will never be removed from the cache.
-     * Compared with entry.access / hitsCount
+     * Not used anymore, as entries are admitted and evicted according to
+     * their access frequency.
      */
     protected long desiredEntryAccessRatio = 3;
 
 
     /**
      * Spare amount of not found entries.
+     * Not used anymore, as not found entries are admitted and evicted like
+     * the other entries.
      */
     protected int spareNotFoundEntries = 500;
 
 
-    /**
-     * Current cache size in KB.
-     */
-    protected int cacheSize = 0;
-
-
-    /**
-     * Number of accesses to the cache.
-     */
-    protected long accessCount = 0;
-
-
-    /**
-     * Number of cache hits.
-     */
-    protected long hitsCount = 0;
-
-
     // ------------------------------------------------------------- Properties
 
 
     /**
      * Return the access count.
-     * Note: Update is not synced, so the number may not be completely 
-     * accurate.
      */
     public long getAccessCount() {
-        return accessCount;
+        long result = 0;
+        for (int i = 0; i < segments.length; i++) {
+            synchronized (segments[i]) {
+                result += segments[i].accessCount;
+            }
+        }
+        return result;
     }
 
 
@@ -128,6 +143,7 @@ public class ResourceCache {
      */
     public void setCacheMaxSize(int cacheMaxSize) {
         this.cacheMaxSize = cacheMaxSize;
+        resize();
     }
 
 
@@ -135,7 +151,13 @@ public class ResourceCache {
      * Return the current cache size in KB.
      */
     public int getCacheSize() {
-        return cacheSize;
+        int result = 0;
+        for (int i = 0; i < segments.length; i++) {
+            synchronized (segments[i]) {
+                result += segments[i].size();
+            }
+        }
+        return result;
     }
 
 
@@ -155,13 +177,31 @@ public class ResourceCache {
     }
 
 
+    /**
+     * Return the number of entries which have been evicted from the cache.
+     */
+    public long getEvictionCount() {
+        long result = 0;
+        for (int i = 0; i < segments.length; i++) {
+            synchronized (segments[i]) {
+                result += segments[i].evictionCount;
+            }
+        }
+        return result;
+    }
+
+
     /**
      * Return the number of cache hits.
-     * Note: Update is not synced, so the number may not be completely 
-     * accurate.
      */
     public long getHitsCount() {
-        return hitsCount;
+        long result = 0;
+        for (int i = 0; i < segments.length; i++) {
+            synchronized (segments[i]) {
+                result += segments[i].hitsCount;
+            }
+        }
+        return result;
     }
 
 
@@ -181,6 +221,22 @@ public class ResourceCache {
     }
 
 
+    /**
+     * Return the number of entries which were not admitted in the cache,
+     * because they were accessed less frequently than the entries they
+     * would have replaced.
+     */
+    public long getRejectedCount() {
+        long result = 0;
+        for (int i = 0; i < segments.length; i++) {
+            synchronized (segments[i]) {
+                result += segments[i].rejectedCount;
+            }
+        }
+        return result;
+    }
+
+
     /**
      * Return the amount of spare not found entries.
      */
@@ -200,224 +256,392 @@ public class ResourceCache {
     // --------------------------------------------------------- Public Methods
 
 
+    /**
+     * Return <code>true</code> if an entry of the specified size may be
+     * cached.  Space is reclaimed by {@link #load(CacheEntry)}, according to
+     * the admission policy of the cache.
+     *
+     * @param space Size of the entry in KB
+     */
     public boolean allocate(int space) {
 
-        int toFree = space - (cacheMaxSize - cacheSize);
+        return (space <= (cacheMaxSize / segments.length));
 
-        if (toFree <= 0) {
-            return true;
-        }
+    }
 
-        // Increase the amount to free so that allocate won't have to run right
-        // away again
-        toFree += (cacheMaxSize / 20);
 
-        int size = notFoundCache.size();
-        if (size > spareNotFoundEntries) {
-            notFoundCache.clear();
-            cacheSize -= size;
-            toFree -= size;
-        }
+    /**
+     * Return the cache entry with the specified name, or <code>null</code>
+     * if it is not cached.  The access is recorded, including when the
+     * entry is not found, so that the entry may be admitted by a later
+     * load.
+     *
+     * @param name Name of the entry
+     */
+    public CacheEntry lookup(String name) {
 
-        if (toFree <= 0) {
-            return true;
+        int hash = hash(name);
+        Segment segment = segmentFor(hash);
+        synchronized (segment) {
+            return segment.lookup(name, hash);
         }
 
-        int attempts = 0;
-        int entriesFound = 0;
-        long totalSpace = 0;
-        int[] toRemove = new int[maxAllocateIterations];
-        while (toFree > 0) {
-            if (attempts == maxAllocateIterations) {
-                // Give up, no changes are made to the current cache
-                return false;
-            }
-            if (toFree > 0) {
-                // Randomly select an entry in the array
-                int entryPos = -1;
-                boolean unique = false;
-                while (!unique) {
-                    unique = true;
-                    entryPos = random.nextInt(cache.length) ;
-                    // Guarantee uniqueness
-                    for (int i = 0; i < entriesFound; i++) {
-                        if (toRemove[i] == entryPos) {
-                            unique = false;
-                        }
-                    }
-                }
-                long entryAccessRatio = 
-                    ((cache[entryPos].accessCount * 100) / accessCount);
-                if (entryAccessRatio < desiredEntryAccessRatio) {
-                    toRemove[entriesFound] = entryPos;
-                    totalSpace += cache[entryPos].size;
-                    toFree -= cache[entryPos].size;
-                    entriesFound++;
-                }
-            }
-            attempts++;
-        }
+    }
 
-        // Now remove the selected entries
-        java.util.Arrays.sort(toRemove, 0, entriesFound);
-        CacheEntry[] newCache = new CacheEntry[cache.length - entriesFound];
-        int pos = 0;
-        int n = -1;
-        if (entriesFound > 0) {
-            n = toRemove[0];
-            for (int i = 0; i < cache.length; i++) {
-                if (i == n) {
-                    if ((pos + 1) < entriesFound) {
-                        n = toRemove[pos + 1];
-                        pos++;
-                    } else {
-                        pos++;
-                        n = -1;
-                    }
-                } else {
-                    newCache[i - pos] = cache[i];
+
+    /**
+     * Return a snapshot of the entries of the cache.
+     */
+    public CacheEntry[] entries() {
+
+        ArrayList results = new ArrayList();
+        for (int i = 0; i < segments.length; i++) {
+            synchronized (segments[i]) {
+                Iterator nodes = segments[i].nodes.values().iterator();
+                while (nodes.hasNext()) {
+                    results.add(((Node) nodes.next()).entry);
                 }
             }
         }
-        cache = newCache;
-        cacheSize -= totalSpace;
+        return ((CacheEntry[]) results.toArray(new CacheEntry[results.size()]));
+
+    }
+
 
-        return true;
+    /**
+     * Load the specified entry in the cache, if it is not already present
+     * and is admitted by the cache policy.
+     *
+     * @param entry The entry to load
+     * @return <code>true</code> if the entry is now held by the cache
+     */
+    public boolean load(CacheEntry entry) {
+
+        int hash = hash(entry.name);
+        Segment segment = segmentFor(hash);
+        synchronized (segment) {
+            segment.load(entry, hash);
+            Node node = (Node) segment.nodes.get(entry.name);
+            return ((node != null) && (node.entry == entry));
+        }
 
     }
 
 
-    public CacheEntry lookup(String name) {
+    /**
+     * Remove the entry with the specified name from the cache.
+     *
+     * @param name Name of the entry
+     */
+    public boolean unload(String name) {
 
-        CacheEntry cacheEntry = null;
-        CacheEntry[] currentCache = cache;
-        accessCount++;
-        int pos = find(currentCache, name);
-        if ((pos != -1) && (name.equals(currentCache[pos].name))) {
-            cacheEntry = currentCache[pos];
+        int hash = hash(name);
+        Segment segment = segmentFor(hash);
+        synchronized (segment) {
+            return segment.unload(name);
         }
 
-        if (cacheEntry == null) {
-            try {
-                cacheEntry = (CacheEntry) notFoundCache.get(name);
-            } catch (Exception e) {
-                // Ignore: the reliability of this lookup is not critical
-            }
-        }
-        if (cacheEntry != null) {
-            hitsCount++;
-        }
-        return cacheEntry;
+    }
+
+
+    // ------------------------------------------------------ Protected Methods
+
 
+    /**
+     * Spread the hash code of an entry name, as names often differ only in
+     * their last characters.
+     */
+    protected static int hash(String name) {
+        int h = name.hashCode() * 0x9e3779b9;
+        return h ^ (h >>> 16);
     }
 
 
-    public void load(CacheEntry entry) {
-        if (entry.exists) {
-            if (insertCache(entry)) {
-                cacheSize += entry.size;
-            }
-        } else {
-            int sizeIncrement = (notFoundCache.get(entry.name) == null) ? 1 : 0;
-            notFoundCache.put(entry.name, entry);
-            cacheSize += sizeIncrement;
-        }
+    /**
+     * Return the segment holding entries with the specified hash.
+     */
+    protected Segment segmentFor(int hash) {
+        return segments[(hash >>> 24) & (segments.length - 1)];
     }
 
 
-    public boolean unload(String name) {
-        CacheEntry removedEntry = removeCache(name);
-        if (removedEntry != null) {
-            cacheSize -= removedEntry.size;
-            return true;
-        } else if (notFoundCache.remove(name) != null) {
-            cacheSize--;
-            return true;
+    /**
+     * Distribute the maximum size of the cache to the segments.
+     */
+    protected void resize() {
+        int maxSize = Math.max(cacheMaxSize / segments.length, 1);
+        for (int i = 0; i < segments.length; i++) {
+            synchronized (segments[i]) {
+                segments[i].resize(maxSize);
+            }
         }
-        return false;
     }
 
 
+    // -------------------------------------------------- Segment Inner Class
+
+
     /**
-     * Find a map elemnt given its name in a sorted array of map elements.
-     * This will return the index for the closest inferior or equal item in the
-     * given array.
+     * A segment of the cache.  All methods must be called while holding the
+     * lock of the segment.
      */
-    private static final int find(CacheEntry[] map, String name) {
+    protected static class Segment {
+
+        protected HashMap nodes = new HashMap();
+        protected Node window = new Node(null, 0);
+        protected Node probation = new Node(null, 0);
+        protected Node protect = new Node(null, 0);
+        protected int windowSize = 0;
+        protected int probationSize = 0;
+        protected int protectSize = 0;
+        protected int maxWindowSize = 1;
+        protected int maxMainSize = 1;
+        protected int maxProtectSize = 1;
+        protected FrequencySketch sketch = new FrequencySketch(16);
+        protected long accessCount = 0;
+        protected long hitsCount = 0;
+        protected long evictionCount = 0;
+        protected long rejectedCount = 0;
+
+        protected int size() {
+            return windowSize + probationSize + protectSize;
+        }
 
-        int a = 0;
-        int b = map.length - 1;
+        protected void resize(int maxSize) {
+            maxWindowSize = Math.max(maxSize * WINDOW_PERCENT / 100, 1);
+            maxMainSize = Math.max(maxSize - maxWindowSize, 1);
+            maxProtectSize = maxMainSize * PROTECTED_PERCENT / 100;
+            sketch = new FrequencySketch(maxSize);
+            while (protectSize > maxProtectSize) {
+                demote();
+            }
+            while (windowSize > maxWindowSize) {
+                admit(window.next);
+            }
+            while (probationSize + protectSize > maxMainSize) {
+                Node victim = (probation.next != probation)
+                    ? probation.next : protect.next;
+                evict(victim);
+            }
+        }
 
-        // Special cases: -1 and 0
-        if (b == -1) {
-            return -1;
+        protected CacheEntry lookup(String name, int hash) {
+            accessCount++;
+            sketch.increment(hash);
+            Node node = (Node) nodes.get(name);
+            if (node == null)
+                return null;
+            hitsCount++;
+            node.entry.accessCount++;
+            if (node.queue == probation) {
+                // Promote to the protected area
+                node.unlink();
+                probationSize -= node.weight;
+                node.linkLast(protect);
+                protectSize += node.weight;
+                while (protectSize > maxProtectSize) {
+                    demote();
+                }
+            } else {
+                node.unlink();
+                node.linkLast(node.queue);
+            }
+            return node.entry;
         }
-        if (name.compareTo(map[0].name) < 0) {
-            return -1;
+
+        protected void load(CacheEntry entry, int hash) {
+            if (nodes.containsKey(entry.name))
+                return;
+            Node node = new Node(entry, hash);
+            nodes.put(entry.name, node);
+            if (node.weight > maxWindowSize) {
+                // Too large for the window, compete directly for admission
+                admit(node);
+                return;
+            }
+            node.linkLast(window);
+            windowSize += node.weight;
+            while (windowSize > maxWindowSize) {
+                admit(window.next);
+            }
         }
-        if (b == 0) {
-            return 0;
+
+        protected boolean unload(String name) {
+            Node node = (Node) nodes.remove(name);
+            if (node == null)
+                return false;
+            node.unlink();
+            if (node.queue == window) {
+                windowSize -= node.weight;
+            } else if (node.queue == probation) {
+                probationSize -= node.weight;
+            } else if (node.queue == protect) {
+                protectSize -= node.weight;
+            }
+            return true;
         }
 
-        int i = 0;
-        while (true) {
-            i = (b + a) / 2;
-            int result = name.compareTo(map[i].name);
-            if (result > 0) {
-                a = i;
-            } else if (result == 0) {
-                return i;
-            } else {
-                b = i;
+        /**
+         * Move a candidate from the window (or a new entry which is too
+         * large for the window) to the main space, if it is accessed more
+         * frequently than the entries it would replace.
+         */
+        protected void admit(Node candidate) {
+            if (candidate.queue == window) {
+                candidate.unlink();
+                windowSize -= candidate.weight;
+            }
+            if (candidate.weight > maxMainSize) {
+                reject(candidate);
+                return;
             }
-            if ((b - a) == 1) {
-                int result2 = name.compareTo(map[b].name);
-                if (result2 < 0) {
-                    return a;
-                } else {
-                    return b;
+            int frequency = sketch.frequency(candidate.hash);
+            while (probationSize + protectSize + candidate.weight 
+                   > maxMainSize) {
+                Node victim = (probation.next != probation)
+                    ? probation.next : protect.next;
+                if (frequency <= sketch.frequency(victim.hash)) {
+                    reject(candidate);
+                    return;
                 }
+                evict(victim);
+            }
+            candidate.linkLast(probation);
+            probationSize += candidate.weight;
+        }
+
+        protected void reject(Node candidate) {
+            nodes.remove(candidate.entry.name);
+            candidate.queue = null;
+            rejectedCount++;
+        }
+
+        protected void evict(Node victim) {
+            nodes.remove(victim.entry.name);
+            victim.unlink();
+            if (victim.queue == probation) {
+                probationSize -= victim.weight;
+            } else {
+                protectSize -= victim.weight;
             }
+            victim.queue = null;
+            evictionCount++;
+        }
+
+        protected void demote() {
+            Node node = protect.next;
+            node.unlink();
+            protectSize -= node.weight;
+            node.linkLast(probation);
+            probationSize += node.weight;
         }
 
     }
 
 
+    // ----------------------------------------------------- Node Inner Class
+
+
     /**
-     * Insert into the right place in a sorted MapElement array, and prevent
-     * duplicates.
+     * A cache entry, linked in one of the LRU queues of its segment.  The
+     * queues are circular lists with a sentinel node.
      */
-    private final boolean insertCache(CacheEntry newElement) {
-        CacheEntry[] oldCache = cache;
-        int pos = find(oldCache, newElement.name);
-        if ((pos != -1) && (newElement.name.equals(oldCache[pos].name))) {
-            return false;
+    protected static class Node {
+
+        protected Node(CacheEntry entry, int hash) {
+            this.entry = entry;
+            this.hash = hash;
+            this.weight = (entry == null) ? 0 : Math.max(entry.size, 1);
+            this.prev = this;
+            this.next = this;
         }
-        CacheEntry[] newCache = new CacheEntry[cache.length + 1];
-        System.arraycopy(oldCache, 0, newCache, 0, pos + 1);
-        newCache[pos + 1] = newElement;
-        System.arraycopy
-            (oldCache, pos + 1, newCache, pos + 2, oldCache.length - pos - 1);
-        cache = newCache;
-        return true;
+
+        protected CacheEntry entry;
+        protected int hash;
+        protected int weight;
+        protected Node queue = null;
+        protected Node prev;
+        protected Node next;
+
+        protected void linkLast(Node sentinel) {
+            queue = sentinel;
+            prev = sentinel.prev;
+            next = sentinel;
+            sentinel.prev.next = this;
+            sentinel.prev = this;
+        }
+
+        protected void unlink() {
+            prev.next = next;
+            next.prev = prev;
+            prev = this;
+            next = this;
+        }
+
     }
 
 
+    // ------------------------------------------ FrequencySketch Inner Class
+
+
     /**
-     * Insert into the right place in a sorted MapElement array.
+     * Count-min sketch of the access frequencies, using four 4-bit counters
+     * per entry.  All the counters are halved once the number of recorded
+     * accesses reaches ten times the number of counters, so that the
+     * frequencies reflect the recent popularity of the entries.
      */
-    private final CacheEntry removeCache(String name) {
-        CacheEntry[] oldCache = cache;
-        int pos = find(oldCache, name);
-        if ((pos != -1) && (name.equals(oldCache[pos].name))) {
-            CacheEntry[] newCache = new CacheEntry[cache.length - 1];
-            System.arraycopy(oldCache, 0, newCache, 0, pos);
-            System.arraycopy(oldCache, pos + 1, newCache, pos, 
-                             oldCache.length - pos - 1);
-            cache = newCache;
-            return oldCache[pos];
+    protected static class FrequencySketch {
+
+        protected static final long RESET_MASK = 0x7777777777777777L;
+        protected static final int[] SEEDS = 
+            { 0x97cb3127, 0xc2b2ae35, 0x85ebca6b, 0x27d4eb2f };
+
+        protected long[] table;
+        protected int sampleSize;
+        protected int additions = 0;
+
+        protected FrequencySketch(int maxEntries) {
+            int length = 1;
+            while (length < Math.max(maxEntries / 4, 4)) {
+                length <<= 1;
+            }
+            table = new long[length];
+            sampleSize = 10 * length * 16 / 4;
         }
-        return null;
+
+        protected int frequency(int hash) {
+            int result = 15;
+            for (int i = 0; i < SEEDS.length; i++) {
+                int h = (hash ^ SEEDS[i]) * SEEDS[i];
+                h ^= (h >>> 17);
+                int index = h & (table.length - 1);
+                int shift = ((h >>> 28) & 15) << 2;
+                result = Math.min(result, (int) ((table[index] >>> shift) & 15));
+            }
+            return result;
+        }
+
+        protected void increment(int hash) {
+            boolean added = false;
+            for (int i = 0; i < SEEDS.length; i++) {
+                int h = (hash ^ SEEDS[i]) * SEEDS[i];
+                h ^= (h >>> 17);
+                int index = h & (table.length - 1);
+                int shift = ((h >>> 28) & 15) << 2;
+                if (((table[index] >>> shift) & 15) < 15) {
+                    table[index] += (1L << shift);
+                    added = true;
+                }
+            }
+            if (added && (++additions == sampleSize)) {
+                for (int i = 0; i < table.length; i++) {
+                    table[i] = (table[i] >>> 1) & RESET_MASK;
+                }
+                additions = additions / 2;
+            }
+        }
+
     }
 
+
 }
@@ -18,14 +18,23 @@
 
 package org.apache.naming.resources;
 
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Calendar;
 import java.util.Date;
 import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.Hashtable;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipException;
 import java.util.zip.ZipFile;
@@ -46,6 +55,16 @@ import org.apache.naming.NamingEntry;
 
 /**
  * WAR Directory Context implementation.
+ * <p>
+ * The entries of the WAR are indexed by path, so that looking up an entry
+ * does not walk the entry tree.  If <code>useMapping</code> is set, the WAR
+ * file is mapped in memory for the life of the context, its index is read
+ * from its central directory, and the content of the entries is streamed
+ * straight from the mapped file.  As the mapping keeps the WAR open, it
+ * should not be used for WARs which are overwritten in place, or on
+ * platforms which lock mapped files (such as Windows).  If the WAR is not
+ * mapped (for example if it is larger than 2GB), the entries are read
+ * through the <code>ZipFile</code>.
  *
  * @author Remy Maucherat
  * @version $Id$
@@ -84,6 +103,40 @@ public class WARDirContext extends BaseDirContext {
     }
 
 
+    /**
+     * Constructor used for returning fake subcontexts sharing the index
+     * and the mapped content of the WAR.
+     */
+    protected WARDirContext(ZipFile base, Entry entries, HashMap index,
+                            ByteBuffer mapped) {
+        this.base = base;
+        this.entries = entries;
+        this.index = index;
+        this.mapped = mapped;
+    }
+
+
+    // -------------------------------------------------------------- Constants
+
+
+    /**
+     * Signature of a local file header.
+     */
+    protected static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+
+
+    /**
+     * Signature of a central directory file header.
+     */
+    protected static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+
+
+    /**
+     * Signature of the end of central directory record.
+     */
+    protected static final int END_SIGNATURE = 0x06054b50;
+
+
     // ----------------------------------------------------- Instance Variables
 
 
@@ -99,9 +152,46 @@ public class WARDirContext extends BaseDirContext {
     protected Entry entries = null;
 
 
+    /**
+     * WAR entries, keyed by their path relative to the root of the WAR
+     * (without leading or trailing '/').
+     */
+    protected HashMap index = null;
+
+
+    /**
+     * The mapped WAR file, or <code>null</code> if it could not be mapped.
+     */
+    protected ByteBuffer mapped = null;
+
+
+    /**
+     * Should the WAR file be memory mapped ?
+     */
+    protected boolean useMapping = false;
+
+
     // ------------------------------------------------------------- Properties
 
 
+    /**
+     * Return the memory mapping flag.
+     */
+    public boolean getUseMapping() {
+        return useMapping;
+    }
+
+
+    /**
+     * Set the memory mapping flag. It must be set before the document root.
+     *
+     * @param useMapping The new memory mapping flag
+     */
+    public void setUseMapping(boolean useMapping) {
+        this.useMapping = useMapping;
+    }
+
+
     /**
      * Set the document root.
      * 
@@ -137,6 +227,11 @@ public class WARDirContext extends BaseDirContext {
         }
         super.setDocBase(docBase);
 
+        if (useMapping) {
+            mapped = map(base);
+        } else {
+            mapped = null;
+        }
         loadEntries();
 
     }
@@ -151,6 +246,8 @@ public class WARDirContext extends BaseDirContext {
     public void release() {
 
         entries = null;
+        index = null;
+        mapped = null;
         if (base != null) {
             try {
                 base.close();
@@ -201,9 +298,9 @@ public class WARDirContext extends BaseDirContext {
                 (sm.getString("resources.notFound", name));
         ZipEntry zipEntry = entry.getEntry();
         if (zipEntry.isDirectory())
-            return new WARDirContext(base, entry);
+            return new WARDirContext(base, entry, index, mapped);
         else
-            return new WARResource(entry.getEntry());
+            return new WARResource(entry);
     }
 
 
@@ -731,47 +828,27 @@ public class WARDirContext extends BaseDirContext {
 
         try {
 
-            Enumeration entryList = base.entries();
             entries = new Entry("/", new ZipEntry("/"));
-            
-            while (entryList.hasMoreElements()) {
-                
-                ZipEntry entry = (ZipEntry) entryList.nextElement();
-                String name = normalize(entry);
-                int pos = name.lastIndexOf('/');
-                // Check that parent entries exist and, if not, create them.
-                // This fixes a bug for war files that don't record separate
-                // zip entries for the directories.
-                int currentPos = -1;
-                int lastPos = 0;
-                while ((currentPos = name.indexOf('/', lastPos)) != -1) {
-                    Name parentName = new CompositeName(name.substring(0, lastPos));
-                    Name childName = new CompositeName(name.substring(0, currentPos));
-                    String entryName = name.substring(lastPos, currentPos);
-                    // Parent should have been created in last cycle through
-                    // this loop
-                    Entry parent = treeLookup(parentName);
-                    Entry child = treeLookup(childName);
-                    if (child == null) {
-                        // Create a new entry for missing entry and strip off
-                        // the leading '/' character and appended on by the
-                        // normalize method and add '/' character to end to
-                        // signify that it is a directory entry
-                        String zipName = name.substring(1, currentPos) + "/";
-                        child = new Entry(entryName, new ZipEntry(zipName));
-                        if (parent != null)
-                            parent.addChild(child);
-                    }
-                    // Increment lastPos
-                    lastPos = currentPos + 1;
+            entries.path = "";
+            index = new HashMap();
+
+            // Read the central directory of the mapped WAR if possible
+            if (mapped != null) {
+                try {
+                    if (loadCentralDirectory())
+                        return;
+                } catch (Exception e) {
+                    // Read the entries through the ZipFile
                 }
-                String entryName = name.substring(pos + 1, name.length());
-                Name compositeName = new CompositeName(name.substring(0, pos));
-                Entry parent = treeLookup(compositeName);
-                Entry child = new Entry(entryName, entry);
-                if (parent != null)
-                    parent.addChild(child);
-                
+            }
+            mapped = null;
+            entries = new Entry("/", new ZipEntry("/"));
+            entries.path = "";
+            index = new HashMap();
+
+            Enumeration entryList = base.entries();
+            while (entryList.hasMoreElements()) {
+                addEntry((ZipEntry) entryList.nextElement(), -1L);
             }
 
         } catch (Exception e) {
@@ -781,11 +858,142 @@ public class WARDirContext extends BaseDirContext {
 
 
     /**
-     * Entry tree lookup.
+     * Constructs the tree of the entries from the central directory of the
+     * mapped WAR file.
+     *
+     * @return <code>false</code> if the central directory uses a format
+     *  which is not supported, such as ZIP64
+     */
+    protected boolean loadCentralDirectory()
+        throws IOException {
+
+        // Find the end of central directory record, which may be followed
+        // by a comment
+        int end = -1;
+        int min = Math.max(0, mapped.limit() - 22 - 0xffff);
+        for (int i = mapped.limit() - 22; i >= min; i--) {
+            if (mapped.getInt(i) == END_SIGNATURE) {
+                end = i;
+                break;
+            }
+        }
+        if (end < 0)
+            return false;
+        int count = mapped.getShort(end + 10) & 0xffff;
+        long offset = mapped.getInt(end + 16) & 0xffffffffL;
+        if ((count == 0xffff) || (offset >= mapped.limit()))
+            return false;
+
+        Calendar calendar = Calendar.getInstance();
+        int pos = (int) offset;
+        byte[] buffer = new byte[256];
+        for (int i = 0; i < count; i++) {
+            if (mapped.getInt(pos) != CENTRAL_HEADER_SIGNATURE)
+                return false;
+            int method = mapped.getShort(pos + 10) & 0xffff;
+            if ((method != ZipEntry.STORED) && (method != ZipEntry.DEFLATED))
+                return false;
+            int nameLength = mapped.getShort(pos + 28) & 0xffff;
+            int extraLength = mapped.getShort(pos + 30) & 0xffff;
+            int commentLength = mapped.getShort(pos + 32) & 0xffff;
+            if (nameLength > buffer.length)
+                buffer = new byte[nameLength];
+            for (int j = 0; j < nameLength; j++)
+                buffer[j] = mapped.get(pos + 46 + j);
+            ZipEntry entry =
+                new ZipEntry(new String(buffer, 0, nameLength, "UTF-8"));
+            entry.setMethod(method);
+            entry.setTime(dosToJavaTime
+                          (mapped.getInt(pos + 12) & 0xffffffffL, calendar));
+            entry.setCrc(mapped.getInt(pos + 16) & 0xffffffffL);
+            entry.setCompressedSize(mapped.getInt(pos + 20) & 0xffffffffL);
+            entry.setSize(mapped.getInt(pos + 24) & 0xffffffffL);
+            addEntry(entry, mapped.getInt(pos + 42) & 0xffffffffL);
+            pos += 46 + nameLength + extraLength + commentLength;
+        }
+        return true;
+
+    }
+
+
+    /**
+     * Add the specified entry to the tree, creating the parent entries
+     * which do not exist.
+     *
+     * @param zipEntry The entry read from the WAR
+     * @param offset The offset of the local header of the entry in the
+     *  mapped WAR, or -1 if the entry is not read from the mapped WAR
+     */
+    protected void addEntry(ZipEntry zipEntry, long offset) {
+
+        String path = normalize(zipEntry);
+        int start = 0;
+        while ((start < path.length()) && (path.charAt(start) == '/'))
+            start++;
+        path = path.substring(start);
+        if (path.length() == 0)
+            return;
+
+        Entry child = (Entry) index.get(path);
+        if (child == null) {
+            int pos = path.lastIndexOf('/');
+            Entry parent = 
+                (pos < 0) ? entries : getDirectory(path.substring(0, pos));
+            child = new Entry(path.substring(pos + 1), zipEntry);
+            child.path = path;
+            index.put(path, child);
+            parent.addChild(child);
+        } else {
+            // Replace the entry created for a missing directory
+            child.entry = zipEntry;
+        }
+        child.offset = offset;
+
+    }
+
+
+    /**
+     * Return the directory entry at the specified path, creating it and
+     * its parents if needed.  This fixes a bug for war files that don't
+     * record separate zip entries for the directories.
+     */
+    protected Entry getDirectory(String path) {
+
+        Entry directory = (Entry) index.get(path);
+        if (directory == null) {
+            int pos = path.lastIndexOf('/');
+            Entry parent = 
+                (pos < 0) ? entries : getDirectory(path.substring(0, pos));
+            directory = new Entry(path.substring(pos + 1),
+                                  new ZipEntry(path + "/"));
+            directory.path = path;
+            index.put(path, directory);
+            parent.addChild(directory);
+        }
+        return directory;
+
+    }
+
+
+    /**
+     * Entry lookup.
      */
     protected Entry treeLookup(Name name) {
         if (name.isEmpty())
             return entries;
+        if (index != null) {
+            StringBuffer path = new StringBuffer(entries.path);
+            for (int i = 0; i < name.size(); i++) {
+                if (name.get(i).length() == 0)
+                    continue;
+                if (path.length() > 0)
+                    path.append('/');
+                path.append(name.get(i));
+            }
+            if (path.length() == 0)
+                return entries;
+            return (Entry) index.get(path.toString());
+        }
         Entry currentEntry = entries;
         for (int i = 0; i < name.size(); i++) {
             if (name.get(i).length() == 0)
@@ -798,6 +1006,82 @@ public class WARDirContext extends BaseDirContext {
     }
 
 
+    /**
+     * Return the compressed data of the specified entry in the mapped WAR,
+     * or <code>null</code> if it is not available.
+     */
+    protected ByteBuffer getMappedData(Entry entry) {
+
+        ByteBuffer mapped = this.mapped;
+        if ((mapped == null) || (entry.offset < 0))
+            return null;
+        try {
+            int pos = (int) entry.offset;
+            if (mapped.getInt(pos) != LOCAL_HEADER_SIGNATURE)
+                return null;
+            int start = pos + 30 + (mapped.getShort(pos + 26) & 0xffff)
+                + (mapped.getShort(pos + 28) & 0xffff);
+            long length = entry.getEntry().getCompressedSize();
+            if ((length < 0) || (start + length > mapped.limit()))
+                return null;
+            ByteBuffer data = mapped.duplicate();
+            data.position(start);
+            data.limit(start + (int) length);
+            return data.slice();
+        } catch (RuntimeException e) {
+            return null;
+        }
+
+    }
+
+
+    /**
+     * Map the specified WAR file, or return <code>null</code> if it cannot
+     * be mapped.
+     */
+    protected static ByteBuffer map(File file) {
+
+        if (file.length() > Integer.MAX_VALUE)
+            return null;
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "r");
+            ByteBuffer buffer = raf.getChannel().map
+                (FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            return buffer;
+        } catch (IOException e) {
+            return null;
+        } finally {
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+        }
+
+    }
+
+
+    /**
+     * Convert a DOS date and time to a Java time.
+     */
+    protected static long dosToJavaTime(long dosTime, Calendar calendar) {
+
+        calendar.clear();
+        calendar.set((int) (((dosTime >> 25) & 0x7f) + 1980),
+                     (int) (((dosTime >> 21) & 0x0f) - 1),
+                     (int) ((dosTime >> 16) & 0x1f),
+                     (int) ((dosTime >> 11) & 0x1f),
+                     (int) ((dosTime >> 5) & 0x3f),
+                     (int) ((dosTime << 1) & 0x3e));
+        return calendar.getTime().getTime();
+
+    }
+
+
     /**
      * List children as objects.
      */
@@ -812,9 +1096,9 @@ public class WARDirContext extends BaseDirContext {
             ZipEntry current = children[i].getEntry();
             Object object = null;
             if (current.isDirectory()) {
-                object = new WARDirContext(base, children[i]);
+                object = new WARDirContext(base, children[i], index, mapped);
             } else {
-                object = new WARResource(current);
+                object = new WARResource(children[i]);
             }
             namingEntry = new NamingEntry
                 (children[i].getName(), object, NamingEntry.ENTRY);
@@ -854,6 +1138,21 @@ public class WARDirContext extends BaseDirContext {
         
         
         protected Entry children[] = new Entry[0];
+
+
+        protected int childCount = 0;
+
+
+        /**
+         * Path of the entry relative to the root of the WAR.
+         */
+        protected String path = null;
+
+
+        /**
+         * Offset of the local header of the entry in the mapped WAR, or -1.
+         */
+        protected long offset = -1L;
         
         
         // ----------------------------------------------------- Public Methods
@@ -875,21 +1174,29 @@ public class WARDirContext extends BaseDirContext {
         }
         
         
-        public void addChild(Entry entry) {
-            Entry[] newChildren = new Entry[children.length + 1];
-            for (int i = 0; i < children.length; i++)
-                newChildren[i] = children[i];
-            newChildren[children.length] = entry;
-            children = newChildren;
+        public synchronized void addChild(Entry entry) {
+            if (childCount == children.length) {
+                Entry[] newChildren = 
+                    new Entry[Math.max(4, children.length * 2)];
+                System.arraycopy(children, 0, newChildren, 0, childCount);
+                children = newChildren;
+            }
+            children[childCount++] = entry;
         }
 
 
-        public Entry[] getChildren() {
+        public synchronized Entry[] getChildren() {
+            if (childCount != children.length) {
+                Entry[] newChildren = new Entry[childCount];
+                System.arraycopy(children, 0, newChildren, 0, childCount);
+                children = newChildren;
+            }
             return children;
         }
 
 
         public Entry getChild(String name) {
+            Entry[] children = getChildren();
             for (int i = 0; i < children.length; i++) {
                 if (children[i].name.equals(name)) {
                     return children[i];
@@ -920,10 +1227,19 @@ public class WARDirContext extends BaseDirContext {
         }
         
         
+        public WARResource(Entry indexEntry) {
+            this.entry = indexEntry.getEntry();
+            this.indexEntry = indexEntry;
+        }
+        
+        
         // --------------------------------------------------- Member Variables
         
         
         protected ZipEntry entry;
+
+
+        protected Entry indexEntry = null;
         
         
         // ----------------------------------------------------- Public Methods
@@ -937,8 +1253,23 @@ public class WARDirContext extends BaseDirContext {
         public InputStream streamContent()
             throws IOException {
             try {
-                if (binaryContent == null) {
-                    InputStream is = base.getInputStream(entry);
+                if ((binaryContent == null) && (mappedContent == null)) {
+                    InputStream is = null;
+                    ByteBuffer data = null;
+                    if (indexEntry != null) {
+                        data = getMappedData(indexEntry);
+                    }
+                    if ((data != null)
+                        && (entry.getMethod() == ZipEntry.STORED)) {
+                        // The mapped content is not exposed, so that it is
+                        // not retained by the resource cache
+                        is = new ByteBufferInputStream(data);
+                    } else if ((data != null)
+                               && (entry.getMethod() == ZipEntry.DEFLATED)) {
+                        is = new MappedInflaterInputStream(data);
+                    } else {
+                        is = base.getInputStream(entry);
+                    }
                     inputStream = is;
                     return is;
                 }
@@ -952,5 +1283,42 @@ public class WARDirContext extends BaseDirContext {
     }
 
 
-}
+    // ---------------------------------- MappedInflaterInputStream Inner Class
+
+
+    /**
+     * Stream inflating a deflated entry from the mapped WAR.
+     */
+    protected static class MappedInflaterInputStream
+        extends InflaterInputStream {
+
+        protected boolean eof = false;
+
+        public MappedInflaterInputStream(ByteBuffer data) {
+            super(new Resource.ByteBufferInputStream(data),
+                  new Inflater(true), 2048);
+        }
 
+        protected void fill() throws IOException {
+            if (eof)
+                throw new EOFException("Unexpected end of ZLIB input stream");
+            len = in.read(buf, 0, buf.length);
+            if (len == -1) {
+                // Provide the extra byte needed by the inflater with the
+                // nowrap option
+                buf[0] = 0;
+                len = 1;
+                eof = true;
+            }
+            inf.setInput(buf, 0, len);
+        }
+
+        public void close() throws IOException {
+            super.close();
+            inf.end();
+        }
+
+    }
+
+
+}
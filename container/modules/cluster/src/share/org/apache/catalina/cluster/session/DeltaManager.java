@@ -47,7 +47,6 @@ import org.apache.catalina.cluster.ClusterMessage;
 import org.apache.catalina.cluster.Member;
 import org.apache.catalina.session.ManagerBase;
 import org.apache.catalina.cluster.tcp.ReplicationValve;
-import org.apache.catalina.util.CustomObjectInputStream;
 import org.apache.catalina.util.LifecycleSupport;
 import org.apache.catalina.util.StringManager;
 import org.apache.catalina.core.StandardContext;
@@ -919,14 +918,14 @@ public class DeltaManager extends ManagerBase implements Lifecycle,
                     log.trace(sm.getString(
                             "deltaManager.loading.withContextClassLoader",
                             getName()));
-                ois = new CustomObjectInputStream(bis, classLoader);
+                ois = getSerializer().getObjectInputStream(bis, classLoader);
                 Thread.currentThread().setContextClassLoader(classLoader);
             } else {
                 if (log.isTraceEnabled())
                     log.trace(sm.getString(
                             "deltaManager.loading.withoutClassLoader",
                             getName()));
-                ois = new ObjectInputStream(bis);
+                ois = getSerializer().getObjectInputStream(bis, null);
             }
         } catch (IOException e) {
             log.error(sm.getString("deltaManager.loading.ioe", e), e);
@@ -959,7 +958,8 @@ public class DeltaManager extends ManagerBase implements Lifecycle,
 
         try {
             fos = new ByteArrayOutputStream();
-            oos = new ObjectOutputStream(new BufferedOutputStream(fos));
+            oos = getSerializer().getObjectOutputStream(
+                    new BufferedOutputStream(fos));
             oos.writeObject(new Integer(currentSessions.length));
             for(int i=0 ; i < currentSessions.length;i++) {
                 ((DeltaSession)currentSessions[i]).writeObjectData(oos);                
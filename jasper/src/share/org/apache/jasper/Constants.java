@@ -125,6 +125,14 @@ public class Constants {
     // Must be kept in sync with org/apache/catalina/Globals.java
     public static final String ALT_DD_ATTR = "org.apache.catalina.deploy.alt_dd";
 
+    /**
+     * The servlet context attribute under which the container records the
+     * taglib URIs declared by the TLDs of the JAR files it has scanned.
+     * Must be kept in sync with org/apache/catalina/Globals.java
+     */
+    public static final String TLD_LOCATIONS_ATTR =
+        "org.apache.catalina.deploy.tld_locations";
+
     /**
      * Public Id and the Resource path (of the cached copy) 
      * of the DTDs for tag library descriptors. 
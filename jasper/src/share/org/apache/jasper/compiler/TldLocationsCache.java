@@ -17,10 +17,12 @@
 
 package org.apache.jasper.compiler;
 
+import java.io.File;
 import java.io.InputStream;
 import java.io.IOException;
 import java.net.JarURLConnection;
 import java.net.MalformedURLException;
+import java.net.URI;
 import java.net.URL;
 import java.net.URLClassLoader;
 import java.net.URLConnection;
@@ -28,6 +30,7 @@ import java.util.Enumeration;
 import java.util.Hashtable;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.Map;
 import java.util.Set;
 import java.util.StringTokenizer;
 import java.util.jar.JarEntry;
@@ -492,12 +495,16 @@ public class TldLocationsCache {
      * The set of shared JARs to be scanned for TLDs is narrowed down by
      * the <tt>noTldJars</tt> class variable, which contains the names of JARs
      * that are known not to contain any TLDs.
+     *
+     * The JARs which have already been scanned by the container when the
+     * web application was started are not scanned again.
      */
     private void scanJars() throws Exception {
 
         ClassLoader webappLoader
             = Thread.currentThread().getContextClassLoader();
         ClassLoader loader = webappLoader;
+        Map locations = (Map) ctxt.getAttribute(Constants.TLD_LOCATIONS_ATTR);
 
         while (loader != null) {
             if (loader instanceof URLClassLoader) {
@@ -506,14 +513,17 @@ public class TldLocationsCache {
                     URLConnection conn = urls[i].openConnection();
                     if (conn instanceof JarURLConnection) {
                         if (needScanJar(loader, webappLoader,
-                                        ((JarURLConnection) conn).getJarFile().getName())) {
+                                        ((JarURLConnection) conn).getJarFile().getName())
+                            && !processScannedJar(locations,
+                                    ((JarURLConnection) conn).getJarFileURL())) {
                             scanJar((JarURLConnection) conn, true);
                         }
                     } else {
                         String urlStr = urls[i].toString();
                         if (urlStr.startsWith(FILE_PROTOCOL)
                                 && urlStr.endsWith(JAR_FILE_SUFFIX)
-                                && needScanJar(loader, webappLoader, urlStr)) {
+                                && needScanJar(loader, webappLoader, urlStr)
+                                && !processScannedJar(locations, urls[i])) {
                             URL jarURL = new URL("jar:" + urlStr + "!/");
                             scanJar((JarURLConnection) jarURL.openConnection(),
                                     true);
@@ -526,6 +536,46 @@ public class TldLocationsCache {
         }
     }
 
+    /*
+     * Adds an implicit map entry to the taglib map for the TLDs of the given
+     * JAR file which have been found by the container, if it has scanned
+     * this JAR.
+     *
+     * @param locations The taglib URIs found by the container, keyed by
+     * the canonical path of the JAR files, or null
+     * @param jarFileURL The URL of the JAR file
+     *
+     * @return TRUE if the container has scanned the JAR file, FALSE if
+     * it needs to be scanned
+     */
+    private boolean processScannedJar(Map locations, URL jarFileURL) {
+        if (locations == null) {
+            return false;
+        }
+        String[] tlds = null;
+        try {
+            String path = new URI(jarFileURL.toString()).getPath();
+            if (path != null) {
+                tlds = (String[]) locations.get
+                    (new File(path).getCanonicalPath());
+            }
+        } catch (Exception e) {
+            // Scan the JAR
+        }
+        if (tlds == null) {
+            return false;
+        }
+        String resourcePath = jarFileURL.toString();
+        for (int i = 0; i + 1 < tlds.length; i += 2) {
+            // Add implicit map entry only if its uri is not already
+            // present in the map
+            if (mappings.get(tlds[i]) == null) {
+                mappings.put(tlds[i], new String[] { resourcePath, tlds[i + 1] });
+            }
+        }
+        return true;
+    }
+
     /*
      * Determines if the JAR file with the given <tt>jarPath</tt> needs to be
      * scanned for TLDs.